@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.benchmarks;
+
+import org.apache.sling.testing.mock.sling.ResourceResolverType;
+
+import io.wcm.testing.mock.aem.context.AemContextImpl;
+
+/**
+ * {@link io.wcm.testing.mock.aem.junit5.AemContext} equivalent whose life
+ * cycle is driven by JMH setup and tear down methods instead of the JUnit
+ * extension.
+ */
+public final class BenchmarkContext extends AemContextImpl {
+
+    public BenchmarkContext() {
+        setResourceResolverType(ResourceResolverType.RESOURCERESOLVER_MOCK);
+        setUp();
+    }
+
+    public void close() {
+        tearDown();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.task01.core.benchmarks.BenchmarkContext;
+import com.task01.core.metrics.RequestLatencyStats;
+
+/**
+ * Measures the overhead {@link LoggingFilter} adds to every request,
+ * including contended latency recording.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoggingFilterBenchmark {
+
+    private static final FilterChain NOOP_CHAIN = (request, response) -> { };
+
+    private BenchmarkContext context;
+
+    private LoggingFilter filter;
+
+    private MockSlingHttpServletRequest request;
+
+    private MockSlingHttpServletResponse response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new BenchmarkContext();
+        context.build().resource("/content/bench/jcr:content",
+                "sling:resourceType", "task01/components/page").commit();
+        context.registerInjectActivateService(new RequestLatencyStats());
+        filter = context.registerInjectActivateService(new LoggingFilter());
+
+        request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(context.resourceResolver().getResource("/content/bench/jcr:content"));
+        final MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath("/content/bench/jcr:content");
+        pathInfo.setSelectorString("export");
+        pathInfo.setExtension("json");
+        response = new MockSlingHttpServletResponse();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void doFilter() throws IOException, ServletException {
+        filter.doFilter(request, response, NOOP_CHAIN);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void doFilterContended() throws IOException, ServletException {
+        filter.doFilter(request, response, NOOP_CHAIN);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures {@link SimpleResourceListener#onChange} for large event lists,
+ * as produced by bulk activations. {@link #onChange()} covers the work done
+ * on the observation thread only, {@link #onChangeAndDispatch()} includes
+ * handing the coalesced batches to a handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimpleResourceListenerBenchmark {
+
+    private static final ChangeType[] TYPES = { ChangeType.ADDED, ChangeType.CHANGED, ChangeType.REMOVED };
+
+    @Param({ "1000", "50000" })
+    public int events;
+
+    private SimpleResourceListener listener;
+
+    private List<ResourceChange> changes;
+
+    private volatile int delivered;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        listener = new SimpleResourceListener();
+        listener.bindHandler(batch -> delivered += batch.size());
+
+        changes = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            // a tree of pages with a few changes per page, similar to a replicated subtree
+            final String page = "/content/bench/section" + (i % 50) + "/page" + (i / 4);
+            changes.add(new ResourceChange(TYPES[i % TYPES.length], page + "/jcr:content/root/item" + (i % 4), false));
+        }
+    }
+
+    /**
+     * Empties the buffer between invocations so that every invocation sees
+     * the same state; the invocations are long enough for the per-invocation
+     * fixture to be negligible.
+     */
+    @TearDown(Level.Invocation)
+    public void drain() {
+        listener.dispatch();
+    }
+
+    @Benchmark
+    public void onChange() {
+        listener.onChange(changes);
+    }
+
+    @Benchmark
+    public void onChangeAndDispatch() {
+        listener.onChange(changes);
+        listener.dispatch();
+    }
+}
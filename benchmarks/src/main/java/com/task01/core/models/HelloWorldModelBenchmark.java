@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.task01.core.benchmarks.BenchmarkContext;
+import com.task01.core.cache.ContainingPageCache;
+
+/**
+ * Measures adaptation of {@link HelloWorldModel} and rendering of its
+ * message for a component nested in a page, with and without the
+ * containing page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HelloWorldModelBenchmark {
+
+    private static final String COMPONENT_PATH = "/content/bench/jcr:content/root/container/hello";
+
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    private BenchmarkContext context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new BenchmarkContext();
+        if (cached) {
+            context.registerInjectActivateService(new ContainingPageCache());
+        }
+        context.addModelsForClasses(HelloWorldModel.class);
+        context.create().page("/content/bench");
+        context.create().resource(COMPONENT_PATH, "sling:resourceType", "task01/components/helloworld");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String adaptAndRender() {
+        final Resource resource = context.resourceResolver().getResource(COMPONENT_PATH);
+        return resource.adaptTo(HelloWorldModel.class).getMessage();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable rendered response body together with the validators used for
+ * conditional requests.
+ */
+public final class CachedRender {
+
+    private final String body;
+
+    private final String etag;
+
+    private final long lastModified;
+
+    public CachedRender(final String body, final long lastModified) {
+        this.body = body;
+        this.lastModified = lastModified;
+        this.etag = "\"" + Integer.toHexString(body.hashCode())
+                + "-" + Integer.toHexString(body.getBytes(StandardCharsets.UTF_8).length) + "\"";
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return last modification time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Evaluates the conditional request headers. <code>If-None-Match</code>
+     * takes precedence over <code>If-Modified-Since</code>.
+     * @param ifNoneMatch value of the <code>If-None-Match</code> header or <code>null</code>
+     * @param ifModifiedSince value of the <code>If-Modified-Since</code> header or -1
+     * @return <code>true</code> if the client copy is still current
+     */
+    public boolean isNotModified(final String ifNoneMatch, final long ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                final String tag = candidate.trim();
+                if ("*".equals(tag) || etag.equals(tag) || ("W/" + etag).equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+}
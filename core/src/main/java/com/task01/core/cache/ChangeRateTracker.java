@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.LongSupplier;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Exponentially decaying change counts per content subtree, fed by the
+ * resource change pipeline. Changes are counted against the ancestor of the
+ * changed page at the configured depth. Changes are weighted with forward
+ * decay, like in the hotness tracker: a change at time t adds
+ * <code>exp(lambda * (t - landmark))</code>, so recording neither locks nor
+ * touches other subtrees.
+ * <p>
+ * Every subtree is counted with a long half-life for its baseline and a
+ * short one for bursts, and the higher of both rates is reported. The
+ * baseline assumes one change in addition to the counted ones, divided by
+ * the decayed time the subtree has been observed. Right after activation
+ * every subtree therefore looks volatile, and a subtree that is never
+ * edited settles at one change per mean lifetime.
+ */
+@Designate(ocd = ChangeRateTracker.Config.class)
+@Component(service = { ChangeRateTracker.class, ResourceChangeHandler.class })
+@ServiceDescription("Decaying change rates per content subtree")
+public class ChangeRateTracker implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 change rate tracker",
+                           description = "Decaying change rates per content subtree, used to derive cache lifetimes")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only changes below these paths are tracked")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Subtree depth",
+                             description = "Changes are counted against the ancestor with this number of path segments")
+        int subtreeDepth() default 4;
+
+        @AttributeDefinition(name = "Half-life",
+                             description = "Seconds after which a change counts half for the baseline rate")
+        long halfLifeSeconds() default 21600;
+
+        @AttributeDefinition(name = "Burst half-life",
+                             description = "Seconds after which a change counts half for the burst rate")
+        long burstHalfLifeSeconds() default 600;
+
+        @AttributeDefinition(name = "Maximum subtrees",
+                             description = "The most stable subtrees are dropped beyond this number")
+        int maxTracked() default 10000;
+    }
+
+    // exponent beyond which all weights are rescaled, exp(600) is still far from overflow
+    private static final double RENORMALIZE_EXPONENT = 600;
+
+    private static final int BASELINE = 0;
+    private static final int BURST = 1;
+
+    private static final class Entry {
+
+        // changes of the subtree itself, per time scale
+        final DoubleAdder[] weights = { new DoubleAdder(), new DoubleAdder() };
+
+        // changes that may affect everything below, e.g. folded subtrees
+        final DoubleAdder[] deepWeights = { new DoubleAdder(), new DoubleAdder() };
+    }
+
+    private final Map<String, Entry> bySubtree = new ConcurrentHashMap<>();
+
+    // visible for testing
+    LongSupplier clock = System::currentTimeMillis;
+
+    private String[] paths = { "/content" };
+
+    private int subtreeDepth = 4;
+
+    private int maxTracked = 10000;
+
+    // decay per millisecond, per time scale
+    private double[] lambdas = { Math.log(2) / 21600000, Math.log(2) / 600000 };
+
+    private volatile long landmark = System.currentTimeMillis();
+
+    private volatile long started = System.currentTimeMillis();
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        paths = config.paths() != null ? config.paths() : new String[0];
+        subtreeDepth = Math.max(1, config.subtreeDepth());
+        maxTracked = Math.max(1, config.maxTracked());
+        lambdas = new double[] {
+                Math.log(2) / (Math.max(1, config.halfLifeSeconds()) * 1000.0),
+                Math.log(2) / (Math.max(1, config.burstHalfLifeSeconds()) * 1000.0) };
+        bySubtree.clear();
+        landmark = clock.getAsLong();
+        started = landmark;
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        for (CoalescedChange change : changes) {
+            if (ContentPaths.isIncluded(paths, change.getPath())) {
+                final String page = ContentPaths.getPagePath(change.getPath());
+                final boolean deep = change.isSubtree() && page.equals(change.getPath());
+                record(getSubtree(page), deep);
+            }
+        }
+    }
+
+    /**
+     * @param path repository path
+     * @return estimated changes per second affecting the subtree of the path
+     */
+    public double getRate(final String path) {
+        final String subtree = getSubtree(ContentPaths.getPagePath(path));
+        final double[] weights = new double[2];
+        final Entry own = bySubtree.get(subtree);
+        if (own != null) {
+            for (int scale = BASELINE; scale <= BURST; scale++) {
+                weights[scale] += own.weights[scale].sum() + own.deepWeights[scale].sum();
+            }
+        }
+        for (String ancestor = ContentPaths.getParent(subtree); ancestor != null; ancestor = ContentPaths.getParent(ancestor)) {
+            final Entry entry = bySubtree.get(ancestor);
+            if (entry != null) {
+                for (int scale = BASELINE; scale <= BURST; scale++) {
+                    weights[scale] += entry.deepWeights[scale].sum();
+                }
+            }
+        }
+        final long now = clock.getAsLong();
+        final double[] l = lambdas;
+        final double baseline = (weights[BASELINE] * Math.exp(-l[BASELINE] * (now - landmark)) + 1)
+                / observedSeconds(l[BASELINE], now);
+        final double burst = weights[BURST] * Math.exp(-l[BURST] * (now - landmark)) / observedSeconds(l[BURST], now);
+        return Math.max(baseline, burst);
+    }
+
+    /**
+     * @param path repository path of a page
+     * @return the ancestor changes of the page are counted against
+     */
+    public String getSubtree(final String path) {
+        int slashes = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/' && ++slashes > subtreeDepth) {
+                return path.substring(0, i);
+            }
+        }
+        return path;
+    }
+
+    public int size() {
+        return bySubtree.size();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void record(final String subtree, final boolean deep) {
+        Entry entry = bySubtree.get(subtree);
+        if (entry == null) {
+            if (bySubtree.size() >= maxTracked) {
+                prune();
+            }
+            entry = bySubtree.computeIfAbsent(subtree, key -> new Entry());
+        }
+        final double[] l = lambdas;
+        if (l[BURST] * (clock.getAsLong() - landmark) > RENORMALIZE_EXPONENT) {
+            renormalize();
+        }
+        final long age = clock.getAsLong() - landmark;
+        final DoubleAdder[] target = deep ? entry.deepWeights : entry.weights;
+        target[BASELINE].add(Math.exp(l[BASELINE] * age));
+        target[BURST].add(Math.exp(l[BURST] * age));
+    }
+
+    /**
+     * @return decayed length of the observation, approaches the mean lifetime 1 / lambda
+     */
+    private double observedSeconds(final double lambda, final long now) {
+        return -Math.expm1(-lambda * Math.max(1, now - started)) / lambda / 1000;
+    }
+
+    /**
+     * Drops the most stable tenth of the subtrees.
+     */
+    private synchronized void prune() {
+        if (bySubtree.size() < maxTracked) {
+            return;
+        }
+        final List<Map.Entry<String, Entry>> entries = new ArrayList<>(bySubtree.entrySet());
+        entries.sort((a, b) -> Double.compare(total(a.getValue()), total(b.getValue())));
+        final int drop = Math.max(1, entries.size() / 10);
+        for (int i = 0; i < drop; i++) {
+            bySubtree.remove(entries.get(i).getKey());
+        }
+    }
+
+    /**
+     * Moves the landmark to now and scales all weights accordingly.
+     */
+    private synchronized void renormalize() {
+        final long now = clock.getAsLong();
+        final double[] l = lambdas;
+        if (l[BURST] * (now - landmark) <= RENORMALIZE_EXPONENT) {
+            // already done by another thread
+            return;
+        }
+        for (Entry entry : bySubtree.values()) {
+            for (int scale = BASELINE; scale <= BURST; scale++) {
+                final double factor = Math.exp(-l[scale] * (now - landmark));
+                entry.weights[scale].add(entry.weights[scale].sumThenReset() * factor);
+                entry.deepWeights[scale].add(entry.deepWeights[scale].sumThenReset() * factor);
+            }
+        }
+        landmark = now;
+    }
+
+    private static double total(final Entry entry) {
+        return entry.weights[BASELINE].sum() + entry.deepWeights[BASELINE].sum();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.sling.api.resource.Resource;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Cross-request cache of the containing page of a resource, keyed by the
+ * resource path. Only paths are cached, which are no more sensitive than the
+ * resource itself, so entries can be shared between sessions.
+ */
+@Designate(ocd = ContainingPageCache.Config.class)
+@Component(service = { ContainingPageCache.class, ResourceChangeHandler.class })
+@ServiceDescription("Cache of containing page lookups")
+public class ContainingPageCache implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 containing page cache",
+                           description = "Cross-request cache of containing page lookups")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Maximum entries",
+                             description = "Least recently used entries are evicted beyond this size")
+        int maxEntries() default 50000;
+    }
+
+    private volatile PathLruCache<String> cache = new PathLruCache<>(50000);
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        cache = new PathLruCache<>(Math.max(1, config.maxEntries()));
+    }
+
+    /**
+     * @param resource resource to look up
+     * @return path of the page containing the resource, or an empty string if
+     *         the resource is not part of a page
+     */
+    public String getContainingPagePath(final Resource resource) {
+        final String path = resource.getPath();
+        String pagePath = cache.get(path);
+        if (pagePath == null) {
+            pagePath = lookup(resource);
+            cache.put(path, pagePath);
+        }
+        return pagePath;
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        for (CoalescedChange change : changes) {
+            cache.invalidate(change.getPath());
+        }
+    }
+
+    /**
+     * Looks up the containing page without using the cache.
+     * @param resource resource to look up
+     * @return path of the containing page or an empty string
+     */
+    public static String lookup(final Resource resource) {
+        final PageManager pageManager = resource.getResourceResolver().adaptTo(PageManager.class);
+        return Optional.ofNullable(pageManager)
+                .map(pm -> pm.getContainingPage(resource))
+                .map(Page::getPath).orElse("");
+    }
+}
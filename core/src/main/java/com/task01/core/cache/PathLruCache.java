@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Size bounded, least recently used cache keyed by repository path.
+ * Besides the usual lookups it can drop a path together with everything
+ * stored below it, which is what resource change events need.
+ *
+ * @param <V> type of the cached values
+ */
+public final class PathLruCache<V> {
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, V> entries;
+
+    // sorted view of the keys, used to find descendants without a full scan
+    private final NavigableSet<String> paths = new TreeSet<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private final Consumer<String> removalListener;
+
+    public PathLruCache(final int maxEntries) {
+        this(maxEntries, path -> { });
+    }
+
+    /**
+     * @param maxEntries maximum number of entries
+     * @param removalListener called with the path of every entry that is
+     *                        evicted, invalidated or cleared, while the cache is locked
+     */
+    public PathLruCache(final int maxEntries, final Consumer<String> removalListener) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.removalListener = removalListener;
+        this.entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+                if (size() > PathLruCache.this.maxEntries) {
+                    paths.remove(eldest.getKey());
+                    evictions.increment();
+                    removalListener.accept(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param path repository path
+     * @return the cached value or <code>null</code>
+     */
+    public synchronized V get(final String path) {
+        final V value = entries.get(path);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public synchronized void put(final String path, final V value) {
+        if (entries.put(path, value) == null) {
+            paths.add(path);
+        }
+    }
+
+    /**
+     * Removes the entry for the given path and all entries below it.
+     * @param path repository path that has changed
+     * @return number of removed entries
+     */
+    public synchronized int invalidate(final String path) {
+        int removed = 0;
+        if (entries.remove(path) != null) {
+            paths.remove(path);
+            removalListener.accept(path);
+            removed++;
+        }
+        // '0' is the character following '/', so this covers exactly the subtree
+        final String prefix = "/".equals(path) ? "/" : path + "/";
+        final Iterator<String> descendants = paths.subSet(prefix, true, prefix.substring(0, prefix.length() - 1) + "0", false).iterator();
+        while (descendants.hasNext()) {
+            final String descendant = descendants.next();
+            entries.remove(descendant);
+            descendants.remove();
+            removalListener.accept(descendant);
+            removed++;
+        }
+        invalidations.add(removed);
+        return removed;
+    }
+
+    public synchronized void clear() {
+        invalidations.add(entries.size());
+        paths.forEach(removalListener);
+        entries.clear();
+        paths.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Remembers the most recent changes handed to a cache, so an entry whose
+ * render overlapped with a change to something it read can be recognised
+ * and dropped instead of stored. A render that started before the oldest
+ * remembered change counts as affected.
+ */
+public final class RecentChanges {
+
+    private final CoalescedChange[] changes;
+
+    // number of changes added so far, guarded by this
+    private long count;
+
+    public RecentChanges(final int capacity) {
+        changes = new CoalescedChange[Math.max(1, capacity)];
+    }
+
+    public synchronized void add(final List<CoalescedChange> batch) {
+        for (CoalescedChange change : batch) {
+            changes[(int) (count++ % changes.length)] = change;
+        }
+    }
+
+    /**
+     * @return position to pass to {@link #isAffected(long, Collection)} once the render is done
+     */
+    public synchronized long mark() {
+        return count;
+    }
+
+    /**
+     * @param mark value of {@link #mark()} taken before the render
+     * @param read paths read by the render
+     * @return <code>true</code> if a change since the mark touched one of the
+     *         paths, or the changes since then are no longer known
+     */
+    public synchronized boolean isAffected(final long mark, final Collection<String> read) {
+        if (count - mark > changes.length) {
+            return true;
+        }
+        for (long i = mark; i < count; i++) {
+            final CoalescedChange change = changes[(int) (i % changes.length)];
+            for (String path : read) {
+                if (affects(change, path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same rules as {@link com.task01.core.dependencies.DependencyIndex#getAffectedPages(CoalescedChange)}.
+     */
+    private static boolean affects(final CoalescedChange change, final String path) {
+        final String changed = change.getPath();
+        if (changed.equals(path)) {
+            return true;
+        }
+        if ((change.getTypes().contains(ChangeType.ADDED) || change.isRemoved())
+                && path.equals(ContentPaths.getParent(changed))) {
+            return true;
+        }
+        return (change.isSubtree() || change.isRemoved()) && ContentPaths.isSameOrDescendant(changed, path);
+    }
+}
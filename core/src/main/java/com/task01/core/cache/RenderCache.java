@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * In-memory cache of rendered servlet output, keyed by resource path.
+ * Entries are dropped as soon as the resource or one of its ancestors
+ * changes. A render that overlapped with a change of its resource is not
+ * stored, see {@link #mark()}.
+ */
+@Designate(ocd = RenderCache.Config.class)
+@Component(service = { RenderCache.class, ResourceChangeHandler.class })
+@ServiceDescription("Cache of rendered servlet output")
+public class RenderCache implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 render cache",
+                           description = "In-memory cache of rendered servlet output")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Maximum entries",
+                             description = "Least recently used entries are evicted beyond this size")
+        int maxEntries() default 10000;
+    }
+
+    private static final int RECENT_CHANGES = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private volatile PathLruCache<CachedRender> cache = new PathLruCache<>(10000);
+
+    // guarded stores and invalidations are serialised by lock
+    private final Object lock = new Object();
+    private final RecentChanges recentChanges = new RecentChanges(RECENT_CHANGES);
+
+    private final LongAdder discarded = new LongAdder();
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        cache = new PathLruCache<>(Math.max(1, config.maxEntries()));
+    }
+
+    public CachedRender get(final String path) {
+        return cache.get(path);
+    }
+
+    public void put(final String path, final CachedRender render) {
+        cache.put(path, render);
+    }
+
+    /**
+     * @return position to pass to {@link #put(String, CachedRender, long)},
+     *         taken before the resource is read
+     */
+    public long mark() {
+        return recentChanges.mark();
+    }
+
+    /**
+     * Stores the render unless the resource changed since the mark, in which
+     * case it may already be stale while its invalidation has passed.
+     * @param path rendered resource path
+     * @param render rendered output
+     * @param mark value of {@link #mark()} taken before the render
+     * @return <code>true</code> if the render was stored
+     */
+    public boolean put(final String path, final CachedRender render, final long mark) {
+        synchronized (lock) {
+            if (recentChanges.isAffected(mark, Collections.singletonList(path))) {
+                discarded.increment();
+                return false;
+            }
+            cache.put(path, render);
+            return true;
+        }
+    }
+
+    /**
+     * @return number of renders not stored because they overlapped with a change
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * Drops the rendering of the given path and of everything below it.
+     * @param path changed repository path
+     */
+    public void invalidate(final String path) {
+        final int removed = cache.invalidate(path);
+        if (removed > 0) {
+            logger.debug("Invalidated {} cached renderings for {}", removed, path);
+        }
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        synchronized (lock) {
+            recentChanges.add(changes);
+            for (CoalescedChange change : changes) {
+                invalidate(change.getPath());
+            }
+        }
+    }
+}
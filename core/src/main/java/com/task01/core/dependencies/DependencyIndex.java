@@ -0,0 +1,383 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Reverse index from repository paths to the pages whose last render read
+ * them. Renders are numbered, each dependency path maps to a sorted array
+ * of render numbers, and dependency paths are kept sorted, so the renders
+ * affected by a subtree change are found with one range query.
+ * <p>
+ * A render replaces the dependencies recorded for its page before. The
+ * index only knows pages rendered since it was activated; pages cached
+ * earlier have to be found by other means. Beyond the configured number of
+ * pages new renders are not recorded.
+ */
+@Designate(ocd = DependencyIndex.Config.class)
+@Component(service = { DependencyIndex.class, ResourceChangeHandler.class })
+@ServiceDescription("Maps repository paths to the pages depending on them")
+public class DependencyIndex implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 dependency index",
+                           description = "Records which resources page renders read, for exact invalidation")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only dependencies below these paths are recorded")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Maximum pages",
+                             description = "Renders of further pages are not recorded")
+        int maxPages() default 50000;
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // all guarded by lock; render numbers are reused once their page is forgotten
+    private final Map<String, Integer> renderIds = new HashMap<>();
+    private final List<String> pages = new ArrayList<>();
+    private final List<String[]> dependencies = new ArrayList<>();
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final NavigableMap<String, int[]> dependents = new TreeMap<>();
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile String[] paths = { "/content" };
+    private volatile int maxPages = 50000;
+
+    public DependencyIndex() {
+    }
+
+    /**
+     * Creates an index outside of OSGi, e.g. to track the dependencies of
+     * cache entries instead of pages.
+     * @param paths only dependencies below these paths are recorded
+     * @param maxPages maximum number of pages, or entries, recorded
+     */
+    public DependencyIndex(final String[] paths, final int maxPages) {
+        this.paths = paths.clone();
+        this.maxPages = Math.max(1, maxPages);
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        paths = config.paths() != null ? config.paths() : new String[0];
+        maxPages = Math.max(1, config.maxPages());
+    }
+
+    /**
+     * Replaces the dependencies of a page with those read by its latest render.
+     * @param page path of the rendered page
+     * @param read paths of the resources read while rendering
+     */
+    public void record(final String page, final Collection<String> read) {
+        final String[] roots = paths;
+        final Set<String> included = new LinkedHashSet<>();
+        for (String path : read) {
+            if (ContentPaths.isIncluded(roots, path)) {
+                included.add(path);
+            }
+        }
+        final String[] sorted = included.toArray(new String[0]);
+        Arrays.sort(sorted);
+
+        lock.readLock().lock();
+        try {
+            final Integer id = renderIds.get(page);
+            if (id != null && Arrays.equals(dependencies.get(id), sorted)) {
+                unchanged.increment();
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer id = renderIds.get(page);
+            if (id == null) {
+                if (renderIds.size() >= maxPages) {
+                    rejected.increment();
+                    return;
+                }
+                id = allocate(page);
+            }
+            final String[] previous = dependencies.get(id);
+            for (String path : previous) {
+                if (Arrays.binarySearch(sorted, path) < 0) {
+                    unlink(path, id);
+                }
+            }
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = link(sorted[i], id, Arrays.binarySearch(previous, sorted[i]) >= 0);
+            }
+            dependencies.set(id, sorted);
+            recorded.increment();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the pages whose last render read something touched by the change:
+     * the changed resource itself, its parent if resources were added or
+     * removed, and anything below it for removals and subtree changes.
+     * @param change change to look up
+     * @return paths of the affected pages, empty if none are known
+     */
+    public Set<String> getAffectedPages(final CoalescedChange change) {
+        final String path = change.getPath();
+        final Set<String> result = new LinkedHashSet<>();
+        lock.readLock().lock();
+        try {
+            addPages(result, dependents.get(path));
+            if (change.getTypes().contains(ChangeType.ADDED) || change.isRemoved()) {
+                final String parent = ContentPaths.getParent(path);
+                if (parent != null) {
+                    addPages(result, dependents.get(parent));
+                }
+            }
+            if (change.isSubtree() || change.isRemoved()) {
+                final String prefix = "/".equals(path) ? "/" : path + "/";
+                for (int[] ids : dependents.subMap(prefix, true, prefix.substring(0, prefix.length() - 1) + "0", false).values()) {
+                    addPages(result, ids);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @param page path of a page
+     * @return paths recorded for the last render of the page, empty if it is not known
+     */
+    public List<String> getDependencies(final String page) {
+        lock.readLock().lock();
+        try {
+            final Integer id = renderIds.get(page);
+            return id != null ? Arrays.asList(dependencies.get(id).clone()) : new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the dependencies of a single page.
+     * @param page path of the page
+     */
+    public void remove(final String page) {
+        lock.writeLock().lock();
+        try {
+            final Integer id = renderIds.get(page);
+            if (id != null) {
+                release(page, id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forgets the pages at or below removed paths, their renders are gone.
+     */
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        for (CoalescedChange change : changes) {
+            final String path = change.getPath();
+            if (change.isRemoved() && path.equals(ContentPaths.getPagePath(path))) {
+                forget(path);
+            }
+        }
+    }
+
+    /**
+     * @return number of pages with recorded dependencies
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return renderIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct dependency paths
+     */
+    public int getDependencyCount() {
+        lock.readLock().lock();
+        try {
+            return dependents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of renders whose dependencies were stored
+     */
+    public long getRecordedCount() {
+        return recorded.sum();
+    }
+
+    /**
+     * @return number of renders that read the same resources as the render before
+     */
+    public long getUnchangedCount() {
+        return unchanged.sum();
+    }
+
+    /**
+     * @return number of renders not recorded because the index was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void forget(final String root) {
+        lock.writeLock().lock();
+        try {
+            final List<String> removed = new ArrayList<>();
+            for (String page : renderIds.keySet()) {
+                if (ContentPaths.isSameOrDescendant(root, page)) {
+                    removed.add(page);
+                }
+            }
+            for (String page : removed) {
+                release(page, renderIds.get(page));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Must be called while holding the write lock. */
+    private void release(final String page, final int id) {
+        renderIds.remove(page);
+        for (String path : dependencies.get(id)) {
+            unlink(path, id);
+        }
+        pages.set(id, null);
+        dependencies.set(id, null);
+        freeIds.push(id);
+    }
+
+    /** Must be called while holding the write lock. */
+    private int allocate(final String page) {
+        final int id;
+        if (freeIds.isEmpty()) {
+            id = pages.size();
+            pages.add(page);
+            dependencies.add(new String[0]);
+        } else {
+            id = freeIds.pop();
+            pages.set(id, page);
+            dependencies.set(id, new String[0]);
+        }
+        renderIds.put(page, id);
+        return id;
+    }
+
+    /**
+     * Adds the render to the dependents of the path. Must be called while
+     * holding the write lock.
+     * @return the path instance held by the index, shared by all renders
+     */
+    private String link(final String path, final int id, final boolean linked) {
+        final Map.Entry<String, int[]> entry = dependents.ceilingEntry(path);
+        final boolean known = entry != null && entry.getKey().equals(path);
+        if (linked) {
+            return known ? entry.getKey() : path;
+        }
+        final int[] ids = known ? entry.getValue() : NONE;
+        final int position = Arrays.binarySearch(ids, id);
+        if (position < 0) {
+            final int insert = -position - 1;
+            final int[] grown = new int[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, insert);
+            grown[insert] = id;
+            System.arraycopy(ids, insert, grown, insert + 1, ids.length - insert);
+            dependents.put(known ? entry.getKey() : path, grown);
+        }
+        return known ? entry.getKey() : path;
+    }
+
+    /** Must be called while holding the write lock. */
+    private void unlink(final String path, final int id) {
+        final int[] ids = dependents.get(path);
+        final int position = ids != null ? Arrays.binarySearch(ids, id) : -1;
+        if (position < 0) {
+            return;
+        }
+        if (ids.length == 1) {
+            dependents.remove(path);
+            return;
+        }
+        final int[] shrunk = new int[ids.length - 1];
+        System.arraycopy(ids, 0, shrunk, 0, position);
+        System.arraycopy(ids, position + 1, shrunk, position, ids.length - position - 1);
+        dependents.put(path, shrunk);
+    }
+
+    /** Must be called while holding the read lock. */
+    private void addPages(final Set<String> result, final int[] ids) {
+        if (ids != null) {
+            for (int id : ids) {
+                result.add(pages.get(id));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Collects the paths of the resources read on the current thread while a
+ * render is recorded. Recording is started and stopped by the
+ * {@link DependencyRecordingFilter} and the caching filters; the
+ * {@link RecordingResourceDecorator} reports every resource the resource
+ * resolvers hand out in between.
+ * <p>
+ * Parts of a render, e.g. cached fragments, can be recorded separately with
+ * {@link #push()} and {@link #pop()}; what they read counts for the
+ * enclosing recording as well.
+ */
+public final class DependencyRecorder {
+
+    private static final class Recording {
+
+        final Set<String> paths = new LinkedHashSet<>();
+        final Recording parent;
+
+        Recording(final Recording parent) {
+            this.parent = parent;
+        }
+    }
+
+    private static final ThreadLocal<Recording> CURRENT = new ThreadLocal<>();
+
+    private DependencyRecorder() {
+    }
+
+    /**
+     * Starts a recording nested in the current one, if any.
+     */
+    public static void push() {
+        CURRENT.set(new Recording(CURRENT.get()));
+    }
+
+    /**
+     * Stops the innermost recording and adds its paths to the enclosing one.
+     * @return paths read since the matching {@link #push()}
+     */
+    public static Set<String> pop() {
+        final Recording recording = CURRENT.get();
+        if (recording == null) {
+            return Collections.emptySet();
+        }
+        if (recording.parent != null) {
+            CURRENT.set(recording.parent);
+            recording.parent.paths.addAll(recording.paths);
+        } else {
+            CURRENT.remove();
+        }
+        return recording.paths;
+    }
+
+    /**
+     * @return whether a render is recorded on the current thread
+     */
+    public static boolean isRecording() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Adds a dependency to the current recording. Code that reads content
+     * without a resource resolver, e.g. from an in-memory index, can call
+     * this to declare what the render depends on.
+     * @param path repository path that was read, ignored if no render is recorded
+     */
+    public static void record(final String path) {
+        final Recording recording = CURRENT.get();
+        if (recording != null && path != null) {
+            recording.paths.add(path);
+        }
+    }
+}
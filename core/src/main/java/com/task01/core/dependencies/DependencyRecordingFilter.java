@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Records the resources read while a page is rendered and stores them in
+ * the {@link DependencyIndex}. Runs after the caching filters, so only
+ * actual renders are recorded, and only successful GET requests count.
+ * A caching filter further out may record the same render for its own
+ * entries, this recording is nested in its one then.
+ */
+@Component(service = Filter.class,
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
+           })
+@ServiceDescription("Records the dependencies of page renders")
+@ServiceRanking(-1000)
+@ServiceVendor("Adobe")
+public class DependencyRecordingFilter implements Filter {
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile DependencyIndex dependencyIndex;
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final DependencyIndex index = dependencyIndex;
+        final Resource resource = slingRequest.getResource();
+        if (index == null || resource == null || !HttpConstants.METHOD_GET.equals(slingRequest.getMethod())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final Set<String> read;
+        DependencyRecorder.push();
+        try {
+            // the request resource was resolved before the recording started
+            DependencyRecorder.record(resource.getPath());
+            filterChain.doFilter(request, response);
+        } finally {
+            read = DependencyRecorder.pop();
+        }
+        if (((HttpServletResponse) response).getStatus() == HttpServletResponse.SC_OK) {
+            index.record(ContentPaths.getPagePath(resource.getPath()), read);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
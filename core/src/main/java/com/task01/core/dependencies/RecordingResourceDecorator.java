@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.spi.resource.ResourceDecorator;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+/**
+ * Reports every resource handed out by a resource resolver to the
+ * {@link DependencyRecorder}. Resources are not wrapped, the decorator only
+ * observes; outside of a recorded render it costs a thread local lookup.
+ */
+@Component(service = ResourceDecorator.class)
+@ServiceDescription("Records the resources read while a render is recorded")
+public class RecordingResourceDecorator implements ResourceDecorator {
+
+    @Override
+    public Resource decorate(final Resource resource) {
+        if (resource != null) {
+            DependencyRecorder.record(resource.getPath());
+        }
+        return resource;
+    }
+
+    @Override
+    @Deprecated
+    public Resource decorate(final Resource resource, final HttpServletRequest request) {
+        return decorate(resource);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.task01.core.cache.ChangeRateTracker;
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Sets <code>Cache-Control</code> and <code>Surrogate-Control</code> max-age
+ * on anonymous GET responses from how often their content subtree changes,
+ * according to the {@link ChangeRateTracker}. A response is cached for a
+ * share of the expected time until the next change, within the configured
+ * bounds, so stable sections stay in the dispatcher and CDN caches for hours
+ * and volatile ones only for seconds. Browsers get a lifetime capped on its
+ * own, as they cannot be told about a change.
+ * <p>
+ * The headers are added just before the body is written, and only to 200
+ * responses that do not set <code>Cache-Control</code> themselves. Requests
+ * with credentials and responses that set cookies are left alone.
+ */
+@Designate(ocd = CacheControlFilter.Config.class)
+@Component(service = Filter.class,
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
+           })
+@ServiceDescription("Adaptive cache lifetimes from content change rates")
+@ServiceRanking(-720)
+@ServiceVendor("Adobe")
+public class CacheControlFilter implements Filter {
+
+    @ObjectClassDefinition(name = "Task01 cache control filter",
+                           description = "Derives Cache-Control max-age from the change rate of the content")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Enabled")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only responses for resources below these paths get cache headers")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Lifetime share",
+                             description = "Share of the expected time until the next change a response is cached for")
+        double lifetimeShare() default 0.25;
+
+        @AttributeDefinition(name = "Minimum max-age",
+                             description = "Seconds responses of the most volatile subtrees are cached for")
+        int minMaxAgeSeconds() default 10;
+
+        @AttributeDefinition(name = "Maximum max-age",
+                             description = "Seconds responses of the most stable subtrees are cached for")
+        int maxMaxAgeSeconds() default 14400;
+
+        @AttributeDefinition(name = "Maximum browser max-age",
+                             description = "Seconds browsers may keep a response, shared caches use s-maxage")
+        int maxBrowserMaxAgeSeconds() default 300;
+    }
+
+    static final String CACHE_CONTROL = "Cache-Control";
+    static final String SURROGATE_CONTROL = "Surrogate-Control";
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile ChangeRateTracker changeRateTracker;
+
+    private volatile boolean enabled = true;
+    private volatile String[] paths = { "/content" };
+    private volatile double lifetimeShare = 0.25;
+    private volatile int minMaxAge = 10;
+    private volatile int maxMaxAge = 14400;
+    private volatile int maxBrowserMaxAge = 300;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        enabled = config.enabled();
+        paths = config.paths() != null ? config.paths() : new String[0];
+        lifetimeShare = config.lifetimeShare() > 0 ? config.lifetimeShare() : 0.25;
+        minMaxAge = Math.max(0, config.minMaxAgeSeconds());
+        maxMaxAge = Math.max(minMaxAge, config.maxMaxAgeSeconds());
+        maxBrowserMaxAge = Math.max(0, config.maxBrowserMaxAgeSeconds());
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final String path = slingRequest.getRequestPathInfo().getResourcePath();
+        final ChangeRateTracker tracker = changeRateTracker;
+        if (!enabled || tracker == null || !HttpConstants.METHOD_GET.equals(slingRequest.getMethod())
+                || slingRequest.getAuthType() != null || slingRequest.getHeader("Authorization") != null
+                || slingRequest.getQueryString() != null || path == null || !ContentPaths.isIncluded(paths, path)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final int maxAge = getMaxAge(tracker, path);
+        final CacheControlResponseWrapper wrapper = new CacheControlResponseWrapper(
+                (SlingHttpServletResponse) response, Math.min(maxAge, maxBrowserMaxAge), maxAge);
+        filterChain.doFilter(request, wrapper);
+        if (!wrapper.isCommitted()) {
+            wrapper.apply();
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * @return seconds responses for the path are cached for
+     */
+    int getMaxAge(final ChangeRateTracker tracker, final String path) {
+        final double rate = tracker.getRate(path);
+        final double seconds = rate > 0 ? lifetimeShare / rate : maxMaxAge;
+        return (int) Math.max(minMaxAge, Math.min(maxMaxAge, seconds));
+    }
+
+    /**
+     * Adds the cache headers before the body is written, unless the response
+     * is not a 200, sets its own <code>Cache-Control</code> or a cookie.
+     */
+    private static final class CacheControlResponseWrapper extends SlingHttpServletResponseWrapper {
+
+        private final int browserMaxAge;
+        private final int maxAge;
+        private boolean done;
+        private boolean applied;
+
+        CacheControlResponseWrapper(final SlingHttpServletResponse response, final int browserMaxAge,
+                                    final int maxAge) {
+            super(response);
+            this.browserMaxAge = browserMaxAge;
+            this.maxAge = maxAge;
+        }
+
+        void apply() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (getStatus() == HttpServletResponse.SC_OK) {
+                super.setHeader(CACHE_CONTROL, "max-age=" + browserMaxAge + ", s-maxage=" + maxAge);
+                super.setHeader(SURROGATE_CONTROL, "max-age=" + maxAge);
+                applied = true;
+            }
+        }
+
+        @Override
+        public void addCookie(final Cookie cookie) {
+            personal();
+            super.addCookie(cookie);
+        }
+
+        @Override
+        public void setHeader(final String name, final String value) {
+            own(name);
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(final String name, final String value) {
+            own(name);
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            apply();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            apply();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            apply();
+            super.flushBuffer();
+        }
+
+        private void own(final String name) {
+            if (CACHE_CONTROL.equalsIgnoreCase(name) || SURROGATE_CONTROL.equalsIgnoreCase(name)) {
+                // the response decides about caching itself
+                done = true;
+            } else if ("Set-Cookie".equalsIgnoreCase(name)) {
+                personal();
+            }
+        }
+
+        /**
+         * A response that sets a cookie belongs to one visitor and must not be kept by shared caches.
+         */
+        private void personal() {
+            if (applied && !isCommitted()) {
+                super.setHeader(CACHE_CONTROL, "private, no-cache");
+                super.setHeader(SURROGATE_CONTROL, "no-store");
+            }
+            done = true;
+        }
+    }
+}
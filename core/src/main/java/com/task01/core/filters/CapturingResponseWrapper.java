@@ -0,0 +1,342 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+
+/**
+ * Passes everything through to the wrapped response and keeps a copy of
+ * the status, headers and body, so the response can be replayed to other
+ * requests. Once the body exceeds the size limit, or anything makes the
+ * response unfit for sharing, copying stops; the wrapped response is never
+ * affected either way.
+ */
+class CapturingResponseWrapper extends SlingHttpServletResponseWrapper {
+
+    /**
+     * One header call, replayed in order.
+     */
+    static final class Header {
+
+        final String name;
+        final Object value;
+        final boolean add;
+
+        Header(final String name, final Object value, final boolean add) {
+            this.name = name;
+            this.value = value;
+            this.add = add;
+        }
+    }
+
+    private final int maxBytes;
+
+    private final List<Header> headers = new ArrayList<>();
+    private int status = HttpServletResponse.SC_OK;
+    private String contentType;
+    private String characterEncoding;
+
+    private ByteArrayOutputStream bytes;
+    private StringBuilder chars;
+    private boolean shareable = true;
+
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    CapturingResponseWrapper(final SlingHttpServletResponse response, final int maxBytes) {
+        super(response);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return <code>true</code> if the captured copy is complete and may be
+     *         served to other requests
+     */
+    boolean isShareable() {
+        return shareable && status == HttpServletResponse.SC_OK;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    String getCapturedContentType() {
+        return contentType;
+    }
+
+    String getCapturedCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    List<Header> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the body written through the output stream, or <code>null</code>
+     */
+    byte[] getBytes() {
+        return bytes != null ? bytes.toByteArray() : null;
+    }
+
+    /**
+     * @return the body written through the writer, or <code>null</code>
+     */
+    String getChars() {
+        return chars != null ? chars.toString() : null;
+    }
+
+    void discard() {
+        shareable = false;
+        bytes = null;
+        chars = null;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            final ServletOutputStream delegate = super.getOutputStream();
+            bytes = new ByteArrayOutputStream(Math.min(maxBytes, 8192));
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    delegate.write(b);
+                    capture(1);
+                    if (bytes != null) {
+                        bytes.write(b);
+                    }
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    delegate.write(b, off, len);
+                    capture(len);
+                    if (bytes != null) {
+                        bytes.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    delegate.flush();
+                }
+
+                @Override
+                public boolean isReady() {
+                    return delegate.isReady();
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    // asynchronous writes cannot be copied reliably
+                    discard();
+                    delegate.setWriteListener(writeListener);
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            final PrintWriter delegate = super.getWriter();
+            chars = new StringBuilder(Math.min(maxBytes, 8192));
+            writer = new PrintWriter(new Writer() {
+                @Override
+                public void write(final char[] buffer, final int off, final int len) {
+                    delegate.write(buffer, off, len);
+                    capture(len);
+                    if (chars != null) {
+                        chars.append(buffer, off, len);
+                    }
+                }
+
+                @Override
+                public void write(final String str, final int off, final int len) {
+                    delegate.write(str, off, len);
+                    capture(len);
+                    if (chars != null) {
+                        chars.append(str, off, off + len);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    delegate.flush();
+                }
+
+                @Override
+                public void close() {
+                    delegate.close();
+                }
+            });
+        }
+        return writer;
+    }
+
+    private void capture(final int length) {
+        final int size = bytes != null ? bytes.size() : chars != null ? chars.length() : 0;
+        if (shareable && size + length > maxBytes) {
+            discard();
+        }
+    }
+
+    @Override
+    public void setStatus(final int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    public void sendError(final int sc) throws IOException {
+        status = sc;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) throws IOException {
+        status = sc;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(final String location) throws IOException {
+        status = HttpServletResponse.SC_FOUND;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setContentType(final String type) {
+        contentType = type;
+        super.setContentType(type);
+    }
+
+    @Override
+    public void setCharacterEncoding(final String charset) {
+        characterEncoding = charset;
+        super.setCharacterEncoding(charset);
+    }
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+        // personalised, must not be served to anybody else
+        discard();
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        header(name, value, false);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        header(name, value, true);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(final String name, final long date) {
+        header(name, date, false);
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(final String name, final long date) {
+        header(name, date, true);
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setIntHeader(final String name, final int value) {
+        header(name, value, false);
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(final String name, final int value) {
+        header(name, value, true);
+        super.addIntHeader(name, value);
+    }
+
+    /**
+     * Sets the captured headers on another response, in the order they were set.
+     * @param headers captured headers
+     * @param response response to set them on
+     */
+    static void replayHeaders(final List<Header> headers, final HttpServletResponse response) {
+        for (Header header : headers) {
+            if (header.value instanceof Long) {
+                if (header.add) {
+                    response.addDateHeader(header.name, (Long) header.value);
+                } else {
+                    response.setDateHeader(header.name, (Long) header.value);
+                }
+            } else if (header.value instanceof Integer) {
+                if (header.add) {
+                    response.addIntHeader(header.name, (Integer) header.value);
+                } else {
+                    response.setIntHeader(header.name, (Integer) header.value);
+                }
+            } else if (header.add) {
+                response.addHeader(header.name, (String) header.value);
+            } else {
+                response.setHeader(header.name, (String) header.value);
+            }
+        }
+    }
+
+    private void header(final String name, final Object value, final boolean add) {
+        if ("Set-Cookie".equalsIgnoreCase(name)
+                || "Cache-Control".equalsIgnoreCase(name) && !isCacheable(String.valueOf(value))
+                || "Dispatcher".equalsIgnoreCase(name) && "no-cache".equalsIgnoreCase(String.valueOf(value).trim())) {
+            // personalised or meant to be rendered for every request, must not be served to anybody else
+            discard();
+        } else if (!"Content-Length".equalsIgnoreCase(name)) {
+            headers.add(new Header(name, value, add));
+        }
+    }
+
+    private static boolean isCacheable(final String cacheControl) {
+        for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+            final String[] parts = directive.trim().split("=", 2);
+            final String name = parts[0].trim();
+            final String argument = parts.length > 1 ? parts[1].trim() : null;
+            if ("private".equals(name) || "no-store".equals(name) || "no-cache".equals(name)
+                    || ("max-age".equals(name) || "s-maxage".equals(name)) && argument != null && argument.matches("0+")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+
+/**
+ * Compresses the body with gzip while it is written, so large bodies are
+ * streamed to the client and never held in memory as a whole. Whether to
+ * compress is decided on the first write: only 200 responses with a text
+ * content type that are not encoded already are compressed. Up to the size
+ * limit, a copy of the compressed bytes is kept for the cache. A body that
+ * is written asynchronously is passed through uncompressed and not cached.
+ */
+class CompressingResponseWrapper extends CapturingResponseWrapper {
+
+    static final String ENCODING = "gzip";
+
+    private final int maxCopyBytes;
+
+    private long contentLength = -1;
+    private boolean encoded;
+    private Boolean compressing;
+
+    private ByteArrayOutputStream copy;
+    private GZIPOutputStream gzip;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    CompressingResponseWrapper(final SlingHttpServletResponse response, final int maxCopyBytes) {
+        super(response, maxCopyBytes);
+        this.maxCopyBytes = maxCopyBytes;
+        if (maxCopyBytes <= 0) {
+            discard();
+        }
+    }
+
+    /**
+     * @return whether the body was compressed
+     */
+    boolean isCompressed() {
+        return Boolean.TRUE.equals(compressing);
+    }
+
+    /**
+     * @return the complete compressed body, or <code>null</code> if it was
+     *         not compressed, too large or must not be shared
+     */
+    byte[] getCompressedBody() {
+        return isCompressed() && isShareable() && copy != null ? copy.toByteArray() : null;
+    }
+
+    /**
+     * Completes the body. Must be called once the request is processed.
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (compressing == null) {
+            // nothing was written, an empty body is not worth compressing
+            decide(false);
+        }
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    target().write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    target().write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (compressing != null) {
+                        target().flush();
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return !Boolean.FALSE.equals(compressing) || raw().isReady();
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener writeListener) {
+                    if (Boolean.TRUE.equals(compressing)) {
+                        throw new IllegalStateException("The body is already written compressed");
+                    }
+                    // the gzip stream blocks, so asynchronous writes go to the response as they are
+                    if (compressing == null) {
+                        passThrough();
+                    }
+                    raw().setWriteListener(writeListener);
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            final ServletOutputStream stream = getOutputStream();
+            outputStream = null;
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (outputStream != null) {
+            outputStream.flush();
+        }
+        super.flushBuffer();
+    }
+
+    @Override
+    public void setContentLength(final int len) {
+        contentLength = len;
+    }
+
+    @Override
+    public void setContentLengthLong(final long len) {
+        contentLength = len;
+    }
+
+    @Override
+    public void setHeader(final String name, final String value) {
+        if (!holdBack(name, value)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+        if (!holdBack(name, value)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    /**
+     * Keeps the length of the uncompressed body from the client.
+     */
+    private boolean holdBack(final String name, final String value) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            try {
+                contentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            return true;
+        }
+        if ("Content-Encoding".equalsIgnoreCase(name)) {
+            encoded = true;
+        }
+        return false;
+    }
+
+    private OutputStream target() throws IOException {
+        if (compressing == null) {
+            decide(getStatus() == HttpServletResponse.SC_OK && !encoded && isCompressible(getContentType()));
+        }
+        return compressing ? gzip : getResponse().getOutputStream();
+    }
+
+    private ServletOutputStream raw() {
+        try {
+            return getResponse().getOutputStream();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the output stream of the response", e);
+        }
+    }
+
+    private void passThrough() {
+        compressing = false;
+        discard();
+        if (contentLength >= 0) {
+            super.setContentLengthLong(contentLength);
+        }
+    }
+
+    private void decide(final boolean compress) throws IOException {
+        if (!compress) {
+            passThrough();
+            return;
+        }
+        compressing = true;
+        super.setHeader("Content-Encoding", ENCODING);
+        super.addHeader("Vary", "Accept-Encoding");
+        final OutputStream raw = getResponse().getOutputStream();
+        copy = isShareable() ? new ByteArrayOutputStream(Math.min(maxCopyBytes, 8192)) : null;
+        gzip = new GZIPOutputStream(new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                raw.write(b);
+                keep(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                raw.write(b, off, len);
+                keep(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                raw.flush();
+            }
+        }, 8192, true);
+    }
+
+    private void keep(final byte[] b, final int off, final int len) {
+        if (copy == null) {
+            return;
+        }
+        if (copy.size() + len > maxCopyBytes) {
+            copy = null;
+            discard();
+            return;
+        }
+        copy.write(b, off, len);
+    }
+
+    static boolean isCompressible(final String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.startsWith("application/json")
+                || type.startsWith("application/javascript")
+                || type.startsWith("application/xml")
+                || type.startsWith("application/x-ndjson")
+                || type.startsWith("image/svg+xml")
+                || type.contains("+json") || type.contains("+xml");
+    }
+}
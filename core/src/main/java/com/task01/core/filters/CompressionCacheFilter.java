@@ -0,0 +1,366 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.task01.core.cache.PathLruCache;
+import com.task01.core.cache.RecentChanges;
+import com.task01.core.dependencies.DependencyIndex;
+import com.task01.core.dependencies.DependencyRecorder;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Compresses text responses with gzip for clients that accept it, and
+ * keeps the compressed bytes of shareable responses, so the next request
+ * for the same variant is answered without rendering or compressing again.
+ * Entries are keyed by resource path. The resources read while an entry
+ * renders are recorded, and the entry is dropped when any of them or
+ * anything in the containing page changes; a render that overlapped with
+ * such a change is not stored. Entries older than the maximum age are
+ * rendered again regardless, for what a recording cannot see.
+ * <p>
+ * Bodies are compressed while they are written; responses above the size
+ * limit are streamed and not cached. Only anonymous GET requests without
+ * query string or conditional headers are served from and added to the
+ * cache. Brotli is not available in the JDK, so gzip is the only encoding.
+ */
+@Designate(ocd = CompressionCacheFilter.Config.class)
+@Component(service = { Filter.class, ResourceChangeHandler.class, CompressionCacheFilter.class },
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
+           })
+@ServiceDescription("Compresses text responses and caches the compressed bytes")
+@ServiceRanking(-750)
+@ServiceVendor("Adobe")
+public class CompressionCacheFilter implements Filter, ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 compression cache filter",
+                           description = "Compresses text responses once and caches the compressed bytes")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Enabled")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only responses for resources below these paths are compressed")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Maximum entries",
+                             description = "Least recently used resource paths are evicted beyond this number")
+        int maxEntries() default 5000;
+
+        @AttributeDefinition(name = "Maximum entry size",
+                             description = "Compressed bodies above this number of bytes are streamed but not cached")
+        int maxEntryBytes() default 262144;
+
+        @AttributeDefinition(name = "Maximum age",
+                             description = "Seconds after which a cached response is rendered again")
+        int maxAgeSeconds() default 300;
+
+        @AttributeDefinition(name = "Dependency paths",
+                             description = "Changes below these paths invalidate the responses that read them")
+        String[] dependencyPaths() default { "/content", "/conf" };
+    }
+
+    private static final int RECENT_CHANGES = 1024;
+
+    /**
+     * Compressed response of one variant of a resource.
+     */
+    private static final class Entry {
+
+        final String contentType;
+        final String characterEncoding;
+        final List<CapturingResponseWrapper.Header> headers;
+        final byte[] body;
+        final long created = System.currentTimeMillis();
+
+        Entry(final CompressingResponseWrapper response, final byte[] body) {
+            this.contentType = response.getCapturedContentType();
+            this.characterEncoding = response.getCapturedCharacterEncoding();
+            this.headers = response.getHeaders();
+            this.body = body;
+        }
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    // stores and invalidations are serialised by lock, lookups only read the cache
+    private final Object lock = new Object();
+    private final RecentChanges recentChanges = new RecentChanges(RECENT_CHANGES);
+
+    private volatile boolean enabled = true;
+    private volatile String[] paths = { "/content" };
+    private volatile int maxEntryBytes = 262144;
+    private volatile long maxAgeMillis = TimeUnit.SECONDS.toMillis(300);
+
+    // replaced together under lock, the cache forgets the dependencies of every entry it drops
+    private volatile PathLruCache<Map<String, Entry>> cache;
+    private DependencyIndex dependencies;
+
+    public CompressionCacheFilter() {
+        reset(5000, new String[] { "/content", "/conf" });
+    }
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        enabled = config.enabled();
+        paths = config.paths() != null ? config.paths() : new String[0];
+        maxEntryBytes = Math.max(0, config.maxEntryBytes());
+        maxAgeMillis = TimeUnit.SECONDS.toMillis(Math.max(1, config.maxAgeSeconds()));
+        reset(Math.max(1, config.maxEntries()),
+                config.dependencyPaths() != null ? config.dependencyPaths() : new String[0]);
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final String path = slingRequest.getRequestPathInfo().getResourcePath();
+        if (!enabled || !HttpConstants.METHOD_GET.equals(slingRequest.getMethod()) || !acceptsGzip(slingRequest)
+                || path == null || !ContentPaths.isIncluded(paths, path)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final SlingHttpServletResponse slingResponse = (SlingHttpServletResponse) response;
+        final String variant = isShareable(slingRequest) ? getVariant(slingRequest) : null;
+        final PathLruCache<Map<String, Entry>> entries = cache;
+        if (variant != null) {
+            final Map<String, Entry> variants = entries.get(path);
+            final Entry entry = variants != null ? variants.get(variant) : null;
+            if (entry != null && System.currentTimeMillis() - entry.created <= maxAgeMillis) {
+                hits.increment();
+                serve(entry, slingResponse);
+                return;
+            }
+        }
+
+        final CompressingResponseWrapper wrapper = new CompressingResponseWrapper(slingResponse,
+                variant != null ? maxEntryBytes : 0);
+        if (variant == null) {
+            filterChain.doFilter(request, wrapper);
+            finish(wrapper);
+            return;
+        }
+        final long mark = recentChanges.mark();
+        final Set<String> read;
+        DependencyRecorder.push();
+        try {
+            // the resource was resolved before the recording
+            DependencyRecorder.record(path);
+            filterChain.doFilter(request, wrapper);
+        } finally {
+            read = DependencyRecorder.pop();
+        }
+        finish(wrapper);
+        final byte[] body = wrapper.getCompressedBody();
+        if (body != null) {
+            store(entries, path, variant, new Entry(wrapper, body), mark, read);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        synchronized (lock) {
+            recentChanges.add(changes);
+            final PathLruCache<Map<String, Entry>> entries = cache;
+            for (CoalescedChange change : changes) {
+                entries.invalidate(ContentPaths.getPagePath(change.getPath()));
+                for (String affected : dependencies.getAffectedPages(change)) {
+                    entries.invalidate(affected);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of responses served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of compressed bodies added to the cache
+     */
+    public long getStoreCount() {
+        return stores.sum();
+    }
+
+    /**
+     * @return number of responses compressed while they were rendered
+     */
+    public long getCompressedCount() {
+        return compressed.sum();
+    }
+
+    /**
+     * @return number of rendered bodies not cached because something they read changed meanwhile
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * @return number of cached resource paths
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void reset(final int maxEntries, final String[] dependencyPaths) {
+        final DependencyIndex index = new DependencyIndex(dependencyPaths, Integer.MAX_VALUE);
+        synchronized (lock) {
+            dependencies = index;
+            cache = new PathLruCache<>(maxEntries, index::remove);
+        }
+    }
+
+    private void finish(final CompressingResponseWrapper wrapper) throws IOException {
+        wrapper.finish();
+        if (wrapper.isCompressed()) {
+            compressed.increment();
+        }
+    }
+
+    private void store(final PathLruCache<Map<String, Entry>> entries, final String path, final String variant,
+                       final Entry entry, final long mark, final Set<String> read) {
+        synchronized (lock) {
+            if (entries != cache) {
+                // reconfigured while rendering
+                return;
+            }
+            if (recentChanges.isAffected(mark, read)) {
+                discarded.increment();
+                return;
+            }
+            Map<String, Entry> variants = entries.get(path);
+            if (variants == null) {
+                variants = new ConcurrentHashMap<>();
+                entries.put(path, variants);
+            }
+            // all variants of a path are dropped together, so they share their dependencies
+            final Set<String> all = new LinkedHashSet<>(dependencies.getDependencies(path));
+            all.addAll(read);
+            dependencies.record(path, all);
+            variants.put(variant, entry);
+            stores.increment();
+        }
+    }
+
+    private static void serve(final Entry entry, final SlingHttpServletResponse response) throws IOException {
+        if (entry.contentType != null) {
+            response.setContentType(entry.contentType);
+        }
+        if (entry.characterEncoding != null) {
+            response.setCharacterEncoding(entry.characterEncoding);
+        }
+        CapturingResponseWrapper.replayHeaders(entry.headers, response);
+        response.setContentLength(entry.body.length);
+        response.getOutputStream().write(entry.body);
+    }
+
+    private static boolean acceptsGzip(final SlingHttpServletRequest request) {
+        final String accept = request.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String candidate : accept.split(",")) {
+            final String[] parts = candidate.trim().split(";");
+            if (CompressingResponseWrapper.ENCODING.equalsIgnoreCase(parts[0].trim())) {
+                return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static boolean isShareable(final SlingHttpServletRequest request) {
+        return request.getQueryString() == null
+                && request.getAuthType() == null
+                && request.getHeader("Authorization") == null
+                && request.getHeader("If-None-Match") == null
+                && request.getHeader("If-Modified-Since") == null
+                && request.getHeader("Range") == null;
+    }
+
+    private static String getVariant(final SlingHttpServletRequest request) {
+        final RequestPathInfo pathInfo = request.getRequestPathInfo();
+        final StringBuilder variant = new StringBuilder(32);
+        if (pathInfo.getSelectorString() != null) {
+            variant.append('.').append(pathInfo.getSelectorString());
+        }
+        if (pathInfo.getExtension() != null) {
+            variant.append('.').append(pathInfo.getExtension());
+        }
+        if (pathInfo.getSuffix() != null) {
+            variant.append(pathInfo.getSuffix());
+        }
+        final String host = request.getHeader("Host");
+        if (host != null) {
+            variant.append('@').append(host);
+        }
+        return variant.append(';').append(CompressingResponseWrapper.ENCODING).toString();
+    }
+}
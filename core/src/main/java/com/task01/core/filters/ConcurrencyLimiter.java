@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Adaptive concurrency limit with additive increase and multiplicative
+ * decrease. A request that takes longer than the target latency, or fails,
+ * shrinks the limit by the backoff ratio, at most once per round trip: only
+ * requests that started after the previous decrease can trigger the next
+ * one. While the limit is at least half used, every fast request grows it
+ * by <code>1 / limit</code>, i.e. by about one per round of requests.
+ * <p>
+ * All state is kept in atomics, admission and release never block.
+ */
+public final class ConcurrencyLimiter {
+
+    private final double minLimit;
+    private final double maxLimit;
+    private final double backoffRatio;
+    private final long targetNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong limit;
+    private final AtomicLong lastDecrease;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    /**
+     * @param initialLimit limit to start with
+     * @param minLimit lower bound of the limit, at least 1
+     * @param maxLimit upper bound of the limit
+     * @param backoffRatio factor applied to the limit on a slow or failed request
+     * @param targetNanos latency above which a request counts as slow
+     */
+    ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit,
+                       final double backoffRatio, final long targetNanos) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.backoffRatio = backoffRatio;
+        this.targetNanos = targetNanos;
+        this.limit = new AtomicLong(Double.doubleToLongBits(
+                Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit))));
+        this.lastDecrease = new AtomicLong(System.nanoTime() - 1);
+    }
+
+    /**
+     * @return <code>true</code> if the request may proceed, it must then be
+     *         {@linkplain #release(long, long, boolean) released}
+     */
+    boolean tryAcquire() {
+        final int current = getLimit();
+        while (true) {
+            final int count = inFlight.get();
+            if (count >= current) {
+                shed.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(count, count + 1)) {
+                admitted.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param startNanos {@link System#nanoTime()} when the request was admitted
+     * @param endNanos {@link System#nanoTime()} when it completed
+     * @param failed whether the request failed
+     */
+    void release(final long startNanos, final long endNanos, final boolean failed) {
+        final int count = inFlight.getAndDecrement();
+        if (failed || endNanos - startNanos > targetNanos) {
+            final long last = lastDecrease.get();
+            if (startNanos - last > 0 && lastDecrease.compareAndSet(last, endNanos)) {
+                update(value -> Math.max(minLimit, value * backoffRatio));
+                decreases.increment();
+            }
+        } else if (count * 2 >= getLimit()) {
+            update(value -> Math.min(maxLimit, value + 1 / value));
+        }
+    }
+
+    public int getLimit() {
+        return (int) Double.longBitsToDouble(limit.get());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * @return number of times the limit was decreased
+     */
+    public long getDecreaseCount() {
+        return decreases.sum();
+    }
+
+    private void update(final DoubleUnaryOperator function) {
+        long current;
+        long next;
+        do {
+            current = limit.get();
+            next = Double.doubleToLongBits(function.applyAsDouble(Double.longBitsToDouble(current)));
+        } while (!limit.compareAndSet(current, next));
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.WCMMode;
+import com.day.cq.wcm.api.components.ComponentContext;
+import com.day.cq.wcm.commons.WCMUtils;
+import com.task01.core.cache.RecentChanges;
+import com.task01.core.dependencies.DependencyIndex;
+import com.task01.core.dependencies.DependencyRecorder;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Caches the HTML of included components of the configured resource types,
+ * e.g. experience fragments and navigation, so they are rendered once per
+ * change instead of once per page. Entries are keyed by resource path,
+ * selectors and extension plus a variant derived from the current page:
+ * <ul>
+ * <li><code>none</code>: the same for every page</li>
+ * <li><code>language</code>: per language root of the current page</li>
+ * <li><code>page</code>: per current page</li>
+ * </ul>
+ * The resources read while a fragment renders are recorded, replayed into
+ * the enclosing page recording on every hit, and used to drop the entry
+ * when any of them changes; a render that overlapped with such a change is
+ * not stored. Only anonymous GET requests with the WCM mode disabled are
+ * cached; the size of all entries is bounded. Entries are evicted in the
+ * order they were stored, except that one hit since the last pass gives an
+ * entry another round, which approximates least recently used without
+ * locking lookups.
+ * <p>
+ * Components that leave request-wide side effects, like client library
+ * inclusion, must not be configured, as a cache hit skips them.
+ */
+@Designate(ocd = FragmentCacheFilter.Config.class)
+@Component(service = { Filter.class, ResourceChangeHandler.class, FragmentCacheFilter.class },
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_INCLUDE,
+           })
+@ServiceDescription("Caches the HTML of included fragments")
+@ServiceRanking(-750)
+@ServiceVendor("Adobe")
+public class FragmentCacheFilter implements Filter, ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 fragment cache filter",
+                           description = "Caches the HTML of included components per page context")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Enabled")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Resource types",
+                             description = "Cached resource types and their variant as type=variant, "
+                                     + "the variant being one of none, language and page")
+        String[] resourceTypes() default {
+                "task01/components/experiencefragment=language",
+                "task01/components/contentfragment=none",
+                "task01/components/navigation=page",
+                "task01/components/languagenavigation=page",
+                "task01/components/breadcrumb=page" };
+
+        @AttributeDefinition(name = "Language root depth",
+                             description = "Number of path segments of the language root, e.g. 3 for /content/site/en")
+        int languageDepth() default 3;
+
+        @AttributeDefinition(name = "Dependency paths",
+                             description = "Changes below these paths invalidate the fragments that read them")
+        String[] dependencyPaths() default { "/content", "/conf" };
+
+        @AttributeDefinition(name = "Maximum size",
+                             description = "Bytes of HTML kept in total, fragments not used recently are evicted beyond")
+        long maxBytes() default 32 * 1024 * 1024;
+
+        @AttributeDefinition(name = "Maximum fragment size",
+                             description = "Bytes of HTML above which a fragment is not cached")
+        int maxEntryBytes() default 256 * 1024;
+    }
+
+    static final String NONE = "none";
+    static final String LANGUAGE = "language";
+    static final String PAGE = "page";
+
+    private static final int RECENT_CHANGES = 1024;
+
+    /**
+     * Rendered fragment and the resources it read.
+     */
+    private static final class Fragment {
+
+        final String key;
+        final String html;
+        final String[] dependencies;
+        final long size;
+
+        // hit since the eviction last passed the fragment
+        volatile boolean used;
+
+        Fragment(final String key, final String html, final Collection<String> dependencies) {
+            this.key = key;
+            this.html = html;
+            this.dependencies = dependencies.toArray(new String[0]);
+            this.size = 2L * (key.length() + html.length());
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    // read without locking, modified under lock together with size, dependencies and eviction order
+    private final Map<String, Fragment> fragments = new ConcurrentHashMap<>();
+    private final Object lock = new Object();
+    // stored fragments, oldest first, may still hold ones that were dropped or replaced since
+    private final ArrayDeque<Fragment> evictionOrder = new ArrayDeque<>();
+    private final RecentChanges recentChanges = new RecentChanges(RECENT_CHANGES);
+    private volatile long size;
+    private DependencyIndex dependencies = new DependencyIndex(new String[] { "/content", "/conf" }, Integer.MAX_VALUE);
+
+    private volatile boolean enabled = true;
+    private volatile Map<String, String> variants = new HashMap<>();
+    private volatile int languageDepth = 3;
+    private volatile long maxBytes = 32 * 1024 * 1024;
+    private volatile int maxEntryBytes = 256 * 1024;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        enabled = config.enabled();
+        final Map<String, String> parsed = new HashMap<>();
+        for (String entry : config.resourceTypes() != null ? config.resourceTypes() : new String[0]) {
+            final int separator = entry.lastIndexOf('=');
+            final String variant = separator > 0 ? entry.substring(separator + 1).trim() : "";
+            if (NONE.equals(variant) || LANGUAGE.equals(variant) || PAGE.equals(variant)) {
+                parsed.put(entry.substring(0, separator).trim(), variant);
+            } else {
+                logger.warn("Ignoring invalid fragment type {}", entry);
+            }
+        }
+        variants = parsed;
+        languageDepth = Math.max(1, config.languageDepth());
+        maxBytes = Math.max(0, config.maxBytes());
+        maxEntryBytes = Math.max(0, config.maxEntryBytes());
+        synchronized (lock) {
+            fragments.clear();
+            evictionOrder.clear();
+            size = 0;
+            dependencies = new DependencyIndex(config.dependencyPaths() != null ? config.dependencyPaths() : new String[0],
+                    Integer.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final Resource resource = slingRequest.getResource();
+        final String variant = resource != null ? variants.get(resource.getResourceType()) : null;
+        if (!enabled || variant == null || !HttpConstants.METHOD_GET.equals(slingRequest.getMethod())
+                || slingRequest.getAuthType() != null || WCMMode.fromRequest(slingRequest) != WCMMode.DISABLED) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final String key = getKey(slingRequest, resource, variant);
+        final Fragment cached = get(key);
+        if (cached != null) {
+            hits.increment();
+            if (!cached.used) {
+                cached.used = true;
+            }
+            for (String dependency : cached.dependencies) {
+                DependencyRecorder.record(dependency);
+            }
+            response.getWriter().write(cached.html);
+            return;
+        }
+
+        misses.increment();
+        final CapturingResponseWrapper wrapper = new CapturingResponseWrapper(
+                (SlingHttpServletResponse) response, maxEntryBytes / 2);
+        final long mark = recentChanges.mark();
+        final Set<String> read;
+        DependencyRecorder.push();
+        try {
+            // the resource was resolved by the including script, before the recording
+            DependencyRecorder.record(resource.getPath());
+            filterChain.doFilter(request, wrapper);
+        } finally {
+            read = DependencyRecorder.pop();
+        }
+        final String html = wrapper.getChars();
+        if (wrapper.isShareable() && html != null && wrapper.getBytes() == null) {
+            put(key, new Fragment(key, html, read), mark);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        synchronized (lock) {
+            recentChanges.add(changes);
+            for (CoalescedChange change : changes) {
+                for (String key : dependencies.getAffectedPages(change)) {
+                    final Fragment removed = fragments.remove(key);
+                    if (removed != null) {
+                        size -= removed.size;
+                        invalidations.increment();
+                    }
+                    dependencies.remove(key);
+                }
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of fragments dropped because something they read changed
+     */
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return number of renders not cached because something they read changed meanwhile
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * @return approximate bytes of all cached fragments
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public int getEntryCount() {
+        return fragments.size();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    String getKey(final SlingHttpServletRequest request, final Resource resource, final String variant) {
+        final RequestPathInfo pathInfo = request.getRequestPathInfo();
+        final StringBuilder key = new StringBuilder(resource.getPath());
+        if (pathInfo.getSelectorString() != null) {
+            key.append('.').append(pathInfo.getSelectorString());
+        }
+        if (pathInfo.getExtension() != null) {
+            key.append('.').append(pathInfo.getExtension());
+        }
+        if (!NONE.equals(variant)) {
+            String page = getCurrentPagePath(request, resource);
+            if (LANGUAGE.equals(variant)) {
+                page = getLanguageRoot(page);
+            }
+            key.append('|').append(page);
+        }
+        return key.toString();
+    }
+
+    private String getLanguageRoot(final String page) {
+        int slashes = 0;
+        for (int i = 0; i < page.length(); i++) {
+            if (page.charAt(i) == '/' && ++slashes > languageDepth) {
+                return page.substring(0, i);
+            }
+        }
+        return page;
+    }
+
+    private static String getCurrentPagePath(final SlingHttpServletRequest request, final Resource resource) {
+        final ComponentContext context = WCMUtils.getComponentContext(request);
+        final Page page = context != null ? context.getPage() : null;
+        // template structure components live below /conf, the page is only known from the context
+        return page != null ? page.getPath() : ContentPaths.getPagePath(resource.getPath());
+    }
+
+    private Fragment get(final String key) {
+        return fragments.get(key);
+    }
+
+    /**
+     * @param mark value of {@link RecentChanges#mark()} taken before the fragment was rendered
+     */
+    private void put(final String key, final Fragment fragment, final long mark) {
+        if (fragment.size > maxBytes) {
+            return;
+        }
+        synchronized (lock) {
+            if (recentChanges.isAffected(mark, Arrays.asList(fragment.dependencies))) {
+                discarded.increment();
+                return;
+            }
+            final Fragment previous = fragments.put(key, fragment);
+            long total = size + fragment.size - (previous != null ? previous.size : 0);
+            dependencies.record(key, Arrays.asList(fragment.dependencies));
+            evictionOrder.addLast(fragment);
+            while (total > maxBytes && !evictionOrder.isEmpty()) {
+                final Fragment eldest = evictionOrder.pollFirst();
+                if (fragments.get(eldest.key) != eldest) {
+                    continue;
+                }
+                if (eldest.used) {
+                    // each fragment is passed over at most once, so this ends
+                    eldest.used = false;
+                    evictionOrder.addLast(eldest);
+                    continue;
+                }
+                fragments.remove(eldest.key);
+                total -= eldest.size;
+                dependencies.remove(eldest.key);
+                evictions.increment();
+            }
+            size = total;
+            if (evictionOrder.size() > 2 * fragments.size() + 16) {
+                // invalidated and replaced fragments pile up without evictions
+                evictionOrder.removeIf(queued -> fragments.get(queued.key) != queued);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Sheds load before publish threads pile up. Requests are grouped into
+ * classes by the resource type they render, and every class has its own
+ * {@link ConcurrencyLimiter} that adapts to the observed latency. Requests
+ * beyond the current limit are answered right away with 503 and a
+ * <code>Retry-After</code> header; the dispatcher serves its stale copy in
+ * that case. Requests that throw or answer with a 5xx status count as
+ * failed and lower the limit.
+ */
+@Designate(ocd = LoadSheddingFilter.Config.class)
+@Component(service = { Filter.class, LoadSheddingFilter.class },
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
+           })
+@ServiceDescription("Sheds load beyond an adaptive concurrency limit")
+@ServiceRanking(-900)
+@ServiceVendor("Adobe")
+public class LoadSheddingFilter implements Filter {
+
+    @ObjectClassDefinition(name = "Task01 load shedding filter",
+                           description = "Adaptive concurrency limits per resource type class")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Enabled")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only requests for resources below these paths are limited")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Classes",
+                             description = "Resource type prefix and class name as prefix=class, first match wins, "
+                                     + "other resource types share the class 'default'")
+        String[] classes() default { "task01/components/page=pages", "cq:Page=pages", "dam:Asset=assets" };
+
+        @AttributeDefinition(name = "Target latency",
+                             description = "Milliseconds above which a request counts as slow and the limit shrinks")
+        long targetLatencyMillis() default 1000;
+
+        @AttributeDefinition(name = "Initial limit")
+        int initialLimit() default 20;
+
+        @AttributeDefinition(name = "Minimum limit")
+        int minLimit() default 4;
+
+        @AttributeDefinition(name = "Maximum limit")
+        int maxLimit() default 200;
+
+        @AttributeDefinition(name = "Backoff ratio",
+                             description = "Factor the limit is multiplied with after a slow request")
+        double backoffRatio() default 0.9;
+
+        @AttributeDefinition(name = "Retry after",
+                             description = "Seconds sent in the Retry-After header of shed requests")
+        int retryAfterSeconds() default 5;
+    }
+
+    static final String DEFAULT_CLASS = "default";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled = true;
+    private volatile String[] paths = { "/content" };
+    private volatile String[][] classes = new String[0][];
+
+    private volatile long targetNanos = TimeUnit.SECONDS.toNanos(1);
+    private volatile int initialLimit = 20;
+    private volatile int minLimit = 4;
+    private volatile int maxLimit = 200;
+    private volatile double backoffRatio = 0.9;
+    private volatile String retryAfter = "5";
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        enabled = config.enabled();
+        paths = config.paths() != null ? config.paths() : new String[0];
+        final String[] entries = config.classes() != null ? config.classes() : new String[0];
+        final String[][] parsed = new String[entries.length][];
+        int count = 0;
+        for (String entry : entries) {
+            final int separator = entry.lastIndexOf('=');
+            if (separator > 0 && separator < entry.length() - 1) {
+                parsed[count++] = new String[] { entry.substring(0, separator).trim(), entry.substring(separator + 1).trim() };
+            } else {
+                logger.warn("Ignoring invalid class mapping {}", entry);
+            }
+        }
+        targetNanos = TimeUnit.MILLISECONDS.toNanos(config.targetLatencyMillis() > 0 ? config.targetLatencyMillis() : 1000);
+        minLimit = Math.max(1, config.minLimit());
+        maxLimit = Math.max(minLimit, config.maxLimit());
+        initialLimit = config.initialLimit() > 0 ? config.initialLimit() : minLimit;
+        backoffRatio = config.backoffRatio() > 0 && config.backoffRatio() < 1 ? config.backoffRatio() : 0.9;
+        retryAfter = String.valueOf(Math.max(1, config.retryAfterSeconds()));
+        classes = Arrays.copyOf(parsed, count);
+        // start over with the new settings, requests in flight release their old limiter
+        limiters.clear();
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final Resource resource = slingRequest.getResource();
+        final String path = slingRequest.getRequestPathInfo().getResourcePath();
+        if (!enabled || path == null || !ContentPaths.isIncluded(paths, path)) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final String limiterClass = classify(resource != null ? resource.getResourceType() : null);
+        final ConcurrencyLimiter limiter = limiters.computeIfAbsent(limiterClass,
+                key -> new ConcurrencyLimiter(initialLimit, minLimit, maxLimit, backoffRatio, targetNanos));
+        if (!limiter.tryAcquire()) {
+            logger.debug("Shedding request for {}, class {} at limit {}", path, limiterClass, limiter.getLimit());
+            final HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", retryAfter);
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        final long start = System.nanoTime();
+        final StatusResponseWrapper wrapper = new StatusResponseWrapper((SlingHttpServletResponse) response);
+        boolean failed = true;
+        try {
+            filterChain.doFilter(request, wrapper);
+            failed = wrapper.status >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        } finally {
+            limiter.release(start, System.nanoTime(), failed);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * @return the limiters by class name
+     */
+    public Map<String, ConcurrencyLimiter> getLimiters() {
+        return Collections.unmodifiableMap(limiters);
+    }
+
+    /**
+     * @return number of shed requests over all classes
+     */
+    public long getShedCount() {
+        long shed = 0;
+        for (ConcurrencyLimiter limiter : limiters.values()) {
+            shed += limiter.getShedCount();
+        }
+        return shed;
+    }
+
+    String classify(final String resourceType) {
+        if (resourceType != null) {
+            for (String[] mapping : classes) {
+                if (resourceType.startsWith(mapping[0])) {
+                    return mapping[1];
+                }
+            }
+        }
+        return DEFAULT_CLASS;
+    }
+
+    /**
+     * Remembers the status the request was answered with.
+     */
+    private static final class StatusResponseWrapper extends SlingHttpServletResponseWrapper {
+
+        private int status = HttpServletResponse.SC_OK;
+
+        StatusResponseWrapper(final SlingHttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(final int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(final int sc, final String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(final int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(final int sc, final String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+    }
+}
@@ -16,52 +16,112 @@
 package com.task01.core.filters;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.engine.EngineConstants;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.component.propertytypes.ServiceDescription;
 import org.osgi.service.component.propertytypes.ServiceRanking;
 import org.osgi.service.component.propertytypes.ServiceVendor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.task01.core.metrics.MetricsSource;
+import com.task01.core.metrics.OpenMetricsWriter;
+import com.task01.core.metrics.RequestLatencyStats;
+import com.task01.core.warmup.CacheWarmer;
+import com.task01.core.warmup.HotnessTracker;
+
 /**
- * Simple servlet filter component that logs incoming requests.
+ * Simple servlet filter component that logs incoming requests and records
+ * their latency in the {@link RequestLatencyStats}. Successful GET requests
+ * by visitors are counted in the {@link HotnessTracker}. Server errors and
+ * requests in flight are published as metrics, request durations by the
+ * {@link RequestLatencyStats}.
  */
-@Component(service = Filter.class,
+@Component(service = { Filter.class, MetricsSource.class },
            property = {
                    EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
            })
 @ServiceDescription("Demo to filter incoming requests")
 @ServiceRanking(-700)
 @ServiceVendor("Adobe")
-public class LoggingFilter implements Filter {
+public class LoggingFilter implements Filter, MetricsSource {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder serverErrors = new LongAdder();
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile RequestLatencyStats latencyStats;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile HotnessTracker hotnessTracker;
+
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response,
                          final FilterChain filterChain) throws IOException, ServletException {
 
         final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
-        logger.debug("request for {}, with selector {}", slingRequest
-                .getRequestPathInfo().getResourcePath(), slingRequest
-                .getRequestPathInfo().getSelectorString());
+        final RequestPathInfo pathInfo = slingRequest.getRequestPathInfo();
+        logger.debug("request for {}, with selector {}", pathInfo.getResourcePath(), pathInfo.getSelectorString());
 
-        filterChain.doFilter(request, response);
+        final long start = System.nanoTime();
+        inFlight.incrementAndGet();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            inFlight.decrementAndGet();
+            if (((HttpServletResponse) response).getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+                serverErrors.increment();
+            }
+            final Resource resource = slingRequest.getResource();
+            final RequestLatencyStats stats = latencyStats;
+            if (stats != null) {
+                stats.record(resource != null ? resource.getResourceType() : null,
+                        pathInfo.getSelectorString(), pathInfo.getExtension(), elapsed);
+            }
+            final HotnessTracker tracker = hotnessTracker;
+            if (tracker != null && resource != null && "GET".equals(slingRequest.getMethod())
+                    && ((HttpServletResponse) response).getStatus() == HttpServletResponse.SC_OK
+                    && slingRequest.getHeader(CacheWarmer.WARMUP_HEADER) == null) {
+                tracker.record(resource.getPath(), slingRequest.getRequestURI());
+            }
+        }
     }
 
     @Override
     public void init(FilterConfig filterConfig) {
     }
 
+    @Override
+    public void writeMetrics(final OpenMetricsWriter out) throws IOException {
+        out.gauge("task01_requests_in_flight", "Sling requests currently processed", inFlight.get());
+        out.counter("task01_request_server_errors", "Sling requests answered with a 5xx status", serverErrors.sum());
+    }
+
     @Override
     public void destroy() {
     }
@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.engine.EngineConstants;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+import org.osgi.service.component.propertytypes.ServiceVendor;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Coalesces concurrent identical GET requests, e.g. the burst of requests
+ * for a page after its dispatcher cache entry was flushed. The first
+ * request renders as usual while its response is copied; requests for the
+ * same resource path, selectors, extension and suffix that arrive in the
+ * meantime wait for it and get the copy replayed instead of rendering the
+ * page again.
+ * <p>
+ * Only anonymous requests without query string or conditional headers are
+ * coalesced, and only 200 responses without cookies or private cache
+ * directives are shared. A waiting request renders on its own if the
+ * first one takes longer than the maximum wait, fails or produces a body
+ * above the size limit.
+ */
+@Designate(ocd = RequestCoalescingFilter.Config.class)
+@Component(service = { Filter.class, RequestCoalescingFilter.class },
+           property = {
+                   EngineConstants.SLING_FILTER_SCOPE + "=" + EngineConstants.FILTER_SCOPE_REQUEST,
+           })
+@ServiceDescription("Coalesces concurrent identical GET requests")
+@ServiceRanking(-800)
+@ServiceVendor("Adobe")
+public class RequestCoalescingFilter implements Filter {
+
+    @ObjectClassDefinition(name = "Task01 request coalescing filter",
+                           description = "Renders concurrent identical anonymous GET requests only once")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Enabled")
+        boolean enabled() default true;
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only requests for resources below these paths are coalesced")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Maximum wait",
+                             description = "Milliseconds a request waits for the identical one in flight "
+                                     + "before it renders on its own")
+        long maxWaitMillis() default 2000;
+
+        @AttributeDefinition(name = "Maximum size",
+                             description = "Responses with a larger body are not shared")
+        int maxBytes() default 1048576;
+    }
+
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 2000;
+    private static final int DEFAULT_MAX_BYTES = 1048576;
+
+    /**
+     * A render in progress and, once done, its shareable copy.
+     */
+    private static final class Flight {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile CapturingResponseWrapper result;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    private volatile boolean enabled = true;
+    private volatile String[] paths = { "/content" };
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private volatile int maxBytes = DEFAULT_MAX_BYTES;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        enabled = config.enabled();
+        paths = config.paths() != null ? config.paths() : new String[0];
+        maxWaitMillis = config.maxWaitMillis() > 0 ? config.maxWaitMillis() : DEFAULT_MAX_WAIT_MILLIS;
+        maxBytes = config.maxBytes() > 0 ? config.maxBytes() : DEFAULT_MAX_BYTES;
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+                         final FilterChain filterChain) throws IOException, ServletException {
+        final SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        final String key = enabled ? getKey(slingRequest) : null;
+        if (key == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        final Flight flight = new Flight();
+        final Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            lead(key, flight, slingRequest, (SlingHttpServletResponse) response, filterChain);
+        } else if (!follow(existing, (SlingHttpServletResponse) response)) {
+            fallbacks.increment();
+            filterChain.doFilter(request, response);
+        }
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * @return number of requests currently waiting for an identical request
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return number of requests that rendered while others could wait for them
+     */
+    public long getLeaderCount() {
+        return leaders.sum();
+    }
+
+    /**
+     * @return number of requests served from the response of an identical request
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return number of waiting requests that had to render on their own
+     */
+    public long getFallbackCount() {
+        return fallbacks.sum();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void lead(final String key, final Flight flight, final SlingHttpServletRequest request,
+            final SlingHttpServletResponse response, final FilterChain filterChain)
+            throws IOException, ServletException {
+        leaders.increment();
+        final CapturingResponseWrapper capture = new CapturingResponseWrapper(response, maxBytes);
+        try {
+            filterChain.doFilter(request, capture);
+            if (capture.isShareable()) {
+                flight.result = capture;
+            }
+        } finally {
+            // new requests start their own flight from here on
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the request has to render on its own
+     */
+    private boolean follow(final Flight flight, final SlingHttpServletResponse response) throws IOException {
+        waiting.incrementAndGet();
+        try {
+            if (!flight.done.await(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                logger.debug("Gave up waiting for identical request after {}ms", maxWaitMillis);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+        final CapturingResponseWrapper result = flight.result;
+        if (result == null) {
+            return false;
+        }
+        replay(result, response);
+        coalesced.increment();
+        return true;
+    }
+
+    private static void replay(final CapturingResponseWrapper result, final SlingHttpServletResponse response)
+            throws IOException {
+        response.setStatus(result.getStatus());
+        if (result.getCapturedContentType() != null) {
+            response.setContentType(result.getCapturedContentType());
+        }
+        if (result.getCapturedCharacterEncoding() != null) {
+            response.setCharacterEncoding(result.getCapturedCharacterEncoding());
+        }
+        CapturingResponseWrapper.replayHeaders(result.getHeaders(), response);
+        final byte[] bytes = result.getBytes();
+        final String chars = result.getChars();
+        if (bytes != null && bytes.length > 0) {
+            response.setContentLength(bytes.length);
+            response.getOutputStream().write(bytes);
+        } else if (chars != null) {
+            response.getWriter().write(chars);
+        }
+    }
+
+    /**
+     * @return the coalescing key, or <code>null</code> if the request must
+     *         not share its response
+     */
+    private String getKey(final SlingHttpServletRequest request) {
+        if (!HttpConstants.METHOD_GET.equals(request.getMethod())
+                || request.getQueryString() != null
+                || request.getAuthType() != null
+                || request.getHeader("Authorization") != null
+                || request.getHeader("If-None-Match") != null
+                || request.getHeader("If-Modified-Since") != null
+                || request.getHeader("Range") != null) {
+            return null;
+        }
+        final RequestPathInfo pathInfo = request.getRequestPathInfo();
+        final String path = pathInfo.getResourcePath();
+        if (path == null || !ContentPaths.isIncluded(paths, path)) {
+            return null;
+        }
+        final StringBuilder key = new StringBuilder(path);
+        if (pathInfo.getSelectorString() != null) {
+            key.append('.').append(pathInfo.getSelectorString());
+        }
+        if (pathInfo.getExtension() != null) {
+            key.append('.').append(pathInfo.getExtension());
+        }
+        if (pathInfo.getSuffix() != null) {
+            key.append(pathInfo.getSuffix());
+        }
+        // the rendered output may depend on the host, e.g. for externalized links
+        final String host = request.getHeader("Host");
+        if (host != null) {
+            key.append('@').append(host);
+        }
+        return key.toString();
+    }
+}
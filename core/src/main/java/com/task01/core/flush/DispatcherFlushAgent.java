@@ -0,0 +1,564 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.flush;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.wcm.commons.ReferenceSearch;
+import com.task01.core.dependencies.DependencyIndex;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+import com.task01.core.warmup.CacheWarmer;
+
+/**
+ * Invalidates exactly the dispatcher cache entries affected by a batch of
+ * resource changes: the changed page, its parents up to a configurable
+ * level (navigation), the pages whose last render read a changed resource
+ * according to the {@link DependencyIndex} and the pages referencing it.
+ * Invalidations are sent
+ * with <code>CQ-Action-Scope: ResourceOnly</code>, so the stat files are
+ * not touched and the rest of the site stays cached.
+ * <p>
+ * Paths are collected until no change arrived for the dedup window and
+ * then flushed once, which folds repeated edits of the same page into a
+ * single invalidation that is sent after the last of them. Continuous
+ * editing delays a flush by at most the maximum delay. Invalidations a
+ * dispatcher did not acknowledge are sent to it again with exponential
+ * backoff. Once acknowledged, the pages that still exist are handed to the
+ * {@link CacheWarmer}.
+ */
+@Designate(ocd = DispatcherFlushAgent.Config.class)
+@Component(service = { DispatcherFlushAgent.class, ResourceChangeHandler.class })
+@ServiceDescription("Targeted dispatcher cache invalidation")
+public class DispatcherFlushAgent implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 dispatcher flush agent",
+                           description = "Invalidates changed pages, their parents and referencing pages on the dispatchers")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Dispatcher URLs",
+                             description = "Flush endpoints, e.g. http://dispatcher:80. Nothing is flushed if empty")
+        String[] dispatcherUrls() default {};
+
+        @AttributeDefinition(name = "Host header",
+                             description = "Virtual host of the flush endpoint")
+        String hostHeader() default "flush";
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only changes below these paths are flushed")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Parent levels",
+                             description = "Number of parent pages invalidated with a page, for navigation")
+        int parentLevels() default 1;
+
+        @AttributeDefinition(name = "Minimum depth",
+                             description = "Parents with fewer path segments are never invalidated")
+        int minDepth() default 2;
+
+        @AttributeDefinition(name = "Flush referencing pages",
+                             description = "Whether pages referencing a changed page are invalidated as well")
+        boolean flushReferences() default true;
+
+        @AttributeDefinition(name = "Dedup window",
+                             description = "Milliseconds invalidations are collected and deduplicated before they are sent")
+        long dedupWindowMillis() default 2000;
+
+        @AttributeDefinition(name = "Maximum delay",
+                             description = "Milliseconds after the first pending change at which invalidations are sent "
+                                     + "even if changes keep arriving")
+        long maxDelayMillis() default 30000;
+
+        @AttributeDefinition(name = "Retry backoff",
+                             description = "Milliseconds before failed invalidations are sent again, doubled per failed "
+                                     + "attempt up to five minutes")
+        long retryBackoffMillis() default 1000;
+
+        @AttributeDefinition(name = "Pipeline size",
+                             description = "Maximum number of requests sent over one connection")
+        int pipelineSize() default 100;
+
+        @AttributeDefinition(name = "Timeout",
+                             description = "Connect and read timeout in milliseconds")
+        int timeoutMillis() default 5000;
+    }
+
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile DependencyIndex dependencyIndex;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile CacheWarmer cacheWarmer;
+
+    // handle -> action, guarded by itself; pages that still need a reference lookup in referencesPending,
+    // removed pages that must not be warmed in removedPending
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    private final Set<String> referencesPending = new LinkedHashSet<>();
+    private final Set<String> removedPending = new HashSet<>();
+
+    // System.nanoTime() of the first and the last change since the last flush, guarded by pending
+    private long firstChange;
+    private long lastChange;
+
+    // next run of the flush thread and when it is due, guarded by pending
+    private ScheduledFuture<?> scheduled;
+    private long scheduledAt;
+
+    private final LongAdder sentRequests = new LongAdder();
+    private final LongAdder dedupedPaths = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder dependentPages = new LongAdder();
+
+    private List<Endpoint> endpoints = Collections.emptyList();
+    private String[] paths = { "/content" };
+    private int parentLevels = 1;
+    private int minDepth = 2;
+    private boolean flushReferences = true;
+    private int pipelineSize = 100;
+    private long windowNanos = TimeUnit.SECONDS.toNanos(2);
+    private long maxDelayNanos = TimeUnit.SECONDS.toNanos(30);
+    private long backoffNanos = TimeUnit.SECONDS.toNanos(1);
+
+    // guarded by pending, null while deactivated
+    private ScheduledExecutorService executor;
+
+    @Activate
+    protected void activate(final Config config) {
+        final List<Endpoint> configured = new ArrayList<>();
+        final int timeout = config.timeoutMillis() > 0 ? config.timeoutMillis() : 5000;
+        final String host = config.hostHeader() != null ? config.hostHeader() : "flush";
+        if (config.dispatcherUrls() != null) {
+            for (String url : config.dispatcherUrls()) {
+                try {
+                    configured.add(new Endpoint(new PipelinedFlushClient(URI.create(url.trim()), host, timeout)));
+                } catch (IllegalArgumentException e) {
+                    logger.error("Ignoring invalid dispatcher URL {}", url, e);
+                }
+            }
+        }
+        endpoints = configured;
+        paths = config.paths() != null ? config.paths() : new String[0];
+        parentLevels = Math.max(0, config.parentLevels());
+        minDepth = Math.max(1, config.minDepth());
+        flushReferences = config.flushReferences();
+        pipelineSize = config.pipelineSize() > 0 ? config.pipelineSize() : 100;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(config.dedupWindowMillis() > 0 ? config.dedupWindowMillis() : 2000);
+        maxDelayNanos = Math.max(windowNanos, TimeUnit.MILLISECONDS.toNanos(config.maxDelayMillis()));
+        backoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.retryBackoffMillis()));
+
+        final ScheduledExecutorService started = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "task01-dispatcher-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        synchronized (pending) {
+            executor = started;
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        final ScheduledExecutorService stopping;
+        synchronized (pending) {
+            stopping = executor;
+            executor = null;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+                scheduled = null;
+            }
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                stopping.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.retries.isEmpty()) {
+                logger.warn("Dropping {} invalidations the dispatcher {} did not acknowledge",
+                        endpoint.retries.size(), endpoint.client);
+            }
+        }
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        final DependencyIndex index = dependencyIndex;
+        synchronized (pending) {
+            for (CoalescedChange change : changes) {
+                if (!isIncluded(change.getPath())) {
+                    continue;
+                }
+                final String page = ContentPaths.getPagePath(change.getPath());
+                // a removed subtree has to go completely, and a folded one may have changed anywhere
+                // below; Delete also drops the cached directory, ResourceOnly Activates would not reach it
+                final boolean gone = (change.isRemoved() || change.isSubtree()) && page.equals(change.getPath());
+                add(page, gone ? FlushRequest.DELETE : FlushRequest.ACTIVATE);
+                if (change.isRemoved() && page.equals(change.getPath())) {
+                    removedPending.add(page);
+                } else {
+                    removedPending.remove(page);
+                }
+                String parent = page;
+                for (int level = 0; level < parentLevels; level++) {
+                    parent = ContentPaths.getParent(parent);
+                    if (parent == null || ContentPaths.getDepth(parent) < minDepth) {
+                        break;
+                    }
+                    add(parent, FlushRequest.ACTIVATE);
+                }
+                if (index != null) {
+                    for (String dependent : index.getAffectedPages(change)) {
+                        if (!dependent.equals(page) && isIncluded(dependent)) {
+                            dependentPages.increment();
+                            add(dependent, FlushRequest.ACTIVATE);
+                        }
+                    }
+                }
+                if (flushReferences) {
+                    referencesPending.add(page);
+                }
+            }
+            if (!pending.isEmpty()) {
+                final long now = System.nanoTime();
+                if (firstChange == 0) {
+                    firstChange = now;
+                }
+                lastChange = now;
+                schedule(now + windowNanos);
+            }
+        }
+    }
+
+    /**
+     * @return number of invalidation requests sent successfully
+     */
+    public long getSentRequests() {
+        return sentRequests.sum();
+    }
+
+    /**
+     * @return number of invalidations folded into one already pending
+     */
+    public long getDedupedPaths() {
+        return dedupedPaths.sum();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    /**
+     * @return number of invalidations added because a page render depended on a changed resource
+     */
+    public long getDependentPages() {
+        return dependentPages.sum();
+    }
+
+    /**
+     * Sends all pending invalidations and all failed ones without waiting
+     * for the window or the backoff. Runs on the flush thread only.
+     */
+    void flush() {
+        flush(true);
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void runScheduled() {
+        synchronized (pending) {
+            scheduled = null;
+        }
+        flush(false);
+    }
+
+    /**
+     * @param force <code>true</code> to send pending invalidations even if changes are still arriving
+     */
+    private void flush(final boolean force) {
+        final Map<String, String> batch = new LinkedHashMap<>();
+        final List<String> lookups;
+        final Set<String> removed = new HashSet<>();
+        synchronized (pending) {
+            final long due = Math.min(lastChange + windowNanos, firstChange + maxDelayNanos);
+            if (!force && !pending.isEmpty() && System.nanoTime() - due < 0) {
+                schedule(due);
+                lookups = Collections.emptyList();
+            } else {
+                batch.putAll(pending);
+                lookups = new ArrayList<>(referencesPending);
+                removed.addAll(removedPending);
+                pending.clear();
+                referencesPending.clear();
+                removedPending.clear();
+                firstChange = 0;
+            }
+        }
+        if (!lookups.isEmpty()) {
+            addReferencingPages(batch, lookups);
+        }
+
+        final long now = System.nanoTime();
+        long nextRetry = Long.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            endpoint.unwarmed.keySet().removeAll(removed);
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                if (!removed.contains(entry.getKey())) {
+                    final boolean subtree = FlushRequest.DELETE.equals(entry.getValue());
+                    endpoint.unwarmed.merge(entry.getKey(), subtree, Boolean::logicalOr);
+                }
+            }
+            final Map<String, String> requests;
+            if (endpoint.retries.isEmpty()) {
+                requests = batch;
+            } else {
+                merge(endpoint.retries, batch);
+                if (!force && now - endpoint.retryAt < 0) {
+                    // still backing off, the new invalidations wait with the failed ones
+                    nextRetry = Math.min(nextRetry, endpoint.retryAt);
+                    continue;
+                }
+                requests = new LinkedHashMap<>(endpoint.retries);
+                endpoint.retries.clear();
+            }
+            final Map<String, String> failed = send(endpoint.client, requests);
+            warm(endpoint, requests.keySet(), failed.keySet());
+            if (failed.isEmpty()) {
+                endpoint.attempts = 0;
+            } else {
+                merge(endpoint.retries, failed);
+                endpoint.attempts++;
+                endpoint.retryAt = now + backoff(endpoint.attempts);
+                nextRetry = Math.min(nextRetry, endpoint.retryAt);
+            }
+        }
+        if (nextRetry != Long.MAX_VALUE) {
+            synchronized (pending) {
+                schedule(nextRetry);
+            }
+        }
+    }
+
+    /**
+     * Sends the invalidations in pipelines of at most {@link #pipelineSize} requests.
+     * @return handle -> action of the invalidations the dispatcher did not acknowledge
+     */
+    private Map<String, String> send(final PipelinedFlushClient client, final Map<String, String> invalidations) {
+        final List<FlushRequest> requests = new ArrayList<>(invalidations.size());
+        for (Map.Entry<String, String> entry : invalidations.entrySet()) {
+            requests.add(new FlushRequest(entry.getValue(), entry.getKey()));
+        }
+        final Map<String, String> failed = new LinkedHashMap<>();
+        for (int from = 0; from < requests.size(); from += pipelineSize) {
+            final List<FlushRequest> pipeline = requests.subList(from, Math.min(requests.size(), from + pipelineSize));
+            try {
+                final List<Integer> statuses = client.send(pipeline);
+                for (int i = 0; i < statuses.size(); i++) {
+                    if (statuses.get(i) == 200) {
+                        sentRequests.increment();
+                    } else {
+                        failedRequests.increment();
+                        failed.put(pipeline.get(i).getHandle(), pipeline.get(i).getAction());
+                        logger.warn("Dispatcher returned {} for {}, retrying", statuses.get(i), pipeline.get(i));
+                    }
+                }
+            } catch (IOException e) {
+                failedRequests.add(pipeline.size());
+                for (FlushRequest request : pipeline) {
+                    failed.put(request.getHandle(), request.getAction());
+                }
+                logger.error("Failed to send {} invalidations to the dispatcher, retrying", pipeline.size(), e);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Hands the pages whose invalidation the dispatcher acknowledged to the warmer.
+     */
+    private void warm(final Endpoint endpoint, final Set<String> sent, final Set<String> failed) {
+        final Map<String, Boolean> acknowledged = new LinkedHashMap<>();
+        final Iterator<Map.Entry<String, Boolean>> unwarmed = endpoint.unwarmed.entrySet().iterator();
+        while (unwarmed.hasNext()) {
+            final Map.Entry<String, Boolean> entry = unwarmed.next();
+            if (sent.contains(entry.getKey()) && !failed.contains(entry.getKey())) {
+                acknowledged.put(entry.getKey(), entry.getValue());
+                unwarmed.remove();
+            }
+        }
+        final CacheWarmer warmer = cacheWarmer;
+        if (warmer != null && !acknowledged.isEmpty()) {
+            warmer.invalidated(acknowledged);
+        }
+    }
+
+    /**
+     * Runs the flush thread at the given time unless it already runs earlier.
+     * Must be called while holding the lock on {@link #pending}.
+     * @param at {@link System#nanoTime()} of the run
+     */
+    private void schedule(final long at) {
+        if (executor == null || (scheduled != null && scheduledAt - at <= 0)) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = executor.schedule(this::runScheduled, Math.max(0, at - System.nanoTime()), TimeUnit.NANOSECONDS);
+        scheduledAt = at;
+    }
+
+    private long backoff(final int attempts) {
+        final long delay = backoffNanos << Math.min(attempts - 1, 20);
+        return delay < 0 || delay > MAX_BACKOFF_NANOS ? MAX_BACKOFF_NANOS : delay;
+    }
+
+    /**
+     * Adds the invalidations to the target, a Delete of a handle wins over an Activate.
+     */
+    private static void merge(final Map<String, String> target, final Map<String, String> invalidations) {
+        for (Map.Entry<String, String> entry : invalidations.entrySet()) {
+            final String previous = target.putIfAbsent(entry.getKey(), entry.getValue());
+            if (previous != null && FlushRequest.DELETE.equals(entry.getValue())) {
+                target.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void addReferencingPages(final Map<String, String> batch, final List<String> pages) {
+        try (ResourceResolver resolver = resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE))) {
+            for (String page : pages) {
+                for (String referencing : findReferencingPages(resolver, page)) {
+                    if (isIncluded(referencing) && !batch.containsKey(referencing)) {
+                        batch.put(referencing, FlushRequest.ACTIVATE);
+                    }
+                }
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}, referencing pages are not flushed",
+                    ContentPaths.SUBSERVICE, e);
+        }
+    }
+
+    /**
+     * @return paths of the pages linking to the given page
+     */
+    protected Set<String> findReferencingPages(final ResourceResolver resolver, final String page) {
+        final Set<String> result = new LinkedHashSet<>();
+        try {
+            for (String root : paths) {
+                result.addAll(new ReferenceSearch().setExact(true).setHollow(true).setSearchRoot(root)
+                        .search(resolver, page).keySet());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Reference search for {} failed", page, e);
+        }
+        return result;
+    }
+
+    /** Must be called while holding the lock on {@link #pending}. */
+    private void add(final String handle, final String action) {
+        final String previous = pending.get(handle);
+        if (previous == null) {
+            pending.put(handle, action);
+        } else {
+            dedupedPaths.increment();
+            if (FlushRequest.DELETE.equals(action)) {
+                pending.put(handle, action);
+            }
+        }
+    }
+
+    private boolean isIncluded(final String path) {
+        return ContentPaths.isIncluded(paths, path);
+    }
+
+    /**
+     * A dispatcher and the invalidations it still has to receive. Only used
+     * on the flush thread.
+     */
+    private static final class Endpoint {
+
+        private final PipelinedFlushClient client;
+
+        // handle -> action of unacknowledged invalidations
+        private final Map<String, String> retries = new LinkedHashMap<>();
+
+        // handle -> subtree of pages to warm once their invalidation is acknowledged
+        private final Map<String, Boolean> unwarmed = new LinkedHashMap<>();
+
+        private int attempts;
+
+        // System.nanoTime() of the next attempt
+        private long retryAt;
+
+        private Endpoint(final PipelinedFlushClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.flush;
+
+/**
+ * A single dispatcher invalidation.
+ */
+final class FlushRequest {
+
+    static final String ACTIVATE = "Activate";
+    static final String DELETE = "Delete";
+
+    private final String action;
+
+    private final String handle;
+
+    FlushRequest(final String action, final String handle) {
+        this.action = action;
+        this.handle = handle;
+    }
+
+    /**
+     * @return value of the <code>CQ-Action</code> header
+     */
+    String getAction() {
+        return action;
+    }
+
+    /**
+     * @return repository path sent as <code>CQ-Handle</code>
+     */
+    String getHandle() {
+        return handle;
+    }
+
+    @Override
+    public String toString() {
+        return action + " " + handle;
+    }
+}
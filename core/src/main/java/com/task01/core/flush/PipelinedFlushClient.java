@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.flush;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sends dispatcher invalidation requests over a single connection. All
+ * requests are written before the first response is read (HTTP/1.1
+ * pipelining), so a batch costs one round trip instead of one per path.
+ */
+class PipelinedFlushClient {
+
+    static final String INVALIDATE_PATH = "/dispatcher/invalidate.cache";
+
+    private final URI endpoint;
+
+    private final String hostHeader;
+
+    private final int timeoutMillis;
+
+    /**
+     * @param endpoint URL of the dispatcher, only host and port are used
+     * @param hostHeader virtual host of the flush endpoint, e.g. <code>flush</code>
+     * @param timeoutMillis connect and read timeout
+     */
+    PipelinedFlushClient(final URI endpoint, final String hostHeader, final int timeoutMillis) {
+        this.endpoint = endpoint;
+        this.hostHeader = hostHeader;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param requests invalidations to send, in order
+     * @return HTTP status per request, in the same order
+     * @throws IOException if the connection fails or a response cannot be read
+     */
+    List<Integer> send(final List<FlushRequest> requests) throws IOException {
+        final List<Integer> statuses = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) {
+            return statuses;
+        }
+        final int port = endpoint.getPort() > 0 ? endpoint.getPort() : 80;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(endpoint.getHost(), port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+
+            final OutputStream out = socket.getOutputStream();
+            final StringBuilder batch = new StringBuilder(requests.size() * 160);
+            for (int i = 0; i < requests.size(); i++) {
+                final FlushRequest request = requests.get(i);
+                batch.append("POST ").append(INVALIDATE_PATH).append(" HTTP/1.1\r\n")
+                        .append("Host: ").append(hostHeader).append("\r\n")
+                        .append("CQ-Action: ").append(request.getAction()).append("\r\n")
+                        .append("CQ-Handle: ").append(request.getHandle()).append("\r\n")
+                        .append("CQ-Action-Scope: ResourceOnly\r\n")
+                        .append("Content-Length: 0\r\n")
+                        .append(i == requests.size() - 1 ? "Connection: close\r\n" : "")
+                        .append("\r\n");
+            }
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 0; i < requests.size(); i++) {
+                statuses.add(readResponse(in));
+            }
+        }
+        return statuses;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint.toString();
+    }
+
+    /**
+     * Reads one response and discards its body.
+     * @return the status code
+     */
+    private static int readResponse(final InputStream in) throws IOException {
+        final String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new IOException("Connection closed before all responses were read");
+        }
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        final int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine, e);
+        }
+
+        long contentLength = -1;
+        boolean chunked = false;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            final String value = line.substring(colon + 1).trim();
+            if ("content-length".equals(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("transfer-encoding".equals(name) && value.toLowerCase(Locale.ROOT).contains("chunked")) {
+                chunked = true;
+            }
+        }
+
+        if (chunked) {
+            long size;
+            do {
+                final String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new IOException("Truncated chunked response");
+                }
+                final int extension = sizeLine.indexOf(';');
+                size = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                skip(in, size);
+                readLine(in);
+            } while (size > 0);
+        } else if (contentLength >= 0) {
+            skip(in, contentLength);
+        }
+        // without length the body ends with the connection, which only happens for the last response
+        return status;
+    }
+
+    private static void skip(final InputStream in, final long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Truncated response body");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(c);
+        }
+        return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+    }
+}
@@ -0,0 +1,1063 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.task01.core.journal.ChangeJournal;
+import com.task01.core.journal.JournalEntry;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+import com.task01.core.listeners.SimpleResourceListener;
+
+/**
+ * In-memory index of the pages below the configured roots with their
+ * title, template and last modification. Paths are held in a trie with one
+ * node per path segment, so the index costs little more than the titles it
+ * stores, and lookups never touch the repository.
+ * <p>
+ * The index is built once at activation by walking partitions of the
+ * content tree in parallel, each worker with its own service resolver. The
+ * walk descends through pages and folders, so pages kept in folders, such
+ * as experience fragments, are indexed as well.
+ * Afterwards it is kept current from the coalesced changes of the resource
+ * change pipeline, which are applied on a single thread in the order they
+ * are received. Until the build is complete, and for paths outside the
+ * roots, lookups answer <code>null</code> and callers fall back to the
+ * repository. A build that cannot open its service resolver is retried.
+ * <p>
+ * On deactivation the index is written to a {@link PageIndexSnapshot}.
+ * The next activation maps it back in and serves lookups right away, while
+ * the walk runs in the background and reconciles the index with whatever
+ * changed in between. If a {@link ChangeJournal} holds every change since
+ * the last walk before the snapshot, those changes are applied instead of
+ * walking the roots again. The journal offset advances with a complete
+ * walk and after each applied batch of changes, and is dropped when a batch
+ * cannot be applied, so a replay never starts after a change the index
+ * missed.
+ */
+@Designate(ocd = PageIndex.Config.class)
+@Component(service = { PageIndex.class, ResourceChangeHandler.class }, immediate = true)
+@ServiceDescription("In-memory index of page metadata")
+public class PageIndex implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 page index",
+                           description = "In-memory index of page titles, templates and hierarchy")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Content roots",
+                             description = "Trees whose pages are indexed")
+        String[] roots() default { "/content" };
+
+        @AttributeDefinition(name = "Partition depth",
+                             description = "Depth below a root at which the initial walk is split into partitions")
+        int partitionDepth() default 2;
+
+        @AttributeDefinition(name = "Worker threads",
+                             description = "Number of partitions walked in parallel while the index is built")
+        int threads() default 4;
+
+        @AttributeDefinition(name = "Snapshot",
+                             description = "Write the index to disk on deactivation and restore it on activation")
+        boolean snapshot() default true;
+
+        @AttributeDefinition(name = "Snapshot file",
+                             description = "Location of the snapshot, empty for the bundle data area")
+        String snapshotFile() default "";
+
+        @AttributeDefinition(name = "Snapshot maximum age",
+                             description = "Hours after which a snapshot is ignored and the index is built from scratch")
+        int snapshotMaxAgeHours() default 24;
+    }
+
+    static final String SNAPSHOT_FILE = "page-index.snapshot";
+
+    static final String JOURNAL_CONSUMER = "page-index";
+
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    private static final int DEFAULT_PARTITION_DEPTH = 2;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_SNAPSHOT_MAX_AGE_HOURS = 24;
+
+    private static final long BUILD_RETRY_SECONDS = 30;
+
+    // nodes with more children than this get a hash map for lookups
+    private static final int CHILD_MAP_THRESHOLD = 32;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    // folders hold pages too, e.g. the experience fragments
+    private static final Set<String> FOLDER_TYPES = new HashSet<>(Arrays.asList(
+            JcrConstants.NT_FOLDER, "sling:Folder", "sling:OrderedFolder"));
+
+    /**
+     * One path segment. Intermediate nodes that are not pages themselves,
+     * like <code>/content</code>, only carry children.
+     */
+    static final class Node {
+
+        final String name;
+        final Node parent;
+        Node[] children = NO_CHILDREN;
+        int childCount;
+        Map<String, Node> childMap;
+
+        boolean page;
+        String title;
+        String template;
+        long lastModified = -1;
+
+        Node(final String name, final Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        Node getChild(final String segment) {
+            if (childMap != null) {
+                return childMap.get(segment);
+            }
+            for (int i = 0; i < childCount; i++) {
+                if (children[i].name.equals(segment)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(final String segment) {
+            final Node child = new Node(segment, this);
+            if (childCount == children.length) {
+                children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+            }
+            children[childCount++] = child;
+            if (childMap != null) {
+                childMap.put(segment, child);
+            } else if (childCount > CHILD_MAP_THRESHOLD) {
+                childMap = new HashMap<>(childCount * 2);
+                for (int i = 0; i < childCount; i++) {
+                    childMap.put(children[i].name, children[i]);
+                }
+            }
+            return child;
+        }
+
+        void removeChild(final Node child) {
+            for (int i = 0; i < childCount; i++) {
+                if (children[i] == child) {
+                    System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+                    children[--childCount] = null;
+                    if (childMap != null) {
+                        childMap.remove(child.name);
+                    }
+                    return;
+                }
+            }
+        }
+
+        void clearChildren() {
+            children = NO_CHILDREN;
+            childCount = 0;
+            childMap = null;
+        }
+
+        String getPath() {
+            if (parent == null) {
+                return "/";
+            }
+            final StringBuilder path = new StringBuilder(64);
+            appendPath(path);
+            return path.toString();
+        }
+
+        private void appendPath(final StringBuilder path) {
+            if (parent != null) {
+                parent.appendPath(path);
+                path.append('/').append(name);
+            }
+        }
+
+        PageInfo toPageInfo() {
+            return new PageInfo(getPath(), title, template, lastModified);
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private volatile ChangeJournal journal;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // guarded by lock
+    private final Node root = new Node("", null);
+    private final Map<String, Set<Node>> byTemplate = new HashMap<>();
+    private final Map<String, String> templates = new HashMap<>();
+    private int pageCount;
+
+    private final CountDownLatch built = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile long buildMillis;
+    private volatile int restoredPages;
+    private volatile long restoreMillis;
+    private volatile int replayedChanges;
+
+    // changes journaled before this offset are in the index, -1 if that is unknown
+    private volatile long journalOffset = -1;
+
+    // dispatched journal offset when the first batch was handed in, written by the dispatcher only
+    private long handedInOffset = -1;
+
+    private final LongAdder appliedUpdates = new LongAdder();
+
+    private String[] roots = { "/content" };
+    private int partitionDepth = DEFAULT_PARTITION_DEPTH;
+    private File snapshotFile;
+    private long snapshotMaxAgeMillis = TimeUnit.HOURS.toMillis(DEFAULT_SNAPSHOT_MAX_AGE_HOURS);
+
+    private ScheduledExecutorService updater;
+    private ExecutorService walkers;
+
+    @Activate
+    protected void activate(final Config config, final BundleContext bundleContext) {
+        roots = config.roots() != null ? config.roots() : new String[0];
+        partitionDepth = config.partitionDepth() > 0 ? config.partitionDepth() : DEFAULT_PARTITION_DEPTH;
+        final int threads = config.threads() > 0 ? config.threads() : DEFAULT_THREADS;
+        if (config.snapshot()) {
+            snapshotFile = config.snapshotFile() != null && !config.snapshotFile().isEmpty()
+                    ? new File(config.snapshotFile()) : bundleContext.getDataFile(SNAPSHOT_FILE);
+        }
+        snapshotMaxAgeMillis = TimeUnit.HOURS.toMillis(
+                config.snapshotMaxAgeHours() > 0 ? config.snapshotMaxAgeHours() : DEFAULT_SNAPSHOT_MAX_AGE_HOURS);
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-page-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a pending build retry must not hold up deactivation
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        updater = executor;
+        final AtomicInteger count = new AtomicInteger();
+        walkers = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-page-index-walker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotFile != null && restore()) {
+            // serve from the snapshot while it is brought up to date
+            ready = true;
+            built.countDown();
+            updater.execute(this::catchUp);
+        } else {
+            // changes handed in meanwhile queue up behind the build
+            updater.execute(this::build);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (updater != null) {
+            // let queued changes finish, a build that takes longer is abandoned
+            updater.shutdown();
+            try {
+                if (!updater.awaitTermination(5, TimeUnit.SECONDS)) {
+                    updater.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                updater.shutdownNow();
+            }
+            updater = null;
+        }
+        if (walkers != null) {
+            walkers.shutdownNow();
+            walkers = null;
+        }
+        if (snapshotFile != null && ready) {
+            save();
+        }
+    }
+
+    /**
+     * @return <code>true</code> once the initial build is complete
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Waits for the initial build.
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return <code>true</code> if the index is ready
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return built.await(timeout, unit) && ready;
+    }
+
+    /**
+     * @param path page path
+     * @return the indexed page, or <code>null</code> if there is no such page
+     *         or the index is not ready
+     */
+    public PageInfo getPage(final String path) {
+        if (!ready) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            final Node node = find(path);
+            return node != null && node.page ? node.toPageInfo() : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param path page path
+     * @return the direct child pages in repository order, empty if there are
+     *         none or the index is not ready
+     */
+    public List<PageInfo> getChildren(final String path) {
+        if (!ready) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            final Node node = find(path);
+            if (node == null || node.childCount == 0) {
+                return Collections.emptyList();
+            }
+            final List<PageInfo> children = new ArrayList<>(node.childCount);
+            for (int i = 0; i < node.childCount; i++) {
+                if (node.children[i].page) {
+                    children.add(node.children[i].toPageInfo());
+                }
+            }
+            return children;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param template template path
+     * @param limit maximum number of pages returned
+     * @return pages using the template, in the order they were indexed
+     */
+    public List<PageInfo> getPagesByTemplate(final String template, final int limit) {
+        if (!ready) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            final Set<Node> nodes = byTemplate.get(template);
+            if (nodes == null) {
+                return Collections.emptyList();
+            }
+            final List<PageInfo> pages = new ArrayList<>(Math.min(limit, nodes.size()));
+            for (Iterator<Node> it = nodes.iterator(); it.hasNext() && pages.size() < limit;) {
+                pages.add(it.next().toPageInfo());
+            }
+            return pages;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Answers the same as {@link com.day.cq.wcm.api.PageManager#getContainingPage(Resource)}
+     * for resources below the roots.
+     * @param path resource path
+     * @return path of the closest page at or above the path, an empty string
+     *         if there is none, or <code>null</code> if the index cannot tell,
+     *         also for paths that are neither pages nor below one
+     */
+    public String getContainingPagePath(final String path) {
+        if (!ready || !ContentPaths.isIncluded(roots, path)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            Node page = null;
+            int start = 1;
+            while (start < path.length()) {
+                int end = path.indexOf('/', start);
+                end = end < 0 ? path.length() : end;
+                node = node.getChild(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.page) {
+                    page = node;
+                }
+                start = end + 1;
+            }
+            if (page != null) {
+                return page.getPath();
+            }
+            // off the trie there may be a page the index does not know of
+            return node != null ? "" : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed pages
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return pageCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return duration of the initial build in milliseconds
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * @return number of pages restored from the snapshot, 0 if none was used
+     */
+    public int getRestoredPages() {
+        return restoredPages;
+    }
+
+    /**
+     * @return milliseconds it took to restore the snapshot
+     */
+    public long getRestoreMillis() {
+        return restoreMillis;
+    }
+
+    /**
+     * @return number of journaled changes applied to the restored snapshot,
+     *         0 if the roots were walked instead
+     */
+    public int getReplayedChanges() {
+        return replayedChanges;
+    }
+
+    /**
+     * @return number of change batches applied since activation
+     */
+    public long getAppliedUpdates() {
+        return appliedUpdates.sum();
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        final ExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        final ChangeJournal changeJournal = journal;
+        // changes journaled before the dispatched offset were handed in by now, or before the first batch
+        final long offset = changeJournal != null
+                ? changeJournal.getCommittedOffset(SimpleResourceListener.JOURNAL_CONSUMER) : -1;
+        if (handedInOffset < 0) {
+            handedInOffset = offset;
+        }
+        final long handedIn = handedInOffset;
+        final Set<String> refresh = new LinkedHashSet<>();
+        final Set<String> rewalk = new LinkedHashSet<>();
+        ContentPaths.classify(roots, changes, refresh, rewalk);
+        executor.execute(() -> {
+            if ((!refresh.isEmpty() || !rewalk.isEmpty()) && !update(refresh, rewalk)) {
+                return;
+            }
+            final long applied = journalOffset;
+            // changes dispatched before the first batch, e.g. during the build, are only in the journal
+            if (changeJournal != null && applied >= 0 && applied < handedIn
+                    && replay(changeJournal, applied, handedIn) < 0) {
+                return;
+            }
+            advance(changeJournal, offset);
+        });
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * Waits until all changes handed in so far are applied.
+     */
+    void awaitIdle() throws InterruptedException, ExecutionException {
+        updater.submit(() -> { }).get();
+    }
+
+    /**
+     * Walks the roots and replaces their subtrees in the index. Starting
+     * from a restored snapshot this reconciles the index with the
+     * repository; a root is only replaced if all its partitions were read.
+     */
+    private void build() {
+        final long start = System.currentTimeMillis();
+        final ChangeJournal changeJournal = journal;
+        // changes journaled from here on are seen by the walk or handed in afterwards
+        final long offset = changeJournal != null ? changeJournal.getEndOffset() : -1;
+        boolean complete = true;
+        try {
+            final Map<String, List<Future<List<PageInfo>>>> partitions = new LinkedHashMap<>();
+            try (ResourceResolver resolver = openResolver()) {
+                for (String rootPath : roots) {
+                    final Resource resource = resolver.getResource(rootPath);
+                    List<Future<List<PageInfo>>> rootPartitions = null;
+                    if (resource != null) {
+                        rootPartitions = new ArrayList<>();
+                        partition(resource, 0, rootPartitions);
+                    }
+                    partitions.put(rootPath, rootPartitions);
+                }
+            } catch (LoginException e) {
+                logger.error("Cannot open service resolver for subservice {}, page index is {}, retrying in {}s",
+                        ContentPaths.SUBSERVICE,
+                        ready ? "not reconciled" : "unavailable and lookups fall back to the repository",
+                        BUILD_RETRY_SECONDS, e);
+                retryBuild();
+                return;
+            }
+            for (Map.Entry<String, List<Future<List<PageInfo>>>> root : partitions.entrySet()) {
+                List<PageInfo> pages = null;
+                if (root.getValue() != null) {
+                    // concatenated in partition order, which keeps siblings in repository order
+                    pages = new ArrayList<>();
+                    try {
+                        for (Future<List<PageInfo>> partition : root.getValue()) {
+                            pages.addAll(partition.get());
+                        }
+                    } catch (ExecutionException e) {
+                        logger.error("Page index partition below {} failed", root.getKey(), e.getCause());
+                        complete = false;
+                        continue;
+                    }
+                }
+                lock.writeLock().lock();
+                try {
+                    replace(root.getKey(), pages);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            journalOffset = complete ? offset : -1;
+            if (complete && offset >= 0) {
+                changeJournal.commit(JOURNAL_CONSUMER, offset);
+            }
+            buildMillis = System.currentTimeMillis() - start;
+            if (ready) {
+                logger.info("Page index reconciled with {} pages in {}ms", size(), buildMillis);
+            } else {
+                ready = true;
+                logger.info("Page index built with {} pages in {}ms", size(), buildMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            built.countDown();
+        }
+    }
+
+    private void retryBuild() {
+        final ScheduledExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(this::build, BUILD_RETRY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // deactivated meanwhile
+        }
+    }
+
+    /**
+     * Loads the snapshot written by the previous activation.
+     * @return <code>true</code> if the index was restored
+     */
+    private boolean restore() {
+        final long start = System.currentTimeMillis();
+        final PageIndexSnapshot snapshot;
+        try {
+            snapshot = PageIndexSnapshot.read(snapshotFile, roots);
+        } catch (IOException e) {
+            logger.warn("Cannot read page index snapshot {}, building from the repository", snapshotFile, e);
+            return false;
+        }
+        if (snapshot == null) {
+            return false;
+        }
+        if (start - snapshot.getCreated() > snapshotMaxAgeMillis) {
+            logger.info("Page index snapshot {} is too old, building from the repository", snapshotFile);
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            for (PageInfo page : snapshot.getPages()) {
+                put(page);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        journalOffset = snapshot.getJournalOffset();
+        restoredPages = snapshot.getPages().size();
+        restoreMillis = System.currentTimeMillis() - start;
+        logger.info("Page index restored with {} pages from snapshot in {}ms", restoredPages, restoreMillis);
+        return true;
+    }
+
+    /**
+     * Applies the journaled changes since the snapshot was taken, or walks
+     * the roots if the journal does not hold all of them.
+     */
+    private void catchUp() {
+        final long start = System.currentTimeMillis();
+        final ChangeJournal changeJournal = journal;
+        final long offset = journalOffset;
+        if (changeJournal == null || offset < 0 || !changeJournal.isAvailable(offset)) {
+            build();
+            return;
+        }
+        final int replayed = replay(changeJournal, offset, changeJournal.getEndOffset());
+        if (replayed < 0) {
+            return;
+        }
+        replayedChanges = replayed;
+        buildMillis = System.currentTimeMillis() - start;
+        logger.info("Page index caught up with {} journaled changes in {}ms", replayed, buildMillis);
+    }
+
+    /**
+     * Applies the journaled changes between the offsets batch by batch and
+     * advances the journal offset after each. Builds the index instead if
+     * changes may be missing from the journal.
+     * @return number of changes applied, -1 if a build was started or scheduled instead
+     */
+    private int replay(final ChangeJournal changeJournal, long offset, final long end) {
+        if (!changeJournal.isAvailable(offset)) {
+            build();
+            return -1;
+        }
+        int replayed = 0;
+        while (offset < end) {
+            final List<JournalEntry> entries = changeJournal.read(offset, REPLAY_BATCH_SIZE);
+            if (entries.isEmpty()) {
+                break;
+            }
+            final List<CoalescedChange> changes = new ArrayList<>(entries.size());
+            for (JournalEntry entry : entries) {
+                if (entry.getOffset() >= end) {
+                    break;
+                }
+                if (entry.isGap()) {
+                    logger.info("Changes since journal offset {} may be missing from the journal, "
+                            + "reconciling the page index with the repository", offset);
+                    build();
+                    return -1;
+                }
+                changes.add(new CoalescedChange(entry.getPath(), entry.getTypes(), false, entry.isExternal()));
+            }
+            final Set<String> refresh = new LinkedHashSet<>();
+            final Set<String> rewalk = new LinkedHashSet<>();
+            ContentPaths.classify(roots, changes, refresh, rewalk);
+            if ((!refresh.isEmpty() || !rewalk.isEmpty()) && !update(refresh, rewalk)) {
+                retryBuild();
+                return -1;
+            }
+            replayed += changes.size();
+            offset = Math.min(end, entries.get(entries.size() - 1).getOffset() + 1);
+            advance(changeJournal, offset);
+        }
+        return replayed;
+    }
+
+    private void save() {
+        final List<PageInfo> pages = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            final StringBuilder path = new StringBuilder(128);
+            for (int i = 0; i < root.childCount; i++) {
+                collectPages(root.children[i], path, pages);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            final long offset = journalOffset;
+            PageIndexSnapshot.write(snapshotFile, roots, pages, offset);
+            logger.info("Page index snapshot with {} pages written to {}", pages.size(), snapshotFile);
+            final ChangeJournal changeJournal = journal;
+            if (changeJournal != null && offset >= 0) {
+                // keeps the journal from deleting what the next activation replays
+                changeJournal.commit(JOURNAL_CONSUMER, offset);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot write page index snapshot {}", snapshotFile, e);
+        }
+    }
+
+    private static void collectPages(final Node node, final StringBuilder path, final List<PageInfo> pages) {
+        final int length = path.length();
+        path.append('/').append(node.name);
+        if (node.page) {
+            pages.add(new PageInfo(path.toString(), node.title, node.template, node.lastModified));
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collectPages(node.children[i], path, pages);
+        }
+        path.setLength(length);
+    }
+
+    private void partition(final Resource resource, final int depth, final List<Future<List<PageInfo>>> partitions) {
+        if (depth == partitionDepth) {
+            final String path = resource.getPath();
+            partitions.add(walkers.submit(() -> walk(path)));
+            return;
+        }
+        if (isPage(resource)) {
+            partitions.add(CompletableFuture.completedFuture(Collections.singletonList(read(resource))));
+        }
+        for (Resource child : resource.getChildren()) {
+            if (isPageOrFolder(child)) {
+                partition(child, depth + 1, partitions);
+            }
+        }
+    }
+
+    private List<PageInfo> walk(final String path) throws LoginException {
+        try (ResourceResolver resolver = openResolver()) {
+            final List<PageInfo> pages = new ArrayList<>();
+            final Resource resource = resolver.getResource(path);
+            if (resource != null) {
+                collect(resource, pages);
+            }
+            return pages;
+        }
+    }
+
+    /**
+     * Records that the changes journaled before the offset are in the index,
+     * unless it may have missed some before. Runs on the updater thread only.
+     */
+    private void advance(final ChangeJournal changeJournal, final long offset) {
+        if (changeJournal != null && journalOffset >= 0 && offset > journalOffset) {
+            journalOffset = offset;
+            changeJournal.commit(JOURNAL_CONSUMER, offset);
+        }
+    }
+
+    /**
+     * Applies one batch of changes. All reads happen before the write lock
+     * is taken, so lookups are only blocked while the trie is modified.
+     * @return <code>false</code> if the changes could not be applied
+     */
+    private boolean update(final Set<String> refresh, final Set<String> rewalk) {
+        final Map<String, List<PageInfo>> subtrees = new LinkedHashMap<>();
+        final Map<String, PageInfo> pages = new LinkedHashMap<>();
+        final Set<String> folders = new LinkedHashSet<>();
+        try (ResourceResolver resolver = openResolver()) {
+            for (String path : rewalk) {
+                if (ContentPaths.isCovered(rewalk, path)) {
+                    continue;
+                }
+                final Resource resource = resolver.getResource(path);
+                List<PageInfo> subtree = null;
+                if (resource != null) {
+                    subtree = new ArrayList<>();
+                    collect(resource, subtree);
+                }
+                subtrees.put(path, subtree);
+            }
+            for (String path : refresh) {
+                if (rewalk.contains(path) || ContentPaths.isCovered(rewalk, path)) {
+                    continue;
+                }
+                final Resource resource = resolver.getResource(path);
+                if (resource != null && !isPage(resource)) {
+                    // e.g. a folder, which may still hold pages
+                    folders.add(path);
+                } else {
+                    pages.put(path, resource != null ? read(resource) : null);
+                }
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}, page index is stale",
+                    ContentPaths.SUBSERVICE, e);
+            // a replay must not start after the missed changes
+            journalOffset = -1;
+            return false;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, List<PageInfo>> subtree : subtrees.entrySet()) {
+                replace(subtree.getKey(), subtree.getValue());
+            }
+            for (Map.Entry<String, PageInfo> page : pages.entrySet()) {
+                if (page.getValue() != null) {
+                    put(page.getValue());
+                } else {
+                    final Node node = find(page.getKey());
+                    if (node != null) {
+                        remove(node);
+                    }
+                }
+            }
+            for (String path : folders) {
+                final Node node = find(path);
+                if (node != null && node.page) {
+                    unpage(node);
+                    prune(node);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        appliedUpdates.increment();
+        return true;
+    }
+
+    /**
+     * Replaces the subtree at the path with freshly read pages. The node
+     * itself keeps its position among its siblings.
+     */
+    private void replace(final String path, final List<PageInfo> subtree) {
+        final Node node = find(path);
+        if (subtree == null) {
+            if (node != null) {
+                remove(node);
+            }
+            return;
+        }
+        if (node != null) {
+            for (int i = 0; i < node.childCount; i++) {
+                unindex(node.children[i]);
+            }
+            node.clearChildren();
+            if (node.page && (subtree.isEmpty() || !path.equals(subtree.get(0).getPath()))) {
+                unpage(node);
+            }
+        }
+        for (PageInfo page : subtree) {
+            put(page);
+        }
+        if (node != null) {
+            prune(node);
+        }
+    }
+
+    private Node find(final String path) {
+        Node node = root;
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+            node = node.getChild(path.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private void put(final PageInfo page) {
+        final String path = page.getPath();
+        Node node = root;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+            final String segment = path.substring(start, end);
+            final Node child = node.getChild(segment);
+            node = child != null ? child : node.addChild(segment);
+            start = end + 1;
+        }
+        if (node.page) {
+            removeTemplate(node);
+        } else {
+            node.page = true;
+            pageCount++;
+        }
+        node.title = page.getTitle();
+        node.template = intern(page.getTemplate());
+        node.lastModified = page.getLastModified();
+        if (node.template != null) {
+            byTemplate.computeIfAbsent(node.template, key -> new LinkedHashSet<>()).add(node);
+        }
+    }
+
+    private void remove(final Node node) {
+        unindex(node);
+        if (node.parent != null) {
+            node.parent.removeChild(node);
+            prune(node.parent);
+        } else {
+            node.clearChildren();
+        }
+    }
+
+    /**
+     * Drops the pages of a subtree from the counters and the template index.
+     */
+    private void unindex(final Node node) {
+        if (node.page) {
+            unpage(node);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            unindex(node.children[i]);
+        }
+    }
+
+    private void unpage(final Node node) {
+        removeTemplate(node);
+        node.page = false;
+        node.title = null;
+        node.template = null;
+        node.lastModified = -1;
+        pageCount--;
+    }
+
+    /**
+     * Removes intermediate nodes that no longer lead to any page.
+     */
+    private void prune(final Node node) {
+        Node current = node;
+        while (current.parent != null && !current.page && current.childCount == 0) {
+            current.parent.removeChild(current);
+            current = current.parent;
+        }
+    }
+
+    private void removeTemplate(final Node node) {
+        if (node.template != null) {
+            final Set<Node> nodes = byTemplate.get(node.template);
+            if (nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+                byTemplate.remove(node.template);
+            }
+        }
+    }
+
+    private String intern(final String template) {
+        if (template == null) {
+            return null;
+        }
+        final String existing = templates.putIfAbsent(template, template);
+        return existing != null ? existing : template;
+    }
+
+    private ResourceResolver openResolver() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE));
+    }
+
+    /**
+     * Adds the pages at and below the resource in pre-order.
+     */
+    private static void collect(final Resource resource, final List<PageInfo> pages) {
+        if (isPage(resource)) {
+            pages.add(read(resource));
+        }
+        for (Resource child : resource.getChildren()) {
+            if (isPageOrFolder(child)) {
+                collect(child, pages);
+            }
+        }
+    }
+
+    static PageInfo read(final Resource page) {
+        final Resource content = page.getChild(NameConstants.NN_CONTENT);
+        if (content == null) {
+            return new PageInfo(page.getPath(), null, null, -1);
+        }
+        final ValueMap properties = content.getValueMap();
+        Calendar modified = properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+        if (modified == null) {
+            modified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        }
+        return new PageInfo(page.getPath(), properties.get(JcrConstants.JCR_TITLE, String.class),
+                properties.get(NameConstants.PN_TEMPLATE, String.class),
+                modified != null ? modified.getTimeInMillis() : -1);
+    }
+
+    private static boolean isPage(final Resource resource) {
+        return NameConstants.NT_PAGE.equals(resource.getValueMap().get(JcrConstants.JCR_PRIMARYTYPE, String.class));
+    }
+
+    private static boolean isPageOrFolder(final Resource resource) {
+        final String type = resource.getValueMap().get(JcrConstants.JCR_PRIMARYTYPE, String.class);
+        return NameConstants.NT_PAGE.equals(type) || FOLDER_TYPES.contains(type);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the {@link PageIndex}, written on deactivation and
+ * memory-mapped on the next activation.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * int     magic "T1PI"
+ * int     format version
+ * long    creation time
+ * long    change journal offset the index is current up to, -1 if unknown
+ * int     number of roots, followed by the roots as strings
+ * int     number of templates, followed by the templates as strings
+ * int     number of pages, followed by the pages in pre-order:
+ *           int     length of the prefix shared with the previous path
+ *           string  rest of the path
+ *           string  title
+ *           int     template number, -1 for none
+ *           long    last modification, -1 if unknown
+ * int     CRC32 of everything before
+ * </pre>
+ * Strings are written as their UTF-8 length followed by the bytes, a
+ * length of -1 stands for <code>null</code>. Files with another magic,
+ * version or roots, or a wrong checksum are rejected as a whole. Version 1
+ * files, which have no journal offset, are still read.
+ */
+final class PageIndexSnapshot {
+
+    static final int MAGIC = 0x54315049;
+
+    static final int VERSION = 2;
+
+    private final long created;
+
+    private final long journalOffset;
+
+    private final List<PageInfo> pages;
+
+    private PageIndexSnapshot(final long created, final long journalOffset, final List<PageInfo> pages) {
+        this.created = created;
+        this.journalOffset = journalOffset;
+        this.pages = pages;
+    }
+
+    /**
+     * @return creation time in milliseconds since the epoch
+     */
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return change journal offset the pages are current up to, -1 if unknown
+     */
+    long getJournalOffset() {
+        return journalOffset;
+    }
+
+    /**
+     * @return the pages in pre-order
+     */
+    List<PageInfo> getPages() {
+        return pages;
+    }
+
+    /**
+     * Writes the pages to a temporary file next to the target and moves it
+     * in place, so readers never see a partial snapshot.
+     * @param file target file
+     * @param roots roots the pages were indexed from
+     * @param pages pages in pre-order
+     * @param journalOffset change journal offset the pages are current up to, -1 if unknown
+     * @throws IOException if writing fails
+     */
+    static void write(final File file, final String[] roots, final List<PageInfo> pages, final long journalOffset)
+            throws IOException {
+        final Map<String, Integer> templates = new HashMap<>();
+        final List<String> templateTable = new ArrayList<>();
+        for (PageInfo page : pages) {
+            if (page.getTemplate() != null && !templates.containsKey(page.getTemplate())) {
+                templates.put(page.getTemplate(), templateTable.size());
+                templateTable.add(page.getTemplate());
+            }
+        }
+
+        final Path target = file.toPath();
+        final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        final CRC32 crc = new CRC32();
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            final DataOutputStream data = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(out, 64 * 1024), crc));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(System.currentTimeMillis());
+            data.writeLong(journalOffset);
+            data.writeInt(roots.length);
+            for (String root : roots) {
+                writeString(data, root);
+            }
+            data.writeInt(templateTable.size());
+            for (String template : templateTable) {
+                writeString(data, template);
+            }
+            data.writeInt(pages.size());
+            String previous = "";
+            for (PageInfo page : pages) {
+                final String path = page.getPath();
+                final int shared = sharedPrefix(previous, path);
+                data.writeInt(shared);
+                writeString(data, path.substring(shared));
+                writeString(data, page.getTitle());
+                data.writeInt(page.getTemplate() != null ? templates.get(page.getTemplate()) : -1);
+                data.writeLong(page.getLastModified());
+                previous = path;
+            }
+            data.flush();
+            // the checksum itself is not part of the checked data
+            new DataOutputStream(out).writeInt((int) crc.getValue());
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps the file and reads the snapshot.
+     * @param file snapshot file
+     * @param roots roots the index is configured with
+     * @return the snapshot, or <code>null</code> if the file does not exist
+     *         or was written for other roots
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    static PageIndexSnapshot read(final File file, final String[] roots) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < 28 || size > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected snapshot size " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            final ByteBuffer checked = buffer.duplicate();
+            checked.limit((int) size - 4);
+            final CRC32 crc = new CRC32();
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a page index snapshot");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            final long created = buffer.getLong();
+            final long journalOffset = version > 1 ? buffer.getLong() : -1;
+            final String[] snapshotRoots = new String[buffer.getInt()];
+            for (int i = 0; i < snapshotRoots.length; i++) {
+                snapshotRoots[i] = readString(buffer);
+            }
+            if (!Arrays.equals(roots, snapshotRoots)) {
+                return null;
+            }
+            final String[] templates = new String[buffer.getInt()];
+            for (int i = 0; i < templates.length; i++) {
+                templates[i] = readString(buffer);
+            }
+            final int count = buffer.getInt();
+            final List<PageInfo> pages = new ArrayList<>(count);
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                final int shared = buffer.getInt();
+                final String path = previous.substring(0, shared) + readString(buffer);
+                final String title = readString(buffer);
+                final int template = buffer.getInt();
+                final long lastModified = buffer.getLong();
+                pages.add(new PageInfo(path, title, template >= 0 ? templates[template] : null, lastModified));
+                previous = path;
+            }
+            return new PageIndexSnapshot(created, journalOffset, pages);
+        } catch (RuntimeException e) {
+            // out of bounds reads and bad indexes of a file that passed the checksum
+            throw new IOException("Corrupt snapshot", e);
+        }
+    }
+
+    private static int sharedPrefix(final String a, final String b) {
+        final int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        // never split a surrogate pair
+        return i > 0 && Character.isHighSurrogate(a.charAt(i - 1)) ? i - 1 : i;
+    }
+
+    private static void writeString(final DataOutputStream data, final String value) throws IOException {
+        if (value == null) {
+            data.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.index;
+
+/**
+ * Immutable view of the indexed metadata of one page.
+ */
+public final class PageInfo {
+
+    private final String path;
+
+    private final String title;
+
+    private final String template;
+
+    private final long lastModified;
+
+    public PageInfo(final String path, final String title, final String template, final long lastModified) {
+        this.path = path;
+        this.title = title;
+        this.template = template;
+        this.lastModified = lastModified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the page title, or <code>null</code> if the page has none
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the template path, or <code>null</code> if the page has none
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return last modification in milliseconds since the epoch, or -1 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String toString() {
+        return path + " [" + title + ", " + template + "]";
+    }
+}
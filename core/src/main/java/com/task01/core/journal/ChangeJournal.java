@@ -0,0 +1,632 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.task01.core.metrics.MetricsSource;
+import com.task01.core.metrics.OpenMetricsWriter;
+
+/**
+ * Append-only journal of resource change events on disk, so consumers that
+ * fell behind or were restarted can catch up by replaying the changes
+ * since their last offset instead of rescanning the repository.
+ * <p>
+ * Records are written to memory-mapped {@link JournalSegment} files. When
+ * the active segment is full a new one is started, and the sealed ones are
+ * compacted in the background: segments every consumer has read, or that
+ * exceed the configured number, are deleted, and records of the same path
+ * within a segment are merged into the last of them. Offsets number the
+ * records, not bytes, so they stay valid across compaction.
+ * <p>
+ * Consumers commit the offset they have processed up to under a name of
+ * their own. Replays must check {@link #isAvailable(long)} and stop at a
+ * {@link JournalEntry#isGap() gap}, which is written whenever changes may
+ * have been missed: when records could not be written, and when the
+ * previous activation did not end with a clean deactivation.
+ */
+@Designate(ocd = ChangeJournal.Config.class)
+@Component(service = { ChangeJournal.class, MetricsSource.class }, immediate = true)
+@ServiceDescription("Durable journal of resource change events")
+public class ChangeJournal implements MetricsSource {
+
+    @ObjectClassDefinition(name = "Task01 change journal",
+                           description = "Append-only journal of resource change events for replay")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Directory",
+                             description = "Location of the journal segments, empty for the bundle data area")
+        String directory() default "";
+
+        @AttributeDefinition(name = "Segment size",
+                             description = "Bytes written to a segment file before the next one is started")
+        int segmentBytes() default DEFAULT_SEGMENT_BYTES;
+
+        @AttributeDefinition(name = "Maximum segments",
+                             description = "Segments kept, including the active one, even if consumers have not read them yet")
+        int maxSegments() default DEFAULT_MAX_SEGMENTS;
+    }
+
+    static final String DIRECTORY = "journal";
+
+    static final String OFFSETS_FILE = "offsets.properties";
+
+    // written on deactivation, removed on activation
+    static final String CLEAN_SHUTDOWN_FILE = "clean-shutdown";
+
+    static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 16;
+
+    private static final int MIN_SEGMENT_BYTES = 4 * 1024;
+    private static final long OFFSETS_WRITE_INTERVAL_MILLIS = 1000;
+    private static final byte[] NO_PATH = new byte[0];
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    // in offset order, the last one is active; replaced as a whole
+    private volatile List<JournalSegment> segments = Collections.emptyList();
+    private volatile long endOffset;
+
+    // guarded by this
+    private JournalSegment active;
+    private boolean gapPending;
+
+    private final Object compactionLock = new Object();
+
+    // guarded by compactionLock, segments already merged
+    private final Set<JournalSegment> compacted = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final Map<String, Long> committed = new ConcurrentHashMap<>();
+    private final Map<String, String> consumerLabels = new ConcurrentHashMap<>();
+    private volatile boolean offsetsDirty;
+    private volatile long offsetsWritten;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder mergedRecords = new LongAdder();
+    private final LongAdder deletedSegments = new LongAdder();
+
+    private Path directory;
+    private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+
+    private ExecutorService housekeeper;
+
+    @Activate
+    protected void activate(final Config config, final BundleContext bundleContext) {
+        directory = (config.directory() != null && !config.directory().isEmpty()
+                ? new File(config.directory()) : bundleContext.getDataFile(DIRECTORY)).toPath();
+        segmentBytes = Math.max(MIN_SEGMENT_BYTES, config.segmentBytes() > 0 ? config.segmentBytes() : DEFAULT_SEGMENT_BYTES);
+        maxSegments = config.maxSegments() > 1 ? config.maxSegments() : DEFAULT_MAX_SEGMENTS;
+        housekeeper = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "task01-change-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final boolean clean;
+        try {
+            Files.createDirectories(directory);
+            clean = Files.deleteIfExists(directory.resolve(CLEAN_SHUTDOWN_FILE));
+            readOffsets();
+            recover();
+        } catch (IOException e) {
+            logger.error("Cannot open change journal in {}, changes are not journaled", directory, e);
+            return;
+        }
+        synchronized (this) {
+            roll();
+        }
+        if (!clean && endOffset > 0) {
+            // the previous activation ended without deactivation, its last changes may be missing
+            appendGap();
+        }
+        logger.info("Change journal opened in {} at offset {}, {} segments", directory, endOffset, segments.size());
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (housekeeper != null) {
+            housekeeper.shutdown();
+            try {
+                housekeeper.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            housekeeper = null;
+        }
+        final boolean opened;
+        synchronized (this) {
+            opened = active != null;
+            if (opened) {
+                active.force();
+                active = null;
+            }
+        }
+        if (directory != null) {
+            writeOffsets();
+        }
+        if (opened) {
+            try {
+                Files.createFile(directory.resolve(CLEAN_SHUTDOWN_FILE));
+            } catch (IOException e) {
+                logger.warn("Cannot mark change journal in {} as closed, the next activation records a gap",
+                        directory, e);
+            }
+        }
+    }
+
+    /**
+     * Appends a change.
+     * @param type type of the change
+     * @param path path of the changed resource
+     * @param external <code>true</code> if the change originated on another cluster node
+     * @return offset of the record, -1 if it could not be written
+     */
+    public long append(final ChangeType type, final String path, final boolean external) {
+        return write(JournalEntry.flags(type, external), path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Records that changes may have been missed at this point.
+     * @return offset of the record, -1 if it could not be written
+     */
+    public long appendGap() {
+        return write(JournalEntry.GAP, NO_PATH);
+    }
+
+    /**
+     * Reads records in offset order.
+     * @param from first offset to read
+     * @param max maximum number of records
+     * @return the records from the given offset on, or from the start of the
+     *         journal if older records are no longer available
+     */
+    public List<JournalEntry> read(final long from, final int max) {
+        final List<JournalEntry> entries = new ArrayList<>(Math.max(0, Math.min(max, 1024)));
+        for (JournalSegment segment : segments) {
+            if (entries.size() >= max) {
+                break;
+            }
+            if (segment.getNextOffset() > from) {
+                segment.read(from, max, entries);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return offset of the oldest record still available
+     */
+    public long getStartOffset() {
+        final List<JournalSegment> current = segments;
+        return current.isEmpty() ? endOffset : current.get(0).getBaseOffset();
+    }
+
+    /**
+     * @return offset the next record will get
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @param offset offset a consumer wants to read from
+     * @return <code>true</code> if no record from the given offset on has
+     *         been deleted yet
+     */
+    public boolean isAvailable(final long offset) {
+        return offset >= getStartOffset() && offset <= endOffset;
+    }
+
+    /**
+     * Remembers the offset up to which a consumer has processed the
+     * journal. Segments are kept until all consumers have read them, up to
+     * the maximum number of segments. Offsets are written to disk at most
+     * once a second, and on deactivation.
+     * @param consumer name of the consumer
+     * @param offset first offset the consumer has not processed yet
+     */
+    public void commit(final String consumer, final long offset) {
+        final Long previous = committed.put(consumer, offset);
+        if (previous == null) {
+            consumerLabels.put(consumer, OpenMetricsWriter.labels("consumer", consumer));
+        }
+        if (previous == null || System.currentTimeMillis() - offsetsWritten >= OFFSETS_WRITE_INTERVAL_MILLIS) {
+            writeOffsets();
+        } else if (previous != offset) {
+            offsetsDirty = true;
+        }
+    }
+
+    /**
+     * @param consumer name of the consumer
+     * @return the last committed offset, -1 if the consumer never committed
+     */
+    public long getCommittedOffset(final String consumer) {
+        final Long offset = committed.get(consumer);
+        return offset != null ? offset : -1;
+    }
+
+    /**
+     * Deletes the sealed segments every consumer has read, and the oldest
+     * beyond the maximum number of segments, and merges records of the same
+     * path within the remaining sealed segments. Runs in the background
+     * whenever a segment is sealed.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            final List<JournalSegment> current = segments;
+            if (current.size() < 2) {
+                return;
+            }
+            final long retained = getRetainedOffset();
+            final Map<JournalSegment, JournalSegment> replaced = new IdentityHashMap<>();
+            int excess = current.size() - maxSegments;
+            boolean deleting = true;
+            for (JournalSegment segment : current.subList(0, current.size() - 1)) {
+                // only ever delete from the start, a hole in the middle would go unnoticed by readers
+                deleting = deleting && (excess > 0 || segment.getNextOffset() <= retained);
+                if (deleting) {
+                    replaced.put(segment, null);
+                    excess--;
+                } else if (!compacted.contains(segment)) {
+                    final JournalSegment merged = merge(segment);
+                    if (merged != null) {
+                        compacted.add(merged);
+                        replaced.put(segment, merged);
+                    }
+                }
+            }
+            if (replaced.isEmpty()) {
+                writeOffsetsIfDirty();
+                return;
+            }
+            synchronized (this) {
+                final List<JournalSegment> next = new ArrayList<>(segments.size());
+                for (JournalSegment segment : segments) {
+                    if (!replaced.containsKey(segment)) {
+                        next.add(segment);
+                    } else if (replaced.get(segment) != null) {
+                        next.add(replaced.get(segment));
+                    }
+                }
+                segments = Collections.unmodifiableList(next);
+            }
+            for (Map.Entry<JournalSegment, JournalSegment> entry : replaced.entrySet()) {
+                if (entry.getValue() == null) {
+                    delete(entry.getKey());
+                    deletedSegments.increment();
+                }
+            }
+            writeOffsetsIfDirty();
+        }
+    }
+
+    @Override
+    public void writeMetrics(final OpenMetricsWriter out) throws IOException {
+        out.counter("task01_change_journal_records", "Records appended to the change journal", getAppendedCount());
+        out.counter("task01_change_journal_dropped", "Records that could not be written to the change journal", getDroppedCount());
+        out.counter("task01_change_journal_merged_records", "Records merged into a later record of the same path", getMergedRecordCount());
+        out.counter("task01_change_journal_deleted_segments", "Segments deleted by compaction", getDeletedSegmentCount());
+        out.gauge("task01_change_journal_segments", "Segment files of the change journal", getSegmentCount());
+        out.gauge("task01_change_journal_bytes", "Bytes used by journal records", getSize());
+        out.family("task01_change_journal_consumer_lag", OpenMetricsWriter.GAUGE, "Records a consumer has not processed yet");
+        final long end = endOffset;
+        for (Map.Entry<String, Long> consumer : committed.entrySet()) {
+            out.gaugeSample("task01_change_journal_consumer_lag", consumerLabels.get(consumer.getKey()),
+                    Math.max(0, end - consumer.getValue()));
+        }
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return number of records merged into a later record of the same path
+     */
+    public long getMergedRecordCount() {
+        return mergedRecords.sum();
+    }
+
+    public long getDeletedSegmentCount() {
+        return deletedSegments.sum();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return bytes used by the headers and records of all segments
+     */
+    public long getSize() {
+        long size = 0;
+        for (JournalSegment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private synchronized long write(final int flags, final byte[] path) {
+        if (gapPending && (flags & JournalEntry.GAP) == 0) {
+            // records were dropped before, a replay must not run across them
+            if (put(JournalEntry.GAP, NO_PATH) < 0) {
+                dropped.increment();
+                return -1;
+            }
+            gapPending = false;
+        }
+        final long offset = put(flags, path);
+        if (offset < 0) {
+            dropped.increment();
+            gapPending = true;
+        } else if ((flags & JournalEntry.GAP) != 0) {
+            gapPending = false;
+        }
+        return offset;
+    }
+
+    private long put(final int flags, final byte[] path) {
+        if (active == null) {
+            return -1;
+        }
+        final long offset = endOffset;
+        final long now = System.currentTimeMillis();
+        if (!active.append(offset, now, flags, path) && !(roll() && active.append(offset, now, flags, path))) {
+            return -1;
+        }
+        endOffset = offset + 1;
+        appended.increment();
+        return offset;
+    }
+
+    /**
+     * Seals the active segment and starts a new one. Called with the lock held.
+     * @return <code>false</code> if no new segment could be created
+     */
+    private boolean roll() {
+        final List<JournalSegment> current = new ArrayList<>(segments);
+        final JournalSegment sealed = current.isEmpty() ? null : current.get(current.size() - 1);
+        if (sealed != null && sealed.getRecordCount() == 0) {
+            // nothing to keep, the new segment takes over its name
+            current.remove(current.size() - 1);
+            segments = Collections.unmodifiableList(new ArrayList<>(current));
+            active = null;
+            delete(sealed);
+        }
+        final JournalSegment created;
+        try {
+            created = JournalSegment.create(JournalSegment.fileName(directory, endOffset), endOffset, segmentBytes);
+        } catch (IOException e) {
+            logger.error("Cannot start change journal segment at offset {}", endOffset, e);
+            return false;
+        }
+        current.add(created);
+        segments = Collections.unmodifiableList(current);
+        active = created;
+        final ExecutorService executor = housekeeper;
+        if (executor != null) {
+            try {
+                executor.execute(() -> {
+                    if (sealed != null && sealed.getRecordCount() > 0) {
+                        sealed.force();
+                    }
+                    compact();
+                });
+            } catch (RejectedExecutionException e) {
+                // deactivating, compaction resumes with the next activation
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps the segments left by the previous activation. Only the history
+     * after the last unreadable segment or hole in the offsets is kept.
+     */
+    private void recover() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(JournalSegment.SUFFIX)) {
+                    files.add(file);
+                } else if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        // names are zero padded base offsets
+        Collections.sort(files);
+        final List<JournalSegment> recovered = new ArrayList<>();
+        for (Path file : files) {
+            final JournalSegment segment;
+            try {
+                segment = JournalSegment.open(file);
+            } catch (IOException e) {
+                logger.warn("Discarding unreadable change journal segment {} and everything before", file, e);
+                recovered.forEach(this::delete);
+                recovered.clear();
+                Files.deleteIfExists(file);
+                continue;
+            }
+            if (segment.isDamaged()) {
+                logger.warn("Change journal segment {} is damaged after offset {}", file, segment.getNextOffset());
+            }
+            if (!recovered.isEmpty() && recovered.get(recovered.size() - 1).getNextOffset() != segment.getBaseOffset()) {
+                recovered.forEach(this::delete);
+                recovered.clear();
+            }
+            recovered.add(segment);
+        }
+        long next = recovered.isEmpty() ? 0 : recovered.get(recovered.size() - 1).getNextOffset();
+        for (Long offset : committed.values()) {
+            // never hand out an offset again that a consumer may have seen
+            next = Math.max(next, offset);
+        }
+        segments = Collections.unmodifiableList(recovered);
+        endOffset = next;
+    }
+
+    /**
+     * @return a rewritten segment without records superseded by a later
+     *         record of the same path, <code>null</code> if there are none
+     */
+    private JournalSegment merge(final JournalSegment segment) {
+        final List<JournalEntry> entries = segment.readAll();
+        final List<JournalEntry> kept = new ArrayList<>(entries.size());
+        final Map<String, Integer> last = new HashMap<>();
+        int merged = 0;
+        for (JournalEntry entry : entries) {
+            if (entry.isGap()) {
+                kept.add(entry);
+                continue;
+            }
+            final Integer previous = last.put(entry.getPath(), kept.size());
+            if (previous != null) {
+                kept.add(JournalEntry.merge(kept.get(previous), entry));
+                kept.set(previous, null);
+                merged++;
+            } else {
+                kept.add(entry);
+            }
+        }
+        if (merged == 0) {
+            compacted.add(segment);
+            return null;
+        }
+        kept.removeIf(entry -> entry == null);
+        try {
+            final JournalSegment rewritten = JournalSegment.write(segment.getFile(), segment.getBaseOffset(), kept);
+            mergedRecords.add(merged);
+            return rewritten;
+        } catch (IOException e) {
+            logger.warn("Cannot compact change journal segment {}", segment.getFile(), e);
+            return null;
+        }
+    }
+
+    private long getRetainedOffset() {
+        long retained = Long.MIN_VALUE;
+        for (Long offset : committed.values()) {
+            retained = retained == Long.MIN_VALUE ? offset : Math.min(retained, offset);
+        }
+        return retained;
+    }
+
+    private void readOffsets() {
+        final Path file = directory.resolve(OFFSETS_FILE);
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warn("Cannot read change journal offsets from {}, consumers start over", file, e);
+            return;
+        }
+        for (String consumer : properties.stringPropertyNames()) {
+            try {
+                committed.put(consumer, Long.parseLong(properties.getProperty(consumer)));
+                consumerLabels.put(consumer, OpenMetricsWriter.labels("consumer", consumer));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid change journal offset of consumer {}", consumer);
+            }
+        }
+    }
+
+    private void writeOffsetsIfDirty() {
+        if (offsetsDirty) {
+            writeOffsets();
+        }
+    }
+
+    /**
+     * Writes the committed offsets to a temporary file and moves it in place.
+     */
+    private void writeOffsets() {
+        synchronized (committed) {
+            offsetsDirty = false;
+            final Properties properties = new Properties();
+            committed.forEach((consumer, offset) -> properties.setProperty(consumer, Long.toString(offset)));
+            final Path target = directory.resolve(OFFSETS_FILE);
+            final Path temp = target.resolveSibling(OFFSETS_FILE + ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    properties.store(out, "Committed change journal offsets");
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                offsetsWritten = System.currentTimeMillis();
+            } catch (IOException e) {
+                offsetsDirty = true;
+                logger.warn("Cannot write change journal offsets to {}", target, e);
+            }
+        }
+    }
+
+    private void delete(final JournalSegment segment) {
+        try {
+            Files.deleteIfExists(segment.getFile());
+        } catch (IOException e) {
+            logger.warn("Cannot delete change journal segment {}", segment.getFile(), e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.journal;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+/**
+ * One record of the {@link ChangeJournal}. A gap record carries no change,
+ * it marks a point where changes may have been missed, for example because
+ * the listener was not running.
+ */
+public final class JournalEntry {
+
+    static final int TYPE_MASK = 0x1f;
+    static final int GAP = 0x40;
+    static final int EXTERNAL = 0x80;
+
+    private static final ChangeType[] TYPES = ChangeType.values();
+
+    private final long offset;
+
+    private final long timestamp;
+
+    private final int flags;
+
+    private final String path;
+
+    JournalEntry(final long offset, final long timestamp, final int flags, final String path) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.flags = flags;
+        this.path = path;
+    }
+
+    /**
+     * @return position of the record in the journal
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return time the change was recorded, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return path of the change, empty for a gap
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the change types, more than one if compaction merged records of the same path
+     */
+    public Set<ChangeType> getTypes() {
+        final Set<ChangeType> types = EnumSet.noneOf(ChangeType.class);
+        for (ChangeType type : TYPES) {
+            if ((flags & 1 << type.ordinal()) != 0) {
+                types.add(type);
+            }
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    /**
+     * @return <code>true</code> if all recorded changes originated on another cluster node
+     */
+    public boolean isExternal() {
+        return (flags & EXTERNAL) != 0;
+    }
+
+    /**
+     * @return <code>true</code> if changes may have been missed at this point
+     */
+    public boolean isGap() {
+        return (flags & GAP) != 0;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    static int flags(final ChangeType type, final boolean external) {
+        return 1 << type.ordinal() | (external ? EXTERNAL : 0);
+    }
+
+    /**
+     * @return a record of the same path carrying the types of both, at the
+     *         offset of the later one
+     */
+    static JournalEntry merge(final JournalEntry earlier, final JournalEntry later) {
+        final int types = (earlier.flags | later.flags) & TYPE_MASK;
+        final int external = earlier.flags & later.flags & EXTERNAL;
+        return new JournalEntry(later.offset, later.timestamp, types | external, later.path);
+    }
+
+    @Override
+    public String toString() {
+        return offset + (isGap() ? " gap" : " " + getTypes() + " at " + path + (isExternal() ? " (external)" : ""));
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the {@link ChangeJournal}, memory-mapped for its whole
+ * lifetime. Only the active segment is written, sealed segments are
+ * immutable and only ever replaced as a whole by compaction.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * int     magic "T1JL"
+ * int     format version
+ * long    offset of the first record
+ * records, each:
+ *   int     length of the record after the checksum
+ *   int     CRC32 of the record after the checksum
+ *   long    offset
+ *   long    timestamp
+ *   byte    change type bits, 0x40 for a gap, 0x80 for external changes
+ *   bytes   UTF-8 path
+ * </pre>
+ * The active segment is mapped at its full size, so unwritten space reads
+ * as a zero length and ends the records. The length of a record is written
+ * last, so readers never see a partial record, and a record torn by a
+ * crash fails its checksum when the segment is opened again.
+ * <p>
+ * Offsets increase with the position in the file. Every
+ * {@value #INDEX_INTERVAL}th record is kept in a sparse index, so a read
+ * from an offset skips to the indexed record before it instead of scanning
+ * the segment from its start.
+ */
+final class JournalSegment {
+
+    static final int MAGIC = 0x54314a4c;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_BYTES = 16;
+
+    // length, checksum, offset, timestamp and flags
+    static final int RECORD_OVERHEAD = 25;
+
+    static final String SUFFIX = ".seg";
+
+    static final int INDEX_INTERVAL = 64;
+
+    private final Path file;
+
+    private final long baseOffset;
+
+    private final MappedByteBuffer buffer;
+
+    private final CRC32 crc = new CRC32();
+
+    // end of the last complete record, published after it was written
+    private volatile int limit;
+
+    private volatile long nextOffset;
+
+    private volatile int recordCount;
+
+    private boolean damaged;
+
+    // offsets and positions of every INDEX_INTERVAL-th record, replaced when
+    // full and published through indexSize after they were written
+    private long[] indexOffsets = new long[16];
+    private int[] indexPositions = new int[16];
+    private volatile int indexSize;
+
+    private JournalSegment(final Path file, final long baseOffset, final MappedByteBuffer buffer) {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.buffer = buffer;
+        this.limit = HEADER_BYTES;
+        this.nextOffset = baseOffset;
+    }
+
+    static Path fileName(final Path directory, final long baseOffset) {
+        return directory.resolve(String.format("%020d", baseOffset) + SUFFIX);
+    }
+
+    /**
+     * Creates and maps a new, empty segment.
+     * @param file file to create
+     * @param baseOffset offset of the first record
+     * @param capacity size of the file
+     * @return the segment, ready for appending
+     * @throws IOException if the file exists or cannot be mapped
+     */
+    static JournalSegment create(final Path file, final long baseOffset, final int capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, baseOffset);
+            return new JournalSegment(file, baseOffset, buffer);
+        }
+    }
+
+    /**
+     * Maps an existing segment read-only and validates its records. Reading
+     * stops at the first record that is torn or fails its checksum.
+     * @param file segment file
+     * @return the segment
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    static JournalSegment open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected segment size " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a change journal segment");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported segment version " + buffer.getInt(4));
+            }
+            final JournalSegment segment = new JournalSegment(file, buffer.getLong(8), buffer);
+            segment.recover();
+            return segment;
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file next to the target, moves it in
+     * place and maps it. Readers of the replaced segment keep their mapping.
+     * @param file target file
+     * @param baseOffset offset of the first record of the replaced segment
+     * @param entries entries in offset order
+     * @return the new segment
+     * @throws IOException if writing fails
+     */
+    static JournalSegment write(final Path file, final long baseOffset, final List<JournalEntry> entries)
+            throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        final CRC32 checksum = new CRC32();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final OutputStream out = Channels.newOutputStream(channel);
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(baseOffset);
+            final ByteBuffer record = ByteBuffer.allocate(1024);
+            for (JournalEntry entry : entries) {
+                final byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+                final ByteBuffer body = path.length + RECORD_OVERHEAD - 8 <= record.capacity()
+                        ? record : ByteBuffer.allocate(path.length + RECORD_OVERHEAD - 8);
+                body.clear();
+                body.putLong(entry.getOffset()).putLong(entry.getTimestamp()).put((byte) entry.getFlags()).put(path);
+                checksum.reset();
+                checksum.update(body.array(), 0, body.position());
+                data.writeInt(body.position());
+                data.writeInt((int) checksum.getValue());
+                data.write(body.array(), 0, body.position());
+            }
+            data.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    /**
+     * Appends a record if it fits. Must only be called by one thread at a time.
+     * @return <code>false</code> if the segment is full
+     */
+    boolean append(final long offset, final long timestamp, final int flags, final byte[] path) {
+        final int position = limit;
+        final int length = RECORD_OVERHEAD - 8 + path.length;
+        if (position + 8 + length > buffer.capacity()) {
+            return false;
+        }
+        final ByteBuffer out = buffer.duplicate();
+        out.position(position + 8);
+        out.putLong(offset).putLong(timestamp).put((byte) flags).put(path);
+        out.flip();
+        out.position(position + 8);
+        crc.reset();
+        crc.update(out);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, length);
+        nextOffset = offset + 1;
+        limit = position + 8 + length;
+        if (recordCount % INDEX_INTERVAL == 0) {
+            index(offset, position);
+        }
+        recordCount++;
+        return true;
+    }
+
+    /**
+     * Adds the records from the given offset on to the list.
+     * @param from first offset to read
+     * @param max maximum number of entries the list may hold
+     * @param entries list to add to
+     */
+    void read(final long from, final int max, final List<JournalEntry> entries) {
+        final int end = limit;
+        int position = seek(from);
+        while (position < end && entries.size() < max) {
+            final int length = buffer.getInt(position);
+            final long offset = buffer.getLong(position + 8);
+            if (offset >= from) {
+                entries.add(decode(position, length));
+            }
+            position += 8 + length;
+        }
+    }
+
+    /**
+     * @return all records of the segment
+     */
+    List<JournalEntry> readAll() {
+        final List<JournalEntry> entries = new ArrayList<>(recordCount);
+        read(baseOffset, Integer.MAX_VALUE, entries);
+        return entries;
+    }
+
+    /**
+     * Writes modified pages of the mapping to the disk.
+     */
+    void force() {
+        if (!buffer.isReadOnly()) {
+            buffer.force();
+        }
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return offset after the last record, the base offset if there is none
+     */
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return bytes used by the header and the records
+     */
+    int getSize() {
+        return limit;
+    }
+
+    /**
+     * @return <code>true</code> if reading stopped at a torn or corrupt record
+     *         before the end of the written records
+     */
+    boolean isDamaged() {
+        return damaged;
+    }
+
+    private JournalEntry decode(final int position, final int length) {
+        final long offset = buffer.getLong(position + 8);
+        final long timestamp = buffer.getLong(position + 16);
+        final int flags = buffer.get(position + 24) & 0xff;
+        final byte[] path = new byte[length - (RECORD_OVERHEAD - 8)];
+        final ByteBuffer in = buffer.duplicate();
+        in.position(position + RECORD_OVERHEAD);
+        in.get(path);
+        return new JournalEntry(offset, timestamp, flags, new String(path, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return position of the last indexed record at or before the offset,
+     *         the first record if there is none
+     */
+    private int seek(final long from) {
+        final int size = indexSize;
+        final long[] offsets;
+        final int[] positions;
+        synchronized (this) {
+            offsets = indexOffsets;
+            positions = indexPositions;
+        }
+        int position = HEADER_BYTES;
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (offsets[middle] <= from) {
+                position = positions[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    private void index(final long offset, final int position) {
+        final int size = indexSize;
+        synchronized (this) {
+            if (size == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, size * 2);
+                indexPositions = Arrays.copyOf(indexPositions, size * 2);
+            }
+            indexOffsets[size] = offset;
+            indexPositions[size] = position;
+        }
+        indexSize = size + 1;
+    }
+
+    private void recover() {
+        final int capacity = buffer.capacity();
+        int position = HEADER_BYTES;
+        long next = baseOffset;
+        int count = 0;
+        while (position + 8 <= capacity) {
+            final int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < RECORD_OVERHEAD - 8 || position + 8 + length > capacity
+                    || buffer.getLong(position + 8) < next) {
+                damaged = true;
+                break;
+            }
+            final ByteBuffer checked = buffer.duplicate();
+            checked.limit(position + 8 + length).position(position + 8);
+            crc.reset();
+            crc.update(checked);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                damaged = true;
+                break;
+            }
+            next = buffer.getLong(position + 8) + 1;
+            if (count % INDEX_INTERVAL == 0) {
+                index(next - 1, position);
+            }
+            count++;
+            position += 8 + length;
+        }
+        limit = position;
+        nextOffset = next;
+        recordCount = count;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+/**
+ * Bounded buffer that folds resource changes per path until they are drained.
+ * Additions and removals turn into subtree events that absorb everything
+ * below them, as does a path that sees more than one kind of change. When
+ * the buffer is full, new paths are folded into a subtree event of their
+ * ancestor at the configured depth, and only dropped if that is not
+ * possible either.
+ */
+final class ChangeCoalescer {
+
+    private final int maxPending;
+
+    private final int overflowDepth;
+
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+
+    private final NavigableSet<String> paths = new TreeSet<>();
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile int depth;
+
+    ChangeCoalescer(final int maxPending, final int overflowDepth) {
+        this.maxPending = Math.max(1, maxPending);
+        this.overflowDepth = Math.max(1, overflowDepth);
+    }
+
+    /**
+     * @return <code>false</code> if the change had to be dropped
+     */
+    synchronized boolean add(final ChangeType type, final String path, final boolean external) {
+        received.increment();
+        final boolean subtree = type == ChangeType.ADDED || type == ChangeType.REMOVED;
+        final boolean accepted = merge(path, type, external, subtree, true);
+        depth = pending.size();
+        return accepted;
+    }
+
+    /**
+     * @return all pending changes in arrival order, leaving the buffer empty
+     */
+    synchronized List<CoalescedChange> drain() {
+        final List<CoalescedChange> result = new ArrayList<>(pending.size());
+        for (Map.Entry<String, Pending> entry : pending.entrySet()) {
+            final Pending p = entry.getValue();
+            result.add(new CoalescedChange(entry.getKey(), p.types, p.subtree, p.external));
+        }
+        pending.clear();
+        paths.clear();
+        depth = 0;
+        return result;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    long getReceived() {
+        return received.sum();
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getFolded() {
+        return folded.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private boolean merge(final String path, final ChangeType type, final boolean external,
+                          final boolean subtree, final boolean allowFold) {
+        final Pending covering = findCoveringAncestor(path);
+        if (covering != null) {
+            covering.add(type, external);
+            coalesced.increment();
+            return true;
+        }
+        final Pending same = pending.get(path);
+        if (same != null) {
+            same.add(type, external);
+            coalesced.increment();
+            if (!same.subtree && (subtree || same.types.size() > 1)) {
+                same.subtree = true;
+                absorbDescendants(path, same);
+            }
+            return true;
+        }
+        if (pending.size() >= maxPending && !(subtree && hasDescendants(path))) {
+            final String ancestor = ancestorAtDepth(path, overflowDepth);
+            if (allowFold && !ancestor.equals(path)) {
+                folded.increment();
+                return merge(ancestor, type, external, true, false);
+            }
+            dropped.increment();
+            return false;
+        }
+        final Pending created = new Pending(type, external, subtree);
+        if (subtree) {
+            absorbDescendants(path, created);
+        }
+        pending.put(path, created);
+        paths.add(path);
+        return true;
+    }
+
+    private Pending findCoveringAncestor(final String path) {
+        for (String p = parent(path); p != null; p = parent(p)) {
+            final Pending candidate = pending.get(p);
+            if (candidate != null && candidate.subtree) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasDescendants(final String path) {
+        return !descendants(path).isEmpty();
+    }
+
+    private void absorbDescendants(final String path, final Pending target) {
+        final Iterator<String> it = descendants(path).iterator();
+        while (it.hasNext()) {
+            final Pending absorbed = pending.remove(it.next());
+            target.types.addAll(absorbed.types);
+            target.external &= absorbed.external;
+            it.remove();
+            coalesced.increment();
+        }
+    }
+
+    private NavigableSet<String> descendants(final String path) {
+        final String prefix = "/".equals(path) ? "/" : path + "/";
+        // '0' is the character following '/'
+        return paths.subSet(prefix, false, prefix.substring(0, prefix.length() - 1) + "0", false);
+    }
+
+    static String parent(final String path) {
+        if ("/".equals(path)) {
+            return null;
+        }
+        final int idx = path.lastIndexOf('/');
+        return idx <= 0 ? "/" : path.substring(0, idx);
+    }
+
+    static String ancestorAtDepth(final String path, final int depth) {
+        int idx = 0;
+        for (int i = 0; i < depth; i++) {
+            idx = path.indexOf('/', idx + 1);
+            if (idx < 0) {
+                return path;
+            }
+        }
+        return path.substring(0, idx);
+    }
+
+    private static final class Pending {
+
+        private final EnumSet<ChangeType> types;
+
+        private boolean external;
+
+        private boolean subtree;
+
+        Pending(final ChangeType type, final boolean external, final boolean subtree) {
+            this.types = EnumSet.of(type);
+            this.external = external;
+            this.subtree = subtree;
+        }
+
+        void add(final ChangeType type, final boolean external) {
+            types.add(type);
+            this.external &= external;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+/**
+ * One or more resource changes folded into a single event. A subtree event
+ * stands for arbitrary changes at or below its path.
+ */
+public final class CoalescedChange {
+
+    private final String path;
+
+    private final Set<ChangeType> types;
+
+    private final boolean subtree;
+
+    private final boolean external;
+
+    public CoalescedChange(final String path, final Set<ChangeType> types,
+                           final boolean subtree, final boolean external) {
+        this.path = path;
+        this.types = Collections.unmodifiableSet(EnumSet.copyOf(types));
+        this.subtree = subtree;
+        this.external = external;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return all change types that were folded into this event
+     */
+    public Set<ChangeType> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return <code>true</code> if anything at or below {@link #getPath()} may have changed
+     */
+    public boolean isSubtree() {
+        return subtree;
+    }
+
+    /**
+     * @return <code>true</code> if all folded changes originated on another cluster node
+     */
+    public boolean isExternal() {
+        return external;
+    }
+
+    public boolean isRemoved() {
+        return types.contains(ChangeType.REMOVED);
+    }
+
+    /**
+     * @param otherPath repository path
+     * @return <code>true</code> if a change of the given path is included in this event
+     */
+    public boolean covers(final String otherPath) {
+        return path.equals(otherPath)
+                || subtree && otherPath.startsWith(path) && ("/".equals(path) || otherPath.charAt(path.length()) == '/');
+    }
+
+    @Override
+    public String toString() {
+        return (subtree ? "subtree " : "") + types + " at " + path + (external ? " (external)" : "");
+    }
+}
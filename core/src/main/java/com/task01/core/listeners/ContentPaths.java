@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+/**
+ * Path helpers shared by the resource change handlers. They work on the
+ * path alone, so they also apply to resources that no longer exist.
+ */
+public final class ContentPaths {
+
+    /**
+     * Subservice of the service user that reads content, see the service user mapping of the bundle.
+     */
+    public static final String SUBSERVICE = "content-reader";
+
+    private static final String JCR_CONTENT = "/jcr:content";
+
+    private ContentPaths() {
+    }
+
+    /**
+     * @param path repository path
+     * @return the path of the page the resource belongs to, i.e. the path up
+     *         to its <code>jcr:content</code> node, or the path itself
+     */
+    public static String getPagePath(final String path) {
+        final int content = path.indexOf(JCR_CONTENT);
+        if (content > 0 && (path.length() == content + JCR_CONTENT.length()
+                || path.charAt(content + JCR_CONTENT.length()) == '/')) {
+            return path.substring(0, content);
+        }
+        return path;
+    }
+
+    /**
+     * @param path repository path
+     * @return the parent path, or <code>null</code> for the root and relative paths
+     */
+    public static String getParent(final String path) {
+        final int slash = path.lastIndexOf('/');
+        if (slash < 0 || "/".equals(path)) {
+            return null;
+        }
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    /**
+     * @param path absolute repository path
+     * @return number of path segments, 0 for the root
+     */
+    public static int getDepth(final String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return "/".equals(path) ? 0 : depth;
+    }
+
+    /**
+     * @param ancestor repository path
+     * @param path repository path
+     * @return <code>true</code> if path equals ancestor or lies below it
+     */
+    public static boolean isSameOrDescendant(final String ancestor, final String path) {
+        return path.equals(ancestor) || "/".equals(ancestor) && path.startsWith("/")
+                || path.startsWith(ancestor) && path.length() > ancestor.length() && path.charAt(ancestor.length()) == '/';
+    }
+
+    /**
+     * @param roots repository paths
+     * @param path repository path
+     * @return <code>true</code> if path equals or lies below one of the roots
+     */
+    public static boolean isIncluded(final String[] roots, final String path) {
+        for (String root : roots) {
+            if (isSameOrDescendant(root, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ancestors repository paths
+     * @param path repository path
+     * @return <code>true</code> if path lies below one of the ancestors other than itself
+     */
+    public static boolean isCovered(final Set<String> ancestors, final String path) {
+        for (String ancestor : ancestors) {
+            if (!ancestor.equals(path) && isSameOrDescendant(ancestor, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts changes into the pages below the roots that are read again and
+     * the subtrees that are walked again. A change in page content refreshes
+     * its page, adding, removing or a change folded into a subtree rewalks
+     * the path, and one folded above a root rewalks that root.
+     * @param roots repository paths the caller keeps pages of
+     * @param changes coalesced changes
+     * @param refresh receives the pages to read again
+     * @param rewalk receives the subtrees to walk again
+     */
+    public static void classify(final String[] roots, final List<CoalescedChange> changes,
+                                final Set<String> refresh, final Set<String> rewalk) {
+        for (CoalescedChange change : changes) {
+            final String path = change.getPath();
+            if (!isIncluded(roots, path)) {
+                if (change.isSubtree()) {
+                    // folded above the roots, everything below may have changed
+                    for (String rootPath : roots) {
+                        if (isSameOrDescendant(path, rootPath)) {
+                            rewalk.add(rootPath);
+                        }
+                    }
+                }
+                continue;
+            }
+            final String pagePath = getPagePath(path);
+            if (!pagePath.equals(path)) {
+                refresh.add(pagePath);
+            } else if (change.isSubtree() || change.isRemoved() || change.getTypes().contains(ChangeType.ADDED)) {
+                rewalk.add(path);
+            } else {
+                refresh.add(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import java.util.List;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Downstream consumer of the resource change pipeline. Services of this type
+ * are picked up by {@link SimpleResourceListener} and receive debounced,
+ * coalesced batches on the listener's dispatch thread, never on the
+ * observation thread.
+ */
+@ConsumerType
+public interface ResourceChangeHandler {
+
+    /**
+     * Called with the next batch of changes. Implementations should return
+     * quickly; long running work belongs on their own executor.
+     * @param changes coalesced changes in arrival order
+     */
+    void handleChanges(List<CoalescedChange> changes);
+}
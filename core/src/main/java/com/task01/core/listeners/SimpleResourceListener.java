@@ -15,35 +15,376 @@
  */
 package com.task01.core.listeners;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
 import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.task01.core.journal.ChangeJournal;
+import com.task01.core.journal.JournalEntry;
+import com.task01.core.metrics.BucketHistogram;
+import com.task01.core.metrics.MetricsSource;
+import com.task01.core.metrics.OpenMetricsWriter;
+
 /**
  * A service to demonstrate how changes in the resource tree
- * can be listened for. 
+ * can be listened for.
  * Please note, that apart from EventHandler services,
  * the immediate flag should not be set on a service.
+ * <p>
+ * The observation thread only records each change in a bounded
+ * {@link ChangeCoalescer}. A dedicated thread drains it after the debounce
+ * interval and hands the coalesced batches to all registered
+ * {@link ResourceChangeHandler} services.
+ * <p>
+ * If a {@link ChangeJournal} is available, every change is also appended to
+ * it, and the offset up to which changes were handed to the handlers is
+ * committed after each dispatch. Changes that were still buffered when the
+ * instance went down are replayed from the journal on the next activation.
+ * <p>
+ * Received events per type, the buffer depth and the dispatch durations are
+ * published as metrics.
  */
-@Component(service = ResourceChangeListener.class,
-           immediate = true
+@Designate(ocd = SimpleResourceListener.Config.class)
+@Component(service = { ResourceChangeListener.class, MetricsSource.class },
+           immediate = true,
+           property = {
+                   ResourceChangeListener.PATHS + "=/content"
+           }
 )
 @ServiceDescription("Demo to listen on changes in the resource tree")
-public class SimpleResourceListener implements ResourceChangeListener {
+public class SimpleResourceListener implements ResourceChangeListener, MetricsSource {
+
+    @ObjectClassDefinition(name = "Task01 resource change pipeline",
+                           description = "Debouncing and batching of resource change events")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Debounce interval",
+                             description = "Milliseconds changes are collected before they are dispatched")
+        long debounceMillis() default 500;
+
+        @AttributeDefinition(name = "Maximum pending paths",
+                             description = "Distinct paths buffered before changes are folded into their ancestors")
+        int maxPendingPaths() default 10000;
+
+        @AttributeDefinition(name = "Overflow depth",
+                             description = "Depth of the ancestor that changes are folded into when the buffer is full")
+        int overflowDepth() default 3;
+
+        @AttributeDefinition(name = "Maximum batch size",
+                             description = "Maximum number of changes handed to a handler at once")
+        int maxBatchSize() default 500;
+    }
+
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    private static final int DEFAULT_MAX_PENDING_PATHS = 10000;
+    private static final int DEFAULT_OVERFLOW_DEPTH = 3;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    /**
+     * Name under which the dispatched offset is committed to the journal.
+     */
+    public static final String JOURNAL_CONSUMER = "dispatcher";
+
+    private static final int REPLAY_BATCH_SIZE = 1000;
+
+    private static final ChangeType[] TYPES = ChangeType.values();
+    private static final String[] TYPE_LABELS = new String[TYPES.length];
+
+    static {
+        for (ChangeType type : TYPES) {
+            TYPE_LABELS[type.ordinal()] = OpenMetricsWriter.labels("type", type.name().toLowerCase());
+        }
+    }
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    private final List<ResourceChangeHandler> handlers = new CopyOnWriteArrayList<>();
+
+    private final LongAdder dispatchedBatches = new LongAdder();
+    private final LongAdder handlerFailures = new LongAdder();
+    private final LongAdder replayedEvents = new LongAdder();
+    private final LongAdder[] eventsByType = new LongAdder[TYPES.length];
+    private final BucketHistogram dispatchDurations = new BucketHistogram(
+            1_000, 10_000, 50_000, 100_000, 500_000, 1_000_000, 5_000_000, 30_000_000);
+
+    {
+        for (int i = 0; i < eventsByType.length; i++) {
+            eventsByType[i] = new LongAdder();
+        }
+    }
+
+    private volatile ChangeCoalescer coalescer = new ChangeCoalescer(DEFAULT_MAX_PENDING_PATHS, DEFAULT_OVERFLOW_DEPTH);
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private volatile ChangeJournal journal;
+
+    // set when a change was received while no journal was bound
+    private final AtomicBoolean unjournaled = new AtomicBoolean();
+
+    private long committedOffset = -1;
+
+    private ScheduledExecutorService executor;
+
+    @Activate
+    protected void activate(final Config config) {
+        coalescer = new ChangeCoalescer(positive(config.maxPendingPaths(), DEFAULT_MAX_PENDING_PATHS),
+                positive(config.overflowDepth(), DEFAULT_OVERFLOW_DEPTH));
+        maxBatchSize = positive(config.maxBatchSize(), DEFAULT_MAX_BATCH_SIZE);
+        final long debounce = config.debounceMillis() > 0 ? config.debounceMillis() : DEFAULT_DEBOUNCE_MILLIS;
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "task01-resource-change-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final ChangeJournal current = journal;
+        if (current != null) {
+            executor.execute(() -> replay(current));
+        }
+        executor.scheduleWithFixedDelay(this::dispatch, debounce, debounce, TimeUnit.MILLISECONDS);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        boolean terminated = true;
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                terminated = executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                terminated = false;
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        if (terminated) {
+            // hand over what is still buffered instead of losing it
+            dispatch();
+        } else {
+            // a dispatch still running on the old thread must not race a second drain
+            logger.warn("Dispatcher did not stop in time, leaving buffered changes to the journal");
+        }
+    }
+
     @Override
     public void onChange(List<ResourceChange> changes) {
+        final ChangeCoalescer buffer = coalescer;
+        final ChangeJournal changeJournal = journal;
+        if (changeJournal == null) {
+            unjournaled.set(true);
+            // a journal bound meanwhile may have missed the flag
+            recordUnjournaled(journal);
+        }
         changes.forEach(change -> {
             logger.debug("Resource event: {} at: {} isExternal", change.getType(), change.getPath(), change.isExternal());
+            buffer.add(change.getType(), change.getPath(), change.isExternal());
+            // journaled after buffering, so a dispatch never commits past a change it has not drained
+            if (changeJournal != null) {
+                changeJournal.append(change.getType(), change.getPath(), change.isExternal());
+            }
+            eventsByType[change.getType().ordinal()].increment();
         });
-        
+
+    }
+
+    @Reference(service = ResourceChangeHandler.class,
+               cardinality = ReferenceCardinality.MULTIPLE,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindHandler(final ResourceChangeHandler handler) {
+        handlers.add(handler);
+    }
+
+    protected void unbindHandler(final ResourceChangeHandler handler) {
+        handlers.remove(handler);
+    }
+
+    @Reference(service = ChangeJournal.class,
+               cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    protected void bindJournal(final ChangeJournal changeJournal) {
+        journal = changeJournal;
+        recordUnjournaled(changeJournal);
+        final ScheduledExecutorService dispatcher = executor;
+        if (dispatcher != null) {
+            dispatcher.execute(() -> replay(changeJournal));
+        }
+    }
+
+    protected void unbindJournal(final ChangeJournal changeJournal) {
+        if (journal == changeJournal) {
+            journal = null;
+        }
+    }
+
+    /**
+     * Drains the buffer and hands the changes to all handlers. Runs on the
+     * dispatcher thread only.
+     */
+    void dispatch() {
+        final long start = System.nanoTime();
+        final ChangeJournal changeJournal = journal;
+        // read before draining, every change journaled below it is in the buffer by now
+        final long endOffset = changeJournal != null ? changeJournal.getEndOffset() : -1;
+        final List<CoalescedChange> changes = coalescer.drain();
+        if (changes.isEmpty()) {
+            commit(changeJournal, endOffset);
+            return;
+        }
+        for (int from = 0; from < changes.size(); from += maxBatchSize) {
+            final List<CoalescedChange> batch = changes.subList(from, Math.min(changes.size(), from + maxBatchSize));
+            dispatchedBatches.increment();
+            for (ResourceChangeHandler handler : handlers) {
+                try {
+                    handler.handleChanges(batch);
+                } catch (RuntimeException e) {
+                    handlerFailures.increment();
+                    logger.error("Resource change handler {} failed", handler, e);
+                }
+            }
+        }
+        commit(changeJournal, endOffset);
+        dispatchDurations.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Buffers the journaled changes that were not dispatched before, for
+     * example because the instance went down within the debounce interval.
+     * Runs on the dispatcher thread only.
+     */
+    void replay(final ChangeJournal changeJournal) {
+        long offset = changeJournal.getCommittedOffset(JOURNAL_CONSUMER);
+        if (offset < 0) {
+            return;
+        }
+        if (!changeJournal.isAvailable(offset)) {
+            logger.warn("Changes since journal offset {} are no longer available and were not dispatched", offset);
+            offset = changeJournal.getStartOffset();
+        }
+        final ChangeCoalescer buffer = coalescer;
+        final long end = changeJournal.getEndOffset();
+        int replayed = 0;
+        while (offset < end) {
+            final List<JournalEntry> entries = changeJournal.read(offset, REPLAY_BATCH_SIZE);
+            if (entries.isEmpty()) {
+                break;
+            }
+            for (JournalEntry entry : entries) {
+                if (entry.getOffset() >= end) {
+                    break;
+                }
+                for (ChangeType type : entry.getTypes()) {
+                    buffer.add(type, entry.getPath(), entry.isExternal());
+                    replayed++;
+                }
+            }
+            offset = entries.get(entries.size() - 1).getOffset() + 1;
+        }
+        replayedEvents.add(replayed);
+        if (replayed > 0) {
+            logger.info("Replayed {} undispatched changes from the change journal", replayed);
+        }
+    }
+
+    /**
+     * Appends a gap if changes were received while no journal was bound.
+     */
+    private void recordUnjournaled(final ChangeJournal changeJournal) {
+        if (changeJournal != null && unjournaled.compareAndSet(true, false)) {
+            changeJournal.appendGap();
+        }
+    }
+
+    private void commit(final ChangeJournal changeJournal, final long offset) {
+        if (changeJournal != null && offset >= 0 && offset != committedOffset) {
+            changeJournal.commit(JOURNAL_CONSUMER, offset);
+            committedOffset = offset;
+        }
+    }
+
+    @Override
+    public void writeMetrics(final OpenMetricsWriter out) throws IOException {
+        out.family("task01_resource_events", OpenMetricsWriter.COUNTER, "Resource change events received");
+        for (ChangeType type : TYPES) {
+            out.counterSample("task01_resource_events", TYPE_LABELS[type.ordinal()], eventsByType[type.ordinal()].sum());
+        }
+        out.counter("task01_resource_events_coalesced", "Events folded into a pending change of the same path", getCoalescedCount());
+        out.counter("task01_resource_events_folded", "Events folded into an ancestor because the buffer was full", getFoldedCount());
+        out.counter("task01_resource_events_dropped", "Events dropped by the change buffer", getDroppedCount());
+        out.counter("task01_resource_events_replayed", "Undispatched events replayed from the change journal", getReplayedCount());
+        out.gauge("task01_resource_change_queue_depth", "Distinct paths waiting to be dispatched", getQueueDepth());
+        out.counter("task01_resource_change_batches", "Batches handed to the change handlers", getDispatchedBatchCount());
+        out.counter("task01_resource_change_handler_failures", "Change handlers that failed on a batch", getHandlerFailureCount());
+        out.histogram("task01_resource_change_dispatch_duration_seconds",
+                "Time spent handing drained changes to all handlers", dispatchDurations);
+    }
+
+    /**
+     * @return number of distinct paths waiting to be dispatched
+     */
+    public int getQueueDepth() {
+        return coalescer.getDepth();
+    }
+
+    public long getReceivedCount() {
+        return coalescer.getReceived();
+    }
+
+    public long getCoalescedCount() {
+        return coalescer.getCoalesced();
+    }
+
+    /**
+     * @return number of changes folded into an ancestor because the buffer was full
+     */
+    public long getFoldedCount() {
+        return coalescer.getFolded();
+    }
+
+    public long getDroppedCount() {
+        return coalescer.getDropped();
     }
-}
 
+    /**
+     * @return number of undispatched changes replayed from the change journal
+     */
+    public long getReplayedCount() {
+        return replayedEvents.sum();
+    }
+
+    public long getDispatchedBatchCount() {
+        return dispatchedBatches.sum();
+    }
+
+    public long getHandlerFailureCount() {
+        return handlerFailures.sum();
+    }
+
+    private static int positive(final int value, final int fallback) {
+        return value > 0 ? value : fallback;
+    }
+}
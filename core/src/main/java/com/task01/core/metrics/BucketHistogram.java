@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with a fixed set of bucket bounds, rendered as an OpenMetrics
+ * histogram. Values are durations in microseconds and exposed in seconds.
+ * Buckets are {@link LongAdder}s, so concurrent recording neither locks
+ * nor allocates.
+ */
+public final class BucketHistogram {
+
+    private final long[] bounds;
+
+    // bounds rendered in seconds, computed once so scrapes do not format them
+    private final String[] boundLabels;
+
+    // one bucket per bound plus the +Inf bucket, not cumulative
+    private final LongAdder[] buckets;
+
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param boundsMicros upper bucket bounds in microseconds, strictly ascending
+     */
+    public BucketHistogram(final long... boundsMicros) {
+        for (int i = 1; i < boundsMicros.length; i++) {
+            if (boundsMicros[i] <= boundsMicros[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be strictly ascending: " + Arrays.toString(boundsMicros));
+            }
+        }
+        bounds = boundsMicros.clone();
+        boundLabels = new String[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            final StringBuilder label = new StringBuilder(12);
+            OpenMetricsWriter.appendSeconds(label, bounds[i]);
+            boundLabels[i] = label.toString();
+        }
+        buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param micros duration in microseconds, negative values count as 0
+     */
+    public void record(final long micros) {
+        final long value = Math.max(0, micros);
+        final int position = Arrays.binarySearch(bounds, value);
+        buckets[position >= 0 ? position : -position - 1].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of all recorded values in microseconds
+     */
+    public long getSumMicros() {
+        return sum.sum();
+    }
+
+    int getBucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * @return number of values in the bucket, not cumulative
+     */
+    long getBucket(final int index) {
+        return buckets[index].sum();
+    }
+
+    /**
+     * @return upper bound of the bucket in seconds, <code>+Inf</code> for the last one
+     */
+    String getBoundLabel(final int index) {
+        return index < boundLabels.length ? boundLabels[index] : "+Inf";
+    }
+}
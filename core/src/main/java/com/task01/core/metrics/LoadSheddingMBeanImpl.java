@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.util.Map;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+import com.task01.core.filters.ConcurrencyLimiter;
+import com.task01.core.filters.LoadSheddingFilter;
+
+/**
+ * Registers the load shedding limits with the JMX whiteboard.
+ */
+@Component(service = DynamicMBean.class,
+           property = {
+                   "jmx.objectname=com.task01:type=LoadShedding"
+           })
+@ServiceDescription("Load shedding MBean")
+public class LoadSheddingMBeanImpl extends StandardMBean implements LoadSheddingMBean {
+
+    private static final String[] ITEMS = { "name", "limit", "inFlight", "admitted", "shed", "decreases" };
+
+    @Reference
+    private LoadSheddingFilter filter;
+
+    public LoadSheddingMBeanImpl() throws NotCompliantMBeanException {
+        super(LoadSheddingMBean.class);
+    }
+
+    @Override
+    public long getShedCount() {
+        return filter.getShedCount();
+    }
+
+    @Override
+    public TabularData getClasses() throws OpenDataException {
+        final CompositeType rowType = new CompositeType("classes", "Concurrency limit per class", ITEMS, ITEMS,
+                new OpenType<?>[] { SimpleType.STRING, SimpleType.INTEGER, SimpleType.INTEGER, SimpleType.LONG,
+                        SimpleType.LONG, SimpleType.LONG });
+        final TabularDataSupport data = new TabularDataSupport(
+                new TabularType("classes", "Concurrency limit per class", rowType, new String[] { "name" }));
+        for (Map.Entry<String, ConcurrencyLimiter> entry : filter.getLimiters().entrySet()) {
+            final ConcurrencyLimiter limiter = entry.getValue();
+            data.put(new CompositeDataSupport(rowType, ITEMS, new Object[] {
+                    entry.getKey(),
+                    limiter.getLimit(),
+                    limiter.getInFlight(),
+                    limiter.getAdmittedCount(),
+                    limiter.getShedCount(),
+                    limiter.getDecreaseCount() }));
+        }
+        return data;
+    }
+}
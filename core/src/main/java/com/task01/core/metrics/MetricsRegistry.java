@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the metrics of all {@link MetricsSource} services into one
+ * OpenMetrics exposition. Sources keep their own counters, gauges and
+ * {@link BucketHistogram}s and write them on demand, so nothing is
+ * registered or copied per scrape. A failing source is skipped and does
+ * not break the scrape.
+ */
+@Component(service = MetricsRegistry.class)
+@ServiceDescription("OpenMetrics registry of the core bundle")
+public class MetricsRegistry {
+
+    private static final MetricsSource[] NONE = new MetricsSource[0];
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LongAdder scrapes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    // copy on write, iterated by index so scrapes do not allocate an iterator
+    private volatile MetricsSource[] sources = NONE;
+
+    @Reference(service = MetricsSource.class,
+               cardinality = ReferenceCardinality.MULTIPLE,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    protected synchronized void bindSource(final MetricsSource source) {
+        final MetricsSource[] grown = Arrays.copyOf(sources, sources.length + 1);
+        grown[sources.length] = source;
+        sources = grown;
+    }
+
+    protected synchronized void unbindSource(final MetricsSource source) {
+        final MetricsSource[] current = sources;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == source) {
+                final MetricsSource[] shrunk = new MetricsSource[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                sources = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics of all sources, terminated by <code># EOF</code>.
+     * @param out target, flushed but not closed
+     * @throws IOException if writing to the client fails
+     */
+    public void write(final Writer out) throws IOException {
+        scrapes.increment();
+        final OpenMetricsWriter writer = new OpenMetricsWriter(out);
+        final MetricsSource[] current = sources;
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].writeMetrics(writer);
+            } catch (RuntimeException e) {
+                failures.increment();
+                logger.error("Metrics source {} failed", current[i], e);
+            }
+        }
+        writer.counter("task01_metrics_scrapes", "Scrapes of the metrics endpoint", scrapes.sum());
+        writer.counter("task01_metrics_source_failures", "Metrics sources that failed during a scrape", failures.sum());
+        writer.finish();
+    }
+
+    /**
+     * @return number of registered sources
+     */
+    public int getSourceCount() {
+        return sources.length;
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+}
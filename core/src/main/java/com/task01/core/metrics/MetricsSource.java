@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.io.IOException;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+/**
+ * Provider of metrics rendered by the {@link MetricsRegistry}. Services of
+ * this type are picked up by the registry and asked to write their current
+ * values on every scrape. Implementations should read counters and gauges
+ * they maintain anyway and must not block or allocate per scrape.
+ */
+@ConsumerType
+public interface MetricsSource {
+
+    /**
+     * Writes all metric families of this source. Family names must be unique
+     * across all sources and should start with <code>task01_</code>.
+     * @param out writer of the current scrape
+     * @throws IOException if writing to the client fails
+     */
+    void writeMetrics(OpenMetricsWriter out) throws IOException;
+}
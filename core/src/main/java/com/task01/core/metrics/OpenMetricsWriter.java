@@ -0,0 +1,345 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Renders metric families in the OpenMetrics text format. Output goes
+ * through a fixed char buffer and numbers are formatted into a reusable
+ * builder, so writing samples does not allocate. Durations are passed in
+ * microseconds and rendered in seconds.
+ * <p>
+ * Families with labels are written with {@link #family(String, String, String)}
+ * followed by one sample per label set; label sets should be rendered once
+ * with {@link #labels(String...)} and kept in constants.
+ */
+public final class OpenMetricsWriter {
+
+    public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    public static final String COUNTER = "counter";
+    public static final String GAUGE = "gauge";
+    public static final String HISTOGRAM = "histogram";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final Writer out;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder number = new StringBuilder(24);
+    private int position;
+
+    OpenMetricsWriter(final Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Renders a label set, e.g. <code>labels("type", "added")</code>.
+     * @param namesAndValues alternating label names and values
+     * @return the labels as written between the braces of a sample
+     */
+    public static String labels(final String... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs");
+        }
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(namesAndValues[i]).append("=\"");
+            final String value = namesAndValues[i + 1];
+            for (int c = 0; c < value.length(); c++) {
+                final char ch = value.charAt(c);
+                if (ch == '\\' || ch == '"') {
+                    result.append('\\').append(ch);
+                } else if (ch == '\n') {
+                    result.append("\\n");
+                } else {
+                    result.append(ch);
+                }
+            }
+            result.append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes a counter family with a single sample.
+     */
+    public void counter(final String name, final String help, final long value) throws IOException {
+        family(name, COUNTER, help);
+        counterSample(name, null, value);
+    }
+
+    /**
+     * Writes a gauge family with a single sample.
+     */
+    public void gauge(final String name, final String help, final long value) throws IOException {
+        family(name, GAUGE, help);
+        gaugeSample(name, null, value);
+    }
+
+    /**
+     * Writes a histogram family with a single label-less histogram.
+     * @param name family name, should end with <code>_seconds</code>
+     */
+    public void histogram(final String name, final String help, final BucketHistogram histogram) throws IOException {
+        family(name, HISTOGRAM, help);
+        histogramSamples(name, null, histogram);
+    }
+
+    /**
+     * Writes a histogram family from a {@link LatencyHistogram}, aggregated
+     * into buckets at the given bounds. A bound is raised to the upper end of
+     * the latency bucket holding it, so the exposed counts are exact.
+     * @param name family name, should end with <code>_seconds</code>
+     * @param boundsMicros upper bucket bounds in microseconds, ascending; pass a constant
+     */
+    public void histogram(final String name, final String help, final LatencyHistogram histogram,
+                          final long[] boundsMicros) throws IOException {
+        family(name, HISTOGRAM, help);
+        histogramSamples(name, null, histogram, boundsMicros);
+    }
+
+    /**
+     * Writes the metadata of a family whose samples follow.
+     * @param type one of {@link #COUNTER}, {@link #GAUGE} and {@link #HISTOGRAM}
+     */
+    public void family(final String name, final String type, final String help) throws IOException {
+        append("# TYPE ");
+        append(name);
+        append(' ');
+        append(type);
+        append('\n');
+        if (help != null) {
+            append("# HELP ");
+            append(name);
+            append(' ');
+            for (int i = 0; i < help.length(); i++) {
+                final char ch = help.charAt(i);
+                if (ch == '\\') {
+                    append("\\\\");
+                } else if (ch == '\n') {
+                    append("\\n");
+                } else {
+                    append(ch);
+                }
+            }
+            append('\n');
+        }
+    }
+
+    /**
+     * @param labels label set rendered by {@link #labels(String...)}, or <code>null</code>
+     */
+    public void counterSample(final String name, final String labels, final long value) throws IOException {
+        append(name);
+        append("_total");
+        labels(labels, null);
+        append(' ');
+        number(value);
+        append('\n');
+    }
+
+    /**
+     * @param labels label set rendered by {@link #labels(String...)}, or <code>null</code>
+     */
+    public void gaugeSample(final String name, final String labels, final long value) throws IOException {
+        append(name);
+        labels(labels, null);
+        append(' ');
+        number(value);
+        append('\n');
+    }
+
+    /**
+     * @param labels label set rendered by {@link #labels(String...)}, or <code>null</code>
+     */
+    public void histogramSamples(final String name, final String labels, final BucketHistogram histogram)
+            throws IOException {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            cumulative += histogram.getBucket(i);
+            append(name);
+            append("_bucket");
+            labels(labels, histogram.getBoundLabel(i));
+            append(' ');
+            number(cumulative);
+            append('\n');
+        }
+        append(name);
+        append("_count");
+        labels(labels, null);
+        append(' ');
+        number(cumulative);
+        append('\n');
+        append(name);
+        append("_sum");
+        labels(labels, null);
+        append(' ');
+        number.setLength(0);
+        appendSeconds(number, histogram.getSumMicros());
+        append(number);
+        append('\n');
+    }
+
+    /**
+     * @param labels label set rendered by {@link #labels(String...)}, or <code>null</code>
+     * @param boundsMicros upper bucket bounds in microseconds, ascending
+     */
+    public void histogramSamples(final String name, final String labels, final LatencyHistogram histogram,
+                                 final long[] boundsMicros) throws IOException {
+        long cumulative = 0;
+        int index = 0;
+        for (long bound : boundsMicros) {
+            final int last = LatencyHistogram.indexOf(bound);
+            if (last < index) {
+                // falls into the bucket of the previous bound
+                continue;
+            }
+            for (; index <= last; index++) {
+                cumulative += histogram.getBucket(index);
+            }
+            append(name);
+            append("_bucket");
+            number.setLength(0);
+            appendSeconds(number, LatencyHistogram.upperBound(last));
+            labels(labels, number);
+            append(' ');
+            number(cumulative);
+            append('\n');
+        }
+        for (; index < LatencyHistogram.BUCKET_COUNT; index++) {
+            cumulative += histogram.getBucket(index);
+        }
+        append(name);
+        append("_bucket");
+        labels(labels, "+Inf");
+        append(' ');
+        number(cumulative);
+        append('\n');
+        append(name);
+        append("_count");
+        labels(labels, null);
+        append(' ');
+        number(cumulative);
+        append('\n');
+        append(name);
+        append("_sum");
+        labels(labels, null);
+        append(' ');
+        number.setLength(0);
+        appendSeconds(number, histogram.getSum());
+        append(number);
+        append('\n');
+    }
+
+    /**
+     * Terminates the exposition and flushes the buffer.
+     */
+    void finish() throws IOException {
+        append("# EOF\n");
+        out.write(buffer, 0, position);
+        position = 0;
+        out.flush();
+    }
+
+    /**
+     * Appends microseconds as seconds, without trailing zeros.
+     */
+    static void appendSeconds(final StringBuilder target, final long micros) {
+        long value = micros;
+        if (value < 0) {
+            target.append('-');
+            value = -value;
+        }
+        target.append(value / 1_000_000).append('.');
+        long fraction = value % 1_000_000;
+        if (fraction == 0) {
+            target.append('0');
+            return;
+        }
+        long scale = 100_000;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            scale /= 10;
+        }
+        for (; scale > fraction; scale /= 10) {
+            target.append('0');
+        }
+        target.append(fraction);
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void labels(final String labels, final CharSequence le) throws IOException {
+        if (labels == null && le == null) {
+            return;
+        }
+        append('{');
+        if (labels != null) {
+            append(labels);
+        }
+        if (le != null) {
+            if (labels != null) {
+                append(',');
+            }
+            append("le=\"");
+            append(le);
+            append('"');
+        }
+        append('}');
+    }
+
+    private void number(final long value) throws IOException {
+        number.setLength(0);
+        number.append(value);
+        append(number);
+    }
+
+    private void append(final CharSequence chars) throws IOException {
+        final int length = chars.length();
+        for (int from = 0; from < length; ) {
+            if (position == buffer.length) {
+                drain();
+            }
+            final int count = Math.min(length - from, buffer.length - position);
+            if (chars instanceof String) {
+                ((String) chars).getChars(from, from + count, buffer, position);
+            } else {
+                ((StringBuilder) chars).getChars(from, from + count, buffer, position);
+            }
+            position += count;
+            from += count;
+        }
+    }
+
+    private void append(final char ch) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = ch;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
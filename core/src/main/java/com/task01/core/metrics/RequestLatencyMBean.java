@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * JMX view of the {@link RequestLatencyStats}. All latencies are reported in
+ * microseconds.
+ */
+public interface RequestLatencyMBean {
+
+    long getRequestCount();
+
+    long getP50();
+
+    long getP99();
+
+    long getP999();
+
+    long getMax();
+
+    TabularData getResourceTypes() throws OpenDataException;
+
+    TabularData getSelectorsAndExtensions() throws OpenDataException;
+
+    void reset();
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.util.Map;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+/**
+ * Registers the request latency statistics with the JMX whiteboard.
+ */
+@Component(service = DynamicMBean.class,
+           property = {
+                   "jmx.objectname=com.task01:type=RequestLatency"
+           })
+@ServiceDescription("Request latency MBean")
+public class RequestLatencyMBeanImpl extends StandardMBean implements RequestLatencyMBean {
+
+    private static final String[] ITEMS = { "name", "count", "p50", "p99", "p999", "max" };
+
+    @Reference
+    private RequestLatencyStats stats;
+
+    public RequestLatencyMBeanImpl() throws NotCompliantMBeanException {
+        super(RequestLatencyMBean.class);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return stats.getOverall().getCount();
+    }
+
+    @Override
+    public long getP50() {
+        return stats.getOverall().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getP99() {
+        return stats.getOverall().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getP999() {
+        return stats.getOverall().getValueAtPercentile(99.9);
+    }
+
+    @Override
+    public long getMax() {
+        return stats.getOverall().getMax();
+    }
+
+    @Override
+    public TabularData getResourceTypes() throws OpenDataException {
+        return toTabularData("resourceTypes", stats.getByResourceType());
+    }
+
+    @Override
+    public TabularData getSelectorsAndExtensions() throws OpenDataException {
+        return toTabularData("selectorsAndExtensions", stats.getBySelectorAndExtension());
+    }
+
+    @Override
+    public void reset() {
+        stats.reset();
+    }
+
+    private static TabularData toTabularData(final String name, final Map<String, LatencyHistogram> histograms)
+            throws OpenDataException {
+        final CompositeType rowType = new CompositeType(name, "Latency in microseconds", ITEMS, ITEMS,
+                new OpenType<?>[] { SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG,
+                        SimpleType.LONG, SimpleType.LONG });
+        final TabularDataSupport data = new TabularDataSupport(
+                new TabularType(name, "Latency in microseconds", rowType, new String[] { "name" }));
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            data.put(new CompositeDataSupport(rowType, ITEMS, new Object[] {
+                    entry.getKey(),
+                    histogram.getCount(),
+                    histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9),
+                    histogram.getMax() }));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * Request latency histograms per resource type and per selector/extension
+ * combination. Recording an already known combination does not allocate.
+ * The number of distinct series is capped, as selectors are client
+ * controlled; anything beyond the cap is recorded under {@link #OTHER}.
+ * The histogram of all requests is published as metric.
+ */
+@Designate(ocd = RequestLatencyStats.Config.class)
+@Component(service = { RequestLatencyStats.class, MetricsSource.class })
+@ServiceDescription("Request latency histograms")
+public class RequestLatencyStats implements MetricsSource {
+
+    @ObjectClassDefinition(name = "Task01 request latency statistics",
+                           description = "Latency histograms recorded by the request logging filter")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Maximum series",
+                             description = "Distinct resource types and selector/extension combinations tracked")
+        int maxSeries() default 500;
+    }
+
+    public static final String OTHER = "_other";
+
+    private static final String NONE = "";
+
+    private static final long[] DURATION_BOUNDS_MICROS = {
+            1_000, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000 };
+
+    private final LatencyHistogram overall = new LatencyHistogram();
+
+    private final ConcurrentMap<String, LatencyHistogram> byResourceType = new ConcurrentHashMap<>();
+
+    // extension -> selector string -> histogram, avoids building a combined key per request
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> byExtension = new ConcurrentHashMap<>();
+
+    private final AtomicInteger series = new AtomicInteger();
+
+    private volatile int maxSeries = 500;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        maxSeries = Math.max(1, config.maxSeries());
+    }
+
+    /**
+     * @param resourceType resource type of the request, may be <code>null</code>
+     * @param selectors selector string, may be <code>null</code>
+     * @param extension extension, may be <code>null</code>
+     * @param nanos request duration in nanoseconds
+     */
+    public void record(final String resourceType, final String selectors, final String extension, final long nanos) {
+        final long micros = nanos / 1000;
+        overall.record(micros);
+        histogram(byResourceType, resourceType).record(micros);
+        ConcurrentMap<String, LatencyHistogram> selectorMap = byExtension.get(extension == null ? NONE : extension);
+        if (selectorMap == null) {
+            selectorMap = selectorMap(extension == null ? NONE : extension);
+        }
+        histogram(selectorMap, selectors).record(micros);
+    }
+
+    /**
+     * @return histogram of all requests, in microseconds
+     */
+    public LatencyHistogram getOverall() {
+        return overall;
+    }
+
+    /**
+     * @return histograms in microseconds keyed by resource type
+     */
+    public Map<String, LatencyHistogram> getByResourceType() {
+        return Collections.unmodifiableMap(new TreeMap<>(byResourceType));
+    }
+
+    /**
+     * @return histograms in microseconds keyed by <code>selectors.extension</code>
+     */
+    public Map<String, LatencyHistogram> getBySelectorAndExtension() {
+        final Map<String, LatencyHistogram> result = new TreeMap<>();
+        byExtension.forEach((extension, selectorMap) -> selectorMap.forEach((selectors, histogram) ->
+                result.put(selectors.isEmpty() ? extension : selectors + "." + extension, histogram)));
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public void writeMetrics(final OpenMetricsWriter out) throws IOException {
+        out.histogram("task01_request_duration_seconds", "Duration of Sling requests", overall, DURATION_BOUNDS_MICROS);
+    }
+
+    public void reset() {
+        overall.reset();
+        byResourceType.clear();
+        byExtension.clear();
+        series.set(0);
+    }
+
+    private ConcurrentMap<String, LatencyHistogram> selectorMap(final String extension) {
+        final String key = series.get() < maxSeries ? extension : OTHER;
+        return byExtension.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+    }
+
+    private LatencyHistogram histogram(final ConcurrentMap<String, LatencyHistogram> map, final String name) {
+        final String key = name == null ? NONE : name;
+        final LatencyHistogram histogram = map.get(key);
+        if (histogram != null) {
+            return histogram;
+        }
+        return map.computeIfAbsent(series.get() < maxSeries ? key : OTHER, k -> {
+            series.incrementAndGet();
+            return new LatencyHistogram();
+        });
+    }
+}
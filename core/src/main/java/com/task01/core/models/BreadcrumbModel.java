@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.Via;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+import org.apache.sling.models.annotations.injectorspecific.ScriptVariable;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.apache.sling.models.annotations.injectorspecific.SlingObject;
+import org.apache.sling.models.annotations.via.ResourceSuperType;
+
+import com.adobe.cq.wcm.core.components.models.Breadcrumb;
+import com.adobe.cq.wcm.core.components.models.NavigationItem;
+import com.adobe.cq.wcm.core.components.models.datalayer.ComponentData;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.designer.Style;
+import com.task01.core.navigation.NavigationNode;
+import com.task01.core.navigation.NavigationTree;
+
+/**
+ * Breadcrumb of the proxy component, built from the ancestors of the
+ * current page in the {@link NavigationTree}. Falls back to the core
+ * component model while the tree does not contain the current page.
+ */
+@Model(adaptables = SlingHttpServletRequest.class,
+       adapters = Breadcrumb.class,
+       resourceType = BreadcrumbModel.RESOURCE_TYPE)
+public class BreadcrumbModel implements Breadcrumb {
+
+    static final String RESOURCE_TYPE = "task01/components/breadcrumb";
+
+    private static final int DEFAULT_START_LEVEL = 2;
+
+    @Self
+    private SlingHttpServletRequest request;
+    @SlingObject
+    private Resource resource;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Page currentPage;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Style currentStyle;
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private NavigationTree navigationTree;
+    @Self(injectionStrategy = InjectionStrategy.OPTIONAL)
+    @Via(type = ResourceSuperType.class)
+    private Breadcrumb delegate;
+
+    private Collection<NavigationItem> items;
+
+    @Override
+    public Collection<NavigationItem> getItems() {
+        if (items == null) {
+            items = buildItems();
+            if (items == null) {
+                items = delegate != null ? delegate.getItems() : Collections.emptyList();
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public String getId() {
+        return delegate != null ? delegate.getId() : null;
+    }
+
+    @Override
+    public ComponentData getData() {
+        return delegate != null ? delegate.getData() : null;
+    }
+
+    @Override
+    public String getExportedType() {
+        return resource.getResourceType();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * @return the items, or <code>null</code> if the tree cannot provide them
+     */
+    private List<NavigationItem> buildItems() {
+        final NavigationTree tree = navigationTree;
+        if (tree == null || currentPage == null || tree.getNode(currentPage.getPath()) == null) {
+            return null;
+        }
+        final int startLevel = ComponentProperties.get(resource, currentStyle, Breadcrumb.PN_START_LEVEL, DEFAULT_START_LEVEL);
+        final boolean showHidden = ComponentProperties.get(resource, currentStyle, Breadcrumb.PN_SHOW_HIDDEN, false);
+        final boolean hideCurrent = ComponentProperties.get(resource, currentStyle, Breadcrumb.PN_HIDE_CURRENT, false);
+
+        // level n is the ancestor with n + 1 path segments, like Page#getAbsoluteParent
+        final String current = currentPage.getPath();
+        final List<NavigationItem> result = new ArrayList<>();
+        int end = 0;
+        for (int level = 0; end < current.length(); level++) {
+            end = current.indexOf('/', end + 1);
+            end = end < 0 ? current.length() : end;
+            if (level < startLevel) {
+                continue;
+            }
+            final NavigationNode node = tree.getNode(current.substring(0, end));
+            if (node == null || !node.isPage()) {
+                continue;
+            }
+            final boolean isCurrent = end == current.length();
+            if (isCurrent && hideCurrent) {
+                break;
+            }
+            if ((showHidden || !node.isHideInNav()) && TreeNavigationItem.isReadable(request, node)) {
+                result.add(new TreeNavigationItem(request, node, getId() + "-item", isCurrent, isCurrent,
+                        level - startLevel, null));
+            } else {
+                TreeNavigationItem.recordDependency(node);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import org.apache.sling.api.resource.Resource;
+
+import com.day.cq.wcm.api.designer.Style;
+
+/**
+ * Reads component properties the way the core components do: from the
+ * component resource first, then from its content policy.
+ */
+final class ComponentProperties {
+
+    private ComponentProperties() {
+        // static methods only
+    }
+
+    static <T> T get(final Resource resource, final Style style, final String name, final T defaultValue) {
+        final T policyValue = style != null ? style.get(name, defaultValue) : defaultValue;
+        return resource.getValueMap().get(name, policyValue);
+    }
+
+    static String getString(final Resource resource, final Style style, final String name) {
+        final String value = resource.getValueMap().get(name, String.class);
+        return value != null || style == null ? value : style.get(name, String.class);
+    }
+}
@@ -17,10 +17,7 @@ package com.task01.core.models;
 
 import static org.apache.sling.api.resource.ResourceResolver.PROPERTY_RESOURCE_TYPE;
 
-import javax.annotation.PostConstruct;
-
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.models.annotations.Default;
 import org.apache.sling.models.annotations.Model;
 import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
@@ -28,12 +25,17 @@ import org.apache.sling.models.annotations.injectorspecific.OSGiService;
 import org.apache.sling.models.annotations.injectorspecific.SlingObject;
 import org.apache.sling.models.annotations.injectorspecific.ValueMapValue;
 
-import com.day.cq.wcm.api.Page;
-import com.day.cq.wcm.api.PageManager;
-
-import java.util.Optional;
+import com.task01.core.cache.ContainingPageCache;
+import com.task01.core.index.PageIndex;
 
-@Model(adaptables = Resource.class)
+/**
+ * The model is cached per adaptable, so repeated uses of the same resource
+ * within a request share one instance. The message is only built when it is
+ * first requested. The containing page is answered by the {@link PageIndex}
+ * when it covers the resource, and taken from the {@link ContainingPageCache}
+ * otherwise.
+ */
+@Model(adaptables = Resource.class, cache = true)
 public class HelloWorldModel {
 
     @ValueMapValue(name=PROPERTY_RESOURCE_TYPE, injectionStrategy=InjectionStrategy.OPTIONAL)
@@ -42,25 +44,33 @@ public class HelloWorldModel {
 
     @SlingObject
     private Resource currentResource;
-    @SlingObject
-    private ResourceResolver resourceResolver;
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private ContainingPageCache containingPageCache;
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private PageIndex pageIndex;
 
     private String message;
 
-    @PostConstruct
-    protected void init() {
-        PageManager pageManager = resourceResolver.adaptTo(PageManager.class);
-        String currentPagePath = Optional.ofNullable(pageManager)
-                .map(pm -> pm.getContainingPage(currentResource))
-                .map(Page::getPath).orElse("");
-
-        message = "Hello World!\n"
-            + "Resource type is: " + resourceType + "\n"
-            + "Current page is:  " + currentPagePath + "\n";
-    }
-
     public String getMessage() {
+        if (message == null) {
+            message = "Hello World!\n"
+                + "Resource type is: " + resourceType + "\n"
+                + "Current page is:  " + getCurrentPagePath() + "\n";
+        }
         return message;
     }
 
+    private String getCurrentPagePath() {
+        if (pageIndex != null) {
+            final String pagePath = pageIndex.getContainingPagePath(currentResource.getPath());
+            if (pagePath != null) {
+                return pagePath;
+            }
+        }
+        if (containingPageCache != null) {
+            return containingPageCache.getContainingPagePath(currentResource);
+        }
+        return ContainingPageCache.lookup(currentResource);
+    }
+
 }
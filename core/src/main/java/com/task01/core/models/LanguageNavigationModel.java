@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.Via;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+import org.apache.sling.models.annotations.injectorspecific.ScriptVariable;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.apache.sling.models.annotations.injectorspecific.SlingObject;
+import org.apache.sling.models.annotations.via.ResourceSuperType;
+
+import com.adobe.cq.wcm.core.components.models.LanguageNavigation;
+import com.adobe.cq.wcm.core.components.models.NavigationItem;
+import com.adobe.cq.wcm.core.components.models.datalayer.ComponentData;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.designer.Style;
+import com.task01.core.navigation.NavigationNode;
+import com.task01.core.navigation.NavigationTree;
+
+/**
+ * Language navigation of the proxy component, built from the
+ * {@link NavigationTree}. Each language root links to the copy of the
+ * current page in that language, or to itself if there is none. Falls back
+ * to the core component model while the tree does not contain the root.
+ */
+@Model(adaptables = SlingHttpServletRequest.class,
+       adapters = LanguageNavigation.class,
+       resourceType = LanguageNavigationModel.RESOURCE_TYPE)
+public class LanguageNavigationModel implements LanguageNavigation {
+
+    static final String RESOURCE_TYPE = "task01/components/languagenavigation";
+
+    private static final int DEFAULT_STRUCTURE_DEPTH = 1;
+
+    @Self
+    private SlingHttpServletRequest request;
+    @SlingObject
+    private Resource resource;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Page currentPage;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Style currentStyle;
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private NavigationTree navigationTree;
+    @Self(injectionStrategy = InjectionStrategy.OPTIONAL)
+    @Via(type = ResourceSuperType.class)
+    private LanguageNavigation delegate;
+
+    private List<NavigationItem> items;
+
+    @Override
+    public List<NavigationItem> getItems() {
+        if (items == null) {
+            items = buildItems();
+            if (items == null) {
+                items = delegate != null ? delegate.getItems() : Collections.emptyList();
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public String getAccessibilityLabel() {
+        return delegate != null ? delegate.getAccessibilityLabel() : null;
+    }
+
+    @Override
+    public String getId() {
+        return delegate != null ? delegate.getId() : null;
+    }
+
+    @Override
+    public ComponentData getData() {
+        return delegate != null ? delegate.getData() : null;
+    }
+
+    @Override
+    public String getExportedType() {
+        return resource.getResourceType();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * @return the items, or <code>null</code> if the tree cannot provide them
+     */
+    private List<NavigationItem> buildItems() {
+        final NavigationTree tree = navigationTree;
+        final String rootPath = ComponentProperties.getString(resource, currentStyle, LanguageNavigation.PN_NAVIGATION_ROOT);
+        final NavigationNode root = tree != null && currentPage != null ? tree.getNode(rootPath) : null;
+        if (root == null) {
+            return null;
+        }
+        final int structureDepth = ComponentProperties.get(resource, currentStyle, LanguageNavigation.PN_STRUCTURE_DEPTH,
+                DEFAULT_STRUCTURE_DEPTH);
+        final NavigationNode currentLanguage = tree.getLanguageRoot(currentPage.getPath());
+        final String relativePath = currentLanguage != null
+                ? currentPage.getPath().substring(currentLanguage.getPath().length()) : "";
+        return toItems(tree, root, 0, structureDepth, relativePath);
+    }
+
+    private List<NavigationItem> toItems(final NavigationTree tree, final NavigationNode parent, final int level,
+                                         final int structureDepth, final String relativePath) {
+        final List<NavigationItem> result = new ArrayList<>(parent.getChildren().size());
+        final String current = currentPage.getPath();
+        for (NavigationNode node : parent.getChildren()) {
+            if (!TreeNavigationItem.isReadable(request, node)) {
+                TreeNavigationItem.recordDependency(node);
+                continue;
+            }
+            final List<NavigationItem> children = level + 1 < structureDepth
+                    ? toItems(tree, node, level + 1, structureDepth, relativePath) : null;
+            final boolean active = current.equals(node.getPath()) || current.startsWith(node.getPath() + "/");
+            TreeNavigationItem item = new TreeNavigationItem(request, node, getId() + "-item", active,
+                    current.equals(node.getPath()), level, children);
+            final NavigationNode languageRoot = tree.getLanguageRoot(node.getPath());
+            if (languageRoot != null && languageRoot.getPath().equals(node.getPath()) && !relativePath.isEmpty()) {
+                final NavigationNode localized = tree.getNode(node.getPath() + relativePath);
+                if (localized != null && TreeNavigationItem.isReadable(request, localized)) {
+                    item = item.withTarget(request, localized);
+                }
+            }
+            result.add(item);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.models.annotations.Model;
+import org.apache.sling.models.annotations.Via;
+import org.apache.sling.models.annotations.injectorspecific.InjectionStrategy;
+import org.apache.sling.models.annotations.injectorspecific.OSGiService;
+import org.apache.sling.models.annotations.injectorspecific.ScriptVariable;
+import org.apache.sling.models.annotations.injectorspecific.Self;
+import org.apache.sling.models.annotations.injectorspecific.SlingObject;
+import org.apache.sling.models.annotations.via.ResourceSuperType;
+
+import com.adobe.cq.wcm.core.components.models.Navigation;
+import com.adobe.cq.wcm.core.components.models.NavigationItem;
+import com.adobe.cq.wcm.core.components.models.datalayer.ComponentData;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.designer.Style;
+import com.task01.core.navigation.NavigationNode;
+import com.task01.core.navigation.NavigationTree;
+
+/**
+ * Navigation of the proxy component, built from the {@link NavigationTree}
+ * instead of the page hierarchy. The navigation root is mapped to the
+ * language of the current page like the core component does. Whatever the
+ * tree cannot answer, e.g. before it is built or for roots outside of it,
+ * is delegated to the core component model. Pages the visitor cannot
+ * read are left out together with their children.
+ */
+@Model(adaptables = SlingHttpServletRequest.class,
+       adapters = Navigation.class,
+       resourceType = NavigationModel.RESOURCE_TYPE)
+public class NavigationModel implements Navigation {
+
+    static final String RESOURCE_TYPE = "task01/components/navigation";
+
+    @Self
+    private SlingHttpServletRequest request;
+    @SlingObject
+    private Resource resource;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Page currentPage;
+    @ScriptVariable(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private Style currentStyle;
+    @OSGiService(injectionStrategy = InjectionStrategy.OPTIONAL)
+    private NavigationTree navigationTree;
+    @Self(injectionStrategy = InjectionStrategy.OPTIONAL)
+    @Via(type = ResourceSuperType.class)
+    private Navigation delegate;
+
+    private List<NavigationItem> items;
+
+    @Override
+    public List<NavigationItem> getItems() {
+        if (items == null) {
+            items = buildItems();
+            if (items == null) {
+                items = delegate != null ? delegate.getItems() : Collections.emptyList();
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public String getAccessibilityLabel() {
+        return delegate != null ? delegate.getAccessibilityLabel() : null;
+    }
+
+    @Override
+    public String getId() {
+        return delegate != null ? delegate.getId() : null;
+    }
+
+    @Override
+    public ComponentData getData() {
+        return delegate != null ? delegate.getData() : null;
+    }
+
+    @Override
+    public String getExportedType() {
+        return resource.getResourceType();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * @return the items, or <code>null</code> if the tree cannot provide them
+     */
+    private List<NavigationItem> buildItems() {
+        final NavigationTree tree = navigationTree;
+        final String rootPath = ComponentProperties.getString(resource, currentStyle, Navigation.PN_NAVIGATION_ROOT);
+        if (tree == null || currentPage == null || rootPath == null) {
+            return null;
+        }
+        final NavigationNode root = getLocalizedRoot(tree, rootPath);
+        if (root == null) {
+            return null;
+        }
+        final boolean skipRoot = ComponentProperties.get(resource, currentStyle, Navigation.PN_SKIP_NAVIGATION_ROOT, true);
+        final int structureStart = ComponentProperties.get(resource, currentStyle, Navigation.PN_STRUCTURE_START,
+                skipRoot ? 1 : 0);
+        final int structureDepth = ComponentProperties.get(resource, currentStyle, Navigation.PN_STRUCTURE_DEPTH, -1);
+        final int maxLevel = structureDepth < 0 ? Integer.MAX_VALUE : structureDepth - structureStart;
+
+        final List<NavigationNode> starts = new ArrayList<>();
+        collectStarts(root, structureStart, starts);
+        final List<NavigationItem> result = new ArrayList<>(starts.size());
+        for (NavigationNode start : starts) {
+            result.add(toItem(start, 0, maxLevel));
+        }
+        return result;
+    }
+
+    private NavigationNode getLocalizedRoot(final NavigationTree tree, final String rootPath) {
+        final NavigationNode root = tree.getNode(rootPath);
+        if (root == null) {
+            return null;
+        }
+        final NavigationNode rootLanguage = tree.getLanguageRoot(rootPath);
+        final NavigationNode currentLanguage = tree.getLanguageRoot(currentPage.getPath());
+        if (rootLanguage == null || currentLanguage == null || rootLanguage.getPath().equals(currentLanguage.getPath())) {
+            return root;
+        }
+        final NavigationNode localized = tree.getNode(
+                currentLanguage.getPath() + rootPath.substring(rootLanguage.getPath().length()));
+        return localized != null && TreeNavigationItem.isReadable(request, localized) ? localized : root;
+    }
+
+    private void collectStarts(final NavigationNode node, final int levels, final List<NavigationNode> starts) {
+        if (node.isHideInNav() || !TreeNavigationItem.isReadable(request, node)) {
+            TreeNavigationItem.recordDependency(node);
+            return;
+        }
+        if (levels == 0) {
+            starts.add(node);
+            return;
+        }
+        for (NavigationNode child : node.getChildren()) {
+            collectStarts(child, levels - 1, starts);
+        }
+    }
+
+    private NavigationItem toItem(final NavigationNode node, final int level, final int maxLevel) {
+        List<NavigationItem> children = Collections.emptyList();
+        if (level < maxLevel && !node.getChildren().isEmpty()) {
+            children = new ArrayList<>(node.getChildren().size());
+            for (NavigationNode child : node.getChildren()) {
+                if (!child.isHideInNav() && TreeNavigationItem.isReadable(request, child)) {
+                    children.add(toItem(child, level + 1, maxLevel));
+                } else {
+                    TreeNavigationItem.recordDependency(child);
+                }
+            }
+        }
+        final String current = currentPage.getPath();
+        return new TreeNavigationItem(request, node, getId() + "-item",
+                current.equals(node.getPath()) || current.startsWith(node.getPath() + "/"),
+                current.equals(node.getPath()), level, children);
+    }
+}
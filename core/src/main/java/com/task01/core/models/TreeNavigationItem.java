@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import com.adobe.cq.wcm.core.components.commons.link.Link;
+import com.adobe.cq.wcm.core.components.models.LanguageNavigationItem;
+import com.adobe.cq.wcm.core.components.models.NavigationItem;
+import com.adobe.cq.wcm.core.components.util.ComponentUtils;
+import com.day.cq.commons.Externalizer;
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.Page;
+import com.task01.core.dependencies.DependencyRecorder;
+import com.task01.core.navigation.NavigationNode;
+
+/**
+ * Navigation item backed by a {@link NavigationNode}, so rendering it never
+ * reads the page. {@link #getPage()} is not supported for that reason.
+ * Since nothing is read through the resource resolver, the pages an item
+ * shows are recorded as dependencies of the render explicitly. The tree is
+ * built by a service user, so models have to leave out the pages the
+ * visitor cannot read with {@link #isReadable}.
+ */
+final class TreeNavigationItem implements LanguageNavigationItem {
+
+    private final SlingHttpServletRequest request;
+    private final NavigationNode node;
+    private final String target;
+    private final String idPrefix;
+    private final boolean active;
+    private final boolean current;
+    private final int level;
+    private final List<NavigationItem> children;
+
+    TreeNavigationItem(final SlingHttpServletRequest request, final NavigationNode node, final String idPrefix,
+                       final boolean active, final boolean current, final int level,
+                       final List<NavigationItem> children) {
+        this(request, node.getPath(), node, idPrefix, active, current, level, children);
+    }
+
+    private TreeNavigationItem(final SlingHttpServletRequest request, final String target, final NavigationNode node,
+                               final String idPrefix, final boolean active, final boolean current, final int level,
+                               final List<NavigationItem> children) {
+        this.request = request;
+        this.node = node;
+        this.target = target;
+        this.idPrefix = idPrefix;
+        this.active = active;
+        this.current = current;
+        this.level = level;
+        this.children = children != null ? children : Collections.emptyList();
+        recordDependency(node);
+    }
+
+    /**
+     * Records the page and its properties as read by the current render,
+     * also for pages that are left out, e.g. because they are hidden.
+     */
+    static void recordDependency(final NavigationNode node) {
+        if (DependencyRecorder.isRecording()) {
+            DependencyRecorder.record(node.getPath());
+            DependencyRecorder.record(node.getPath() + "/" + JcrConstants.JCR_CONTENT);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the page of the node is visible to the resolver of the request
+     */
+    static boolean isReadable(final SlingHttpServletRequest request, final NavigationNode node) {
+        return request.getResourceResolver().getResource(node.getPath()) != null;
+    }
+
+    /**
+     * @return a copy that links to another page, e.g. the language copy of the current page
+     */
+    TreeNavigationItem withTarget(final SlingHttpServletRequest request, final NavigationNode target) {
+        recordDependency(target);
+        return new TreeNavigationItem(request, target.getPath(), node, idPrefix, active, current, level, children);
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public boolean isCurrent() {
+        return current;
+    }
+
+    @Override
+    public List<NavigationItem> getChildren() {
+        return children;
+    }
+
+    @Override
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public Link getLink() {
+        return new PageLink(request, target);
+    }
+
+    @Override
+    public String getURL() {
+        return request.getContextPath() + target + ".html";
+    }
+
+    @Override
+    public String getTitle() {
+        return node.getNavigationTitle();
+    }
+
+    @Override
+    public String getDescription() {
+        return node.getDescription();
+    }
+
+    @Override
+    public Calendar getLastModified() {
+        if (node.getLastModified() < 0) {
+            return null;
+        }
+        final Calendar lastModified = Calendar.getInstance();
+        lastModified.setTimeInMillis(node.getLastModified());
+        return lastModified;
+    }
+
+    @Override
+    public String getPath() {
+        return node.getPath();
+    }
+
+    @Override
+    public String getName() {
+        return node.getName();
+    }
+
+    @Override
+    public String getId() {
+        return ComponentUtils.generateId(idPrefix, node.getPath());
+    }
+
+    @Override
+    public Locale getLocale() {
+        final String language = node.getLanguage() != null ? node.getLanguage() : node.getName();
+        return Locale.forLanguageTag(language.replace('_', '-'));
+    }
+
+    @Override
+    public String getCountry() {
+        return getLocale().getCountry();
+    }
+
+    @Override
+    public String getLanguage() {
+        return getLocale().toLanguageTag();
+    }
+
+    @Override
+    public String toString() {
+        return node.getPath() + (active ? " (active)" : "");
+    }
+
+    /**
+     * Link to a page path that was resolved without reading the page. It is
+     * mapped by the resolver of the request and externalized by the
+     * {@link Externalizer}, like the links of the core components.
+     */
+    private static final class PageLink implements Link<Page> {
+
+        private final SlingHttpServletRequest request;
+        private final String path;
+
+        PageLink(final SlingHttpServletRequest request, final String path) {
+            this.request = request;
+            this.path = path + ".html";
+        }
+
+        @Override
+        public boolean isValid() {
+            return true;
+        }
+
+        @Override
+        public String getURL() {
+            return request.getContextPath() + path;
+        }
+
+        @Override
+        public String getMappedURL() {
+            return request.getResourceResolver().map(request, path);
+        }
+
+        @Override
+        public String getExternalizedURL() {
+            final ResourceResolver resolver = request.getResourceResolver();
+            final Externalizer externalizer = resolver.adaptTo(Externalizer.class);
+            return externalizer != null ? externalizer.publishLink(resolver, path) : getMappedURL();
+        }
+
+        @Override
+        public Map<String, String> getHtmlAttributes() {
+            return Collections.singletonMap("href", getMappedURL());
+        }
+
+        @Override
+        public Page getReference() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.navigation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable node of the {@link NavigationTree}. A node is never modified
+ * once published; updates copy the nodes on the path to the change and
+ * share all other subtrees with the previous tree, so a node obtained from
+ * the tree stays consistent for as long as it is used.
+ */
+public final class NavigationNode {
+
+    // nodes with more children than this get a hash map for lookups
+    private static final int CHILD_MAP_THRESHOLD = 32;
+
+    private static final NavigationNode[] NO_CHILDREN = new NavigationNode[0];
+
+    private final String path;
+    private final String name;
+    private final boolean page;
+    private final String title;
+    private final String navigationTitle;
+    private final String description;
+    private final String language;
+    private final boolean hideInNav;
+    private final long lastModified;
+
+    private final NavigationNode[] children;
+    private final List<NavigationNode> childList;
+    private final Map<String, NavigationNode> childMap;
+
+    /**
+     * Creates a container node, like <code>/content</code>, that is not a
+     * page itself and only carries children.
+     */
+    NavigationNode(final String path) {
+        this(path, false, null, null, null, null, false, -1, NO_CHILDREN);
+    }
+
+    NavigationNode(final String path, final String title, final String navigationTitle, final String description,
+                   final String language, final boolean hideInNav, final long lastModified) {
+        this(path, true, title, navigationTitle, description, language, hideInNav, lastModified, NO_CHILDREN);
+    }
+
+    private NavigationNode(final String path, final boolean page, final String title, final String navigationTitle,
+                           final String description, final String language, final boolean hideInNav,
+                           final long lastModified, final NavigationNode[] children) {
+        this.path = path;
+        this.name = path.substring(path.lastIndexOf('/') + 1);
+        this.page = page;
+        this.title = title;
+        this.navigationTitle = navigationTitle;
+        this.description = description;
+        this.language = language;
+        this.hideInNav = hideInNav;
+        this.lastModified = lastModified;
+        this.children = children;
+        this.childList = Collections.unmodifiableList(Arrays.asList(children));
+        if (children.length > CHILD_MAP_THRESHOLD) {
+            final Map<String, NavigationNode> map = new HashMap<>(children.length * 2);
+            for (NavigationNode child : children) {
+                map.put(child.name, child);
+            }
+            this.childMap = map;
+        } else {
+            this.childMap = null;
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return <code>false</code> for the container nodes at the roots of the tree
+     */
+    public boolean isPage() {
+        return page;
+    }
+
+    /**
+     * @return the <code>jcr:title</code> of the page, or <code>null</code>
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the first of navigation title, page title, title and name
+     *         that is set, like the core components show it
+     */
+    public String getNavigationTitle() {
+        if (navigationTitle != null) {
+            return navigationTitle;
+        }
+        return title != null ? title : name;
+    }
+
+    /**
+     * @return the page description, or <code>null</code>
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return the <code>jcr:language</code> of the page, or <code>null</code>
+     */
+    public String getLanguage() {
+        return language;
+    }
+
+    public boolean isHideInNav() {
+        return hideInNav;
+    }
+
+    /**
+     * @return last modification in milliseconds since the epoch, or -1 if unknown
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the child pages in repository order
+     */
+    public List<NavigationNode> getChildren() {
+        return childList;
+    }
+
+    /**
+     * @param childName name of the child page
+     * @return the child, or <code>null</code> if there is none
+     */
+    public NavigationNode getChild(final String childName) {
+        if (childMap != null) {
+            return childMap.get(childName);
+        }
+        for (NavigationNode child : children) {
+            if (child.name.equals(childName)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return path + " [" + getNavigationTitle() + ", " + children.length + " children]";
+    }
+
+    //*********************************************
+    // Copy on write, for the tree only
+    //*********************************************
+
+    int getChildCount() {
+        return children.length;
+    }
+
+    int indexOf(final String childName) {
+        for (int i = 0; i < children.length; i++) {
+            if (children[i].name.equals(childName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a copy of this node with the children of the given one
+     */
+    NavigationNode withChildrenOf(final NavigationNode other) {
+        return new NavigationNode(path, page, title, navigationTitle, description, language, hideInNav,
+                lastModified, other.children);
+    }
+
+    /**
+     * @return a copy of this node with the given children
+     */
+    NavigationNode withChildren(final NavigationNode[] newChildren) {
+        return new NavigationNode(path, page, title, navigationTitle, description, language, hideInNav,
+                lastModified, newChildren.length > 0 ? newChildren : NO_CHILDREN);
+    }
+
+    /**
+     * @param index position of the child
+     * @param child replacement, or <code>null</code> to remove the child
+     * @return a copy of this node with the child at the index replaced
+     */
+    NavigationNode withChild(final int index, final NavigationNode child) {
+        if (child == null) {
+            final NavigationNode[] copy = new NavigationNode[children.length - 1];
+            System.arraycopy(children, 0, copy, 0, index);
+            System.arraycopy(children, index + 1, copy, index, children.length - index - 1);
+            return withChildren(copy);
+        }
+        final NavigationNode[] copy = children.clone();
+        copy[index] = child;
+        return withChildren(copy);
+    }
+
+    /**
+     * @param index position the child is inserted at
+     * @param child new child
+     * @return a copy of this node with the child added
+     */
+    NavigationNode withInsertedChild(final int index, final NavigationNode child) {
+        final NavigationNode[] copy = new NavigationNode[children.length + 1];
+        System.arraycopy(children, 0, copy, 0, index);
+        copy[index] = child;
+        System.arraycopy(children, index, copy, index + 1, children.length - index);
+        return withChildren(copy);
+    }
+}
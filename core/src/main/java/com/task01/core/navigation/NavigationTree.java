@@ -0,0 +1,469 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.navigation;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Page tree with the properties the navigation, breadcrumb and language
+ * navigation components render, one tree per configured root. Renders read
+ * it instead of walking the repository.
+ * <p>
+ * The trees are immutable. Each batch of coalesced changes is read from the
+ * repository on a single background thread, then only the nodes on the
+ * paths to the changed pages are copied, and the new roots are published
+ * with one volatile write. Readers never take a lock and never wait for an
+ * update; whatever node they hold stays a consistent snapshot.
+ * <p>
+ * Until the initial build is complete there are no trees, and renders fall
+ * back to the repository. A build that cannot open its service resolver is
+ * retried.
+ */
+@Designate(ocd = NavigationTree.Config.class)
+@Component(service = { NavigationTree.class, ResourceChangeHandler.class })
+@ServiceDescription("Immutable page tree for navigation components")
+public class NavigationTree implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 navigation tree",
+                           description = "In-memory page tree read by the navigation components")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Content roots",
+                             description = "Trees kept in memory, each one is updated and published on its own")
+        String[] roots() default { "/content" };
+    }
+
+    static final String PN_NAV_TITLE = "navTitle";
+    static final String PN_PAGE_TITLE = "pageTitle";
+    static final String PN_HIDE_IN_NAV = "hideInNav";
+
+    // names the language manager takes for language roots, like en, de_ch or pt-br
+    private static final Pattern LANGUAGE_NAME = Pattern.compile("[a-z]{2}([_-][a-zA-Z]{2})?");
+
+    private static final long BUILD_RETRY_SECONDS = 30;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    // immutable, replaced as a whole by the updater thread
+    private volatile Map<String, NavigationNode> trees = Collections.emptyMap();
+
+    private final CountDownLatch built = new CountDownLatch(1);
+    private volatile boolean ready;
+
+    private final LongAdder appliedUpdates = new LongAdder();
+    private final LongAdder copiedNodes = new LongAdder();
+    private final LongAdder readPages = new LongAdder();
+
+    private String[] roots = { "/content" };
+
+    private ScheduledExecutorService updater;
+
+    @Activate
+    protected void activate(final Config config) {
+        roots = config.roots() != null ? config.roots() : new String[0];
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-navigation-tree");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a pending build retry must not hold up deactivation
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        updater = executor;
+        // changes handed in meanwhile queue up behind the build
+        updater.execute(this::build);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (updater != null) {
+            updater.shutdownNow();
+            updater = null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> once the initial build is complete
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Waits for the first attempt of the initial build.
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return <code>true</code> if the tree is ready
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return built.await(timeout, unit) && ready;
+    }
+
+    /**
+     * @param path page path
+     * @return the page in the current tree, or <code>null</code> if it is
+     *         not a page below the roots or the tree is not built yet
+     */
+    public NavigationNode getNode(final String path) {
+        if (path == null) {
+            return null;
+        }
+        for (Map.Entry<String, NavigationNode> tree : trees.entrySet()) {
+            if (ContentPaths.isSameOrDescendant(tree.getKey(), path)) {
+                return find(tree.getValue(), path);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the language root of a page the way the language manager does,
+     * from the page name or its <code>jcr:language</code>.
+     * @param path page path
+     * @return the closest language root at or above the page, or
+     *         <code>null</code> if there is none in the tree
+     */
+    public NavigationNode getLanguageRoot(final String path) {
+        NavigationNode languageRoot = null;
+        for (Map.Entry<String, NavigationNode> tree : trees.entrySet()) {
+            if (!ContentPaths.isSameOrDescendant(tree.getKey(), path)) {
+                continue;
+            }
+            NavigationNode node = tree.getValue();
+            int start = node.getPath().length() + 1;
+            while (node != null) {
+                if (node.isPage() && (node.getLanguage() != null || LANGUAGE_NAME.matcher(node.getName()).matches())) {
+                    languageRoot = node;
+                }
+                if (start >= path.length()) {
+                    break;
+                }
+                int end = path.indexOf('/', start);
+                end = end < 0 ? path.length() : end;
+                node = node.getChild(path.substring(start, end));
+                start = end + 1;
+            }
+            break;
+        }
+        return languageRoot;
+    }
+
+    /**
+     * @return number of change batches applied since activation
+     */
+    public long getAppliedUpdates() {
+        return appliedUpdates.sum();
+    }
+
+    /**
+     * @return number of existing nodes copied by updates, the rest of the
+     *         trees is shared between versions
+     */
+    public long getCopiedNodes() {
+        return copiedNodes.sum();
+    }
+
+    /**
+     * @return number of pages read from the repository since activation
+     */
+    public long getReadPages() {
+        return readPages.sum();
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        final ExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        final Set<String> refresh = new LinkedHashSet<>();
+        final Set<String> rewalk = new LinkedHashSet<>();
+        ContentPaths.classify(roots, changes, refresh, rewalk);
+        if (!refresh.isEmpty() || !rewalk.isEmpty()) {
+            executor.execute(() -> update(refresh, rewalk));
+        }
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * Waits until all changes handed in so far are applied.
+     */
+    void awaitIdle() throws InterruptedException, ExecutionException {
+        updater.submit(() -> { }).get();
+    }
+
+    private void build() {
+        final long start = System.currentTimeMillis();
+        try (ResourceResolver resolver = openResolver()) {
+            final Map<String, NavigationNode> next = new LinkedHashMap<>();
+            for (String rootPath : roots) {
+                final NavigationNode tree = readRoot(resolver, rootPath);
+                if (tree != null) {
+                    next.put(rootPath, tree);
+                }
+            }
+            trees = Collections.unmodifiableMap(next);
+            ready = true;
+            logger.info("Navigation tree built with {} pages in {}ms", readPages.sum(), System.currentTimeMillis() - start);
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}, navigation tree is unavailable, "
+                    + "retrying in {}s", ContentPaths.SUBSERVICE, BUILD_RETRY_SECONDS, e);
+            retryBuild();
+        } finally {
+            built.countDown();
+        }
+    }
+
+    private void retryBuild() {
+        final ScheduledExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(this::build, BUILD_RETRY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // deactivated meanwhile
+        }
+    }
+
+    /**
+     * Applies one batch of changes to copies of the affected paths and
+     * publishes the result.
+     */
+    private void update(final Set<String> refresh, final Set<String> rewalk) {
+        if (!ready) {
+            // the retried build reads these changes as well
+            return;
+        }
+        final Map<String, NavigationNode> next = new LinkedHashMap<>(trees);
+        try (ResourceResolver resolver = openResolver()) {
+            for (String path : rewalk) {
+                if (!ContentPaths.isCovered(rewalk, path)) {
+                    apply(next, resolver, path, true);
+                }
+            }
+            for (String path : refresh) {
+                if (!rewalk.contains(path) && !ContentPaths.isCovered(rewalk, path)) {
+                    apply(next, resolver, path, false);
+                }
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}, navigation tree is stale",
+                    ContentPaths.SUBSERVICE, e);
+            return;
+        }
+        trees = Collections.unmodifiableMap(next);
+        appliedUpdates.increment();
+    }
+
+    private void apply(final Map<String, NavigationNode> next, final ResourceResolver resolver,
+                       final String path, final boolean subtree) {
+        for (String rootPath : roots) {
+            if (path.equals(rootPath)) {
+                final NavigationNode tree = readRoot(resolver, rootPath);
+                if (tree != null) {
+                    next.put(rootPath, tree);
+                } else {
+                    next.remove(rootPath);
+                }
+                return;
+            }
+            final NavigationNode tree = next.get(rootPath);
+            if (tree != null && ContentPaths.isSameOrDescendant(rootPath, path)) {
+                final Resource resource = resolver.getResource(path);
+                NavigationNode replacement = null;
+                if (resource != null && isPage(resource)) {
+                    final NavigationNode existing = find(tree, path);
+                    replacement = subtree || existing == null
+                            ? readTree(resource) : read(resource).withChildrenOf(existing);
+                }
+                next.put(rootPath, set(tree, path, replacement, resolver));
+                return;
+            }
+        }
+    }
+
+    private static NavigationNode find(final NavigationNode tree, final String path) {
+        NavigationNode node = tree;
+        int start = tree.getPath().length() + 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            end = end < 0 ? path.length() : end;
+            node = node.getChild(path.substring(start, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Copies the nodes from the given one down to the parent of the path,
+     * everything else is shared with the current tree.
+     * @param replacement new node at the path, <code>null</code> to remove it
+     * @return the copy of the node
+     */
+    private NavigationNode set(final NavigationNode node, final String path, final NavigationNode replacement,
+                               final ResourceResolver resolver) {
+        final int start = node.getPath().length() + 1;
+        final int end = path.indexOf('/', start);
+        final String segment = path.substring(start, end < 0 ? path.length() : end);
+        final int index = node.indexOf(segment);
+        if (end < 0) {
+            if (index >= 0) {
+                copiedNodes.increment();
+                return node.withChild(index, replacement);
+            }
+            if (replacement == null) {
+                return node;
+            }
+            copiedNodes.increment();
+            return node.withInsertedChild(getInsertionIndex(node, segment, resolver), replacement);
+        }
+        if (index < 0) {
+            // the parent page is not known yet, it comes with a change of its own
+            return node;
+        }
+        final NavigationNode child = node.getChildren().get(index);
+        final NavigationNode copy = set(child, path, replacement, resolver);
+        if (copy == child) {
+            return node;
+        }
+        copiedNodes.increment();
+        return node.withChild(index, copy);
+    }
+
+    /**
+     * @return number of known siblings that precede the new page in repository order
+     */
+    private static int getInsertionIndex(final NavigationNode parent, final String name,
+                                         final ResourceResolver resolver) {
+        final Resource resource = resolver.getResource(parent.getPath());
+        if (resource == null) {
+            return parent.getChildCount();
+        }
+        int index = 0;
+        for (Resource sibling : resource.getChildren()) {
+            if (sibling.getName().equals(name)) {
+                return index;
+            }
+            if (parent.indexOf(sibling.getName()) >= 0) {
+                index++;
+            }
+        }
+        return parent.getChildCount();
+    }
+
+    private NavigationNode readRoot(final ResourceResolver resolver, final String rootPath) {
+        final Resource resource = resolver.getResource(rootPath);
+        if (resource == null) {
+            return null;
+        }
+        if (isPage(resource)) {
+            return readTree(resource);
+        }
+        return new NavigationNode(rootPath).withChildren(readChildren(resource));
+    }
+
+    private NavigationNode readTree(final Resource page) {
+        return read(page).withChildren(readChildren(page));
+    }
+
+    private NavigationNode[] readChildren(final Resource parent) {
+        final List<NavigationNode> children = new ArrayList<>();
+        for (Resource child : parent.getChildren()) {
+            if (isPage(child)) {
+                children.add(readTree(child));
+            }
+        }
+        return children.toArray(new NavigationNode[0]);
+    }
+
+    private NavigationNode read(final Resource page) {
+        readPages.increment();
+        final Resource content = page.getChild(NameConstants.NN_CONTENT);
+        if (content == null) {
+            return new NavigationNode(page.getPath(), null, null, null, null, false, -1);
+        }
+        final ValueMap properties = content.getValueMap();
+        Calendar modified = properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+        if (modified == null) {
+            modified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        }
+        String navigationTitle = properties.get(PN_NAV_TITLE, String.class);
+        if (navigationTitle == null) {
+            navigationTitle = properties.get(PN_PAGE_TITLE, String.class);
+        }
+        return new NavigationNode(page.getPath(),
+                properties.get(JcrConstants.JCR_TITLE, String.class),
+                navigationTitle,
+                properties.get(JcrConstants.JCR_DESCRIPTION, String.class),
+                properties.get(JcrConstants.JCR_LANGUAGE, String.class),
+                properties.get(PN_HIDE_IN_NAV, false),
+                modified != null ? modified.getTimeInMillis() : -1);
+    }
+
+    private ResourceResolver openResolver() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE));
+    }
+
+    private static boolean isPage(final Resource resource) {
+        return NameConstants.NT_PAGE.equals(resource.getValueMap().get(JcrConstants.JCR_PRIMARYTYPE, String.class));
+    }
+}
@@ -15,22 +15,60 @@
  */
 package com.task01.core.schedulers;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.day.cq.wcm.api.NameConstants;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.metrics.BucketHistogram;
+import com.task01.core.metrics.MetricsSource;
+import com.task01.core.metrics.OpenMetricsWriter;
+
 /**
  * A simple demo for cron-job like tasks that get executed regularly.
  * It also demonstrates how property values can be set. Users can
  * set the property values in /system/console/configMgr
+ * <p>
+ * Every run continues a sweep over the configured content trees that
+ * counts stale pages. The trees are split into subtree partitions which
+ * are processed in parallel, each worker with its own service resolver.
+ * A run stops at its time budget and remembers the last page of every
+ * unfinished partition, so the next run resumes there instead of starting
+ * over, and a slow sweep never overlaps with the next scheduled run.
+ * Run durations, progress and lag are published as metrics.
  */
 @Designate(ocd=SimpleScheduledTask.Config.class)
-@Component(service=Runnable.class)
-public class SimpleScheduledTask implements Runnable {
+@Component(service={ Runnable.class, MetricsSource.class })
+public class SimpleScheduledTask implements Runnable, MetricsSource {
 
     @ObjectClassDefinition(name="A scheduled task",
                            description = "Simple demo for cron-job like task with properties")
@@ -46,20 +84,365 @@ public class SimpleScheduledTask implements Runnable {
         @AttributeDefinition(name = "A parameter",
                              description = "Can be configured in /system/console/configMgr")
         String myParameter() default "";
+
+        @AttributeDefinition(name = "Content roots",
+                             description = "Trees swept for stale pages, empty to disable the sweep")
+        String[] roots() default { "/content" };
+
+        @AttributeDefinition(name = "Partition depth",
+                             description = "Depth below a root at which the tree is split into partitions")
+        int partitionDepth() default 2;
+
+        @AttributeDefinition(name = "Worker threads",
+                             description = "Number of partitions processed in parallel")
+        int threads() default 4;
+
+        @AttributeDefinition(name = "Time budget",
+                             description = "Milliseconds a run may take before it checkpoints and stops, "
+                                     + "keep below the cron interval")
+        long timeBudgetMillis() default 20000;
+
+        @AttributeDefinition(name = "Stale after days",
+                             description = "Pages not modified for this many days are reported as stale")
+        int staleAfterDays() default 365;
+
+        @AttributeDefinition(name = "Lag warning",
+                             description = "Milliseconds a sweep may take end to end before a warning is logged")
+        long lagWarningMillis() default 3600000;
+    }
+
+    private static final int DEFAULT_PARTITION_DEPTH = 2;
+    private static final int DEFAULT_THREADS = 4;
+    private static final long DEFAULT_TIME_BUDGET_MILLIS = 20000;
+    private static final int DEFAULT_STALE_AFTER_DAYS = 365;
+    private static final long DEFAULT_LAG_WARNING_MILLIS = 3600000;
+
+    /**
+     * Subtree processed by one worker. Shallow partitions cover a single page
+     * above the partition depth.
+     */
+    static final class Partition {
+
+        final String path;
+        final boolean deep;
+        // path of the last processed page, the partition resumes after it
+        String checkpoint;
+        // checkpoint the current traversal still has to reach
+        String resume;
+
+        Partition(final String path, final boolean deep) {
+            this.path = path;
+            this.deep = deep;
+        }
     }
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final Deque<Partition> pending = new ConcurrentLinkedDeque<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final LongAdder processedPages = new LongAdder();
+    private final LongAdder cycleStalePages = new LongAdder();
+    private final LongAdder skippedRuns = new LongAdder();
+    private final BucketHistogram runDurations = new BucketHistogram(
+            100_000, 500_000, 1_000_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000, 300_000_000);
+
+    private volatile long cycleStart;
+    private volatile long lastCycleMillis;
+    private volatile long lastCycleStalePages;
+    private volatile long completedCycles;
+    private volatile double lastRunPagesPerSecond;
+
     private String myParameter;
+
+    private String[] roots;
+    private int partitionDepth = DEFAULT_PARTITION_DEPTH;
+    private int threads = DEFAULT_THREADS;
+    private long timeBudgetMillis = DEFAULT_TIME_BUDGET_MILLIS;
+    private long staleAfterMillis = TimeUnit.DAYS.toMillis(DEFAULT_STALE_AFTER_DAYS);
+    private long lagWarningMillis = DEFAULT_LAG_WARNING_MILLIS;
+
+    private ExecutorService executor;
     
     @Override
     public void run() {
         logger.debug("SimpleScheduledTask is now running, myParameter='{}'", myParameter);
+        if (roots == null || roots.length == 0) {
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            // only possible if the task is scheduled concurrently, never stack runs
+            skippedRuns.increment();
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            sweep();
+        } finally {
+            runDurations.record((System.nanoTime() - start) / 1000);
+            running.set(false);
+        }
     }
 
     @Activate
     protected void activate(final Config config) {
         myParameter = config.myParameter();
+        roots = config.roots();
+        partitionDepth = config.partitionDepth() > 0 ? config.partitionDepth() : DEFAULT_PARTITION_DEPTH;
+        threads = config.threads() > 0 ? config.threads() : DEFAULT_THREADS;
+        timeBudgetMillis = config.timeBudgetMillis() > 0 ? config.timeBudgetMillis() : DEFAULT_TIME_BUDGET_MILLIS;
+        staleAfterMillis = TimeUnit.DAYS.toMillis(
+                config.staleAfterDays() > 0 ? config.staleAfterDays() : DEFAULT_STALE_AFTER_DAYS);
+        lagWarningMillis = config.lagWarningMillis() > 0 ? config.lagWarningMillis() : DEFAULT_LAG_WARNING_MILLIS;
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-sweep-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * @return number of partitions not yet processed in the current sweep
+     */
+    public int getPendingPartitions() {
+        return pending.size();
+    }
+
+    public long getProcessedPages() {
+        return processedPages.sum();
+    }
+
+    /**
+     * @return pages per second processed in the last run
+     */
+    public double getThroughput() {
+        return lastRunPagesPerSecond;
+    }
+
+    /**
+     * @return milliseconds since the current sweep started, 0 if none is in progress
+     */
+    public long getLagMillis() {
+        final long start = cycleStart;
+        return start > 0 ? System.currentTimeMillis() - start : 0;
     }
 
+    /**
+     * @return duration of the last complete sweep in milliseconds
+     */
+    public long getLastCycleMillis() {
+        return lastCycleMillis;
+    }
+
+    /**
+     * @return stale pages found by the last complete sweep
+     */
+    public long getLastCycleStalePages() {
+        return lastCycleStalePages;
+    }
+
+    public long getCompletedCycles() {
+        return completedCycles;
+    }
+
+    /**
+     * @return runs skipped because the previous run was still in progress
+     */
+    public long getSkippedRuns() {
+        return skippedRuns.sum();
+    }
+
+    @Override
+    public void writeMetrics(final OpenMetricsWriter out) throws IOException {
+        out.histogram("task01_sweep_run_duration_seconds", "Duration of scheduled sweep runs", runDurations);
+        out.counter("task01_sweep_pages", "Pages processed by the sweep", getProcessedPages());
+        out.counter("task01_sweep_skipped_runs", "Runs skipped because the previous run was still in progress", getSkippedRuns());
+        out.counter("task01_sweep_cycles", "Completed sweeps over all roots", getCompletedCycles());
+        out.gauge("task01_sweep_pending_partitions", "Partitions not yet processed in the current sweep", getPendingPartitions());
+        out.gauge("task01_sweep_lag_seconds", "Seconds since the current sweep started", getLagMillis() / 1000);
+        out.gauge("task01_sweep_last_cycle_stale_pages", "Stale pages found by the last complete sweep", getLastCycleStalePages());
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    void sweep() {
+        final long runStart = System.currentTimeMillis();
+        final long deadline = runStart + timeBudgetMillis;
+        final long processedBefore = processedPages.sum();
+
+        if (pending.isEmpty()) {
+            if (!partition()) {
+                return;
+            }
+        }
+
+        final List<Future<?>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(executor.submit(() -> work(deadline)));
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Sweep worker failed", e.getCause());
+            }
+        }
+
+        final long elapsed = Math.max(1, System.currentTimeMillis() - runStart);
+        final long processed = processedPages.sum() - processedBefore;
+        lastRunPagesPerSecond = processed * 1000.0 / elapsed;
+        logger.debug("Sweep run processed {} pages in {}ms, {} partitions pending", processed, elapsed, pending.size());
+
+        if (pending.isEmpty()) {
+            lastCycleMillis = System.currentTimeMillis() - cycleStart;
+            lastCycleStalePages = cycleStalePages.sumThenReset();
+            completedCycles++;
+            cycleStart = 0;
+            logger.info("Sweep completed in {}ms, {} stale pages", lastCycleMillis, lastCycleStalePages);
+        } else if (getLagMillis() > lagWarningMillis) {
+            logger.warn("Sweep started {}ms ago and has {} partitions left", getLagMillis(), pending.size());
+        }
+    }
+
+    /**
+     * Splits the roots into partitions for a new sweep.
+     * @return <code>false</code> if the content could not be read
+     */
+    private boolean partition() {
+        try (ResourceResolver resolver = resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE))) {
+            for (String root : roots) {
+                final Resource resource = resolver.getResource(root);
+                if (resource != null) {
+                    collectPartitions(resource, 0);
+                }
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}", ContentPaths.SUBSERVICE, e);
+            return false;
+        }
+        cycleStart = System.currentTimeMillis();
+        cycleStalePages.reset();
+        return true;
+    }
+
+    private void collectPartitions(final Resource resource, final int depth) {
+        if (depth == partitionDepth) {
+            pending.add(new Partition(resource.getPath(), true));
+            return;
+        }
+        if (isPage(resource)) {
+            pending.add(new Partition(resource.getPath(), false));
+        }
+        for (Resource child : resource.getChildren()) {
+            if (isPage(child)) {
+                collectPartitions(child, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Takes partitions off the queue until it is empty or the deadline passed.
+     * An unfinished partition goes back to the head of the queue.
+     */
+    private void work(final long deadline) {
+        Partition partition;
+        ResourceResolver resolver = null;
+        try {
+            while (System.currentTimeMillis() < deadline && (partition = pending.poll()) != null) {
+                if (resolver == null) {
+                    resolver = resolverFactory.getServiceResourceResolver(
+                            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE));
+                }
+                final Resource resource = resolver.getResource(partition.path);
+                if (resource == null) {
+                    continue;
+                }
+                partition.resume = partition.checkpoint;
+                if (!partition.deep) {
+                    process(resource);
+                } else if (!traverse(resource, partition, deadline)) {
+                    pending.addFirst(partition);
+                    return;
+                }
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}", ContentPaths.SUBSERVICE, e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Depth first, pre-order traversal of the pages of a partition. While
+     * resuming, everything up to and including the checkpoint is skipped.
+     * If the checkpoint page was deleted in the meantime the rest of the
+     * partition is skipped, it is covered again by the next sweep.
+     * @return <code>false</code> if the deadline passed before the partition was done
+     */
+    private boolean traverse(final Resource resource, final Partition partition, final long deadline) {
+        final String path = resource.getPath();
+        if (partition.resume == null) {
+            if (System.currentTimeMillis() >= deadline || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            process(resource);
+            partition.checkpoint = path;
+        } else if (partition.resume.equals(path)) {
+            // processed in an earlier run, continue with its children
+            partition.resume = null;
+        } else if (!partition.resume.startsWith(path + "/")) {
+            // before the checkpoint in document order, done in an earlier run
+            return true;
+        }
+        final Iterator<Resource> children = resource.listChildren();
+        while (children.hasNext()) {
+            final Resource child = children.next();
+            if (isPage(child) && !traverse(child, partition, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void process(final Resource page) {
+        processedPages.increment();
+        final Resource content = page.getChild(NameConstants.NN_CONTENT);
+        if (content == null) {
+            return;
+        }
+        final ValueMap properties = content.getValueMap();
+        Calendar modified = properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+        if (modified == null) {
+            modified = properties.get("jcr:lastModified", Calendar.class);
+        }
+        if (modified != null && System.currentTimeMillis() - modified.getTimeInMillis() > staleAfterMillis) {
+            cycleStalePages.increment();
+            logger.debug("Stale page {}, last modified {}", page.getPath(), modified.getTime());
+        }
+    }
+
+    private static boolean isPage(final Resource resource) {
+        return NameConstants.NT_PAGE.equals(resource.getValueMap().get("jcr:primaryType", String.class));
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.search;
+
+import java.util.Arrays;
+
+/**
+ * Postings of one term: ascending document ids with a weight each, stored
+ * as variable-length deltas. Most deltas and weights fit into one byte, so
+ * a posting usually takes two bytes instead of the eight of two ints.
+ * Appending is cheap as long as ids only grow, which the index guarantees
+ * by giving a document a new id whenever it is indexed again.
+ * <p>
+ * Not thread-safe, the index guards all access.
+ */
+final class PostingList {
+
+    private byte[] bytes = new byte[8];
+    private int length;
+    private int lastDoc = -1;
+    private int count;
+
+    /**
+     * @param doc document id, greater than all ids added before
+     * @param weight positive weight of the term in the document
+     */
+    void add(final int doc, final int weight) {
+        if (doc <= lastDoc) {
+            throw new IllegalArgumentException("Document " + doc + " is not after " + lastDoc);
+        }
+        ensureCapacity(10);
+        writeVarInt(doc - lastDoc);
+        writeVarInt(weight);
+        lastDoc = doc;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes used by the encoded postings
+     */
+    int getEncodedLength() {
+        return length;
+    }
+
+    /**
+     * Decodes all postings into the given arrays.
+     * @param docs receives the document ids, at least {@link #size()} long
+     * @param weights receives the weights, at least {@link #size()} long
+     */
+    void decode(final int[] docs, final int[] weights) {
+        int position = 0;
+        int doc = -1;
+        for (int i = 0; i < count; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            doc += value;
+            docs[i] = doc;
+            value = 0;
+            shift = 0;
+            do {
+                b = bytes[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            weights[i] = value;
+        }
+    }
+
+    /**
+     * Drops the spare capacity once the list is complete.
+     */
+    void trim() {
+        if (bytes.length > length) {
+            bytes = Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (length + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + additional, bytes.length + (bytes.length >> 1)));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.search;
+
+/**
+ * Immutable result of a {@link SearchIndex} query.
+ */
+public final class SearchHit {
+
+    private final String path;
+    private final String title;
+    private final String description;
+    private final int score;
+
+    SearchHit(final String path, final String title, final String description, final int score) {
+        this.path = path;
+        this.title = title;
+        this.description = description;
+        this.score = score;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the page title, or <code>null</code> if the page has none
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return the page description, or <code>null</code> if the page has none
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return sum of the weights of the query terms on the page, higher is better
+     */
+    public int getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return path + " [" + score + "]";
+    }
+}
@@ -0,0 +1,779 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * In-memory full-text index over the titles, descriptions and component
+ * text of the pages below the configured roots, so searches never run a
+ * repository query.
+ * <p>
+ * Every indexed page has an int document id, and every term a
+ * {@link PostingList} of the ids of the pages containing it with a weight
+ * that favours titles over descriptions over body text. A page that
+ * changes is indexed again under a new, higher id and its old id is marked
+ * deleted, so postings only ever grow at their end. Once deleted ids
+ * outnumber live ones, all postings are rewritten without them.
+ * <p>
+ * The index is built at activation by analysing partitions of the content
+ * tree in parallel, each worker with its own service resolver, and kept
+ * current from the coalesced changes of the resource listener on a single
+ * background thread. Queries share a read lock and are only blocked while
+ * an analysed batch is inserted.
+ */
+@Designate(ocd = SearchIndex.Config.class)
+@Component(service = { SearchIndex.class, ResourceChangeHandler.class })
+@ServiceDescription("In-memory full-text index of page content")
+public class SearchIndex implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 search index",
+                           description = "In-memory full-text index of page titles, descriptions and text")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Content roots",
+                             description = "Trees whose pages are indexed")
+        String[] roots() default { "/content" };
+
+        @AttributeDefinition(name = "Text properties",
+                             description = "Properties of the components on a page whose text is indexed")
+        String[] textProperties() default { "text", JcrConstants.JCR_TITLE, JcrConstants.JCR_DESCRIPTION };
+
+        @AttributeDefinition(name = "Maximum text",
+                             description = "Characters of component text indexed per page")
+        int maxTextChars() default 100000;
+
+        @AttributeDefinition(name = "Partition depth",
+                             description = "Depth below a root at which the initial build is split into partitions")
+        int partitionDepth() default 2;
+
+        @AttributeDefinition(name = "Worker threads",
+                             description = "Number of partitions analysed in parallel while the index is built")
+        int threads() default 4;
+    }
+
+    static final int TITLE_WEIGHT = 8;
+    static final int DESCRIPTION_WEIGHT = 3;
+    static final int TEXT_WEIGHT = 1;
+
+    // a term repeated all over a page should not outweigh the title
+    private static final int MAX_WEIGHT = 64;
+    // terms a prefix is expanded to, the most frequent ones are kept
+    private static final int MAX_EXPANSIONS = 64;
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final int MIN_DELETED_FOR_COMPACTION = 1024;
+
+    private static final String[] TITLE_PROPERTIES = { "navTitle", "pageTitle", JcrConstants.JCR_TITLE };
+
+    private static final int DEFAULT_PARTITION_DEPTH = 2;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_MAX_TEXT_CHARS = 100000;
+    private static final long BUILD_RETRY_SECONDS = 30;
+
+    /**
+     * Analysed page, ready to be inserted.
+     */
+    static final class Document {
+
+        final String path;
+        final String title;
+        final String description;
+        final Map<String, Integer> weights;
+
+        Document(final String path, final String title, final String description, final Map<String, Integer> weights) {
+            this.path = path;
+            this.title = title;
+            this.description = description;
+            this.weights = weights;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // guarded by lock
+    private final TreeMap<String, PostingList> postings = new TreeMap<>();
+    private final TreeMap<String, Integer> docsByPath = new TreeMap<>();
+    private String[] paths = new String[64];
+    private String[] titles = new String[64];
+    private String[] descriptions = new String[64];
+    private BitSet deleted = new BitSet();
+    private int nextDoc;
+    private long encodedBytes;
+
+    private final CountDownLatch built = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile long buildMillis;
+
+    private final LongAdder appliedUpdates = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+
+    private String[] roots = { "/content" };
+    private String[] textProperties = { "text", JcrConstants.JCR_TITLE, JcrConstants.JCR_DESCRIPTION };
+    private int maxTextChars = DEFAULT_MAX_TEXT_CHARS;
+    private int partitionDepth = DEFAULT_PARTITION_DEPTH;
+
+    private ScheduledExecutorService updater;
+    private ExecutorService walkers;
+
+    @Activate
+    protected void activate(final Config config) {
+        roots = config.roots() != null ? config.roots() : new String[0];
+        textProperties = config.textProperties() != null ? config.textProperties() : new String[0];
+        maxTextChars = config.maxTextChars() > 0 ? config.maxTextChars() : DEFAULT_MAX_TEXT_CHARS;
+        partitionDepth = config.partitionDepth() > 0 ? config.partitionDepth() : DEFAULT_PARTITION_DEPTH;
+        final int threads = config.threads() > 0 ? config.threads() : DEFAULT_THREADS;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-search-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a pending build retry must not hold up deactivation
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        updater = executor;
+        final AtomicInteger count = new AtomicInteger();
+        walkers = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-search-index-walker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // changes handed in meanwhile queue up behind the build
+        updater.execute(this::build);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (updater != null) {
+            updater.shutdownNow();
+            updater = null;
+        }
+        if (walkers != null) {
+            walkers.shutdownNow();
+            walkers = null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> once the initial build is complete
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Waits for the initial build.
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return <code>true</code> if the index is ready
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return built.await(timeout, unit) && ready;
+    }
+
+    /**
+     * Finds the pages containing all terms of the query. The last term is
+     * taken as a prefix unless the query ends with a blank, so results
+     * already match while the visitor is still typing.
+     * @param query text entered by the visitor
+     * @param root only pages at or below this path are returned
+     * @param limit maximum number of hits
+     * @return hits by descending score, empty if the index is not ready
+     */
+    public List<SearchHit> search(final String query, final String root, final int limit) {
+        final List<String> terms = new ArrayList<>();
+        Tokenizer.tokenize(query, term -> {
+            if (terms.size() < MAX_QUERY_TERMS && !terms.contains(term)) {
+                terms.add(term);
+            }
+        });
+        if (!ready || terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        queries.increment();
+        final boolean prefix = !Character.isWhitespace(query.charAt(query.length() - 1));
+        lock.readLock().lock();
+        try {
+            // intersect starting with the rarest term, so the candidates shrink fast
+            final List<int[][]> lists = new ArrayList<>(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                final int[][] list = prefix && i == terms.size() - 1 ? expand(terms.get(i)) : decode(postings.get(terms.get(i)));
+                if (list[0].length == 0) {
+                    return Collections.emptyList();
+                }
+                lists.add(list);
+            }
+            lists.sort((a, b) -> Integer.compare(a[0].length, b[0].length));
+            int[][] result = lists.get(0);
+            for (int i = 1; i < lists.size() && result[0].length > 0; i++) {
+                result = intersect(result, lists.get(i));
+            }
+            return rank(result, root, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed pages
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docsByPath.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct terms
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes used by the encoded postings, including those of deleted pages
+     */
+    public long getPostingBytes() {
+        lock.readLock().lock();
+        try {
+            return encodedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return duration of the initial build in milliseconds
+     */
+    public long getBuildMillis() {
+        return buildMillis;
+    }
+
+    /**
+     * @return number of change batches applied since activation
+     */
+    public long getAppliedUpdates() {
+        return appliedUpdates.sum();
+    }
+
+    /**
+     * @return number of times the postings were rewritten without deleted pages
+     */
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        final ExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        final Set<String> reindex = new LinkedHashSet<>();
+        final Set<String> rewalk = new LinkedHashSet<>();
+        ContentPaths.classify(roots, changes, reindex, rewalk);
+        if (!reindex.isEmpty() || !rewalk.isEmpty()) {
+            executor.execute(() -> update(reindex, rewalk));
+        }
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * Waits until all changes handed in so far are applied.
+     */
+    void awaitIdle() throws InterruptedException, ExecutionException {
+        updater.submit(() -> { }).get();
+    }
+
+    private void build() {
+        final long start = System.currentTimeMillis();
+        try {
+            final List<Future<List<Document>>> partitions = new ArrayList<>();
+            try (ResourceResolver resolver = openResolver()) {
+                for (String rootPath : roots) {
+                    final Resource resource = resolver.getResource(rootPath);
+                    if (resource != null) {
+                        partition(resource, 0, partitions);
+                    }
+                }
+            } catch (LoginException e) {
+                logger.error("Cannot open service resolver for subservice {}, search index is unavailable, "
+                        + "retrying in {}s", ContentPaths.SUBSERVICE, BUILD_RETRY_SECONDS, e);
+                retryBuild();
+                return;
+            }
+            for (Future<List<Document>> partition : partitions) {
+                final List<Document> documents;
+                try {
+                    documents = partition.get();
+                } catch (ExecutionException e) {
+                    logger.error("Search index partition failed", e.getCause());
+                    continue;
+                }
+                lock.writeLock().lock();
+                try {
+                    for (Document document : documents) {
+                        add(document);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            lock.writeLock().lock();
+            try {
+                for (PostingList list : postings.values()) {
+                    list.trim();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            buildMillis = System.currentTimeMillis() - start;
+            ready = true;
+            logger.info("Search index built with {} pages and {} terms in {}ms", size(), getTermCount(), buildMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            built.countDown();
+        }
+    }
+
+    private void retryBuild() {
+        final ScheduledExecutorService executor = updater;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.schedule(this::build, BUILD_RETRY_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // deactivated meanwhile
+        }
+    }
+
+    private void partition(final Resource resource, final int depth, final List<Future<List<Document>>> partitions) {
+        if (depth == partitionDepth) {
+            final String path = resource.getPath();
+            partitions.add(walkers.submit(() -> walk(path)));
+            return;
+        }
+        if (isPage(resource)) {
+            final Document document = read(resource);
+            partitions.add(CompletableFuture.completedFuture(
+                    document != null ? Collections.singletonList(document) : Collections.emptyList()));
+        }
+        for (Resource child : resource.getChildren()) {
+            if (isPage(child)) {
+                partition(child, depth + 1, partitions);
+            }
+        }
+    }
+
+    private List<Document> walk(final String path) throws LoginException {
+        try (ResourceResolver resolver = openResolver()) {
+            final List<Document> documents = new ArrayList<>();
+            final Resource resource = resolver.getResource(path);
+            if (resource != null) {
+                collect(resource, documents);
+            }
+            return documents;
+        }
+    }
+
+    /**
+     * Analyses one batch of changes, then swaps the affected pages in.
+     */
+    private void update(final Set<String> reindex, final Set<String> rewalk) {
+        final Map<String, List<Document>> subtrees = new LinkedHashMap<>();
+        final Map<String, Document> pages = new LinkedHashMap<>();
+        try (ResourceResolver resolver = openResolver()) {
+            for (String path : rewalk) {
+                if (ContentPaths.isCovered(rewalk, path)) {
+                    continue;
+                }
+                final List<Document> documents = new ArrayList<>();
+                final Resource resource = resolver.getResource(path);
+                if (resource != null) {
+                    collect(resource, documents);
+                }
+                subtrees.put(path, documents);
+            }
+            for (String path : reindex) {
+                if (rewalk.contains(path) || ContentPaths.isCovered(rewalk, path)) {
+                    continue;
+                }
+                final Resource resource = resolver.getResource(path);
+                pages.put(path, resource != null && isPage(resource) ? read(resource) : null);
+            }
+        } catch (LoginException e) {
+            logger.error("Cannot open service resolver for subservice {}, search index is stale",
+                    ContentPaths.SUBSERVICE, e);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, List<Document>> subtree : subtrees.entrySet()) {
+                removeSubtree(subtree.getKey());
+                for (Document document : subtree.getValue()) {
+                    add(document);
+                }
+            }
+            for (Map.Entry<String, Document> page : pages.entrySet()) {
+                remove(page.getKey());
+                if (page.getValue() != null) {
+                    add(page.getValue());
+                }
+            }
+            final int deletedCount = deleted.cardinality();
+            if (deletedCount >= MIN_DELETED_FOR_COMPACTION && deletedCount > docsByPath.size()) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        appliedUpdates.increment();
+    }
+
+    private void add(final Document document) {
+        remove(document.path);
+        final int doc = nextDoc++;
+        if (doc == paths.length) {
+            paths = Arrays.copyOf(paths, doc * 2);
+            titles = Arrays.copyOf(titles, doc * 2);
+            descriptions = Arrays.copyOf(descriptions, doc * 2);
+        }
+        paths[doc] = document.path;
+        titles[doc] = document.title;
+        descriptions[doc] = document.description;
+        docsByPath.put(document.path, doc);
+        for (Map.Entry<String, Integer> weight : document.weights.entrySet()) {
+            final PostingList list = postings.computeIfAbsent(weight.getKey(), term -> new PostingList());
+            final int before = list.getEncodedLength();
+            list.add(doc, weight.getValue());
+            encodedBytes += list.getEncodedLength() - before;
+        }
+    }
+
+    private void remove(final String path) {
+        final Integer doc = docsByPath.remove(path);
+        if (doc != null) {
+            delete(doc);
+        }
+    }
+
+    private void removeSubtree(final String path) {
+        remove(path);
+        final SortedMap<String, Integer> below = docsByPath.subMap(path + "/", path + "0");
+        for (Integer doc : below.values()) {
+            delete(doc);
+        }
+        below.clear();
+    }
+
+    private void delete(final int doc) {
+        deleted.set(doc);
+        paths[doc] = null;
+        titles[doc] = null;
+        descriptions[doc] = null;
+    }
+
+    /**
+     * Rewrites all postings without the deleted pages and renumbers the
+     * remaining ones densely, keeping their order.
+     */
+    private void compact() {
+        final int[] remap = new int[nextDoc];
+        int live = 0;
+        for (int doc = 0; doc < nextDoc; doc++) {
+            if (deleted.get(doc)) {
+                remap[doc] = -1;
+            } else {
+                remap[doc] = live;
+                paths[live] = paths[doc];
+                titles[live] = titles[doc];
+                descriptions[live] = descriptions[doc];
+                live++;
+            }
+        }
+        Arrays.fill(paths, live, nextDoc, null);
+        Arrays.fill(titles, live, nextDoc, null);
+        Arrays.fill(descriptions, live, nextDoc, null);
+        for (Map.Entry<String, Integer> entry : docsByPath.entrySet()) {
+            entry.setValue(remap[entry.getValue()]);
+        }
+        encodedBytes = 0;
+        for (Iterator<Map.Entry<String, PostingList>> it = postings.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<String, PostingList> entry = it.next();
+            final int[][] old = decode(entry.getValue());
+            final PostingList list = new PostingList();
+            for (int i = 0; i < old[0].length; i++) {
+                if (remap[old[0][i]] >= 0) {
+                    list.add(remap[old[0][i]], old[1][i]);
+                }
+            }
+            if (list.size() == 0) {
+                it.remove();
+            } else {
+                list.trim();
+                entry.setValue(list);
+                encodedBytes += list.getEncodedLength();
+            }
+        }
+        deleted = new BitSet();
+        nextDoc = live;
+        compactions.increment();
+    }
+
+    private static int[][] decode(final PostingList list) {
+        if (list == null) {
+            return new int[][] { new int[0], new int[0] };
+        }
+        final int[] docs = new int[list.size()];
+        final int[] weights = new int[list.size()];
+        list.decode(docs, weights);
+        return new int[][] { docs, weights };
+    }
+
+    /**
+     * Unions the postings of the most frequent terms starting with the prefix.
+     */
+    private int[][] expand(final String prefix) {
+        List<PostingList> lists = new ArrayList<>(postings.subMap(prefix, prefix + Character.MAX_VALUE).values());
+        if (lists.size() > MAX_EXPANSIONS) {
+            lists.sort((a, b) -> Integer.compare(b.size(), a.size()));
+            lists = lists.subList(0, MAX_EXPANSIONS);
+        }
+        int total = 0;
+        for (PostingList list : lists) {
+            total += list.size();
+        }
+        // doc in the high half, weight in the low half, so sorting orders by doc
+        final long[] entries = new long[total];
+        int count = 0;
+        for (PostingList list : lists) {
+            final int[][] decoded = decode(list);
+            for (int i = 0; i < decoded[0].length; i++) {
+                entries[count++] = ((long) decoded[0][i] << 32) | decoded[1][i];
+            }
+        }
+        Arrays.sort(entries);
+        final int[] docs = new int[total];
+        final int[] weights = new int[total];
+        int size = 0;
+        for (long entry : entries) {
+            final int doc = (int) (entry >>> 32);
+            if (size > 0 && docs[size - 1] == doc) {
+                weights[size - 1] += (int) entry;
+            } else {
+                docs[size] = doc;
+                weights[size++] = (int) entry;
+            }
+        }
+        return new int[][] { Arrays.copyOf(docs, size), Arrays.copyOf(weights, size) };
+    }
+
+    private static int[][] intersect(final int[][] a, final int[][] b) {
+        final int length = Math.min(a[0].length, b[0].length);
+        final int[] docs = new int[length];
+        final int[] weights = new int[length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a[0].length && j < b[0].length) {
+            if (a[0][i] < b[0][j]) {
+                i++;
+            } else if (a[0][i] > b[0][j]) {
+                j++;
+            } else {
+                docs[size] = a[0][i];
+                weights[size++] = a[1][i++] + b[1][j++];
+            }
+        }
+        return new int[][] { Arrays.copyOf(docs, size), Arrays.copyOf(weights, size) };
+    }
+
+    /**
+     * Picks the best live hits below the root, ties in document order.
+     */
+    private List<SearchHit> rank(final int[][] matches, final String root, final int limit) {
+        final List<long[]> candidates = new ArrayList<>();
+        for (int i = 0; i < matches[0].length; i++) {
+            final int doc = matches[0][i];
+            if (!deleted.get(doc) && ContentPaths.isSameOrDescendant(root, paths[doc])) {
+                candidates.add(new long[] { doc, matches[1][i] });
+            }
+        }
+        candidates.sort((a, b) -> a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[0], b[0]));
+        final List<SearchHit> hits = new ArrayList<>(Math.min(limit, candidates.size()));
+        for (int i = 0; i < candidates.size() && hits.size() < limit; i++) {
+            final int doc = (int) candidates.get(i)[0];
+            hits.add(new SearchHit(paths[doc], titles[doc], descriptions[doc], (int) candidates.get(i)[1]));
+        }
+        return hits;
+    }
+
+    private ResourceResolver openResolver() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, ContentPaths.SUBSERVICE));
+    }
+
+    /**
+     * Adds the analysed pages at and below the resource in pre-order.
+     */
+    private void collect(final Resource resource, final List<Document> documents) {
+        if (isPage(resource)) {
+            final Document document = read(resource);
+            if (document != null) {
+                documents.add(document);
+            }
+        }
+        for (Resource child : resource.getChildren()) {
+            if (isPage(child)) {
+                collect(child, documents);
+            }
+        }
+    }
+
+    /**
+     * @return the analysed page, or <code>null</code> if it has no content
+     */
+    Document read(final Resource page) {
+        final Resource content = page.getChild(NameConstants.NN_CONTENT);
+        if (content == null) {
+            return null;
+        }
+        final ValueMap properties = content.getValueMap();
+        final Map<String, Integer> weights = new HashMap<>();
+        String title = null;
+        for (String name : TITLE_PROPERTIES) {
+            final String value = properties.get(name, String.class);
+            if (value != null) {
+                title = title != null ? title : value;
+                analyse(value, TITLE_WEIGHT, weights);
+            }
+        }
+        final String description = properties.get(JcrConstants.JCR_DESCRIPTION, String.class);
+        if (description != null) {
+            analyse(description, DESCRIPTION_WEIGHT, weights);
+        }
+        int budget = maxTextChars;
+        for (Resource child : content.getChildren()) {
+            budget = analyseText(child, budget, weights);
+        }
+        return new Document(page.getPath(), title, description, weights);
+    }
+
+    /**
+     * Analyses the text properties of the component and its descendants.
+     * @return characters left in the budget
+     */
+    private int analyseText(final Resource resource, final int budget, final Map<String, Integer> weights) {
+        int left = budget;
+        final ValueMap properties = resource.getValueMap();
+        for (String name : textProperties) {
+            if (left <= 0) {
+                return 0;
+            }
+            final String value = properties.get(name, String.class);
+            if (value != null) {
+                analyse(value.length() > left ? value.substring(0, left) : value, TEXT_WEIGHT, weights);
+                left -= value.length();
+            }
+        }
+        for (Resource child : resource.getChildren()) {
+            if (left <= 0) {
+                return 0;
+            }
+            left = analyseText(child, left, weights);
+        }
+        return left;
+    }
+
+    private static void analyse(final String text, final int weight, final Map<String, Integer> weights) {
+        Tokenizer.tokenize(text, term -> weights.merge(term, weight, (a, b) -> Math.min(MAX_WEIGHT, a + b)));
+    }
+
+    private static boolean isPage(final Resource resource) {
+        return NameConstants.NT_PAGE.equals(resource.getValueMap().get(JcrConstants.JCR_PRIMARYTYPE, String.class));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.search;
+
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Splits text into lower case terms of letters and digits. Markup of rich
+ * text properties is skipped: tags and character references end a term and
+ * never become terms themselves.
+ */
+final class Tokenizer {
+
+    static final int MAX_TERM_LENGTH = 64;
+
+    private Tokenizer() {
+        // static methods only
+    }
+
+    /**
+     * @param text text to split, may contain HTML markup
+     * @param terms receives the terms in order, including repetitions
+     */
+    static void tokenize(final CharSequence text, final Consumer<String> terms) {
+        final StringBuilder term = new StringBuilder(16);
+        final int length = text.length();
+        int i = 0;
+        while (i < length) {
+            final char c = text.charAt(i);
+            if (c == '<') {
+                emit(term, terms);
+                final int end = indexOf(text, '>', i + 1);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '&') {
+                emit(term, terms);
+                final int end = indexOf(text, ';', i + 1);
+                i = end < 0 || end - i > 10 ? i + 1 : end + 1;
+            } else if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(c);
+                }
+                i++;
+            } else {
+                emit(term, terms);
+                i++;
+            }
+        }
+        emit(term, terms);
+    }
+
+    private static void emit(final StringBuilder term, final Consumer<String> terms) {
+        if (term.length() > 0) {
+            terms.accept(term.toString().toLowerCase(Locale.ROOT));
+            term.setLength(0);
+        }
+    }
+
+    private static int indexOf(final CharSequence text, final char c, final int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
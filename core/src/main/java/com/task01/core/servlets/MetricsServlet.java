@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import com.task01.core.metrics.MetricsRegistry;
+import com.task01.core.metrics.OpenMetricsWriter;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+import javax.servlet.Servlet;
+import java.io.IOException;
+
+/**
+ * Servlet that exposes the metrics of the core bundle in the OpenMetrics
+ * text format, for scraping by Prometheus. Restricted to the monitoring
+ * group, see {@link MonitoringAccess}.
+ */
+@Component(service = { Servlet.class },
+           property = {
+                   "sling.servlet.methods=" + HttpConstants.METHOD_GET,
+                   "sling.auth.requirements=+/bin/task01/metrics"
+           })
+@SlingServletPaths("/bin/task01/metrics")
+@ServiceDescription("OpenMetrics servlet")
+public class MetricsServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Reference
+    private transient MetricsRegistry registry;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest req,
+            final SlingHttpServletResponse resp) throws IOException {
+        if (!MonitoringAccess.check(req, resp)) {
+            return;
+        }
+        resp.setContentType(OpenMetricsWriter.CONTENT_TYPE);
+        resp.setHeader("Cache-Control", "no-cache");
+        registry.write(resp.getWriter());
+    }
+}
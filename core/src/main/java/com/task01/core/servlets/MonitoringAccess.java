@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import java.util.Iterator;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access check for the monitoring servlets. Only administrators and members
+ * of the {@value #GROUP} group may read the metrics; the servlets register an
+ * authentication requirement for their paths, so anonymous requests are
+ * challenged before they get here.
+ */
+final class MonitoringAccess {
+
+    /**
+     * Group whose members, e.g. the scraping service account, may read the
+     * metrics.
+     */
+    static final String GROUP = "task01-monitoring";
+
+    private static final Logger LOG = LoggerFactory.getLogger(MonitoringAccess.class);
+
+    private MonitoringAccess() {
+    }
+
+    /**
+     * Sends a 403 unless the requesting user may read the metrics.
+     *
+     * @return whether the request may proceed
+     */
+    static boolean check(final SlingHttpServletRequest request, final SlingHttpServletResponse response) {
+        if (isAllowed(request)) {
+            return true;
+        }
+        response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+        response.setHeader("Cache-Control", "no-cache");
+        return false;
+    }
+
+    static boolean isAllowed(final SlingHttpServletRequest request) {
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+        if (!(session instanceof JackrabbitSession)) {
+            return false;
+        }
+        try {
+            final Authorizable authorizable = ((JackrabbitSession) session).getUserManager()
+                    .getAuthorizable(session.getUserID());
+            if (!(authorizable instanceof User) || ((User) authorizable).isDisabled()) {
+                return false;
+            }
+            if (((User) authorizable).isAdmin()) {
+                return true;
+            }
+            for (Iterator<Group> groups = authorizable.memberOf(); groups.hasNext();) {
+                if (GROUP.equals(groups.next().getID())) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            LOG.warn("Could not resolve the group membership of {}", session.getUserID(), e);
+        }
+        return false;
+    }
+}
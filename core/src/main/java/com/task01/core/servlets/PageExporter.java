@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.api.Page;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Streams a page tree as newline delimited JSON, one line per page, in
+ * depth first pre-order. Only the iterators along the current path are
+ * held in memory, so the tree size is bounded by the budget alone.
+ * <p>
+ * When the budget is used up before the tree is done, a last line
+ * <code>{"resume":"token"}</code> is written. Passing the token to the
+ * next export continues right after the last exported page.
+ */
+class PageExporter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // lines written between two flushes of the response
+    private static final int FLUSH_INTERVAL = 100;
+
+    /**
+     * Callback to push written lines to the client.
+     */
+    interface Flusher {
+        void flush() throws IOException;
+    }
+
+    private final Page root;
+
+    private final int budget;
+
+    PageExporter(final Page root, final int budget) {
+        this.root = root;
+        this.budget = budget;
+    }
+
+    /**
+     * @param token token written by an earlier export
+     * @return path of the last page exported before, or <code>null</code> if the
+     *         token is malformed
+     */
+    static String decodeToken(final String token) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    static String encodeToken(final String path) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param resumeAfter path of the last page exported by the previous request, or
+     *                    <code>null</code> to start with the root; must be below the root
+     * @param out writer the lines are written to
+     * @param flusher called after every batch of lines
+     * @return number of pages written
+     * @throws IOException if writing fails
+     */
+    int export(final String resumeAfter, final Writer out, final Flusher flusher) throws IOException {
+        final Deque<Iterator<Page>> stack = new ArrayDeque<>();
+        int count = 0;
+        String last = null;
+        try (JsonGenerator json = JSON.createGenerator(out)) {
+            json.setRootValueSeparator(null);
+            if (resumeAfter == null) {
+                write(json, root);
+                count++;
+                last = root.getPath();
+                stack.push(root.listChildren());
+            } else {
+                descend(stack, resumeAfter);
+                last = resumeAfter;
+            }
+
+            while (!stack.isEmpty()) {
+                final Iterator<Page> children = stack.peek();
+                if (!children.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                if (count >= budget) {
+                    json.writeStartObject();
+                    json.writeStringField("resume", encodeToken(last));
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                    break;
+                }
+                final Page page = children.next();
+                write(json, page);
+                count++;
+                last = page.getPath();
+                stack.push(page.listChildren());
+                if (count % FLUSH_INTERVAL == 0) {
+                    json.flush();
+                    flusher.flush();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Positions the iterators right behind the given page: siblings before
+     * each ancestor were exported in an earlier request and are skipped
+     * without descending into them. If a page on the path was deleted in
+     * the meantime, the remaining children of its parent are skipped.
+     */
+    private void descend(final Deque<Iterator<Page>> stack, final String resumeAfter) {
+        stack.push(root.listChildren());
+        final String relative = resumeAfter.substring(root.getPath().length() + 1);
+        for (String name : relative.split("/")) {
+            final Iterator<Page> children = stack.peek();
+            Page match = null;
+            while (children.hasNext()) {
+                final Page child = children.next();
+                if (child.getName().equals(name)) {
+                    match = child;
+                    break;
+                }
+            }
+            if (match == null) {
+                return;
+            }
+            stack.push(match.listChildren());
+        }
+    }
+
+    private static void write(final JsonGenerator json, final Page page) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("path", page.getPath());
+        json.writeStringField("title", page.getTitle());
+        final Calendar lastModified = page.getLastModified();
+        json.writeStringField("lastModified", lastModified != null ? lastModified.toInstant().toString() : null);
+        json.writeStringField("template", page.getProperties().get(NameConstants.PN_TEMPLATE, String.class));
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+}
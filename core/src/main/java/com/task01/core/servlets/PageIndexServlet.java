@@ -0,0 +1,156 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.task01.core.index.PageIndex;
+import com.task01.core.index.PageInfo;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Servlet that answers page lookups from the {@link PageIndex} as JSON.
+ * <ul>
+ * <li><code>?path=/content/site</code> returns the page and its child pages</li>
+ * <li><code>?template=/conf/site/templates/page&amp;limit=100</code> returns
+ * pages using the template</li>
+ * <li><code>?containing=/content/site/jcr:content/par</code> returns the
+ * page containing a resource</li>
+ * </ul>
+ * Pages the requesting session cannot read are left out of the results.
+ */
+@Component(service = { Servlet.class },
+           property = {
+                   "sling.servlet.methods=" + HttpConstants.METHOD_GET
+           })
+@SlingServletPaths("/bin/task01/pages")
+@ServiceDescription("Page index lookup servlet")
+public class PageIndexServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+
+    @Reference
+    private transient PageIndex index;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest req,
+            final SlingHttpServletResponse resp) throws IOException {
+        if (!index.isReady()) {
+            resp.setHeader("Retry-After", "10");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "page index is being built");
+            return;
+        }
+        final String path = req.getParameter("path");
+        final String template = req.getParameter("template");
+        final String containing = req.getParameter("containing");
+        if (path == null && template == null && containing == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "one of path, template or containing is required");
+            return;
+        }
+        int limit = DEFAULT_LIMIT;
+        final String limitParameter = req.getParameter("limit");
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit <= 0 || limit > MAX_LIMIT) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "limit must be between 1 and " + MAX_LIMIT);
+                return;
+            }
+        }
+
+        final ResourceResolver resolver = req.getResourceResolver();
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        try (JsonGenerator json = JSON.createGenerator(resp.getWriter())) {
+            json.writeStartObject();
+            if (path != null) {
+                final PageInfo page = index.getPage(path);
+                json.writeFieldName("page");
+                if (page != null && isReadable(resolver, page)) {
+                    write(json, page);
+                } else {
+                    json.writeNull();
+                }
+                write(json, "children", index.getChildren(path), limit, resolver);
+            }
+            if (template != null) {
+                write(json, "pages", index.getPagesByTemplate(template, limit), limit, resolver);
+            }
+            if (containing != null) {
+                final String pagePath = index.getContainingPagePath(containing);
+                if (pagePath != null && !pagePath.isEmpty() && resolver.getResource(pagePath) != null) {
+                    json.writeStringField("containingPage", pagePath);
+                } else {
+                    json.writeNullField("containingPage");
+                }
+            }
+            json.writeEndObject();
+        }
+    }
+
+    private static void write(final JsonGenerator json, final String name, final List<PageInfo> pages,
+            final int limit, final ResourceResolver resolver) throws IOException {
+        json.writeArrayFieldStart(name);
+        int written = 0;
+        for (PageInfo page : pages) {
+            if (written == limit) {
+                break;
+            }
+            if (isReadable(resolver, page)) {
+                write(json, page);
+                written++;
+            }
+        }
+        json.writeEndArray();
+    }
+
+    private static void write(final JsonGenerator json, final PageInfo page) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("path", page.getPath());
+        json.writeStringField("title", page.getTitle());
+        json.writeStringField("template", page.getTemplate());
+        if (page.getLastModified() >= 0) {
+            json.writeNumberField("lastModified", page.getLastModified());
+        }
+        json.writeEndObject();
+    }
+
+    private static boolean isReadable(final ResourceResolver resolver, final PageInfo page) {
+        return resolver.getResource(page.getPath()) != null;
+    }
+}
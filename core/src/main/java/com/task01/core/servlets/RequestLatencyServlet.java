@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.task01.core.metrics.LatencyHistogram;
+import com.task01.core.metrics.RequestLatencyStats;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletPaths;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+
+import javax.servlet.Servlet;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Servlet that exposes the request latency histograms as JSON. Latencies are
+ * reported in microseconds. Restricted to the monitoring group, see
+ * {@link MonitoringAccess}.
+ */
+@Component(service = { Servlet.class },
+           property = {
+                   "sling.servlet.methods=" + HttpConstants.METHOD_GET,
+                   "sling.auth.requirements=+/bin/task01/latency"
+           })
+@SlingServletPaths("/bin/task01/latency")
+@ServiceDescription("Request latency statistics servlet")
+public class RequestLatencyServlet extends SlingSafeMethodsServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    @Reference
+    private transient RequestLatencyStats stats;
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest req,
+            final SlingHttpServletResponse resp) throws IOException {
+        if (!MonitoringAccess.check(req, resp)) {
+            return;
+        }
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        try (JsonGenerator json = JSON.createGenerator(resp.getWriter())) {
+            json.writeStartObject();
+            json.writeFieldName("overall");
+            write(json, stats.getOverall());
+            write(json, "resourceTypes", stats.getByResourceType());
+            write(json, "selectorsAndExtensions", stats.getBySelectorAndExtension());
+            json.writeEndObject();
+        }
+    }
+
+    private static void write(final JsonGenerator json, final String name,
+            final Map<String, LatencyHistogram> histograms) throws IOException {
+        json.writeObjectFieldStart(name);
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            json.writeFieldName(entry.getKey());
+            write(json, entry.getValue());
+        }
+        json.writeEndObject();
+    }
+
+    private static void write(final JsonGenerator json, final LatencyHistogram histogram) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("count", histogram.getCount());
+        json.writeNumberField("mean", histogram.getMean());
+        json.writeNumberField("p50", histogram.getValueAtPercentile(50));
+        json.writeNumberField("p99", histogram.getValueAtPercentile(99));
+        json.writeNumberField("p999", histogram.getValueAtPercentile(99.9));
+        json.writeNumberField("max", histogram.getMax());
+        json.writeEndObject();
+    }
+}
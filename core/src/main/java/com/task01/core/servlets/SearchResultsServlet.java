@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import com.day.cq.wcm.api.NameConstants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.task01.core.search.SearchHit;
+import com.task01.core.search.SearchIndex;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.servlets.HttpConstants;
+import org.apache.sling.api.servlets.OptingServlet;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.component.propertytypes.ServiceRanking;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Answers the requests of the search component from the {@link SearchIndex}
+ * instead of a repository query. It takes the place of the core component
+ * servlet for <code>/content/site/page.searchresults.json/root/search?fulltext=shoes&amp;resultsOffset=10</code>,
+ * where the suffix is the search component within the page content, and
+ * returns the same JSON array of results.
+ * <p>
+ * Search root, results size and minimum term length are taken from the
+ * search component. Pages the requesting session cannot read are left out
+ * of the results. Until the index is built, requests are left to the core
+ * component servlet.
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+        resourceTypes = SearchResultsServlet.PAGE_RESOURCE_TYPE,
+        selectors = SearchResultsServlet.SELECTOR,
+        extensions = "json",
+        methods = HttpConstants.METHOD_GET)
+@ServiceDescription("Search results from the in-memory search index")
+@ServiceRanking(100)
+public class SearchResultsServlet extends SlingSafeMethodsServlet implements OptingServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // resource type of cq:Page nodes, the one the core component servlet is bound to
+    static final String PAGE_RESOURCE_TYPE = "cq/Page";
+    static final String SELECTOR = "searchresults";
+
+    static final String PARAM_FULLTEXT = "fulltext";
+    static final String PARAM_RESULTS_OFFSET = "resultsOffset";
+
+    static final String PN_SEARCH_ROOT = "searchRoot";
+    static final String PN_RESULTS_SIZE = "resultsSize";
+    static final String PN_SEARCH_TERM_MINIMUM_LENGTH = "searchTermMinimumLength";
+
+    static final String DEFAULT_SEARCH_ROOT = "/content";
+    static final int DEFAULT_RESULTS_SIZE = 10;
+    static final int DEFAULT_SEARCH_TERM_MINIMUM_LENGTH = 3;
+    static final int MAX_RESULTS = 1000;
+
+    @Reference
+    private transient SearchIndex index;
+
+    @Override
+    public boolean accepts(final SlingHttpServletRequest req) {
+        return index.isReady();
+    }
+
+    @Override
+    protected void doGet(final SlingHttpServletRequest req,
+            final SlingHttpServletResponse resp) throws IOException {
+        final ValueMap properties = getSearchProperties(req);
+        final String fulltext = req.getParameter(PARAM_FULLTEXT);
+        final int minimumLength = properties.get(PN_SEARCH_TERM_MINIMUM_LENGTH, DEFAULT_SEARCH_TERM_MINIMUM_LENGTH);
+        final int size = Math.min(MAX_RESULTS, Math.max(1, properties.get(PN_RESULTS_SIZE, DEFAULT_RESULTS_SIZE)));
+        int offset = 0;
+        final String offsetParameter = req.getParameter(PARAM_RESULTS_OFFSET);
+        if (offsetParameter != null) {
+            try {
+                offset = Integer.parseInt(offsetParameter);
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0 || offset > MAX_RESULTS) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "resultsOffset must be between 0 and " + MAX_RESULTS);
+                return;
+            }
+        }
+
+        final ResourceResolver resolver = req.getResourceResolver();
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        try (JsonGenerator json = JSON.createGenerator(resp.getWriter())) {
+            json.writeStartArray();
+            if (fulltext != null && fulltext.trim().length() >= minimumLength) {
+                final String root = properties.get(PN_SEARCH_ROOT, DEFAULT_SEARCH_ROOT);
+                // unreadable pages are skipped after ranking, fetch some spare hits
+                final List<SearchHit> hits = index.search(fulltext, root, Math.min(MAX_RESULTS, (offset + size) * 2));
+                int skipped = 0;
+                int written = 0;
+                for (SearchHit hit : hits) {
+                    if (written == size) {
+                        break;
+                    }
+                    if (resolver.getResource(hit.getPath()) == null) {
+                        continue;
+                    }
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    write(json, req, hit);
+                    written++;
+                }
+            }
+            json.writeEndArray();
+        }
+    }
+
+    /**
+     * @return properties of the search component named by the suffix, empty if there is none
+     */
+    private static ValueMap getSearchProperties(final SlingHttpServletRequest req) {
+        final String suffix = req.getRequestPathInfo().getSuffix();
+        if (suffix != null) {
+            final Resource search = req.getResourceResolver().getResource(
+                    req.getResource().getPath() + "/" + NameConstants.NN_CONTENT + (suffix.startsWith("/") ? "" : "/") + suffix);
+            if (search != null) {
+                return search.getValueMap();
+            }
+        }
+        return ValueMap.EMPTY;
+    }
+
+    private static void write(final JsonGenerator json, final SlingHttpServletRequest req, final SearchHit hit)
+            throws IOException {
+        json.writeStartObject();
+        json.writeStringField("url", req.getContextPath() + hit.getPath() + ".html");
+        json.writeStringField("title", hit.getTitle() != null
+                ? hit.getTitle() : hit.getPath().substring(hit.getPath().lastIndexOf('/') + 1));
+        if (hit.getDescription() != null) {
+            json.writeStringField("description", hit.getDescription());
+        }
+        json.writeStringField("path", hit.getPath());
+        json.writeEndObject();
+    }
+}
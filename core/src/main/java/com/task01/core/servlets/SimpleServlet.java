@@ -16,41 +16,191 @@
 package com.task01.core.servlets;
 
 import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import com.task01.core.cache.CachedRender;
+import com.task01.core.cache.RenderCache;
+import com.task01.core.index.PageIndex;
+import com.task01.core.index.PageInfo;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.HttpConstants;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.component.propertytypes.ServiceDescription;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
 
 /**
  * Servlet that writes some sample content into the response. It is mounted for
  * all resources of a specific Sling resource type. The
  * {@link SlingSafeMethodsServlet} shall be used for HTTP methods that are
  * idempotent. For write operations use the {@link SlingAllMethodsServlet}.
+ * Rendered output is kept in the {@link RenderCache} when available, unless
+ * the resource changed while it was rendered, and conditional requests are
+ * answered with 304 responses. The title of a
+ * page content resource is taken from the {@link PageIndex} when it is
+ * available, without reading the resource. Those renders are not cached:
+ * the index applies changes after the render cache has dropped them, so a
+ * cached render could keep the old title.
+ * <p>
+ * With the selector <code>export</code> and extension <code>ndjson</code>
+ * the page and its subtree are streamed as one JSON line per page, see
+ * {@link PageExporter}. The request parameter <code>budget</code> limits
+ * the number of pages, <code>resume</code> continues an earlier export.
  */
 @Component(service = { Servlet.class })
 @SlingServletResourceTypes(
         resourceTypes="task01/components/page",
         methods=HttpConstants.METHOD_GET,
-        extensions="txt")
+        extensions={ "txt", SimpleServlet.EXPORT_EXTENSION })
 @ServiceDescription("Simple Demo Servlet")
 public class SimpleServlet extends SlingSafeMethodsServlet {
 
     private static final long serialVersionUID = 1L;
 
+    static final String EXPORT_SELECTOR = "export";
+    static final String EXPORT_EXTENSION = "ndjson";
+
+    static final int DEFAULT_EXPORT_BUDGET = 10000;
+    static final int MAX_EXPORT_BUDGET = 250000;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private transient volatile RenderCache renderCache;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL,
+               policy = ReferencePolicy.DYNAMIC,
+               policyOption = ReferencePolicyOption.GREEDY)
+    private transient volatile PageIndex pageIndex;
+
     @Override
     protected void doGet(final SlingHttpServletRequest req,
             final SlingHttpServletResponse resp) throws ServletException, IOException {
         final Resource resource = req.getResource();
+        if (EXPORT_EXTENSION.equals(req.getRequestPathInfo().getExtension())) {
+            if (Arrays.asList(req.getRequestPathInfo().getSelectors()).contains(EXPORT_SELECTOR)) {
+                export(req, resp);
+            } else {
+                resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            }
+            return;
+        }
+        final PageIndex index = pageIndex;
+        final PageInfo page = index != null ? getIndexedPage(index, resource.getPath()) : null;
+        CachedRender render;
+        if (page != null) {
+            render = render(page);
+        } else {
+            final RenderCache cache = renderCache;
+            render = cache != null ? cache.get(resource.getPath()) : null;
+            if (render == null) {
+                final long mark = cache != null ? cache.mark() : 0;
+                render = render(resource);
+                if (cache != null) {
+                    cache.put(resource.getPath(), render, mark);
+                }
+            }
+        }
+
+        resp.setHeader("ETag", render.getETag());
+        resp.setDateHeader("Last-Modified", render.getLastModified());
+        if (render.isNotModified(req.getHeader("If-None-Match"), getIfModifiedSince(req))) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
         resp.setContentType("text/plain");
-        resp.getWriter().write("Title = " + resource.getValueMap().get(JcrConstants.JCR_TITLE));
+        resp.getWriter().write(render.getBody());
+    }
+
+    private static void export(final SlingHttpServletRequest req,
+            final SlingHttpServletResponse resp) throws IOException {
+        final PageManager pageManager = req.getResourceResolver().adaptTo(PageManager.class);
+        final Page root = pageManager != null ? pageManager.getContainingPage(req.getResource()) : null;
+        if (root == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        int budget = DEFAULT_EXPORT_BUDGET;
+        final String budgetParameter = req.getParameter("budget");
+        if (budgetParameter != null) {
+            try {
+                budget = Integer.parseInt(budgetParameter);
+            } catch (NumberFormatException e) {
+                budget = -1;
+            }
+            if (budget <= 0 || budget > MAX_EXPORT_BUDGET) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "budget must be between 1 and " + MAX_EXPORT_BUDGET);
+                return;
+            }
+        }
+
+        String resumeAfter = null;
+        final String token = req.getParameter("resume");
+        if (token != null) {
+            resumeAfter = PageExporter.decodeToken(token);
+            if (resumeAfter == null || !resumeAfter.startsWith(root.getPath() + "/")) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid resume token");
+                return;
+            }
+        }
+
+        resp.setContentType("application/x-ndjson");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("Dispatcher", "no-cache");
+        new PageExporter(root, budget).export(resumeAfter, resp.getWriter(), resp::flushBuffer);
+    }
+
+    private static CachedRender render(final PageInfo page) {
+        return new CachedRender("Title = " + page.getTitle(),
+                page.getLastModified() >= 0 ? page.getLastModified() : System.currentTimeMillis());
+    }
+
+    private static CachedRender render(final Resource resource) {
+        final ValueMap properties = resource.getValueMap();
+        Calendar lastModified = properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+        if (lastModified == null) {
+            lastModified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        }
+        return new CachedRender("Title = " + properties.get(JcrConstants.JCR_TITLE),
+                lastModified != null ? lastModified.getTimeInMillis() : System.currentTimeMillis());
+    }
+
+    /**
+     * @return the indexed page if the path is the content resource of a page
+     */
+    private static PageInfo getIndexedPage(final PageIndex index, final String path) {
+        final String suffix = "/" + JcrConstants.JCR_CONTENT;
+        if (!path.endsWith(suffix)) {
+            return null;
+        }
+        return index.getPage(path.substring(0, path.length() - suffix.length()));
+    }
+
+    private static long getIfModifiedSince(final SlingHttpServletRequest req) {
+        try {
+            return req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            // unparsable header, treat as absent
+            return -1;
+        }
     }
 }
@@ -0,0 +1,384 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.task01.core.listeners.CoalescedChange;
+import com.task01.core.listeners.ContentPaths;
+import com.task01.core.listeners.ResourceChangeHandler;
+
+/**
+ * Re-requests the URLs of invalidated pages through the dispatcher, so the
+ * first visitor does not pay for the render. The
+ * {@link com.task01.core.flush.DispatcherFlushAgent} reports the pages once
+ * a dispatcher acknowledged their invalidation, and only those are warmed.
+ * URLs come from the {@link HotnessTracker} and are warmed hottest first, at
+ * bounded concurrency and rate.
+ * <p>
+ * Every change or invalidation of a page bumps the generation of its URLs.
+ * A queued warm request whose generation is outdated is skipped, and a
+ * request still in flight is aborted, because the page is invalidated again.
+ */
+@Designate(ocd = CacheWarmer.Config.class)
+@Component(service = { CacheWarmer.class, ResourceChangeHandler.class })
+@ServiceDescription("Re-primes the dispatcher cache after invalidations")
+public class CacheWarmer implements ResourceChangeHandler {
+
+    @ObjectClassDefinition(name = "Task01 cache warmer",
+                           description = "Re-requests hot URLs of changed pages through the dispatcher")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Dispatcher URL",
+                             description = "Base URL warm requests are sent to, e.g. http://dispatcher:80. "
+                                     + "Nothing is warmed if empty")
+        String dispatcherUrl() default "";
+
+        @AttributeDefinition(name = "Host header",
+                             description = "Virtual host of the site, empty to use the host of the dispatcher URL")
+        String hostHeader() default "";
+
+        @AttributeDefinition(name = "Concurrency",
+                             description = "Maximum number of warm requests in flight")
+        int concurrency() default 2;
+
+        @AttributeDefinition(name = "Rate",
+                             description = "Maximum warm requests per second")
+        double requestsPerSecond() default 10;
+
+        @AttributeDefinition(name = "Maximum URLs per batch",
+                             description = "Only the hottest URLs of a change batch are warmed")
+        int maxUrlsPerBatch() default 200;
+
+        @AttributeDefinition(name = "Timeout",
+                             description = "Connect and read timeout in milliseconds")
+        int timeoutMillis() default 10000;
+    }
+
+    /**
+     * Marks warm requests, so they are not counted as visitor hits.
+     */
+    public static final String WARMUP_HEADER = "X-Task01-Warmup";
+
+    private static final class Task implements Comparable<Task> {
+
+        final String uri;
+        final long generation;
+        final double score;
+
+        Task(final String uri, final long generation, final double score) {
+            this.uri = uri;
+            this.generation = generation;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(final Task other) {
+            return Double.compare(other.score, score);
+        }
+    }
+
+    /**
+     * Generation of a URL and the number of its scheduled, queued or running
+     * warm requests.
+     */
+    private static final class Pending {
+
+        final long generation;
+        final int tasks;
+
+        Pending(final long generation, final int tasks) {
+            this.generation = generation;
+            this.tasks = tasks;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Reference
+    private HotnessTracker tracker;
+
+    // only URLs with outstanding warm requests, a generation is irrelevant once nothing waits for the URL
+    private final Map<String, Pending> generations = new ConcurrentHashMap<>();
+
+    private final Map<String, HttpGet> inFlight = new ConcurrentHashMap<>();
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+
+    private final LongAdder warmed = new LongAdder();
+    private final LongAdder superseded = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private String baseUrl;
+    private String hostHeader;
+    private int maxUrlsPerBatch;
+    private TokenBucket rateLimit;
+    private CloseableHttpClient http;
+    private ExecutorService workers;
+
+    @Activate
+    protected void activate(final Config config) {
+        final String url = config.dispatcherUrl() != null ? config.dispatcherUrl().trim() : "";
+        if (url.isEmpty()) {
+            return;
+        }
+        baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        hostHeader = config.hostHeader() != null && !config.hostHeader().isEmpty() ? config.hostHeader() : null;
+        maxUrlsPerBatch = config.maxUrlsPerBatch() > 0 ? config.maxUrlsPerBatch() : 200;
+        final int concurrency = config.concurrency() > 0 ? config.concurrency() : 2;
+        rateLimit = new TokenBucket(config.requestsPerSecond() > 0 ? config.requestsPerSecond() : 10, concurrency);
+        final int timeout = config.timeoutMillis() > 0 ? config.timeoutMillis() : 10000;
+        http = HttpClients.custom()
+                .setMaxConnTotal(concurrency)
+                .setMaxConnPerRoute(concurrency)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .build())
+                .build();
+
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(concurrency, runnable -> {
+            final Thread thread = new Thread(runnable, "task01-cache-warmer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < concurrency; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (workers != null) {
+            workers.shutdownNow();
+            inFlight.values().forEach(HttpGet::abort);
+            try {
+                http.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the http client", e);
+            }
+            workers = null;
+        }
+        queue.clear();
+        generations.clear();
+    }
+
+    /**
+     * Cancels the pending warm requests of changed pages, the dispatcher
+     * still serves them until the change is flushed.
+     */
+    @Override
+    public void handleChanges(final List<CoalescedChange> changes) {
+        if (workers == null) {
+            return;
+        }
+        for (CoalescedChange change : changes) {
+            final String page = ContentPaths.getPagePath(change.getPath());
+            for (String uri : tracker.getUris(page, change.isSubtree())) {
+                supersede(uri);
+            }
+        }
+    }
+
+    /**
+     * Warms the URLs of pages a dispatcher acknowledged the invalidation of.
+     * @param pages page path -> whether everything below the page was invalidated as well
+     */
+    public void invalidated(final Map<String, Boolean> pages) {
+        if (workers == null) {
+            return;
+        }
+        final Set<String> uris = new LinkedHashSet<>();
+        for (Map.Entry<String, Boolean> page : pages.entrySet()) {
+            for (String uri : tracker.getUris(page.getKey(), page.getValue())) {
+                supersede(uri);
+                uris.add(uri);
+            }
+        }
+        if (uris.isEmpty()) {
+            return;
+        }
+
+        final List<Task> tasks = new ArrayList<>(uris.size());
+        for (String uri : uris) {
+            tasks.add(new Task(uri, register(uri), tracker.getScore(uri)));
+        }
+        tasks.sort(null);
+        if (tasks.size() > maxUrlsPerBatch) {
+            truncated.add(tasks.size() - maxUrlsPerBatch);
+            final List<Task> dropped = tasks.subList(maxUrlsPerBatch, tasks.size());
+            dropped.forEach(this::release);
+            dropped.clear();
+        }
+        // hottest first, so a worker that picks up a task while the batch is added gets the right one
+        queue.addAll(tasks);
+    }
+
+    /**
+     * @return number of URLs warmed successfully
+     */
+    public long getWarmedCount() {
+        return warmed.sum();
+    }
+
+    /**
+     * @return number of warm requests skipped or aborted because a newer change superseded them
+     */
+    public long getSupersededCount() {
+        return superseded.sum();
+    }
+
+    /**
+     * @return number of URLs not warmed because of the per batch limit
+     */
+    public long getTruncatedCount() {
+        return truncated.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of URLs with outstanding warm requests
+     */
+    int getPendingUrlCount() {
+        return generations.size();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private void supersede(final String uri) {
+        generations.computeIfPresent(uri, (key, pending) -> new Pending(pending.generation + 1, pending.tasks));
+        final HttpGet running = inFlight.get(uri);
+        if (running != null) {
+            running.abort();
+        }
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Task task = queue.take();
+                try {
+                    if (isSuperseded(task)) {
+                        continue;
+                    }
+                    rateLimit.acquire();
+                    if (!isSuperseded(task)) {
+                        warm(task);
+                    }
+                } finally {
+                    release(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts a new warm request for the URL.
+     * @return the generation the request belongs to
+     */
+    private long register(final String uri) {
+        return generations.compute(uri, (key, pending) -> pending == null
+                ? new Pending(0, 1)
+                : new Pending(pending.generation, pending.tasks + 1)).generation;
+    }
+
+    /**
+     * Counts a warm request of the URL as done and forgets the URL with its last request.
+     */
+    private void release(final Task task) {
+        generations.computeIfPresent(task.uri, (key, pending) -> pending.tasks > 1
+                ? new Pending(pending.generation, pending.tasks - 1)
+                : null);
+    }
+
+    private boolean isSuperseded(final Task task) {
+        final Pending current = generations.get(task.uri);
+        if (current != null && current.generation != task.generation) {
+            superseded.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void warm(final Task task) {
+        final HttpGet get = new HttpGet(baseUrl + task.uri);
+        get.setHeader(WARMUP_HEADER, "1");
+        if (hostHeader != null) {
+            get.setHeader("Host", hostHeader);
+        }
+        inFlight.put(task.uri, get);
+        try (CloseableHttpResponse response = http.execute(get)) {
+            EntityUtils.consume(response.getEntity());
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == 200) {
+                warmed.increment();
+            } else {
+                failed.increment();
+                logger.debug("Warming {} returned {}", task.uri, status);
+            }
+        } catch (IOException e) {
+            if (get.isAborted()) {
+                superseded.increment();
+            } else {
+                failed.increment();
+                logger.debug("Warming {} failed", task.uri, e);
+            }
+        } finally {
+            inFlight.remove(task.uri, get);
+        }
+    }
+}
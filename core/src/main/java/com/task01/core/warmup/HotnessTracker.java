@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2015 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.LongSupplier;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.propertytypes.ServiceDescription;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import com.task01.core.listeners.ContentPaths;
+
+/**
+ * Keeps an exponentially decaying request count per URL, grouped by the
+ * page the URL renders. Hits are weighted with forward decay: a hit at time
+ * t adds <code>exp(lambda * (t - landmark))</code>, which makes scores of
+ * all URLs comparable at any time without ever touching idle entries.
+ */
+@Designate(ocd = HotnessTracker.Config.class)
+@Component(service = HotnessTracker.class)
+@ServiceDescription("Decaying request counts per URL")
+public class HotnessTracker {
+
+    @ObjectClassDefinition(name = "Task01 URL hotness tracker",
+                           description = "Decaying request counts per URL, used to rank cache warming")
+    public static @interface Config {
+
+        @AttributeDefinition(name = "Paths",
+                             description = "Only requests for resources below these paths are tracked")
+        String[] paths() default { "/content" };
+
+        @AttributeDefinition(name = "Maximum URLs",
+                             description = "The coldest URLs are dropped beyond this number")
+        int maxTracked() default 20000;
+
+        @AttributeDefinition(name = "Half-life",
+                             description = "Seconds after which a hit counts half")
+        long halfLifeSeconds() default 900;
+    }
+
+    // exponent beyond which all weights are rescaled, exp(600) is still far from overflow
+    private static final double RENORMALIZE_EXPONENT = 600;
+
+    private static final class Entry {
+
+        final String pagePath;
+        final DoubleAdder weight = new DoubleAdder();
+
+        Entry(final String pagePath) {
+            this.pagePath = pagePath;
+        }
+    }
+
+    private final Map<String, Entry> byUri = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> uriByPage = new ConcurrentHashMap<>();
+
+    // visible for testing
+    LongSupplier clock = System::currentTimeMillis;
+
+    private String[] paths = { "/content" };
+
+    private int maxTracked = 20000;
+
+    private double lambda = Math.log(2) / 900000;
+
+    private volatile long landmark = System.currentTimeMillis();
+
+    @Activate
+    @Modified
+    protected void activate(final Config config) {
+        paths = config.paths() != null ? config.paths() : new String[0];
+        maxTracked = Math.max(1, config.maxTracked());
+        lambda = Math.log(2) / (Math.max(1, config.halfLifeSeconds()) * 1000.0);
+        landmark = clock.getAsLong();
+    }
+
+    /**
+     * Counts a request.
+     * @param resourcePath path of the requested resource
+     * @param uri request URI as seen by the dispatcher, without query
+     */
+    public void record(final String resourcePath, final String uri) {
+        if (!ContentPaths.isIncluded(paths, resourcePath)) {
+            return;
+        }
+        Entry entry = byUri.get(uri);
+        if (entry == null) {
+            if (byUri.size() >= maxTracked) {
+                prune();
+            }
+            final String page = ContentPaths.getPagePath(resourcePath);
+            entry = byUri.computeIfAbsent(uri, key -> new Entry(page));
+            uriByPage.computeIfAbsent(entry.pagePath, key -> ConcurrentHashMap.newKeySet()).add(uri);
+        }
+        final double exponent = lambda * (clock.getAsLong() - landmark);
+        if (exponent > RENORMALIZE_EXPONENT) {
+            renormalize();
+            entry.weight.add(Math.exp(lambda * (clock.getAsLong() - landmark)));
+        } else {
+            entry.weight.add(Math.exp(exponent));
+        }
+    }
+
+    /**
+     * @param uri request URI
+     * @return decayed number of requests, 0 for unknown URLs
+     */
+    public double getScore(final String uri) {
+        final Entry entry = byUri.get(uri);
+        return entry == null ? 0 : entry.weight.sum() * Math.exp(-lambda * (clock.getAsLong() - landmark));
+    }
+
+    /**
+     * @param pagePath page path
+     * @param subtree whether URLs of pages below the page are included
+     * @return the tracked URLs rendering the page, hottest first
+     */
+    public List<String> getUris(final String pagePath, final boolean subtree) {
+        final List<String> result = new ArrayList<>();
+        if (subtree) {
+            for (Map.Entry<String, Set<String>> page : uriByPage.entrySet()) {
+                if (ContentPaths.isSameOrDescendant(pagePath, page.getKey())) {
+                    result.addAll(page.getValue());
+                }
+            }
+        } else {
+            result.addAll(uriByPage.getOrDefault(pagePath, Collections.emptySet()));
+        }
+        // weights share the landmark, so they order the same as the decayed scores
+        final Map<String, Double> weights = new HashMap<>(result.size() * 2);
+        for (String uri : result) {
+            final Entry entry = byUri.get(uri);
+            weights.put(uri, entry != null ? entry.weight.sum() : 0);
+        }
+        result.sort((a, b) -> Double.compare(weights.get(b), weights.get(a)));
+        return result;
+    }
+
+    public int size() {
+        return byUri.size();
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * Drops the coldest tenth of the URLs.
+     */
+    private synchronized void prune() {
+        if (byUri.size() < maxTracked) {
+            return;
+        }
+        final List<Map.Entry<String, Entry>> entries = new ArrayList<>(byUri.entrySet());
+        entries.sort((a, b) -> Double.compare(a.getValue().weight.sum(), b.getValue().weight.sum()));
+        final int drop = Math.max(1, entries.size() / 10);
+        for (int i = 0; i < drop; i++) {
+            final String uri = entries.get(i).getKey();
+            final Entry entry = byUri.remove(uri);
+            if (entry != null) {
+                final Set<String> uris = uriByPage.get(entry.pagePath);
+                if (uris != null) {
+                    uris.remove(uri);
+                    if (uris.isEmpty()) {
+                        uriByPage.remove(entry.pagePath, uris);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the landmark to now and scales all weights accordingly. Hits
+     * recorded concurrently may be weighted against the old landmark, which
+     * only affects their score marginally.
+     */
+    private synchronized void renormalize() {
+        final long now = clock.getAsLong();
+        if (lambda * (now - landmark) <= RENORMALIZE_EXPONENT) {
+            // already done by another thread
+            return;
+        }
+        final double factor = Math.exp(-lambda * (now - landmark));
+        for (Entry entry : byUri.values()) {
+            final double weight = entry.weight.sumThenReset();
+            entry.weight.add(weight * factor);
+        }
+        landmark = now;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.listeners.CoalescedChange;
+
+@ExtendWith(AemContextExtension.class)
+class ChangeRateTrackerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    private ChangeRateTracker tracker;
+
+    @BeforeEach
+    void setup(AemContext context) {
+        tracker = new ChangeRateTracker();
+        tracker.clock = now::get;
+        context.registerInjectActivateService(tracker);
+        now.addAndGet(TimeUnit.DAYS.toMillis(1));
+    }
+
+    @Test
+    void burstsMakeSubtreeVolatile() {
+        for (int i = 0; i < 20; i++) {
+            change("/content/site/en/news/article/jcr:content", false);
+            now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+        }
+
+        // about one change a minute while the burst lasts
+        assertTrue(1 / tracker.getRate("/content/site/en/news/other") < 120);
+        // untouched subtrees settle at one change per mean lifetime of about 8.7 hours
+        assertEquals(29_000, 1 / tracker.getRate("/content/site/en/about/team"), 1_000);
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    void subtreeChangesAffectDescendants() {
+        double before = tracker.getRate("/content/site/en/about/team/jcr:content");
+        change("/content/site/en", true);
+        change("/content/site/de/jcr:content", false);
+
+        assertTrue(tracker.getRate("/content/site/en/about/team/jcr:content") > before);
+        assertEquals(before, tracker.getRate("/content/site/de/about/team"), before * 1e-6);
+    }
+
+    @Test
+    void countsChangesAgainstSubtreeAncestor() {
+        assertEquals("/content/site/en/news", tracker.getSubtree("/content/site/en/news/article/2020"));
+        assertEquals("/content/site", tracker.getSubtree("/content/site"));
+    }
+
+    private void change(String path, boolean subtree) {
+        tracker.handleChanges(Collections.singletonList(
+                new CoalescedChange(path, EnumSet.of(ChangeType.CHANGED), subtree, false)));
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.cache;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+class PathLruCacheTest {
+
+    private final PathLruCache<String> fixture = new PathLruCache<>(3);
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        fixture.put("/content/a", "a");
+        fixture.put("/content/b", "b");
+        fixture.put("/content/c", "c");
+        fixture.get("/content/a");
+        fixture.put("/content/d", "d");
+
+        assertAll(
+                () -> assertEquals("a", fixture.get("/content/a")),
+                () -> assertNull(fixture.get("/content/b")),
+                () -> assertEquals(3, fixture.size()),
+                () -> assertEquals(1, fixture.getEvictions())
+        );
+    }
+
+    @Test
+    void invalidatesSubtreeOnly() {
+        fixture.put("/content/a", "a");
+        fixture.put("/content/a/jcr:content", "a content");
+        fixture.put("/content/ab", "ab");
+
+        assertEquals(2, fixture.invalidate("/content/a"));
+        assertAll(
+                () -> assertNull(fixture.get("/content/a")),
+                () -> assertNull(fixture.get("/content/a/jcr:content")),
+                () -> assertEquals("ab", fixture.get("/content/ab"))
+        );
+    }
+}
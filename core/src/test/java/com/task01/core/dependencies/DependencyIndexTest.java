@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(AemContextExtension.class)
+class DependencyIndexTest {
+
+    private DependencyIndex index;
+
+    @BeforeEach
+    void setup(AemContext context) {
+        index = context.registerInjectActivateService(new DependencyIndex(), "maxPages", 3);
+        index.record("/content/site/en", Arrays.asList("/content/site/en", "/content/site/en/jcr:content",
+                "/content/experience-fragments/site/header/master/jcr:content", "/apps/task01/components/page"));
+        index.record("/content/site/en/about", Arrays.asList("/content/site/en/about/jcr:content",
+                "/content/site/en", "/content/experience-fragments/site/header/master/jcr:content"));
+    }
+
+    @Test
+    void mapsChangesToDependentPages() {
+        assertEquals(new HashSet<>(Arrays.asList("/content/site/en", "/content/site/en/about")),
+                index.getAffectedPages(change("/content/experience-fragments/site/header/master/jcr:content", ChangeType.CHANGED, false)));
+        assertEquals(Collections.singleton("/content/site/en/about"),
+                index.getAffectedPages(change("/content/site/en/about/jcr:content", ChangeType.CHANGED, false)));
+        // a new child shows up in the listings of renders that read the parent
+        assertEquals(new HashSet<>(Arrays.asList("/content/site/en", "/content/site/en/about")),
+                index.getAffectedPages(change("/content/site/en/contact", ChangeType.ADDED, false)));
+        assertEquals(new HashSet<>(Arrays.asList("/content/site/en", "/content/site/en/about")),
+                index.getAffectedPages(change("/content/experience-fragments", ChangeType.CHANGED, true)));
+        assertEquals(Collections.emptySet(),
+                index.getAffectedPages(change("/apps/task01/components/page", ChangeType.CHANGED, false)));
+        assertEquals(4, index.getDependencyCount());
+    }
+
+    @Test
+    void renderReplacesDependencies() {
+        index.record("/content/site/en/about", Arrays.asList("/content/site/en/about/jcr:content"));
+        index.record("/content/site/en/about", Arrays.asList("/content/site/en/about/jcr:content"));
+
+        assertEquals(Collections.singleton("/content/site/en"),
+                index.getAffectedPages(change("/content/experience-fragments/site/header/master/jcr:content", ChangeType.CHANGED, false)));
+        assertEquals(Arrays.asList("/content/site/en/about/jcr:content"), index.getDependencies("/content/site/en/about"));
+        assertEquals(3, index.getRecordedCount());
+        assertEquals(1, index.getUnchangedCount());
+    }
+
+    @Test
+    void forgetsRemovedPagesAndLimitsSize() {
+        index.record("/content/site/de", Arrays.asList("/content/site/de/jcr:content"));
+        index.record("/content/site/fr", Arrays.asList("/content/site/fr/jcr:content"));
+        assertEquals(3, index.size());
+        assertEquals(1, index.getRejectedCount());
+
+        index.handleChanges(Collections.singletonList(change("/content/site/en", ChangeType.REMOVED, true)));
+        index.record("/content/site/fr", Arrays.asList("/content/site/fr/jcr:content"));
+
+        assertEquals(2, index.size());
+        assertEquals(Collections.singleton("/content/site/fr"),
+                index.getAffectedPages(change("/content/site/fr/jcr:content", ChangeType.CHANGED, false)));
+        assertEquals(Collections.emptySet(),
+                index.getAffectedPages(change("/content/site/en/jcr:content", ChangeType.CHANGED, false)));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.dependencies;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+@ExtendWith(AemContextExtension.class)
+class DependencyRecordingFilterTest {
+
+    private final RecordingResourceDecorator decorator = new RecordingResourceDecorator();
+
+    private DependencyIndex index;
+
+    private DependencyRecordingFilter filter;
+
+    @BeforeEach
+    void setup(AemContext context) {
+        context.create().resource("/content/site/en/jcr:content", "jcr:title", "English");
+        context.create().resource("/content/site/en/jcr:content/root");
+        context.create().resource("/content/experience-fragments/site/header/master/jcr:content");
+        context.currentResource("/content/site/en/jcr:content/root");
+        index = context.registerInjectActivateService(new DependencyIndex());
+        filter = context.registerInjectActivateService(new DependencyRecordingFilter());
+    }
+
+    @Test
+    void recordsResourcesReadWhileRendering(AemContext context) throws Exception {
+        FilterChain chain = (request, response) -> {
+            ResourceResolver resolver = context.resourceResolver();
+            decorator.decorate(resolver.getResource("/content/site/en/jcr:content"));
+            decorator.decorate(resolver.getResource("/content/experience-fragments/site/header/master/jcr:content"));
+        };
+        filter.doFilter(context.request(), context.response(), chain);
+
+        assertEquals(Arrays.asList("/content/experience-fragments/site/header/master/jcr:content",
+                "/content/site/en/jcr:content", "/content/site/en/jcr:content/root"),
+                index.getDependencies("/content/site/en"));
+        assertFalse(DependencyRecorder.isRecording());
+    }
+
+    @Test
+    void ignoresFailedRenders(AemContext context) throws Exception {
+        FilterChain chain = (request, response) -> {
+            decorator.decorate(context.resourceResolver().getResource("/content/site/en/jcr:content"));
+            ((HttpServletResponse) response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+        };
+        filter.doFilter(context.request(), context.response(), chain);
+
+        assertEquals(Collections.emptyList(), index.getDependencies("/content/site/en"));
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.cache.ChangeRateTracker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@ExtendWith(AemContextExtension.class)
+class CacheControlFilterTest {
+
+    private final FilterChain chain = (request, response) -> response.getWriter().write("<p>rendered</p>");
+
+    private CacheControlFilter filter;
+
+    @BeforeEach
+    void setup(AemContext context) {
+        context.registerInjectActivateService(new ChangeRateTracker());
+        filter = context.registerInjectActivateService(new CacheControlFilter(),
+                "minMaxAgeSeconds", 10,
+                "maxMaxAgeSeconds", 3600);
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) context.request().getRequestPathInfo();
+        pathInfo.setResourcePath("/content/site/en");
+        pathInfo.setExtension("html");
+    }
+
+    @Test
+    void setsMaxAgeFromChangeRate(AemContext context) throws Exception {
+        filter.doFilter(context.request(), context.response(), chain);
+
+        // nothing has been observed yet, so the content counts as volatile
+        assertEquals("max-age=10, s-maxage=10", context.response().getHeader("Cache-Control"));
+        assertEquals("max-age=10", context.response().getHeader("Surrogate-Control"));
+    }
+
+    @Test
+    void capsBrowserMaxAgeSeparately(AemContext context) throws Exception {
+        CacheControlFilter capped = context.registerInjectActivateService(new CacheControlFilter(),
+                "minMaxAgeSeconds", 600,
+                "maxMaxAgeSeconds", 3600,
+                "maxBrowserMaxAgeSeconds", 60);
+
+        capped.doFilter(context.request(), context.response(), chain);
+
+        assertEquals("max-age=60, s-maxage=600", context.response().getHeader("Cache-Control"));
+        assertEquals("max-age=600", context.response().getHeader("Surrogate-Control"));
+    }
+
+    @Test
+    void leavesRequestsWithCredentialsAlone(AemContext context) throws Exception {
+        context.request().addHeader("Authorization", "Basic YWRtaW46YWRtaW4=");
+
+        filter.doFilter(context.request(), context.response(), chain);
+
+        assertNull(context.response().getHeader("Cache-Control"));
+        assertNull(context.response().getHeader("Surrogate-Control"));
+    }
+
+    @Test
+    void leavesResponsesSettingCookiesAlone(AemContext context) throws Exception {
+        filter.doFilter(context.request(), context.response(), (request, response) -> {
+            ((HttpServletResponse) response).addCookie(new Cookie("visitor", "1"));
+            response.getWriter().write("personal");
+        });
+        MockSlingHttpServletResponse late = new MockSlingHttpServletResponse();
+        filter.doFilter(context.request(), late, (request, response) -> {
+            response.getWriter().write("personal");
+            ((HttpServletResponse) response).setHeader("Set-Cookie", "visitor=1");
+        });
+
+        assertNull(context.response().getHeader("Cache-Control"));
+        assertNull(context.response().getHeader("Surrogate-Control"));
+        assertEquals("private, no-cache", late.getHeader("Cache-Control"));
+        assertEquals("no-store", late.getHeader("Surrogate-Control"));
+    }
+
+    @Test
+    void stableContentIsCachedLonger(AemContext context) throws Exception {
+        AtomicLong now = new AtomicLong(1_000_000L);
+        ChangeRateTracker tracker = new ChangeRateTracker();
+        tracker.clock = now::get;
+        context.registerInjectActivateService(tracker);
+        now.addAndGet(TimeUnit.DAYS.toMillis(1));
+
+        assertEquals(3600, filter.getMaxAge(tracker, "/content/site/en"));
+    }
+
+    @Test
+    void keepsHeadersOfResponse(AemContext context) throws Exception {
+        filter.doFilter(context.request(), context.response(), (request, response) -> {
+            ((HttpServletResponse) response).setHeader("Cache-Control", "no-store");
+            response.getWriter().write("private");
+        });
+        MockSlingHttpServletResponse notFound = new MockSlingHttpServletResponse();
+        filter.doFilter(context.request(), notFound, (request, response) -> {
+            ((HttpServletResponse) response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().write("missing");
+        });
+
+        assertEquals("no-store", context.response().getHeader("Cache-Control"));
+        assertNull(context.response().getHeader("Surrogate-Control"));
+        assertNull(notFound.getHeader("Cache-Control"));
+    }
+}
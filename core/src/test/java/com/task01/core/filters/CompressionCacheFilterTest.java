@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.dependencies.DependencyRecorder;
+import com.task01.core.listeners.CoalescedChange;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(AemContextExtension.class)
+class CompressionCacheFilterTest {
+
+    private static final String BODY = "<p>rendered</p>";
+
+    private static final String FRAGMENT = "/content/experience-fragments/site/header/master/jcr:content";
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    private final FilterChain chain = (request, response) -> {
+        renders.incrementAndGet();
+        response.setContentType("text/html");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(BODY);
+    };
+
+    @Test
+    void compressesAndServesFromCache(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+
+        MockSlingHttpServletResponse first = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, "/content/site/en/jcr:content/root", "gzip, deflate"), first, chain);
+        MockSlingHttpServletResponse second = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, "/content/site/en/jcr:content/root", "gzip"), second, chain);
+
+        assertEquals(1, renders.get());
+        assertEquals(BODY, gunzip(first.getOutput()));
+        assertEquals(BODY, gunzip(second.getOutput()));
+        assertEquals("gzip", second.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", second.getHeader("Vary"));
+        assertEquals(1, filter.getHitCount());
+        assertEquals(1, filter.getStoreCount());
+    }
+
+    @Test
+    void changeInvalidatesPage(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), chain);
+        filter.handleChanges(Collections.singletonList(new CoalescedChange("/content/site/en/jcr:content/title",
+                EnumSet.of(ChangeType.CHANGED), false, false)));
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(2, renders.get());
+        assertEquals(0, filter.getHitCount());
+    }
+
+    @Test
+    void changeOfReadResourceInvalidatesEntry(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+        FilterChain readsFragment = (request, response) -> {
+            DependencyRecorder.record(FRAGMENT);
+            chain.doFilter(request, response);
+        };
+
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), readsFragment);
+        filter.handleChanges(Collections.singletonList(new CoalescedChange(FRAGMENT + "/root",
+                EnumSet.of(ChangeType.ADDED), false, false)));
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), readsFragment);
+
+        assertEquals(2, renders.get());
+        assertEquals(0, filter.getHitCount());
+    }
+
+    @Test
+    void doesNotStoreRenderOverlappingChange(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+        FilterChain changedWhileRendering = (request, response) -> {
+            DependencyRecorder.record(FRAGMENT);
+            filter.handleChanges(Collections.singletonList(new CoalescedChange(FRAGMENT,
+                    EnumSet.of(ChangeType.CHANGED), false, false)));
+            chain.doFilter(request, response);
+        };
+
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), changedWhileRendering);
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(2, renders.get());
+        assertEquals(1, filter.getDiscardedCount());
+        assertEquals(1, filter.getHitCount());
+    }
+
+    @Test
+    void doesNotStoreUncacheableResponses(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+        FilterChain noCache = (request, response) -> {
+            ((HttpServletResponse) response).setHeader("Cache-Control", "no-cache");
+            chain.doFilter(request, response);
+        };
+        FilterChain dispatcherNoCache = (request, response) -> {
+            ((HttpServletResponse) response).setHeader("Dispatcher", "no-cache");
+            chain.doFilter(request, response);
+        };
+        FilterChain maxAgeZero = (request, response) -> {
+            ((HttpServletResponse) response).setHeader("Cache-Control", "public, max-age=0");
+            chain.doFilter(request, response);
+        };
+        FilterChain setsCookie = (request, response) -> {
+            ((HttpServletResponse) response).addCookie(new Cookie("session", "1"));
+            chain.doFilter(request, response);
+        };
+
+        for (FilterChain uncacheable : Arrays.asList(noCache, noCache, dispatcherNoCache, maxAgeZero, setsCookie)) {
+            filter.doFilter(request(context, "/content/site/en", "gzip"), new MockSlingHttpServletResponse(), uncacheable);
+        }
+
+        assertEquals(5, renders.get());
+        assertEquals(0, filter.getStoreCount());
+    }
+
+    @Test
+    void passesThroughWithoutAcceptEncoding(AemContext context) throws Exception {
+        CompressionCacheFilter filter = context.registerInjectActivateService(new CompressionCacheFilter());
+
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, "/content/site/en", null), response, chain);
+        MockSlingHttpServletResponse refused = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, "/content/site/en", "gzip;q=0"), refused, chain);
+
+        assertEquals(BODY, response.getOutputAsString());
+        assertEquals(BODY, refused.getOutputAsString());
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(0, filter.getCompressedCount());
+    }
+
+    @Test
+    void passesAsynchronousWritesThroughUncompressed() throws Exception {
+        SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        ServletOutputStream raw = mock(ServletOutputStream.class);
+        when(response.getOutputStream()).thenReturn(raw);
+        when(response.getContentType()).thenReturn("text/html");
+        WriteListener listener = mock(WriteListener.class);
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+
+        CompressingResponseWrapper wrapper = new CompressingResponseWrapper(response, 1024);
+        ServletOutputStream out = wrapper.getOutputStream();
+        out.setWriteListener(listener);
+        out.write(body, 0, body.length);
+        wrapper.finish();
+
+        verify(raw).setWriteListener(listener);
+        verify(raw).write(body, 0, body.length);
+        assertFalse(out.isReady());
+        assertFalse(wrapper.isCompressed());
+        assertNull(wrapper.getCompressedBody());
+        verify(response, never()).setHeader(anyString(), anyString());
+    }
+
+    private static MockSlingHttpServletRequest request(AemContext context, String path, String acceptEncoding) {
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath(path);
+        pathInfo.setExtension("html");
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+
+    private static String gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
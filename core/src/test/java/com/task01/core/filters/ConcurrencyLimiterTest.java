@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void shedsBeyondLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 0.5, TARGET);
+
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(2, limiter.getAdmittedCount());
+        assertEquals(1, limiter.getShedCount());
+    }
+
+    @Test
+    void decreasesOncePerRoundTrip() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 0.5, TARGET);
+        long start = System.nanoTime();
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+
+        limiter.release(start, start + 2 * TARGET, false);
+        assertEquals(4, limiter.getLimit());
+        // started before the decrease, must not shrink the limit again
+        limiter.release(start, start + 3 * TARGET, false);
+        assertEquals(4, limiter.getLimit());
+
+        long later = start + 4 * TARGET;
+        assertTrue(limiter.tryAcquire());
+        limiter.release(later, later + 1, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(2, limiter.getDecreaseCount());
+    }
+
+    @Test
+    void growsWhileUsed() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10, 0.5, TARGET);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            // keeps three in flight, well above half the limit
+            limiter.release(start, start + 1, false);
+            assertTrue(limiter.tryAcquire());
+        }
+        assertEquals(5, limiter.getLimit());
+
+        limiter.release(start, start + 1, false);
+        limiter.release(start, start + 1, false);
+        limiter.release(start, start + 1, false);
+        // idle capacity does not grow the limit any further
+        assertEquals(5, limiter.getLimit());
+    }
+}
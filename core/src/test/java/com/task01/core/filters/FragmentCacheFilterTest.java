@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.day.cq.wcm.api.WCMMode;
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.dependencies.DependencyRecorder;
+import com.task01.core.listeners.CoalescedChange;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(AemContextExtension.class)
+class FragmentCacheFilterTest {
+
+    private static final String XF = "/content/site/en/jcr:content/root/xf";
+    private static final String FRAGMENT = "/content/experience-fragments/site/en/header/master";
+    private static final String BODY = "<header>rendered</header>";
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    private final FilterChain chain = (request, response) -> {
+        renders.incrementAndGet();
+        DependencyRecorder.record(FRAGMENT);
+        response.getWriter().write(BODY);
+    };
+
+    @BeforeEach
+    void setup(AemContext context) {
+        context.create().resource(XF, "sling:resourceType", "task01/components/experiencefragment");
+        context.create().resource("/content/site/en/jcr:content/root/text", "sling:resourceType", "task01/components/text");
+    }
+
+    @Test
+    void servesRepeatedIncludeFromCache(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+
+        MockSlingHttpServletResponse first = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, XF), first, chain);
+        MockSlingHttpServletResponse second = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, XF), second, chain);
+
+        assertEquals(1, renders.get());
+        assertEquals(BODY, first.getOutputAsString());
+        assertEquals(BODY, second.getOutputAsString());
+        assertEquals(1, filter.getHitCount());
+        assertEquals(1, filter.getEntryCount());
+    }
+
+    @Test
+    void replaysDependenciesIntoPageRecording(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+
+        DependencyRecorder.push();
+        try {
+            filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        } finally {
+            assertTrue(DependencyRecorder.pop().contains(FRAGMENT));
+        }
+        assertEquals(1, renders.get());
+    }
+
+    @Test
+    void changedDependencyInvalidatesFragment(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        filter.handleChanges(Collections.singletonList(new CoalescedChange(FRAGMENT,
+                EnumSet.of(ChangeType.CHANGED), false, false)));
+        assertEquals(0, filter.getEntryCount());
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(2, renders.get());
+        assertEquals(1, filter.getInvalidationCount());
+    }
+
+    @Test
+    void discardsRenderOverlappingInvalidation(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+        FilterChain editedWhileRendering = (request, response) -> {
+            chain.doFilter(request, response);
+            filter.handleChanges(Collections.singletonList(new CoalescedChange(FRAGMENT,
+                    EnumSet.of(ChangeType.CHANGED), false, false)));
+        };
+
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), editedWhileRendering);
+        assertEquals(0, filter.getEntryCount());
+        assertEquals(1, filter.getDiscardedCount());
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(2, renders.get());
+        assertEquals(1, filter.getEntryCount());
+    }
+
+    @Test
+    void doesNotCacheFragmentSettingCookie(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+        FilterChain setsCookie = (request, response) -> {
+            ((HttpServletResponse) response).addCookie(new Cookie("visitor", "1"));
+            chain.doFilter(request, response);
+        };
+
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), setsCookie);
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(2, renders.get());
+        assertEquals(0, filter.getHitCount());
+    }
+
+    @Test
+    void bypassesAuthoringAndOtherTypes(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter());
+
+        MockSlingHttpServletRequest authoring = request(context, XF);
+        WCMMode.EDIT.toRequest(authoring);
+        filter.doFilter(authoring, new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(request(context, "/content/site/en/jcr:content/root/text"), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(request(context, "/content/site/en/jcr:content/root/text"), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(3, renders.get());
+        assertEquals(0, filter.getEntryCount());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondMaximumSize(AemContext context) throws Exception {
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter(),
+                "maxBytes", 2 * 2 * (XF.length() + ".html".length() + "|/content/site/en".length() + BODY.length()));
+
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        MockSlingHttpServletRequest selected = request(context, XF);
+        ((MockRequestPathInfo) selected.getRequestPathInfo()).setSelectorString("a");
+        filter.doFilter(selected, new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(1, filter.getEntryCount());
+        assertEquals(1, filter.getEvictionCount());
+        assertTrue(filter.getSize() <= 2 * 2 * (XF.length() + ".html".length() + "|/content/site/en".length() + BODY.length()));
+    }
+
+    @Test
+    void keepsFragmentsHitSinceTheyWereStored(AemContext context) throws Exception {
+        int unit = 2 * (XF.length() + ".html".length() + "|/content/site/en".length() + BODY.length());
+        // room for the plain fragment and one with a selector
+        FragmentCacheFilter filter = context.registerInjectActivateService(new FragmentCacheFilter(),
+                "maxBytes", 2 * unit + 2 * ".a".length());
+
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(selected(context, "a"), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(selected(context, "b"), new MockSlingHttpServletResponse(), chain);
+
+        assertEquals(3, renders.get());
+        assertEquals(1, filter.getEvictionCount());
+        filter.doFilter(request(context, XF), new MockSlingHttpServletResponse(), chain);
+        filter.doFilter(selected(context, "b"), new MockSlingHttpServletResponse(), chain);
+        assertEquals(3, renders.get());
+        filter.doFilter(selected(context, "a"), new MockSlingHttpServletResponse(), chain);
+        assertEquals(4, renders.get());
+    }
+
+    private static MockSlingHttpServletRequest selected(AemContext context, String selector) {
+        MockSlingHttpServletRequest request = request(context, XF);
+        ((MockRequestPathInfo) request.getRequestPathInfo()).setSelectorString(selector);
+        return request;
+    }
+
+    private static MockSlingHttpServletRequest request(AemContext context, String path) {
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(context.resourceResolver().getResource(path));
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath(path);
+        pathInfo.setExtension("html");
+        return request;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@ExtendWith(AemContextExtension.class)
+class LoadSheddingFilterTest {
+
+    @Test
+    void shedsRequestsBeyondLimit(AemContext context) throws IOException, ServletException {
+        context.create().resource("/content/site", "sling:resourceType", "task01/components/page");
+        LoadSheddingFilter filter = context.registerInjectActivateService(new LoadSheddingFilter(),
+                "initialLimit", 1,
+                "minLimit", 1);
+        MockSlingHttpServletResponse shedResponse = new MockSlingHttpServletResponse();
+
+        // the nested request arrives while the first one is still in flight
+        FilterChain chain = (request, response) ->
+                filter.doFilter(request(context, "/content/site"), shedResponse, mock(FilterChain.class));
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        filter.doFilter(request(context, "/content/site"), response, chain);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(503, shedResponse.getStatus());
+        assertEquals("5", shedResponse.getHeader("Retry-After"));
+        assertEquals(1, filter.getShedCount());
+        assertEquals(0, filter.getLimiters().get("pages").getInFlight());
+    }
+
+    @Test
+    void backsOffOnServerErrors(AemContext context) throws IOException, ServletException {
+        context.create().resource("/content/site", "sling:resourceType", "task01/components/page");
+        LoadSheddingFilter filter = context.registerInjectActivateService(new LoadSheddingFilter(),
+                "initialLimit", 10,
+                "minLimit", 1);
+
+        FilterChain chain = (request, response) -> ((HttpServletResponse) response).sendError(500);
+        filter.doFilter(request(context, "/content/site"), new MockSlingHttpServletResponse(), chain);
+
+        ConcurrencyLimiter limiter = filter.getLimiters().get("pages");
+        assertEquals(1, limiter.getDecreaseCount());
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test
+    void classifiesByResourceType(AemContext context) {
+        LoadSheddingFilter filter = context.registerInjectActivateService(new LoadSheddingFilter(),
+                "classes", new String[] { "task01/components/page=pages", "task01/components=components" });
+
+        assertEquals("pages", filter.classify("task01/components/page"));
+        assertEquals("components", filter.classify("task01/components/helloworld"));
+        assertEquals(LoadSheddingFilter.DEFAULT_CLASS, filter.classify("sling/servlet/default"));
+        assertEquals(LoadSheddingFilter.DEFAULT_CLASS, filter.classify(null));
+    }
+
+    private static MockSlingHttpServletRequest request(AemContext context, String path) {
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(context.resourceResolver().getResource(path));
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath(path);
+        pathInfo.setExtension("html");
+        return request;
+    }
+}
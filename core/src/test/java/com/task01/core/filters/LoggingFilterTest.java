@@ -16,6 +16,7 @@
 package com.task01.core.filters;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.List;
 
 import javax.servlet.FilterChain;
@@ -31,12 +32,17 @@ import org.junit.jupiter.api.extension.ExtendWith;
 
 import io.wcm.testing.mock.aem.junit5.AemContext;
 import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.metrics.MetricsRegistry;
+import com.task01.core.metrics.RequestLatencyStats;
+import com.task01.core.warmup.CacheWarmer;
+import com.task01.core.warmup.HotnessTracker;
 import uk.org.lidalia.slf4jext.Level;
 import uk.org.lidalia.slf4jtest.LoggingEvent;
 import uk.org.lidalia.slf4jtest.TestLogger;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
 @ExtendWith(AemContextExtension.class)
@@ -73,4 +79,53 @@ class LoggingFilterTest {
         assertEquals("/content/test", event.getArguments().get(0));
         assertEquals("selectors", event.getArguments().get(1));
     }
+
+    @Test
+    void recordsLatency(AemContext context) throws IOException, ServletException {
+        context.create().resource("/content/test", "sling:resourceType", "task01/components/page");
+        context.currentResource("/content/test");
+        MockRequestPathInfo requestPathInfo = (MockRequestPathInfo) context.request().getRequestPathInfo();
+        requestPathInfo.setSelectorString("export");
+        requestPathInfo.setExtension("json");
+
+        RequestLatencyStats stats = context.registerInjectActivateService(new RequestLatencyStats());
+        LoggingFilter filter = context.registerInjectActivateService(new LoggingFilter());
+        filter.doFilter(context.request(), context.response(), mock(FilterChain.class));
+
+        assertEquals(1, stats.getOverall().getCount());
+        assertEquals(1, stats.getByResourceType().get("task01/components/page").getCount());
+        assertEquals(1, stats.getBySelectorAndExtension().get("export.json").getCount());
+    }
+
+    @Test
+    void countsVisitorHits(AemContext context) throws IOException, ServletException {
+        context.create().resource("/content/test", "sling:resourceType", "task01/components/page");
+        context.currentResource("/content/test");
+        MockRequestPathInfo requestPathInfo = (MockRequestPathInfo) context.request().getRequestPathInfo();
+        requestPathInfo.setResourcePath("/content/test");
+        requestPathInfo.setExtension("html");
+
+        HotnessTracker tracker = context.registerInjectActivateService(new HotnessTracker());
+        LoggingFilter filter = context.registerInjectActivateService(new LoggingFilter());
+        filter.doFilter(context.request(), context.response(), mock(FilterChain.class));
+        context.request().addHeader(CacheWarmer.WARMUP_HEADER, "1");
+        filter.doFilter(context.request(), context.response(), mock(FilterChain.class));
+
+        assertEquals(1, tracker.size());
+        assertEquals(1.0, tracker.getScore("/content/test.html"), 1e-6);
+    }
+
+    @Test
+    void publishesMetrics(AemContext context) throws IOException, ServletException {
+        context.registerInjectActivateService(new RequestLatencyStats());
+        LoggingFilter filter = context.registerInjectActivateService(new LoggingFilter());
+        MetricsRegistry registry = context.registerInjectActivateService(new MetricsRegistry());
+        filter.doFilter(context.request(), context.response(), mock(FilterChain.class));
+
+        StringWriter out = new StringWriter();
+        registry.write(out);
+
+        assertTrue(out.toString().contains("task01_request_duration_seconds_count 1\n"));
+        assertTrue(out.toString().contains("task01_requests_in_flight 0\n"));
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.filters;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@ExtendWith(AemContextExtension.class)
+class RequestCoalescingFilterTest {
+
+    private final AtomicInteger renders = new AtomicInteger();
+
+    private final CountDownLatch rendering = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final FilterChain slowChain = (request, response) -> {
+        renders.incrementAndGet();
+        rendering.countDown();
+        try {
+            release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        response.setContentType("text/html");
+        ((HttpServletResponse) response).setHeader("ETag", "\"1\"");
+        response.getWriter().write("<p>rendered</p>");
+    };
+
+    @Test
+    void followersReplayLeaderResponse(AemContext context) throws Exception {
+        RequestCoalescingFilter filter = context.registerInjectActivateService(new RequestCoalescingFilter());
+
+        MockSlingHttpServletResponse leaderResponse = new MockSlingHttpServletResponse();
+        Thread leader = start(() -> filter.doFilter(request(context, "/content/site/en"), leaderResponse, slowChain));
+        assertEquals(true, rendering.await(10, TimeUnit.SECONDS));
+
+        MockSlingHttpServletResponse followerResponse = new MockSlingHttpServletResponse();
+        Thread follower = start(() -> filter.doFilter(request(context, "/content/site/en"), followerResponse, slowChain));
+        awaitWaiting(filter, 1);
+        release.countDown();
+        leader.join(10000);
+        follower.join(10000);
+
+        assertEquals(1, renders.get());
+        assertEquals("<p>rendered</p>", leaderResponse.getOutputAsString());
+        assertEquals("<p>rendered</p>", followerResponse.getOutputAsString());
+        assertEquals("text/html", followerResponse.getContentType().split(";")[0]);
+        assertEquals("\"1\"", followerResponse.getHeader("ETag"));
+        assertEquals(1, filter.getCoalescedCount());
+        assertEquals(0, filter.getFallbackCount());
+    }
+
+    @Test
+    void followerRendersItselfWhenResponseIsTooLarge(AemContext context) throws Exception {
+        RequestCoalescingFilter filter = context.registerInjectActivateService(new RequestCoalescingFilter(),
+                "maxBytes", 4);
+
+        Thread leader = start(() -> filter.doFilter(request(context, "/content/site/en"),
+                new MockSlingHttpServletResponse(), slowChain));
+        assertEquals(true, rendering.await(10, TimeUnit.SECONDS));
+        MockSlingHttpServletResponse followerResponse = new MockSlingHttpServletResponse();
+        Thread follower = start(() -> filter.doFilter(request(context, "/content/site/en"), followerResponse, slowChain));
+        awaitWaiting(filter, 1);
+        release.countDown();
+        leader.join(10000);
+        follower.join(10000);
+
+        assertEquals(2, renders.get());
+        assertEquals("<p>rendered</p>", followerResponse.getOutputAsString());
+        assertEquals(1, filter.getFallbackCount());
+    }
+
+    @Test
+    void followerRendersItselfWhenLeaderSetsCookie(AemContext context) throws Exception {
+        RequestCoalescingFilter filter = context.registerInjectActivateService(new RequestCoalescingFilter());
+        FilterChain setsCookie = (request, response) -> {
+            ((HttpServletResponse) response).addCookie(new Cookie("session", "leader"));
+            slowChain.doFilter(request, response);
+        };
+
+        Thread leader = start(() -> filter.doFilter(request(context, "/content/site/en"),
+                new MockSlingHttpServletResponse(), setsCookie));
+        assertEquals(true, rendering.await(10, TimeUnit.SECONDS));
+        MockSlingHttpServletResponse followerResponse = new MockSlingHttpServletResponse();
+        Thread follower = start(() -> filter.doFilter(request(context, "/content/site/en"), followerResponse, slowChain));
+        awaitWaiting(filter, 1);
+        release.countDown();
+        leader.join(10000);
+        follower.join(10000);
+
+        assertEquals(2, renders.get());
+        assertEquals(0, followerResponse.getCookies() != null ? followerResponse.getCookies().length : 0);
+        assertEquals(1, filter.getFallbackCount());
+    }
+
+    @Test
+    void authenticatedRequestsAreNotCoalesced(AemContext context) throws Exception {
+        RequestCoalescingFilter filter = context.registerInjectActivateService(new RequestCoalescingFilter());
+        release.countDown();
+
+        MockSlingHttpServletRequest request = request(context, "/content/site/en");
+        request.setAuthType("BASIC");
+        filter.doFilter(request, new MockSlingHttpServletResponse(), slowChain);
+
+        assertEquals(1, renders.get());
+        assertEquals(0, filter.getLeaderCount());
+    }
+
+    private static MockSlingHttpServletRequest request(AemContext context, String path) {
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setResourcePath(path);
+        pathInfo.setExtension("html");
+        return request;
+    }
+
+    private static void awaitWaiting(RequestCoalescingFilter filter, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (filter.getWaiting() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, filter.getWaiting());
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static Thread start(Action action) {
+        Thread thread = new Thread(() -> {
+            try {
+                action.run();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.flush;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.task01.core.dependencies.DependencyIndex;
+import com.task01.core.warmup.CacheWarmer;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+@ExtendWith(AemContextExtension.class)
+class DispatcherFlushAgentTest {
+
+    private ServerSocket dispatcher;
+
+    private Thread acceptor;
+
+    // "Action Handle Host" per received request
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    private final List<Integer> connections = new CopyOnWriteArrayList<>();
+
+    private volatile String status = "200 OK";
+
+    @BeforeEach
+    void startDispatcher() throws IOException {
+        dispatcher = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(() -> {
+            while (!dispatcher.isClosed()) {
+                try (Socket socket = dispatcher.accept()) {
+                    serve(socket);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopDispatcher() throws IOException, InterruptedException {
+        dispatcher.close();
+        acceptor.join(5000);
+    }
+
+    @Test
+    void flushesPageParentsOnceOverOneConnection(AemContext context) {
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent(),
+                "dispatcherUrls", new String[] { "http://localhost:" + dispatcher.getLocalPort() },
+                "flushReferences", false,
+                "dedupWindowMillis", 60000L);
+
+        agent.handleChanges(Arrays.asList(
+                change("/content/task01/en/page/jcr:content/root/text", ChangeType.CHANGED, false),
+                change("/content/task01/en/page/jcr:content", ChangeType.CHANGED, false),
+                change("/content/task01/en/old", ChangeType.REMOVED, true),
+                change("/var/audit/entry", ChangeType.ADDED, false)));
+        agent.handleChanges(Arrays.asList(
+                change("/content/task01/en/page/jcr:content/title", ChangeType.CHANGED, false)));
+        agent.flush();
+
+        assertEquals(Arrays.asList(
+                "Activate /content/task01/en/page flush",
+                "Activate /content/task01/en flush",
+                "Delete /content/task01/en/old flush"), received);
+        assertEquals(Arrays.asList(3), connections);
+        assertEquals(3, agent.getSentRequests());
+        assertEquals(0, agent.getFailedRequests());
+        assertEquals(5, agent.getDedupedPaths());
+    }
+
+    @Test
+    void flushesPagesDependingOnChange(AemContext context) {
+        DependencyIndex index = context.registerInjectActivateService(new DependencyIndex());
+        index.record("/content/task01/en/page", Arrays.asList("/content/task01/en/page/jcr:content",
+                "/content/experience-fragments/task01/header/master/jcr:content"));
+        index.record("/content/task01/de/seite", Arrays.asList("/content/task01/de/seite/jcr:content",
+                "/content/experience-fragments/task01/header/master/jcr:content"));
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent(),
+                "dispatcherUrls", new String[] { "http://localhost:" + dispatcher.getLocalPort() },
+                "parentLevels", 0,
+                "flushReferences", false,
+                "dedupWindowMillis", 60000L);
+
+        agent.handleChanges(Arrays.asList(
+                change("/content/experience-fragments/task01/header/master/jcr:content/root", ChangeType.CHANGED, false),
+                change("/content/experience-fragments/task01/header/master/jcr:content", ChangeType.CHANGED, false)));
+        agent.flush();
+
+        assertEquals(Arrays.asList(
+                "Activate /content/experience-fragments/task01/header/master flush",
+                "Activate /content/task01/en/page flush",
+                "Activate /content/task01/de/seite flush"), received);
+        assertEquals(2, agent.getDependentPages());
+    }
+
+    @Test
+    void resendsFailedInvalidations(AemContext context) {
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent(),
+                "dispatcherUrls", new String[] { "http://localhost:" + dispatcher.getLocalPort() },
+                "parentLevels", 0,
+                "flushReferences", false,
+                "dedupWindowMillis", 60000L);
+
+        status = "503 Service Unavailable";
+        agent.handleChanges(Arrays.asList(change("/content/task01/en/page/jcr:content", ChangeType.CHANGED, false)));
+        agent.flush();
+        assertEquals(1, agent.getFailedRequests());
+        assertEquals(0, agent.getSentRequests());
+
+        status = "200 OK";
+        agent.handleChanges(Arrays.asList(change("/content/task01/en/other", ChangeType.REMOVED, true)));
+        agent.flush();
+        agent.flush();
+
+        assertEquals(Arrays.asList(
+                "Activate /content/task01/en/page flush",
+                "Activate /content/task01/en/page flush",
+                "Delete /content/task01/en/other flush"), received);
+        assertEquals(2, agent.getSentRequests());
+        assertEquals(1, agent.getFailedRequests());
+    }
+
+    @Test
+    void warmsAcknowledgedPagesThatStillExist(AemContext context) {
+        CacheWarmer warmer = mock(CacheWarmer.class);
+        context.registerService(CacheWarmer.class, warmer);
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent(),
+                "dispatcherUrls", new String[] { "http://localhost:" + dispatcher.getLocalPort() },
+                "parentLevels", 0,
+                "flushReferences", false,
+                "dedupWindowMillis", 60000L);
+
+        status = "503 Service Unavailable";
+        agent.handleChanges(Arrays.asList(change("/content/task01/en/page/jcr:content", ChangeType.CHANGED, false)));
+        agent.flush();
+        verify(warmer, never()).invalidated(any());
+
+        status = "200 OK";
+        agent.handleChanges(Arrays.asList(
+                change("/content/task01/en/old", ChangeType.REMOVED, true),
+                change("/content/task01/de", ChangeType.CHANGED, true)));
+        agent.flush();
+
+        Map<String, Boolean> warmed = new HashMap<>();
+        warmed.put("/content/task01/en/page", false);
+        warmed.put("/content/task01/de", true);
+        verify(warmer).invalidated(warmed);
+    }
+
+    @Test
+    void deletesFoldedSubtree(AemContext context) {
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent(),
+                "dispatcherUrls", new String[] { "http://localhost:" + dispatcher.getLocalPort() },
+                "flushReferences", false,
+                "dedupWindowMillis", 60000L);
+
+        agent.handleChanges(Arrays.asList(change("/content/task01/en", ChangeType.CHANGED, true)));
+        agent.flush();
+
+        assertEquals(Arrays.asList(
+                "Delete /content/task01/en flush",
+                "Activate /content/task01 flush"), received);
+    }
+
+    @Test
+    void ignoresChangesWithoutDispatcher(AemContext context) {
+        DispatcherFlushAgent agent = context.registerInjectActivateService(new DispatcherFlushAgent());
+
+        agent.handleChanges(Arrays.asList(change("/content/task01/en", ChangeType.CHANGED, false)));
+        agent.flush();
+
+        assertEquals(0, received.size());
+        assertEquals(0, agent.getSentRequests());
+    }
+
+    /**
+     * Reads pipelined requests until one asks to close the connection and
+     * answers all of them afterwards.
+     */
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        int requests = 0;
+        boolean close = false;
+        String action = null;
+        String handle = null;
+        String host = null;
+        String line;
+        while (!close && (line = in.readLine()) != null) {
+            if (line.isEmpty()) {
+                received.add(action + " " + handle + " " + host);
+                requests++;
+                action = null;
+                handle = null;
+            } else if (line.startsWith("CQ-Action: ")) {
+                action = line.substring(11);
+            } else if (line.startsWith("CQ-Handle: ")) {
+                handle = line.substring(11);
+            } else if (line.startsWith("Host: ")) {
+                host = line.substring(6);
+            } else if (line.equals("Connection: close")) {
+                close = true;
+                in.readLine();
+                received.add(action + " " + handle + " " + host);
+                requests++;
+            }
+        }
+        connections.add(requests);
+        OutputStream out = socket.getOutputStream();
+        StringBuilder responses = new StringBuilder();
+        for (int i = 0; i < requests; i++) {
+            responses.append("HTTP/1.1 ").append(status).append("\r\nContent-Length: 2\r\n\r\nOK");
+        }
+        out.write(responses.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+}
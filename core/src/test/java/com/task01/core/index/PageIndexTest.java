@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.index;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.journal.ChangeJournal;
+import com.task01.core.listeners.SimpleResourceListener;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(AemContextExtension.class)
+class PageIndexTest {
+
+    private static final String TEMPLATE = "/conf/site/templates/page";
+
+    private PageIndex index;
+
+    @BeforeEach
+    void setup(AemContext context) throws Exception {
+        context.create().page("/content/site", TEMPLATE, "Site");
+        context.create().page("/content/site/en", TEMPLATE, "English");
+        context.create().page("/content/site/en/news", "/conf/site/templates/news", "News");
+        context.create().page("/content/site/en/about", TEMPLATE, "About");
+        context.create().page("/content/site/de", TEMPLATE, "Deutsch");
+        context.resourceResolver().commit();
+
+        index = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "partitionDepth", 2,
+                "threads", 2,
+                "snapshot", false);
+        assertTrue(index.awaitReady(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void buildsIndexByParallelWalk() {
+        assertEquals(5, index.size());
+        assertEquals("News", index.getPage("/content/site/en/news").getTitle());
+        assertEquals(Arrays.asList("/content/site/en/news", "/content/site/en/about"), paths(index.getChildren("/content/site/en")));
+        assertEquals(Arrays.asList("/content/site", "/content/site/en", "/content/site/en/about", "/content/site/de"),
+                paths(index.getPagesByTemplate(TEMPLATE, 10)));
+        assertEquals(2, index.getPagesByTemplate(TEMPLATE, 2).size());
+        assertNull(index.getPage("/content"));
+    }
+
+    @Test
+    void answersContainingPage() {
+        assertEquals("/content/site/en", index.getContainingPagePath("/content/site/en/jcr:content/root/text"));
+        assertEquals("/content/site/en/news", index.getContainingPagePath("/content/site/en/news"));
+        assertEquals("", index.getContainingPagePath("/content"));
+        assertNull(index.getContainingPagePath("/content/unknown/jcr:content"));
+        assertNull(index.getContainingPagePath("/apps/site"));
+    }
+
+    @Test
+    void indexesPagesInFolders(AemContext context) throws Exception {
+        context.create().resource("/content/experience-fragments", "jcr:primaryType", "sling:Folder");
+        context.create().resource("/content/experience-fragments/site", "jcr:primaryType", "sling:OrderedFolder");
+        context.create().page("/content/experience-fragments/site/header", TEMPLATE, "Header");
+        context.resourceResolver().commit();
+        PageIndex folders = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshot", false);
+        assertTrue(folders.awaitReady(10, TimeUnit.SECONDS));
+
+        assertEquals(6, folders.size());
+        assertEquals("Header", folders.getPage("/content/experience-fragments/site/header").getTitle());
+        assertEquals("/content/experience-fragments/site/header",
+                folders.getContainingPagePath("/content/experience-fragments/site/header/jcr:content/root"));
+        assertEquals("", folders.getContainingPagePath("/content/experience-fragments/site"));
+
+        context.create().page("/content/experience-fragments/site/footer", TEMPLATE, "Footer");
+        context.resourceResolver().getResource("/content/experience-fragments").adaptTo(ModifiableValueMap.class)
+                .put("jcr:title", "Experience Fragments");
+        context.resourceResolver().commit();
+        folders.handleChanges(Arrays.asList(
+                change("/content/experience-fragments", ChangeType.CHANGED, false),
+                change("/content/experience-fragments/site/footer", ChangeType.ADDED, false)));
+        folders.awaitIdle();
+
+        assertEquals(7, folders.size());
+        assertEquals(Arrays.asList("/content/experience-fragments/site/header", "/content/experience-fragments/site/footer"),
+                paths(folders.getChildren("/content/experience-fragments/site")));
+        folders.deactivate();
+    }
+
+    @Test
+    void appliesChanges(AemContext context) throws Exception {
+        context.create().page("/content/site/en/contact", TEMPLATE, "Contact");
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/en/news"));
+        context.resourceResolver().getResource("/content/site/de/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("jcr:title", "Startseite");
+        context.resourceResolver().commit();
+
+        index.handleChanges(Arrays.asList(
+                change("/content/site/en/contact", ChangeType.ADDED, false),
+                change("/content/site/en/contact/jcr:content", ChangeType.ADDED, false),
+                change("/content/site/en/news", ChangeType.REMOVED, false),
+                change("/content/site/de/jcr:content", ChangeType.CHANGED, false)));
+        index.awaitIdle();
+
+        assertEquals(5, index.size());
+        assertNull(index.getPage("/content/site/en/news"));
+        assertEquals("Startseite", index.getPage("/content/site/de").getTitle());
+        assertEquals(Arrays.asList("/content/site/en/about", "/content/site/en/contact"), paths(index.getChildren("/content/site/en")));
+        assertTrue(index.getPagesByTemplate("/conf/site/templates/news", 10).isEmpty());
+        assertEquals(1, index.getAppliedUpdates());
+    }
+
+    @Test
+    void rewalksSubtreeFoldedAboveRoot(AemContext context) throws Exception {
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/en"));
+        context.resourceResolver().commit();
+
+        index.handleChanges(Collections.singletonList(
+                change("/", ChangeType.REMOVED, true)));
+        index.awaitIdle();
+
+        assertEquals(2, index.size());
+        assertEquals(Collections.singletonList("/content/site/de"), paths(index.getChildren("/content/site")));
+    }
+
+    @Test
+    void restoresSnapshotAndReconciles(AemContext context, @TempDir Path dir) throws Exception {
+        String file = dir.resolve("page-index.snapshot").toString();
+        PageIndex first = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file);
+        assertTrue(first.awaitReady(10, TimeUnit.SECONDS));
+        first.deactivate();
+
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/de"));
+        context.resourceResolver().commit();
+
+        PageIndex second = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file);
+        assertTrue(second.isReady());
+        assertEquals(5, second.getRestoredPages());
+
+        second.awaitIdle();
+        assertEquals(4, second.size());
+        assertNull(second.getPage("/content/site/de"));
+        assertEquals("News", second.getPage("/content/site/en/news").getTitle());
+    }
+
+    @Test
+    void replaysJournalUnlessChangesWereMissed(AemContext context, @TempDir Path dir) throws Exception {
+        ChangeJournal journal = context.registerInjectActivateService(new ChangeJournal(),
+                "directory", dir.resolve("journal").toString());
+        String file = dir.resolve("page-index.snapshot").toString();
+        PageIndex first = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file);
+        assertTrue(first.awaitReady(10, TimeUnit.SECONDS));
+        first.deactivate();
+
+        context.resourceResolver().getResource("/content/site/de/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("jcr:title", "Startseite");
+        context.resourceResolver().commit();
+        journal.append(ChangeType.CHANGED, "/content/site/de/jcr:content", false);
+
+        PageIndex second = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file);
+        second.awaitIdle();
+        assertEquals(1, second.getReplayedChanges());
+        assertEquals("Startseite", second.getPage("/content/site/de").getTitle());
+        second.deactivate();
+
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/en/news"));
+        context.resourceResolver().commit();
+        journal.appendGap();
+
+        PageIndex third = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file);
+        third.awaitIdle();
+        assertEquals(0, third.getReplayedChanges());
+        assertEquals(4, third.size());
+        assertNull(third.getPage("/content/site/en/news"));
+    }
+
+    @Test
+    void commitsJournalOffsetAfterAppliedChanges(AemContext context, @TempDir Path dir) throws Exception {
+        ChangeJournal journal = context.registerInjectActivateService(new ChangeJournal(),
+                "directory", dir.resolve("journal").toString());
+        PageIndex journaled = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshot", false);
+        assertTrue(journaled.awaitReady(10, TimeUnit.SECONDS));
+        long built = journal.getCommittedOffset(PageIndex.JOURNAL_CONSUMER);
+
+        journal.append(ChangeType.CHANGED, "/content/site/de/jcr:content", false);
+        journal.commit(SimpleResourceListener.JOURNAL_CONSUMER, journal.getEndOffset());
+        journaled.handleChanges(Collections.singletonList(
+                change("/content/site/de/jcr:content", ChangeType.CHANGED, false)));
+        journaled.awaitIdle();
+
+        assertEquals(built + 1, journal.getCommittedOffset(PageIndex.JOURNAL_CONSUMER));
+    }
+
+    @Test
+    void ignoresCorruptSnapshot(AemContext context, @TempDir Path dir) throws Exception {
+        Path file = dir.resolve("page-index.snapshot");
+        Files.write(file, new byte[64]);
+
+        PageIndex restored = context.registerInjectActivateService(new PageIndex(),
+                "roots", new String[] { "/content" },
+                "snapshotFile", file.toString());
+
+        assertEquals(0, restored.getRestoredPages());
+        assertTrue(restored.awaitReady(10, TimeUnit.SECONDS));
+        assertEquals(5, restored.size());
+    }
+
+    private static List<String> paths(List<PageInfo> pages) {
+        return pages.stream().map(PageInfo::getPath).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.journal;
+
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(AemContextExtension.class)
+class ChangeJournalTest {
+
+    @Test
+    void readsAppendedChangesFromOffset(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = open(context, dir);
+        assertTrue(journal.read(0, 10).isEmpty());
+
+        long first = journal.append(ChangeType.ADDED, "/content/site/en", false);
+        journal.append(ChangeType.CHANGED, "/content/site/en/jcr:content", true);
+        journal.append(ChangeType.REMOVED, "/content/site/de", false);
+
+        List<JournalEntry> entries = journal.read(first + 1, 10);
+        assertAll(
+                () -> assertEquals(first + 3, journal.getEndOffset()),
+                () -> assertEquals(2, entries.size()),
+                () -> assertEquals("/content/site/en/jcr:content", entries.get(0).getPath()),
+                () -> assertEquals(EnumSet.of(ChangeType.CHANGED), entries.get(0).getTypes()),
+                () -> assertTrue(entries.get(0).isExternal()),
+                () -> assertEquals(ChangeType.REMOVED, entries.get(1).getTypes().iterator().next()),
+                () -> assertEquals(1, journal.read(first, 1).size())
+        );
+    }
+
+    @Test
+    void mergesRecordsOfSealedSegments(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = open(context, dir);
+        for (int i = 0; i < 500; i++) {
+            journal.append(i % 50 == 0 ? ChangeType.ADDED : ChangeType.CHANGED, "/content/site/page" + i % 5, false);
+        }
+        journal.compact();
+
+        List<JournalEntry> entries = journal.read(0, 1000);
+        List<Long> offsets = entries.stream().map(JournalEntry::getOffset).collect(Collectors.toList());
+        assertAll(
+                () -> assertTrue(journal.getSegmentCount() > 1),
+                () -> assertTrue(journal.getMergedRecordCount() > 0),
+                () -> assertEquals(500 - journal.getMergedRecordCount(), entries.size()),
+                () -> assertEquals(offsets.stream().sorted().collect(Collectors.toList()), offsets),
+                () -> assertEquals(499, entries.get(entries.size() - 1).getOffset()),
+                () -> assertTrue(entries.stream().anyMatch(entry -> entry.getTypes().size() == 2))
+        );
+    }
+
+    @Test
+    void deletesSegmentsAllConsumersHaveRead(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = open(context, dir);
+        for (int i = 0; i < 500; i++) {
+            journal.append(ChangeType.CHANGED, "/content/site/page" + i, false);
+        }
+        journal.commit("slow", 400);
+        journal.commit("fast", journal.getEndOffset());
+        journal.compact();
+
+        assertFalse(journal.isAvailable(0));
+        assertTrue(journal.isAvailable(400));
+        assertTrue(journal.getDeletedSegmentCount() > 0);
+        assertEquals("/content/site/page400", journal.read(400, 1).get(0).getPath());
+    }
+
+    @Test
+    void keepsRecordsAndOffsetsAcrossRestart(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = open(context, dir);
+        journal.append(ChangeType.CHANGED, "/content/site/en/jcr:content", false);
+        long pending = journal.append(ChangeType.REMOVED, "/content/site/de", false);
+        journal.commit("consumer", pending);
+        journal.deactivate();
+
+        ChangeJournal reopened = open(context, dir);
+        List<JournalEntry> entries = reopened.read(reopened.getCommittedOffset("consumer"), 10);
+        assertAll(
+                () -> assertEquals(pending, reopened.getCommittedOffset("consumer")),
+                () -> assertEquals(1, entries.size()),
+                () -> assertEquals("/content/site/de", entries.get(0).getPath())
+        );
+    }
+
+    @Test
+    void recordsGapAfterUncleanShutdown(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = open(context, dir);
+        long last = journal.append(ChangeType.CHANGED, "/content/site/en/jcr:content", false);
+
+        // never deactivated
+        ChangeJournal reopened = open(context, dir);
+        List<JournalEntry> entries = reopened.read(last, 10);
+        assertAll(
+                () -> assertEquals(2, entries.size()),
+                () -> assertEquals("/content/site/en/jcr:content", entries.get(0).getPath()),
+                () -> assertTrue(entries.get(1).isGap())
+        );
+    }
+
+    @Test
+    void readsFromEveryOffset(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = context.registerInjectActivateService(new ChangeJournal(),
+                "directory", dir.toString(),
+                "segmentBytes", 64 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            journal.append(ChangeType.CHANGED, "/content/site/page" + i, false);
+        }
+
+        for (long offset = 0; offset < 1000; offset++) {
+            List<JournalEntry> entries = journal.read(offset, 2);
+            assertEquals(offset, entries.get(0).getOffset());
+            assertEquals(Math.min(2, 1000 - offset), entries.size());
+        }
+    }
+
+    private static ChangeJournal open(AemContext context, Path dir) {
+        return context.registerInjectActivateService(new ChangeJournal(),
+                "directory", dir.toString(),
+                "segmentBytes", 4096,
+                "maxSegments", 16);
+    }
+}
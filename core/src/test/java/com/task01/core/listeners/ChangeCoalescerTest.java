@@ -0,0 +1,84 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.Test;
+
+class ChangeCoalescerTest {
+
+    @Test
+    void collapsesSubtreeIntoOneEvent() {
+        ChangeCoalescer fixture = new ChangeCoalescer(100, 3);
+
+        fixture.add(ChangeType.ADDED, "/content/site/page", false);
+        fixture.add(ChangeType.ADDED, "/content/site/page/jcr:content", false);
+        fixture.add(ChangeType.CHANGED, "/content/site/page/jcr:content", false);
+        fixture.add(ChangeType.REMOVED, "/content/site/page/child", false);
+
+        List<CoalescedChange> changes = fixture.drain();
+        assertEquals(1, changes.size());
+        CoalescedChange change = changes.get(0);
+        assertAll(
+                () -> assertEquals("/content/site/page", change.getPath()),
+                () -> assertTrue(change.isSubtree()),
+                () -> assertTrue(change.isRemoved()),
+                () -> assertEquals(3, change.getTypes().size()),
+                () -> assertEquals(3, fixture.getCoalesced()),
+                () -> assertEquals(0, fixture.getDepth())
+        );
+    }
+
+    @Test
+    void keepsIndependentChangesApart() {
+        ChangeCoalescer fixture = new ChangeCoalescer(100, 3);
+
+        fixture.add(ChangeType.CHANGED, "/content/site/a/jcr:content", false);
+        fixture.add(ChangeType.CHANGED, "/content/site/a/jcr:content/root", true);
+        fixture.add(ChangeType.CHANGED, "/content/site/a/jcr:content", false);
+
+        List<CoalescedChange> changes = fixture.drain();
+        assertEquals(2, changes.size());
+        assertFalse(changes.get(0).isSubtree());
+        assertTrue(changes.get(1).isExternal());
+    }
+
+    @Test
+    void foldsIntoAncestorWhenFull() {
+        ChangeCoalescer fixture = new ChangeCoalescer(2, 2);
+
+        fixture.add(ChangeType.CHANGED, "/content/site/a", false);
+        fixture.add(ChangeType.CHANGED, "/content/other/b", false);
+        fixture.add(ChangeType.CHANGED, "/content/site/c", false);
+        fixture.add(ChangeType.CHANGED, "/content/third/d", false);
+
+        List<CoalescedChange> changes = fixture.drain();
+        assertAll(
+                () -> assertEquals(2, changes.size()),
+                () -> assertEquals("/content/site", changes.get(1).getPath()),
+                () -> assertTrue(changes.get(1).covers("/content/site/a")),
+                () -> assertEquals(2, fixture.getFolded()),
+                () -> assertEquals(1, fixture.getDropped())
+        );
+    }
+}
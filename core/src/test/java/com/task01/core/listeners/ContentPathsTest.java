@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.listeners;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.Test;
+
+class ContentPathsTest {
+
+    @Test
+    void pagePathOfContentResources() {
+        assertEquals("/content/a", ContentPaths.getPagePath("/content/a/jcr:content/par/image"));
+        assertEquals("/content/a", ContentPaths.getPagePath("/content/a/jcr:content"));
+        assertEquals("/content/a/jcr:contentfoo", ContentPaths.getPagePath("/content/a/jcr:contentfoo"));
+        assertEquals("/content/dam/b.png", ContentPaths.getPagePath("/content/dam/b.png"));
+    }
+
+    @Test
+    void parentAndDepth() {
+        assertEquals("/content", ContentPaths.getParent("/content/a"));
+        assertEquals("/", ContentPaths.getParent("/content"));
+        assertNull(ContentPaths.getParent("/"));
+        assertEquals(0, ContentPaths.getDepth("/"));
+        assertEquals(1, ContentPaths.getDepth("/content"));
+        assertEquals(3, ContentPaths.getDepth("/content/a/b"));
+    }
+
+    @Test
+    void inclusion() {
+        String[] roots = { "/content/site", "/content/dam" };
+        assertTrue(ContentPaths.isIncluded(roots, "/content/site"));
+        assertTrue(ContentPaths.isIncluded(roots, "/content/dam/x.png"));
+        assertFalse(ContentPaths.isIncluded(roots, "/content/site2"));
+        assertFalse(ContentPaths.isIncluded(roots, "/content"));
+        assertTrue(ContentPaths.isSameOrDescendant("/", "/content"));
+    }
+
+    @Test
+    void classification() {
+        String[] roots = { "/content/site" };
+        Set<String> refresh = new LinkedHashSet<>();
+        Set<String> rewalk = new LinkedHashSet<>();
+        ContentPaths.classify(roots, Arrays.asList(
+                new CoalescedChange("/content/site/a/jcr:content/par", EnumSet.of(ChangeType.CHANGED), false, false),
+                new CoalescedChange("/content/site/b", EnumSet.of(ChangeType.ADDED), false, false),
+                new CoalescedChange("/content/site/c", EnumSet.of(ChangeType.CHANGED), false, false),
+                new CoalescedChange("/content", EnumSet.of(ChangeType.CHANGED), true, false),
+                new CoalescedChange("/conf/site", EnumSet.of(ChangeType.CHANGED), true, false)),
+                refresh, rewalk);
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("/content/site/a", "/content/site/c")), refresh);
+        assertEquals(new LinkedHashSet<>(Arrays.asList("/content/site/b", "/content/site")), rewalk);
+        assertTrue(ContentPaths.isCovered(rewalk, "/content/site/b"));
+        assertFalse(ContentPaths.isCovered(rewalk, "/content/site"));
+        assertFalse(ContentPaths.isCovered(Collections.singleton("/content/site"), "/content/site2"));
+    }
+}
@@ -18,24 +18,39 @@ package com.task01.core.listeners;
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.journal.ChangeJournal;
 
 import uk.org.lidalia.slf4jext.Level;
 import uk.org.lidalia.slf4jtest.LoggingEvent;
 import uk.org.lidalia.slf4jtest.TestLogger;
 import uk.org.lidalia.slf4jtest.TestLoggerFactory;
 
+@ExtendWith(AemContextExtension.class)
 class SimpleResourceListenerTest {
 
     private SimpleResourceListener fixture = new SimpleResourceListener();
 
     private TestLogger logger = TestLoggerFactory.getTestLogger(fixture.getClass());
 
+    @BeforeEach
+    void setup() {
+        TestLoggerFactory.clear();
+    }
+
     @Test
     void handleEvent() {
         
@@ -55,4 +70,48 @@ class SimpleResourceListenerTest {
                 () -> assertEquals(Boolean.FALSE,event.getArguments().get(2))
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void dispatchesCoalescedBatches() {
+        List<List<CoalescedChange>> batches = new ArrayList<>();
+        fixture.bindHandler(changes -> batches.add(new ArrayList<>(changes)));
+
+        fixture.onChange(Arrays.asList(
+                new ResourceChange(ChangeType.CHANGED, "/content/test/jcr:content", false),
+                new ResourceChange(ChangeType.CHANGED, "/content/test/jcr:content", false),
+                new ResourceChange(ChangeType.REMOVED, "/content/other", false)));
+        assertEquals(2, fixture.getQueueDepth());
+
+        fixture.dispatch();
+
+        assertAll(
+                () -> assertEquals(1, batches.size()),
+                () -> assertEquals(2, batches.get(0).size()),
+                () -> assertEquals(0, fixture.getQueueDepth()),
+                () -> assertEquals(3, fixture.getReceivedCount()),
+                () -> assertEquals(1, fixture.getCoalescedCount())
+        );
+    }
+
+    @Test
+    void replaysUndispatchedChangesFromJournal(AemContext context, @TempDir Path dir) {
+        ChangeJournal journal = context.registerInjectActivateService(new ChangeJournal(),
+                "directory", dir.toString());
+        fixture.bindJournal(journal);
+        fixture.onChange(Arrays.asList(new ResourceChange(ChangeType.CHANGED, "/content/test/jcr:content", false)));
+        fixture.dispatch();
+        fixture.onChange(Arrays.asList(
+                new ResourceChange(ChangeType.CHANGED, "/content/other/jcr:content", false),
+                new ResourceChange(ChangeType.REMOVED, "/content/gone", false)));
+
+        // went down before the next dispatch
+        SimpleResourceListener restarted = new SimpleResourceListener();
+        restarted.bindJournal(journal);
+        restarted.replay(journal);
+
+        assertAll(
+                () -> assertEquals(2, restarted.getQueueDepth()),
+                () -> assertEquals(2, restarted.getReplayedCount())
+        );
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertAll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    private final LatencyHistogram fixture = new LatencyHistogram();
+
+    @Test
+    void bucketsCoverEveryValue() {
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    void percentilesStayWithinRelativeError() {
+        for (long value = 1; value <= 10_000; value++) {
+            fixture.record(value);
+        }
+
+        assertAll(
+                () -> assertEquals(10_000, fixture.getCount()),
+                () -> assertEquals(10_000, fixture.getMax()),
+                () -> assertEquals(5_000, fixture.getValueAtPercentile(50), 5_000 * 0.125),
+                () -> assertEquals(9_900, fixture.getValueAtPercentile(99), 9_900 * 0.125),
+                () -> assertEquals(10_000, fixture.getValueAtPercentile(100))
+        );
+    }
+
+    @Test
+    void emptyHistogramReportsZero() {
+        assertEquals(0, fixture.getValueAtPercentile(99.9));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+@ExtendWith(AemContextExtension.class)
+class MetricsRegistryTest {
+
+    @Test
+    void writesAllSourcesInOpenMetricsFormat(AemContext context) throws Exception {
+        BucketHistogram durations = new BucketHistogram(1_000, 5_000, 1_000_000);
+        durations.record(500);
+        durations.record(1_000);
+        durations.record(3_000);
+        durations.record(2_000_000);
+        String added = OpenMetricsWriter.labels("type", "added");
+        context.registerService(MetricsSource.class, out -> {
+            out.histogram("task01_test_duration_seconds", "Test durations", durations);
+            out.family("task01_test_events", OpenMetricsWriter.COUNTER, "Test events");
+            out.counterSample("task01_test_events", added, 3);
+            out.gauge("task01_test_depth", null, 7);
+        });
+        MetricsRegistry registry = context.registerInjectActivateService(new MetricsRegistry());
+
+        StringWriter out = new StringWriter();
+        registry.write(out);
+
+        assertEquals("# TYPE task01_test_duration_seconds histogram\n"
+                + "# HELP task01_test_duration_seconds Test durations\n"
+                + "task01_test_duration_seconds_bucket{le=\"0.001\"} 2\n"
+                + "task01_test_duration_seconds_bucket{le=\"0.005\"} 3\n"
+                + "task01_test_duration_seconds_bucket{le=\"1.0\"} 3\n"
+                + "task01_test_duration_seconds_bucket{le=\"+Inf\"} 4\n"
+                + "task01_test_duration_seconds_count 4\n"
+                + "task01_test_duration_seconds_sum 2.0045\n"
+                + "# TYPE task01_test_events counter\n"
+                + "# HELP task01_test_events Test events\n"
+                + "task01_test_events_total{type=\"added\"} 3\n"
+                + "# TYPE task01_test_depth gauge\n"
+                + "task01_test_depth 7\n"
+                + "# TYPE task01_metrics_scrapes counter\n"
+                + "# HELP task01_metrics_scrapes Scrapes of the metrics endpoint\n"
+                + "task01_metrics_scrapes_total 1\n"
+                + "# TYPE task01_metrics_source_failures counter\n"
+                + "# HELP task01_metrics_source_failures Metrics sources that failed during a scrape\n"
+                + "task01_metrics_source_failures_total 0\n"
+                + "# EOF\n", out.toString());
+    }
+
+    @Test
+    void writesLatencyHistogramAtBucketBounds(AemContext context) throws Exception {
+        LatencyHistogram durations = new LatencyHistogram();
+        durations.record(500);
+        durations.record(1_000);
+        durations.record(3_000);
+        durations.record(2_000_000);
+        long[] bounds = { 1_000, 1_010, 5_000 };
+        context.registerService(MetricsSource.class, out -> out.histogram("task01_test_duration_seconds", null, durations, bounds));
+        MetricsRegistry registry = context.registerInjectActivateService(new MetricsRegistry());
+
+        StringWriter out = new StringWriter();
+        registry.write(out);
+
+        assertTrue(out.toString().startsWith("# TYPE task01_test_duration_seconds histogram\n"
+                + "task01_test_duration_seconds_bucket{le=\"0.001023\"} 2\n"
+                + "task01_test_duration_seconds_bucket{le=\"0.005119\"} 3\n"
+                + "task01_test_duration_seconds_bucket{le=\"+Inf\"} 4\n"
+                + "task01_test_duration_seconds_count 4\n"
+                + "task01_test_duration_seconds_sum 2.0045\n"), out.toString());
+    }
+
+    @Test
+    void skipsFailingSource(AemContext context) throws Exception {
+        context.registerService(MetricsSource.class, out -> {
+            throw new IllegalStateException("broken");
+        });
+        context.registerService(MetricsSource.class, out -> out.gauge("task01_test_depth", null, 7));
+        MetricsRegistry registry = context.registerInjectActivateService(new MetricsRegistry());
+
+        StringWriter out = new StringWriter();
+        registry.write(out);
+
+        assertEquals(2, registry.getSourceCount());
+        assertEquals(1, registry.getFailureCount());
+        assertTrue(out.toString().contains("task01_test_depth 7\n"));
+        assertTrue(out.toString().endsWith("# EOF\n"));
+    }
+
+    @Test
+    void formatsMicrosecondsAsSeconds() {
+        StringBuilder target = new StringBuilder();
+        for (long micros : new long[] { 0, 5, 1_000, 100_000, 1_500_000, 123_456_789 }) {
+            OpenMetricsWriter.appendSeconds(target, micros);
+            target.append(' ');
+        }
+        assertEquals("0.0 0.000005 0.001 0.1 1.5 123.456789 ", target.toString());
+    }
+}
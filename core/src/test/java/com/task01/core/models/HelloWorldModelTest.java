@@ -24,10 +24,16 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import com.day.cq.wcm.api.Page;
 import io.wcm.testing.mock.aem.junit5.AemContext;
 import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.cache.ContainingPageCache;
+import com.task01.core.index.PageIndex;
 import com.task01.core.testcontext.AppAemContext;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Simple JUnit test verifying the HelloWorldModel
@@ -63,4 +69,32 @@ class HelloWorldModelTest {
         assertTrue(StringUtils.contains(msg, page.getPath()));
     }
 
+    @Test
+    void testModelIsCachedPerResource() throws Exception {
+        assertSame(hello, resource.adaptTo(HelloWorldModel.class));
+    }
+
+    @Test
+    void testContainingPageFromCache() throws Exception {
+        ContainingPageCache cache = context.registerInjectActivateService(new ContainingPageCache());
+        Resource nested = context.create().resource(page, "nested/hello",
+            "sling:resourceType", "task01/components/helloworld");
+
+        String msg = nested.adaptTo(HelloWorldModel.class).getMessage();
+        assertTrue(StringUtils.contains(msg, page.getPath()));
+        assertEquals(page.getPath(), cache.getContainingPagePath(nested));
+    }
+
+    @Test
+    void testContainingPageFromIndex() throws Exception {
+        PageIndex index = mock(PageIndex.class);
+        when(index.getContainingPagePath("/content/mypage/indexed")).thenReturn("/content/indexed");
+        context.registerService(PageIndex.class, index);
+        Resource indexed = context.create().resource(page, "indexed",
+            "sling:resourceType", "task01/components/helloworld");
+
+        String msg = indexed.adaptTo(HelloWorldModel.class).getMessage();
+        assertTrue(StringUtils.contains(msg, "/content/indexed"));
+    }
+
 }
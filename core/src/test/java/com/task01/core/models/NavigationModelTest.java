@@ -0,0 +1,148 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.adobe.cq.wcm.core.components.models.Breadcrumb;
+import com.adobe.cq.wcm.core.components.models.LanguageNavigation;
+import com.adobe.cq.wcm.core.components.models.Navigation;
+import com.adobe.cq.wcm.core.components.models.NavigationItem;
+import com.day.cq.wcm.api.Page;
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+import com.task01.core.navigation.NavigationTree;
+import com.task01.core.testcontext.AppAemContext;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(AemContextExtension.class)
+class NavigationModelTest {
+
+    private static final String TEMPLATE = "/conf/site/templates/page";
+
+    private final AemContext context = AppAemContext.newAemContext();
+
+    private Page shoes;
+
+    @BeforeEach
+    void setup() throws Exception {
+        context.create().page("/content/site", TEMPLATE, "Site");
+        context.create().page("/content/site/en", TEMPLATE, "English");
+        context.create().page("/content/site/en/products", TEMPLATE, "Products");
+        shoes = context.create().page("/content/site/en/products/shoes", TEMPLATE, "Shoes");
+        context.create().page("/content/site/en/about", TEMPLATE, "About");
+        context.create().page("/content/site/en/legal", TEMPLATE, "Legal");
+        context.resourceResolver().getResource("/content/site/en/legal/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("hideInNav", true);
+        context.create().page("/content/site/de", TEMPLATE, "Deutsch");
+        context.create().page("/content/site/de/products", TEMPLATE, "Produkte");
+        context.create().page("/content/site/de/products/shoes", TEMPLATE, "Schuhe");
+        context.resourceResolver().commit();
+
+        NavigationTree tree = context.registerInjectActivateService(new NavigationTree(), "roots", new String[] { "/content" });
+        assertTrue(tree.awaitReady(10, TimeUnit.SECONDS));
+        context.currentPage(shoes);
+    }
+
+    @Test
+    void buildsNavigationFromTree() {
+        context.currentResource(context.create().resource(shoes, "navigation",
+                "sling:resourceType", NavigationModel.RESOURCE_TYPE,
+                "navigationRoot", "/content/site/en"));
+
+        List<NavigationItem> items = context.request().adaptTo(Navigation.class).getItems();
+
+        assertEquals(Arrays.asList("/content/site/en/products", "/content/site/en/about"), paths(items));
+        NavigationItem products = items.get(0);
+        assertTrue(products.isActive());
+        assertFalse(products.isCurrent());
+        assertEquals("/content/site/en/products.html", products.getURL());
+        assertEquals("/content/site/en/products.html", products.getLink().getMappedURL());
+        assertEquals("/content/site/en/products.html", products.getLink().getHtmlAttributes().get("href"));
+        assertEquals("/content/site/en/products/shoes", products.getChildren().get(0).getPath());
+        assertTrue(products.getChildren().get(0).isCurrent());
+        assertEquals(1, products.getChildren().get(0).getLevel());
+    }
+
+    @Test
+    void leavesOutPagesTheVisitorCannotRead() throws Exception {
+        context.currentResource(context.create().resource(shoes, "navigation",
+                "sling:resourceType", NavigationModel.RESOURCE_TYPE,
+                "navigationRoot", "/content/site/en"));
+        // uncommitted, so the tree still has the page but the request resolver cannot see it
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/en/about"));
+
+        List<NavigationItem> items = context.request().adaptTo(Navigation.class).getItems();
+
+        assertEquals(Arrays.asList("/content/site/en/products"), paths(items));
+    }
+
+    @Test
+    void mapsNavigationRootToCurrentLanguage() {
+        context.currentPage("/content/site/de/products/shoes");
+        context.currentResource(context.create().resource("/content/site/de/products/shoes/jcr:content/navigation",
+                "sling:resourceType", NavigationModel.RESOURCE_TYPE,
+                "navigationRoot", "/content/site/en",
+                "structureDepth", 1));
+
+        List<NavigationItem> items = context.request().adaptTo(Navigation.class).getItems();
+
+        assertEquals(Arrays.asList("/content/site/de/products"), paths(items));
+        assertTrue(items.get(0).getChildren().isEmpty());
+    }
+
+    @Test
+    void buildsBreadcrumbFromTree() {
+        context.currentResource(context.create().resource(shoes, "breadcrumb",
+                "sling:resourceType", BreadcrumbModel.RESOURCE_TYPE));
+
+        List<NavigationItem> items = new ArrayList<>(context.request().adaptTo(Breadcrumb.class).getItems());
+
+        assertEquals(Arrays.asList("/content/site/en", "/content/site/en/products", "/content/site/en/products/shoes"),
+                paths(items));
+        assertEquals("Products", items.get(1).getTitle());
+        assertTrue(items.get(2).isActive());
+    }
+
+    @Test
+    void linksLanguagesToCurrentPageCopy() {
+        context.currentResource(context.create().resource(shoes, "languagenavigation",
+                "sling:resourceType", LanguageNavigationModel.RESOURCE_TYPE,
+                "navigationRoot", "/content/site"));
+
+        List<NavigationItem> items = context.request().adaptTo(LanguageNavigation.class).getItems();
+
+        assertEquals(Arrays.asList("/content/site/en", "/content/site/de"), paths(items));
+        assertTrue(items.get(0).isActive());
+        assertEquals("/content/site/de/products/shoes.html", items.get(1).getURL());
+    }
+
+    private static List<String> paths(List<NavigationItem> items) {
+        return items.stream().map(NavigationItem::getPath).collect(Collectors.toList());
+    }
+}
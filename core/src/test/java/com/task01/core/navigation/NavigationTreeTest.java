@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.navigation;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.osgi.framework.Constants;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(AemContextExtension.class)
+class NavigationTreeTest {
+
+    private static final String TEMPLATE = "/conf/site/templates/page";
+
+    private NavigationTree tree;
+
+    @BeforeEach
+    void setup(AemContext context) throws Exception {
+        context.create().page("/content/site", TEMPLATE, "Site");
+        context.create().page("/content/site/en", TEMPLATE, "English");
+        context.create().page("/content/site/en/news", TEMPLATE, "News");
+        context.create().page("/content/site/en/products", TEMPLATE, "Products");
+        context.create().page("/content/site/de", TEMPLATE, "Deutsch");
+        context.create().page("/content/site/de/news", TEMPLATE, "Neuigkeiten");
+        context.resourceResolver().commit();
+
+        tree = context.registerInjectActivateService(new NavigationTree(), "roots", new String[] { "/content" });
+        assertTrue(tree.awaitReady(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void buildsTree() {
+        assertFalse(tree.getNode("/content").isPage());
+        assertEquals("English", tree.getNode("/content/site/en").getTitle());
+        assertEquals(Arrays.asList("/content/site/en/news", "/content/site/en/products"),
+                paths(tree.getNode("/content/site/en").getChildren()));
+        assertEquals("/content/site/de", tree.getLanguageRoot("/content/site/de/news").getPath());
+        assertNull(tree.getNode("/content/site/fr"));
+        assertNull(tree.getNode("/apps/site"));
+    }
+
+    @Test
+    void staysUnavailableWhileBuildCannotLogIn(AemContext context) throws Exception {
+        ResourceResolverFactory failing = mock(ResourceResolverFactory.class);
+        when(failing.getServiceResourceResolver(any())).thenThrow(new LoginException("no service user"));
+        context.registerService(ResourceResolverFactory.class, failing, Constants.SERVICE_RANKING, Integer.MAX_VALUE);
+
+        NavigationTree unavailable = context.registerInjectActivateService(new NavigationTree(),
+                "roots", new String[] { "/content" });
+
+        assertFalse(unavailable.awaitReady(10, TimeUnit.SECONDS));
+        assertFalse(unavailable.isReady());
+        assertNull(unavailable.getNode("/content/site/en"));
+    }
+
+    @Test
+    void copiesOnlyChangedPath(AemContext context) throws Exception {
+        context.create().page("/content/site/en/about", TEMPLATE, "About");
+        context.resourceResolver().getResource("/content/site/en/news/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("navTitle", "Latest");
+        context.resourceResolver().commit();
+        NavigationNode before = tree.getNode("/content/site/en");
+        NavigationNode german = tree.getNode("/content/site/de");
+        NavigationNode products = tree.getNode("/content/site/en/products");
+
+        tree.handleChanges(Arrays.asList(
+                change("/content/site/en/about", ChangeType.ADDED, false),
+                change("/content/site/en/news/jcr:content", ChangeType.CHANGED, false)));
+        tree.awaitIdle();
+
+        NavigationNode after = tree.getNode("/content/site/en");
+        assertEquals(Arrays.asList("/content/site/en/news", "/content/site/en/products", "/content/site/en/about"),
+                paths(after.getChildren()));
+        assertEquals("Latest", tree.getNode("/content/site/en/news").getNavigationTitle());
+        assertSame(german, tree.getNode("/content/site/de"));
+        assertSame(products, tree.getNode("/content/site/en/products"));
+        // readers holding the old version keep a consistent snapshot
+        assertEquals(2, before.getChildren().size());
+        assertEquals("News", before.getChild("news").getNavigationTitle());
+        assertEquals(1, tree.getAppliedUpdates());
+    }
+
+    @Test
+    void removesSubtree(AemContext context) throws Exception {
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/de"));
+        context.resourceResolver().commit();
+
+        tree.handleChanges(Collections.singletonList(
+                change("/content/site/de", ChangeType.REMOVED, true)));
+        tree.awaitIdle();
+
+        assertNull(tree.getNode("/content/site/de"));
+        assertNull(tree.getNode("/content/site/de/news"));
+        assertEquals(Collections.singletonList("/content/site/en"), paths(tree.getNode("/content/site").getChildren()));
+    }
+
+    private static List<String> paths(List<NavigationNode> nodes) {
+        return nodes.stream().map(NavigationNode::getPath).collect(Collectors.toList());
+    }
+}
@@ -15,12 +15,15 @@
  */
 package com.task01.core.schedulers;
 
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import io.wcm.testing.mock.aem.junit5.AemContext;
 import io.wcm.testing.mock.aem.junit5.AemContextExtension;
 import uk.org.lidalia.slf4jext.Level;
 import uk.org.lidalia.slf4jtest.LoggingEvent;
@@ -58,4 +61,29 @@ class SimpleScheduledTaskTest {
         assertEquals(1, event.getArguments().size());
         assertEquals("parameter value", event.getArguments().get(0));
     }
+
+    @Test
+    void sweepsPartitionsInParallel(AemContext context) throws Exception {
+        Calendar old = Calendar.getInstance();
+        old.add(Calendar.YEAR, -2);
+        context.create().page("/content/site");
+        context.create().page("/content/site/en");
+        context.create().page("/content/site/en/old", null, Collections.<String, Object>singletonMap("cq:lastModified", old));
+        context.create().page("/content/site/en/new", null, Collections.<String, Object>singletonMap("cq:lastModified", Calendar.getInstance()));
+        context.create().page("/content/site/de");
+        context.resourceResolver().commit();
+
+        SimpleScheduledTask task = context.registerInjectActivateService(new SimpleScheduledTask(),
+                "roots", new String[] { "/content" },
+                "partitionDepth", 2,
+                "threads", 2,
+                "staleAfterDays", 30);
+        task.run();
+
+        assertEquals(5, task.getProcessedPages());
+        assertEquals(1, task.getLastCycleStalePages());
+        assertEquals(1, task.getCompletedCycles());
+        assertEquals(0, task.getPendingPartitions());
+        assertEquals(0, task.getLagMillis());
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.day.cq.wcm.api.Page;
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(AemContextExtension.class)
+class SearchIndexTest {
+
+    private static final String TEMPLATE = "/conf/site/templates/page";
+
+    private SearchIndex index;
+
+    @BeforeEach
+    void setup(AemContext context) throws Exception {
+        context.create().page("/content/site", TEMPLATE, "Site");
+        context.create().page("/content/site/en", TEMPLATE, "English");
+        context.create().page("/content/site/en/shoes", TEMPLATE, "Running Shoes");
+        Page shirts = context.create().page("/content/site/en/shirts", TEMPLATE, "Shirts");
+        context.resourceResolver().getResource("/content/site/en/shirts/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("jcr:description", "Cotton shirts for runners");
+        context.create().resource(shirts, "root/text", "text", "<p>Light <b>run</b>ning shoes &amp; shirts</p>");
+        context.create().page("/content/site/de", TEMPLATE, "Laufschuhe");
+        context.resourceResolver().commit();
+
+        index = context.registerInjectActivateService(new SearchIndex(),
+                "roots", new String[] { "/content" },
+                "partitionDepth", 2,
+                "threads", 2);
+        assertTrue(index.awaitReady(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void ranksTitlesAboveText() {
+        assertEquals(5, index.size());
+        assertEquals(Arrays.asList("/content/site/en/shoes", "/content/site/en/shirts"),
+                paths(index.search("shoes", "/content", 10)));
+        assertEquals("Running Shoes", index.search("shoes", "/content", 1).get(0).getTitle());
+        assertEquals(Collections.singletonList("/content/site/en/shirts"), paths(index.search("cotton shirts", "/content", 10)));
+        assertTrue(index.search("amp", "/content", 10).isEmpty());
+    }
+
+    @Test
+    void matchesLastTermAsPrefix() {
+        assertEquals(Arrays.asList("/content/site/en/shoes", "/content/site/en/shirts"),
+                paths(index.search("run", "/content", 10)));
+        assertEquals(Collections.singletonList("/content/site/en/shirts"), paths(index.search("run ", "/content", 10)));
+        assertEquals(Collections.singletonList("/content/site/de"), paths(index.search("lauf", "/content/site/de", 10)));
+        assertTrue(index.search("lauf", "/content/site/en", 10).isEmpty());
+    }
+
+    @Test
+    void appliesChanges(AemContext context) throws Exception {
+        context.resourceResolver().getResource("/content/site/en/shoes/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put("jcr:title", "Trail Boots");
+        context.resourceResolver().delete(context.resourceResolver().getResource("/content/site/en/shirts"));
+        context.resourceResolver().commit();
+
+        index.handleChanges(Arrays.asList(
+                change("/content/site/en/shoes/jcr:content", ChangeType.CHANGED, false),
+                change("/content/site/en/shirts", ChangeType.REMOVED, true)));
+        index.awaitIdle();
+
+        assertEquals(4, index.size());
+        assertTrue(index.search("shoes", "/content", 10).isEmpty());
+        assertEquals(Collections.singletonList("/content/site/en/shoes"), paths(index.search("boots", "/content", 10)));
+        assertEquals(1, index.getAppliedUpdates());
+    }
+
+    private static List<String> paths(List<SearchHit> hits) {
+        return hits.stream().map(SearchHit::getPath).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.servlets;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
+import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MonitoringAccessTest {
+
+    @Test
+    void allowsMembersOfTheMonitoringGroup() throws RepositoryException {
+        User user = user("scraper");
+        List<Group> groups = Arrays.asList(group("everyone"), group(MonitoringAccess.GROUP));
+        when(user.memberOf()).thenReturn(groups.iterator());
+
+        assertTrue(MonitoringAccess.isAllowed(request(user)));
+    }
+
+    @Test
+    void allowsAdministrators() throws RepositoryException {
+        User user = user("admin");
+        when(user.isAdmin()).thenReturn(true);
+
+        assertTrue(MonitoringAccess.isAllowed(request(user)));
+    }
+
+    @Test
+    void forbidsOtherUsers() throws RepositoryException {
+        User user = user("anonymous");
+        List<Group> groups = Collections.singletonList(group("everyone"));
+        when(user.memberOf()).thenReturn(groups.iterator());
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+
+        assertFalse(MonitoringAccess.check(request(user), response));
+        assertEquals(403, response.getStatus());
+    }
+
+    private static MockSlingHttpServletRequest request(User user) throws RepositoryException {
+        String id = user.getID();
+        UserManager userManager = mock(UserManager.class);
+        when(userManager.getAuthorizable(id)).thenReturn(user);
+        JackrabbitSession session = mock(JackrabbitSession.class);
+        when(session.getUserID()).thenReturn(id);
+        when(session.getUserManager()).thenReturn(userManager);
+        ResourceResolver resolver = mock(ResourceResolver.class);
+        when(resolver.adaptTo(Session.class)).thenReturn(session);
+        return new MockSlingHttpServletRequest(resolver, null);
+    }
+
+    private static User user(String id) throws RepositoryException {
+        User user = mock(User.class);
+        when(user.getID()).thenReturn(id);
+        when(user.memberOf()).thenReturn(Collections.<Group>emptyIterator());
+        return user;
+    }
+
+    private static Group group(String id) throws RepositoryException {
+        Group group = mock(Group.class);
+        when(group.getID()).thenReturn(id);
+        return group;
+    }
+}
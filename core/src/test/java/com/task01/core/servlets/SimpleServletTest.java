@@ -16,9 +16,20 @@
 package com.task01.core.servlets;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceWrapper;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.testing.mock.sling.servlet.MockRequestPathInfo;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletRequest;
 import org.apache.sling.testing.mock.sling.servlet.MockSlingHttpServletResponse;
 import org.junit.jupiter.api.Test;
@@ -27,7 +38,16 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import io.wcm.testing.mock.aem.junit5.AemContext;
 import io.wcm.testing.mock.aem.junit5.AemContextExtension;
 
+import com.task01.core.cache.RenderCache;
+import com.task01.core.index.PageIndex;
+import com.task01.core.index.PageInfo;
+import com.task01.core.listeners.CoalescedChange;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(AemContextExtension.class)
 class SimpleServletTest {
@@ -46,4 +66,135 @@ class SimpleServletTest {
 
         assertEquals("Title = resource title", response.getOutputAsString());
     }
+
+    @Test
+    void doGetServesCachedRenderAndNotModified(AemContext context) throws ServletException, IOException {
+        context.build().resource("/content/test", "jcr:title", "resource title").commit();
+        context.currentResource("/content/test");
+        RenderCache cache = context.registerInjectActivateService(new RenderCache());
+        SimpleServlet servlet = context.registerInjectActivateService(new SimpleServlet());
+
+        servlet.doGet(context.request(), context.response());
+        String etag = context.response().getHeader("ETag");
+        assertEquals("Title = resource title", cache.get("/content/test").getBody());
+
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(context.currentResource());
+        request.addHeader("If-None-Match", etag);
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+
+        servlet.doGet(request, response);
+
+        assertEquals(304, response.getStatus());
+        assertEquals("", response.getOutputAsString());
+    }
+
+    @Test
+    void doGetDoesNotCacheRenderOverlappingChange(AemContext context) throws ServletException, IOException {
+        context.build().resource("/content/test", "jcr:title", "resource title").commit();
+        RenderCache cache = context.registerInjectActivateService(new RenderCache());
+        SimpleServlet servlet = context.registerInjectActivateService(new SimpleServlet());
+        // the resource changes after the render read it, before the render is stored
+        Resource changing = new ResourceWrapper(context.resourceResolver().getResource("/content/test")) {
+            @Override
+            public ValueMap getValueMap() {
+                ValueMap properties = super.getValueMap();
+                cache.handleChanges(Collections.singletonList(
+                        new CoalescedChange("/content/test", EnumSet.of(ChangeType.CHANGED), false, false)));
+                return properties;
+            }
+        };
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(changing);
+
+        servlet.doGet(request, new MockSlingHttpServletResponse());
+
+        assertNull(cache.get("/content/test"));
+        assertEquals(1, cache.getDiscardedCount());
+
+        request.setResource(context.resourceResolver().getResource("/content/test"));
+        servlet.doGet(request, new MockSlingHttpServletResponse());
+
+        assertEquals("Title = resource title", cache.get("/content/test").getBody());
+    }
+
+    @Test
+    void doGetRendersTitleFromPageIndex(AemContext context) throws ServletException, IOException {
+        context.create().page("/content/site", "/conf/site/templates/page", "Repository title");
+        context.currentResource("/content/site/jcr:content");
+        PageIndex index = mock(PageIndex.class);
+        when(index.getPage("/content/site")).thenReturn(new PageInfo("/content/site", "Indexed title", null, 1000L));
+        context.registerService(PageIndex.class, index);
+        RenderCache cache = context.registerInjectActivateService(new RenderCache());
+        SimpleServlet servlet = context.registerInjectActivateService(new SimpleServlet());
+
+        servlet.doGet(context.request(), context.response());
+
+        assertEquals("Title = Indexed title", context.response().getOutputAsString());
+        // the index may apply a change after the render cache dropped it, so its renders are not cached
+        assertNull(cache.get("/content/site/jcr:content"));
+    }
+
+    @Test
+    void exportsSubtreeAsNdjson(AemContext context) throws ServletException, IOException {
+        createTree(context);
+
+        String[] lines = export(context, Collections.emptyMap()).getOutputAsString().split("\n");
+
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("{\"path\":\"/content/site\",\"title\":\"Site\""), lines[0]);
+        assertTrue(lines[1].startsWith("{\"path\":\"/content/site/a\""), lines[1]);
+        assertTrue(lines[2].startsWith("{\"path\":\"/content/site/a/a1\""), lines[2]);
+        assertTrue(lines[3].startsWith("{\"path\":\"/content/site/b\""), lines[3]);
+        assertTrue(lines[1].contains("\"template\":\"/conf/site/templates/page\""), lines[1]);
+    }
+
+    @Test
+    void exportResumesAfterBudget(AemContext context) throws ServletException, IOException {
+        createTree(context);
+
+        String[] first = export(context, Collections.<String, Object>singletonMap("budget", "2")).getOutputAsString().split("\n");
+        assertEquals(3, first.length);
+        assertTrue(first[1].startsWith("{\"path\":\"/content/site/a\""), first[1]);
+        Matcher token = Pattern.compile("\\{\"resume\":\"([^\"]+)\"\\}").matcher(first[2]);
+        assertTrue(token.matches(), first[2]);
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("budget", "2");
+        parameters.put("resume", token.group(1));
+        String[] second = export(context, parameters).getOutputAsString().split("\n");
+        assertEquals(2, second.length);
+        assertTrue(second[0].startsWith("{\"path\":\"/content/site/a/a1\""), second[0]);
+        assertTrue(second[1].startsWith("{\"path\":\"/content/site/b\""), second[1]);
+    }
+
+    @Test
+    void exportRejectsForeignResumeToken(AemContext context) throws ServletException, IOException {
+        createTree(context);
+
+        MockSlingHttpServletResponse response = export(context,
+                Collections.<String, Object>singletonMap("resume", PageExporter.encodeToken("/content/other")));
+
+        assertEquals(400, response.getStatus());
+    }
+
+    private static void createTree(AemContext context) {
+        context.create().page("/content/site", "/conf/site/templates/page", "Site");
+        context.create().page("/content/site/a", "/conf/site/templates/page", "A");
+        context.create().page("/content/site/a/a1", "/conf/site/templates/page", "A1");
+        context.create().page("/content/site/b", "/conf/site/templates/page", "B");
+    }
+
+    private MockSlingHttpServletResponse export(AemContext context, Map<String, Object> parameters)
+            throws ServletException, IOException {
+        MockSlingHttpServletRequest request = new MockSlingHttpServletRequest(context.resourceResolver(), context.bundleContext());
+        request.setResource(context.resourceResolver().getResource("/content/site/jcr:content"));
+        MockRequestPathInfo pathInfo = (MockRequestPathInfo) request.getRequestPathInfo();
+        pathInfo.setSelectorString("export");
+        pathInfo.setExtension("ndjson");
+        request.setParameterMap(parameters);
+        MockSlingHttpServletResponse response = new MockSlingHttpServletResponse();
+        fixture.doGet(request, response);
+        return response;
+    }
 }
@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.testcontext;
+
+import java.util.EnumSet;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+
+import com.task01.core.listeners.CoalescedChange;
+
+/**
+ * Builds the coalesced changes handed to {@code ResourceChangeHandler}s in
+ * unit tests.
+ */
+public final class ResourceChanges {
+
+    private ResourceChanges() {
+        // static methods only
+    }
+
+    /**
+     * @return a local change of a single type
+     */
+    public static CoalescedChange change(String path, ChangeType type, boolean subtree) {
+        return new CoalescedChange(path, EnumSet.of(type), subtree, false);
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.warmup;
+
+import static com.task01.core.testcontext.ResourceChanges.change;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+@ExtendWith(AemContextExtension.class)
+class CacheWarmerTest {
+
+    private static final String BLOCKED = "/content/site/blocked.html";
+
+    private HttpServer dispatcher;
+
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+
+    // holds the response for BLOCKED until released
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private HotnessTracker tracker;
+
+    private CacheWarmer warmer;
+
+    @BeforeEach
+    void setup(AemContext context) throws IOException {
+        dispatcher = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        dispatcher.createContext("/", exchange -> {
+            requested.add(exchange.getRequestURI().getPath() + " " + exchange.getRequestHeaders().getFirst(CacheWarmer.WARMUP_HEADER));
+            if (BLOCKED.equals(exchange.getRequestURI().getPath())) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        dispatcher.start();
+
+        tracker = context.registerInjectActivateService(new HotnessTracker());
+        warmer = context.registerInjectActivateService(new CacheWarmer(),
+                "dispatcherUrl", "http://localhost:" + dispatcher.getAddress().getPort(),
+                "concurrency", 1,
+                "requestsPerSecond", 1000.0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        dispatcher.stop(0);
+    }
+
+    @Test
+    void warmsHottestUrlsFirst() throws InterruptedException {
+        tracker.record("/content/site/en", "/content/site/en.html");
+        for (int i = 0; i < 3; i++) {
+            tracker.record("/content/site/en/news", "/content/site/en/news.html");
+        }
+        tracker.record("/content/site/en/news/jcr:content/list", "/content/site/en/news/jcr:content/list.json");
+        tracker.record("/content/site/en/news/jcr:content/list", "/content/site/en/news/jcr:content/list.json");
+
+        warmer.invalidated(Collections.singletonMap("/content/site/en", true));
+        awaitRequests(3);
+
+        assertEquals(Arrays.asList(
+                "/content/site/en/news.html 1",
+                "/content/site/en/news/jcr:content/list.json 1",
+                "/content/site/en.html 1"), requested);
+        assertEquals(3, warmer.getWarmedCount());
+    }
+
+    @Test
+    void warmsOnlyAfterInvalidation() throws InterruptedException {
+        tracker.record("/content/site/en", "/content/site/en.html");
+        tracker.record("/content/site/de", "/content/site/de.html");
+
+        warmer.handleChanges(Arrays.asList(
+                change("/content/site/en/jcr:content", ChangeType.CHANGED, false),
+                change("/content/site/de/jcr:content", ChangeType.CHANGED, false)));
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertEquals(0, requested.size());
+
+        warmer.invalidated(Collections.singletonMap("/content/site/en", false));
+        awaitRequests(1);
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertEquals(Collections.singletonList("/content/site/en.html 1"), requested);
+        assertEquals(1, warmer.getWarmedCount());
+    }
+
+    @Test
+    void skipsWorkSupersededByChange() throws InterruptedException {
+        tracker.record("/content/site/blocked", BLOCKED);
+        tracker.record("/content/site/en", "/content/site/en.html");
+
+        // keeps the only worker busy
+        warmer.invalidated(Collections.singletonMap("/content/site/blocked", false));
+        awaitRequests(1);
+        warmer.invalidated(Collections.singletonMap("/content/site/en", false));
+        warmer.handleChanges(Collections.singletonList(
+                change("/content/site/en/jcr:content", ChangeType.CHANGED, false)));
+        warmer.invalidated(Collections.singletonMap("/content/site/en", false));
+        release.countDown();
+        awaitRequests(2);
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertEquals(Arrays.asList(BLOCKED + " 1", "/content/site/en.html 1"), requested);
+        assertEquals(2, warmer.getWarmedCount());
+        assertEquals(1, warmer.getSupersededCount());
+        assertEquals(0, warmer.getPendingUrlCount());
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requested.size() < count && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+}
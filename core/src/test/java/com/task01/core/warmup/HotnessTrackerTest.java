@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2018 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.task01.core.warmup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import io.wcm.testing.mock.aem.junit5.AemContext;
+import io.wcm.testing.mock.aem.junit5.AemContextExtension;
+
+@ExtendWith(AemContextExtension.class)
+class HotnessTrackerTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    private HotnessTracker tracker;
+
+    @BeforeEach
+    void setup(AemContext context) {
+        tracker = new HotnessTracker();
+        tracker.clock = now::get;
+        context.registerInjectActivateService(tracker,
+                "maxTracked", 10,
+                "halfLifeSeconds", 60L);
+    }
+
+    @Test
+    void ranksUrlsOfPageByHits() {
+        tracker.record("/content/site/en", "/content/site/en.html");
+        tracker.record("/content/site/en/jcr:content/root/list", "/content/site/en/jcr:content/root/list.json");
+        tracker.record("/content/site/en/jcr:content/root/list", "/content/site/en/jcr:content/root/list.json");
+        tracker.record("/content/site/en/news", "/content/site/en/news.html");
+        tracker.record("/var/other", "/var/other.html");
+
+        assertEquals(Arrays.asList("/content/site/en/jcr:content/root/list.json", "/content/site/en.html"),
+                tracker.getUris("/content/site/en", false));
+        assertEquals(3, tracker.getUris("/content/site/en", true).size());
+        assertEquals(Collections.emptyList(), tracker.getUris("/var/other", false));
+        assertEquals(3, tracker.size());
+    }
+
+    @Test
+    void decaysWithHalfLife() {
+        tracker.record("/content/site/en", "/content/site/en.html");
+        tracker.record("/content/site/en", "/content/site/en.html");
+        assertEquals(2.0, tracker.getScore("/content/site/en.html"), 1e-9);
+
+        now.addAndGet(60_000L);
+        assertEquals(1.0, tracker.getScore("/content/site/en.html"), 1e-9);
+
+        // a recent hit outweighs two old ones
+        now.addAndGet(60_000L);
+        tracker.record("/content/site/de", "/content/site/de.html");
+        tracker.record("/content/site/de", "/content/site/de.html");
+        assertTrue(tracker.getScore("/content/site/de.html") > tracker.getScore("/content/site/en.html"));
+    }
+
+    @Test
+    void renormalizesWithoutChangingScores() {
+        tracker.record("/content/site/en", "/content/site/en.html");
+        // far beyond the renormalization threshold of the exponent
+        now.addAndGet(60_000L * 1000);
+        tracker.record("/content/site/en", "/content/site/en.html");
+
+        assertEquals(1.0, tracker.getScore("/content/site/en.html"), 1e-9);
+    }
+
+    @Test
+    void dropsColdestUrlsWhenFull() {
+        for (int i = 0; i < 10; i++) {
+            tracker.record("/content/site/hot", "/content/site/hot.html");
+            tracker.record("/content/site/p" + i, "/content/site/p" + i + ".html");
+        }
+        tracker.record("/content/site/new", "/content/site/new.html");
+
+        assertTrue(tracker.size() <= 10);
+        assertEquals(Collections.singletonList("/content/site/hot.html"), tracker.getUris("/content/site/hot", false));
+        assertEquals(Collections.singletonList("/content/site/new.html"), tracker.getUris("/content/site/new", false));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter over strings, used as the visited set of the
+ * crawler. False positives mean a page is occasionally not crawled; the
+ * probability is bounded by the configured rate as long as the expected
+ * number of insertions is not exceeded.
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray words;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions number of elements the filter is sized for
+     * @param falsePositiveRate acceptable false positive rate, e.g. 0.001
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = Math.max(64, (bits + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+        this.words = new AtomicLongArray((int) (bitCount / 64));
+    }
+
+    /**
+     * Adds the value.
+     * @param value value to add
+     * @return <code>true</code> if the value was (probably) not contained before
+     */
+    public boolean add(String value) {
+        long hash = murmur64(value.getBytes(StandardCharsets.UTF_8));
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean added = false;
+        for (int i = 1; i <= hashCount; i++) {
+            int combined = h1 + i * h2;
+            long bit = (combined & Integer.MAX_VALUE) % bitCount;
+            added |= setBit(bit);
+        }
+        return added;
+    }
+
+    /**
+     * @param value value to check
+     * @return <code>false</code> if the value was definitely never added
+     */
+    public boolean mightContain(String value) {
+        long hash = murmur64(value.getBytes(StandardCharsets.UTF_8));
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            int combined = h1 + i * h2;
+            long bit = (combined & Integer.MAX_VALUE) % bitCount;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean setBit(long bit) {
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        while (true) {
+            long current = words.get(index);
+            if ((current & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, current, current | mask)) {
+                return true;
+            }
+        }
+    }
+
+    // 64 bit variant of MurmurHash2, sufficient for spreading URL strings
+    private static long murmur64(byte[] data) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        long h = 0x9747b28cL ^ (data.length * m);
+        int blocks = data.length / 8;
+        for (int i = 0; i < blocks; i++) {
+            int o = i * 8;
+            long k = (data[o] & 0xffL) | (data[o + 1] & 0xffL) << 8 | (data[o + 2] & 0xffL) << 16
+                    | (data[o + 3] & 0xffL) << 24 | (data[o + 4] & 0xffL) << 32 | (data[o + 5] & 0xffL) << 40
+                    | (data[o + 6] & 0xffL) << 48 | (data[o + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        int tail = blocks * 8;
+        switch (data.length - tail) {
+            case 7: h ^= (data[tail + 6] & 0xffL) << 48;
+            case 6: h ^= (data[tail + 5] & 0xffL) << 40;
+            case 5: h ^= (data[tail + 4] & 0xffL) << 32;
+            case 4: h ^= (data[tail + 3] & 0xffL) << 24;
+            case 3: h ^= (data[tail + 2] & 0xffL) << 16;
+            case 2: h ^= (data[tail + 1] & 0xffL) << 8;
+            case 1: h ^= data[tail] & 0xffL;
+                h *= m;
+            default:
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+}
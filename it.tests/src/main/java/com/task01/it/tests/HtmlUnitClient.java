@@ -17,21 +17,29 @@ package com.task01.it.tests;
 
 import com.adobe.cq.testing.client.CQClient;
 import com.gargoylesoftware.htmlunit.DefaultCssErrorHandler;
+import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.WebClientOptions;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.apache.sling.testing.clients.ClientException;
 import org.apache.sling.testing.clients.SlingClientConfig;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,24 +54,84 @@ public class HtmlUnitClient extends CQClient {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(HtmlUnitClient.class);
 
+    // extract resource references with the streaming scanner instead of the DOM
+    private static final boolean STREAMING_REFS = Boolean.getBoolean("it.refs.streaming");
+
     private final WebClient webClient = new WebClient();
 
     /** Extracts references to external resources used by the specified page.
      * This method extracts references from script, img, meta and link tags.
+     * The extraction engine is selected with the <code>it.refs.streaming</code>
+     * system property, see {@link #getResourceRefs(String, boolean)}.
      * @param path path to the page.
      * @return list of URIs resolved against the pages baseURL
      * @throws IOException when IO error occurs
      * @throws URISyntaxException if malformed URL reference is found.
      */
     public List<URI> getResourceRefs(String path) throws IOException, URISyntaxException {
-        HtmlPage page = getPage(path, false);
-        List<URI> result = new ArrayList<>();
-        result.addAll(getRefs(page, "script", "src"));
-        result.addAll(getRefs(page, "img", "src"));
-        result.addAll(getRefs(page, "meta", "href"));
-        result.addAll(getRefs(page, "link", "href"));
-        result.addAll(getCoreComponentImageRenditions(page));
-        return result;
+        return getResourceRefs(path, STREAMING_REFS);
+    }
+
+    /** Extracts references to external resources used by the specified page.
+     * @param path path to the page.
+     * @param streaming <code>true</code> to scan the raw response with {@link ResourceRefScanner},
+     *                  <code>false</code> to load the page into an HtmlUnit DOM
+     * @return list of URIs resolved against the pages baseURL, the same for both engines
+     * @throws IOException when IO error occurs
+     * @throws URISyntaxException if malformed URL reference is found.
+     */
+    public List<URI> getResourceRefs(String path, boolean streaming) throws IOException, URISyntaxException {
+        if (!streaming) {
+            return getResourceRefs(getPage(path, false));
+        }
+        URI uri = getUrl(path);
+        HttpResponse response = execute(new HttpGet(uri));
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300 || response.getEntity() == null) {
+                throw new IOException("Request to [" + uri + "] returned " + status);
+            }
+            try (InputStream in = response.getEntity().getContent()) {
+                return ResourceRefScanner.scan(in, uri);
+            }
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+        }
+    }
+
+    /**
+     * Loads the page at the given URL without executing javascript and
+     * collects its response metrics, links and resource references. Unlike
+     * {@link #getPage(String, boolean)} this does not fail on error status
+     * codes, those are reported in the result.
+     * @param uri absolute URL of the page
+     * @return status, timing, size and references of the page
+     * @throws IOException if IO error occurs.
+     * @throws URISyntaxException if malformed URL reference is found.
+     */
+    public PageScan scanPage(URI uri) throws IOException, URISyntaxException {
+        WebClientOptions options = webClient.getOptions();
+        boolean wasJsEnabled = options.isJavaScriptEnabled();
+        boolean wasThrowing = options.isThrowExceptionOnFailingStatusCode();
+        try {
+            options.setJavaScriptEnabled(false);
+            options.setThrowExceptionOnFailingStatusCode(false);
+            Page page = getPage(webClient, uri.toURL());
+            WebResponse response = page.getWebResponse();
+            List<URI> links = Collections.emptyList();
+            List<URI> refs = Collections.emptyList();
+            if (page instanceof HtmlPage) {
+                HtmlPage htmlPage = (HtmlPage) page;
+                links = getRefs(htmlPage, "a", "href");
+                refs = getResourceRefs(htmlPage);
+            }
+            long bytes = count(response);
+            page.cleanUp();
+            return new PageScan(uri, response.getStatusCode(), response.getLoadTime(), bytes, links, refs);
+        } finally {
+            options.setJavaScriptEnabled(wasJsEnabled);
+            options.setThrowExceptionOnFailingStatusCode(wasThrowing);
+        }
     }
 
     /**
@@ -98,6 +166,13 @@ public class HtmlUnitClient extends CQClient {
         webClient.setCredentialsProvider(this.getCredentialsProvider());
     }
 
+    /**
+     * @return credentials of this client, for helpers that issue requests over their own connection pool
+     */
+    CredentialsProvider getCredentials() {
+        return getCredentialsProvider();
+    }
+
     @Override
     public void close() throws IOException {
         try {
@@ -111,6 +186,28 @@ public class HtmlUnitClient extends CQClient {
     // Internals
     //*********************************************
 
+    private static List<URI> getResourceRefs(HtmlPage page) throws URISyntaxException {
+        List<URI> result = new ArrayList<>();
+        result.addAll(getRefs(page, "script", "src"));
+        result.addAll(getRefs(page, "img", "src"));
+        result.addAll(getRefs(page, "meta", "href"));
+        result.addAll(getRefs(page, "link", "href"));
+        result.addAll(getCoreComponentImageRenditions(page));
+        return result;
+    }
+
+    private static long count(WebResponse response) throws IOException {
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        try (InputStream in = response.getContentAsStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
     private static List<URI> getRefs(HtmlPage page, String tag, String refAttr) throws URISyntaxException {
         URI baseUri = new URI(page.getBaseURI());
         List<URI> result = new ArrayList<>();
@@ -165,10 +262,10 @@ public class HtmlUnitClient extends CQClient {
      *  Loads requested page while suppressing CSS errors (logged as warnings)
      * @param webClient web client to use for loading
      * @param url page URL
-     * @return loaded HtmlPage instance.
+     * @return loaded page instance.
      * @throws IOException when error occurs
      */
-    private static HtmlPage getPage(WebClient webClient, URL url) throws IOException {
+    private static <P extends Page> P getPage(WebClient webClient, URL url) throws IOException {
         Logger logger = Logger.getLogger(DefaultCssErrorHandler.class.getName());
         Level originalLevel = logger.getLevel();
         try {
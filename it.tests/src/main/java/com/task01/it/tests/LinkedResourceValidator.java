@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks linked resources (clientlibs, images, renditions) concurrently over a
+ * bounded connection pool. Every URI is requested once, either with HEAD or
+ * with a streaming GET whose body is counted but never buffered.
+ */
+public class LinkedResourceValidator implements Closeable {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(LinkedResourceValidator.class);
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+
+    /**
+     * Outcome of checking a single linked resource.
+     */
+    public static final class Result {
+
+        private final URI uri;
+        private final int status;
+        private final long contentLength;
+        private final long latencyMillis;
+        private final String error;
+
+        Result(URI uri, int status, long contentLength, long latencyMillis, String error) {
+            this.uri = uri;
+            this.status = status;
+            this.contentLength = contentLength;
+            this.latencyMillis = latencyMillis;
+            this.error = error;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        /**
+         * @return HTTP status, or -1 if the request failed
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return size of the response body in bytes, or -1 if unknown
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        /**
+         * @return error message if the request failed, <code>null</code> otherwise
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return uri + " -> " + (error != null ? error : status + ", " + contentLength + " bytes")
+                    + " in " + latencyMillis + "ms";
+        }
+    }
+
+    private final CredentialsProvider credentials;
+
+    private final PoolingHttpClientConnectionManager connections;
+
+    private final CloseableHttpClient http;
+
+    private final ExecutorService executor;
+
+    private final boolean useHead;
+
+    /**
+     * @param client client whose credentials are used
+     * @param concurrency maximum number of parallel requests and pooled connections
+     * @param useHead whether to issue HEAD requests instead of streaming GETs
+     */
+    public LinkedResourceValidator(HtmlUnitClient client, int concurrency, boolean useHead) {
+        this.credentials = client.getCredentials();
+        this.useHead = useHead;
+        this.connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(concurrency);
+        connections.setDefaultMaxPerRoute(concurrency);
+        this.http = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultCredentialsProvider(credentials)
+                .build();
+        this.executor = Executors.newFixedThreadPool(concurrency);
+    }
+
+    /**
+     * Checks all given URIs, each distinct URI once.
+     * @param uris URIs to check, duplicates are ignored
+     * @return one result per distinct URI, in the order of first occurrence
+     * @throws InterruptedException if interrupted while waiting for results
+     */
+    public List<Result> validate(Collection<URI> uris) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<>();
+        for (URI uri : new LinkedHashSet<>(uris)) {
+            futures.add(executor.submit(() -> check(uri)));
+        }
+        List<Result> results = new ArrayList<>(futures.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unexpected failure while validating resources", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks a single URI on the calling thread.
+     * @param uri URI to check
+     * @return result of the check, never <code>null</code>
+     */
+    public Result check(URI uri) {
+        long start = System.nanoTime();
+        try {
+            if (useHead) {
+                Result head = execute(uri, new HttpHead(uri), start);
+                // fall back to GET if the server does not support HEAD or does not report a length
+                if (head.getStatus() != 405 && head.getContentLength() >= 0) {
+                    return head;
+                }
+            }
+            return execute(uri, new HttpGet(uri), start);
+        } catch (IOException e) {
+            LOG.debug("Request to {} failed", uri, e);
+            return new Result(uri, -1, -1, elapsedMillis(start), e.toString());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            http.close();
+            connections.close();
+        }
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private Result execute(URI uri, HttpRequestBase request, long start) throws IOException {
+        try (CloseableHttpResponse response = http.execute(request, newContext(uri))) {
+            int status = response.getStatusLine().getStatusCode();
+            long length;
+            if (request instanceof HttpHead) {
+                Header header = response.getFirstHeader("Content-Length");
+                try {
+                    length = header != null ? Long.parseLong(header.getValue().trim()) : -1;
+                } catch (NumberFormatException e) {
+                    return new Result(uri, status, -1, elapsedMillis(start),
+                            "invalid Content-Length: " + header.getValue());
+                }
+            } else {
+                length = count(response.getEntity());
+            }
+            return new Result(uri, status, length, elapsedMillis(start), null);
+        }
+    }
+
+    private HttpClientContext newContext(URI uri) {
+        // authenticate preemptively, saves a challenge round trip per connection
+        AuthCache authCache = new BasicAuthCache();
+        authCache.put(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), new BasicScheme());
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credentials);
+        context.setAuthCache(authCache);
+        return context;
+    }
+
+    private static long count(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return 0;
+        }
+        byte[] buffer = BUFFER.get();
+        long total = 0;
+        try (InputStream in = entity.getContent()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
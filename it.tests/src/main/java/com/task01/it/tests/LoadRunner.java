@@ -0,0 +1,320 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load generator. Requests are started at a fixed arrival rate,
+ * independent of how fast earlier requests complete, so a slow server
+ * builds up in-flight requests instead of silently lowering the load.
+ * <p>
+ * Latency is recorded twice: from the moment a request was scheduled to
+ * start (corrected for coordinated omission) and from the moment it was
+ * actually sent (service time). Requests run on virtual threads when the
+ * JDK provides them and on a cached thread pool otherwise.
+ */
+public class LoadRunner implements Closeable {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(LoadRunner.class);
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+
+    /**
+     * Outcome of a load run.
+     */
+    public static final class Report {
+
+        private final LatencyRecorder corrected;
+        private final LatencyRecorder service;
+        private final long requests;
+        private final long errors;
+        private final long bytes;
+        private final long elapsedMillis;
+
+        Report(LatencyRecorder corrected, LatencyRecorder service, long requests, long errors, long bytes,
+               long elapsedMillis) {
+            this.corrected = corrected;
+            this.service = service;
+            this.requests = requests;
+            this.errors = errors;
+            this.bytes = bytes;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return latencies measured from the scheduled start of each request
+         */
+        public LatencyRecorder getCorrected() {
+            return corrected;
+        }
+
+        /**
+         * @return latencies measured from the actual start of each request
+         */
+        public LatencyRecorder getService() {
+            return service;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return requests that failed or did not return 200
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getErrorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return completed requests per second
+         */
+        public double getThroughput() {
+            return elapsedMillis == 0 ? 0 : requests * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * @param maxP99Millis highest acceptable corrected 99th percentile
+         * @param maxErrorRate highest acceptable error rate between 0 and 1
+         * @return descriptions of all breached thresholds, empty if the run passed
+         */
+        public List<String> getViolations(long maxP99Millis, double maxErrorRate) {
+            List<String> violations = new ArrayList<>();
+            long p99 = TimeUnit.MICROSECONDS.toMillis(corrected.getValueAtPercentile(99));
+            if (p99 > maxP99Millis) {
+                violations.add("p99 latency " + p99 + "ms exceeds " + maxP99Millis + "ms");
+            }
+            if (getErrorRate() > maxErrorRate) {
+                violations.add(String.format("error rate %.4f exceeds %.4f", getErrorRate(), maxErrorRate));
+            }
+            return violations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%.1f/s), %d errors, %d bytes; corrected p50=%dms p90=%dms p99=%dms "
+                            + "p99.9=%dms max=%dms; service p50=%dms p99=%dms",
+                    requests, getThroughput(), errors, bytes,
+                    millis(corrected, 50), millis(corrected, 90), millis(corrected, 99), millis(corrected, 99.9),
+                    TimeUnit.MICROSECONDS.toMillis(corrected.getMaxMicros()),
+                    millis(service, 50), millis(service, 99));
+        }
+
+        private static long millis(LatencyRecorder recorder, double percentile) {
+            return TimeUnit.MICROSECONDS.toMillis(recorder.getValueAtPercentile(percentile));
+        }
+    }
+
+    private final URI baseUrl;
+
+    private final CredentialsProvider credentials;
+
+    private final PoolingHttpClientConnectionManager connections;
+
+    private final CloseableHttpClient http;
+
+    /**
+     * @param client client whose URL and credentials are used
+     * @param maxConnections maximum number of connections to the instance
+     * @param timeoutMillis connect, socket and connection pool timeout of a request
+     */
+    public LoadRunner(HtmlUnitClient client, int maxConnections, int timeoutMillis) {
+        this.baseUrl = client.getUrl();
+        this.credentials = client.getCredentials();
+        this.connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConnections);
+        connections.setDefaultMaxPerRoute(maxConnections);
+        this.http = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultCredentialsProvider(credentials)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeoutMillis)
+                        .setSocketTimeout(timeoutMillis)
+                        .setConnectionRequestTimeout(timeoutMillis)
+                        .build())
+                .build();
+    }
+
+    /**
+     * Requests the given pages round robin at a fixed rate.
+     * @param paths paths of the pages, relative to the client URL
+     * @param ratePerSecond request arrival rate
+     * @param durationMillis duration of the run; in-flight requests are awaited afterwards
+     * @return latency and error statistics of the run
+     * @throws InterruptedException if interrupted while running
+     */
+    public Report run(List<String> paths, double ratePerSecond, long durationMillis) throws InterruptedException {
+        List<URI> uris = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            uris.add(baseUrl.resolve(path));
+        }
+        LatencyRecorder corrected = new LatencyRecorder();
+        LatencyRecorder service = new LatencyRecorder();
+        LongAdder errors = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        AtomicInteger inFlight = new AtomicInteger();
+
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long total = (long) (ratePerSecond * durationMillis / 1000.0);
+        ExecutorService executor = newExecutor();
+        long start = System.nanoTime();
+        try {
+            for (long i = 0; i < total; i++) {
+                long intended = start + i * intervalNanos;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                URI uri = uris.get((int) (i % uris.size()));
+                inFlight.incrementAndGet();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            long sent = System.nanoTime();
+                            long length = get(uri);
+                            long end = System.nanoTime();
+                            if (length < 0) {
+                                errors.increment();
+                            } else {
+                                bytes.add(length);
+                            }
+                            corrected.record(TimeUnit.NANOSECONDS.toMicros(end - intended));
+                            service.record(TimeUnit.NANOSECONDS.toMicros(end - sent));
+                        } finally {
+                            inFlight.decrementAndGet();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.decrementAndGet();
+                    errors.increment();
+                }
+            }
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.warn("{} requests still in flight after the run", inFlight.get());
+                executor.shutdownNow();
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new Report(corrected, service, corrected.getCount(), errors.sum(), bytes.sum(), elapsed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            http.close();
+        } finally {
+            connections.close();
+        }
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    /**
+     * @return body length, or -1 if the request failed or did not return 200
+     */
+    private long get(URI uri) {
+        // authenticate preemptively, saves a challenge round trip per connection
+        AuthCache authCache = new BasicAuthCache();
+        authCache.put(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()), new BasicScheme());
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credentials);
+        context.setAuthCache(authCache);
+
+        try (CloseableHttpResponse response = http.execute(new HttpGet(uri), context)) {
+            long length = count(response.getEntity());
+            return response.getStatusLine().getStatusCode() == 200 ? length : -1;
+        } catch (IOException e) {
+            LOG.debug("Request to {} failed", uri, e);
+            return -1;
+        }
+    }
+
+    private static long count(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return 0;
+        }
+        byte[] buffer = BUFFER.get();
+        long total = 0;
+        try (InputStream in = entity.getContent()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Uses virtual threads where available. The module targets Java 8, so
+     * the factory is looked up reflectively.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "task01-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import org.apache.sling.testing.clients.ClientException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the load harness against a local stand-in server, so it is covered
+ * in CI without a publish service.
+ */
+public class LoadRunnerIT {
+
+    @Test
+    public void meetsObjectivesAgainstStub() throws IOException, InterruptedException, ClientException {
+        try (StubPublishServer server = new StubPublishServer(4096, 2, 8);
+             HtmlUnitClient client = new HtmlUnitClient(server.getUrl(), "admin", "admin");
+             LoadRunner runner = new LoadRunner(client, 16, 5000)) {
+            LoadRunner.Report report = runner.run(Arrays.asList("/a.html", "/b.html"), 100, 2000);
+
+            assertEquals(200, report.getRequests());
+            assertEquals(0, report.getErrors());
+            assertEquals(200L * server.getPageBytes(), report.getBytes());
+            assertTrue(report.toString(), report.getViolations(1000, 0).isEmpty());
+        }
+    }
+
+    @Test
+    public void reportsBreachedErrorRate() throws IOException, InterruptedException, ClientException {
+        try (StubPublishServer server = new StubPublishServer(1024, 0, 4);
+             HtmlUnitClient client = new HtmlUnitClient(server.getUrl(), "admin", "admin");
+             LoadRunner runner = new LoadRunner(client, 8, 5000)) {
+            LoadRunner.Report report = runner.run(Collections.singletonList("/error.html"), 50, 1000);
+
+            assertEquals(50, report.getErrors());
+            assertEquals(1, report.getViolations(1000, 0.01).size());
+        }
+    }
+
+    @Test
+    public void includesQueueingDelayInCorrectedLatency() throws IOException, InterruptedException, ClientException {
+        // a single server thread at 20ms per request cannot keep up with 100/s
+        try (StubPublishServer server = new StubPublishServer(1024, 20, 1);
+             HtmlUnitClient client = new HtmlUnitClient(server.getUrl(), "admin", "admin");
+             LoadRunner runner = new LoadRunner(client, 16, 10000)) {
+            LoadRunner.Report report = runner.run(Collections.singletonList("/"), 100, 1000);
+
+            assertTrue(report.toString(), report.getCorrected().getValueAtPercentile(99) >= 400_000);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of loading a single page: response metrics plus the references
+ * found in it.
+ */
+public final class PageScan {
+
+    private final URI uri;
+    private final int status;
+    private final long loadMillis;
+    private final long bytes;
+    private final List<URI> pageLinks;
+    private final List<URI> resourceRefs;
+
+    PageScan(URI uri, int status, long loadMillis, long bytes, List<URI> pageLinks, List<URI> resourceRefs) {
+        this.uri = uri;
+        this.status = status;
+        this.loadMillis = loadMillis;
+        this.bytes = bytes;
+        this.pageLinks = Collections.unmodifiableList(pageLinks);
+        this.resourceRefs = Collections.unmodifiableList(resourceRefs);
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return time in milliseconds until the response was downloaded
+     *         completely, as reported by HtmlUnit
+     */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    /**
+     * @return size of the response body in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return targets of all <code>a</code> elements, resolved against the page base URI
+     */
+    public List<URI> getPageLinks() {
+        return pageLinks;
+    }
+
+    /**
+     * @return the references {@link HtmlUnitClient#getResourceRefs(String)} reports for the page
+     */
+    public List<URI> getResourceRefs() {
+        return resourceRefs;
+    }
+}
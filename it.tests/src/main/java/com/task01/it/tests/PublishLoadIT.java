@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import com.adobe.cq.testing.client.CQClient;
+import com.adobe.cq.testing.junit.rules.CQAuthorPublishClassRule;
+import com.adobe.cq.testing.junit.rules.CQRule;
+import org.apache.sling.testing.clients.ClientException;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a fixed arrival rate against pages on the publish service and fails
+ * when the latency or error rate thresholds are breached. Disabled unless
+ * started with <code>-Dit.load=true</code>.
+ */
+public class PublishLoadIT {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(PublishLoadIT.class);
+
+    private static final boolean LOAD = Boolean.getBoolean("it.load");
+    private static final List<String> PAGES = Arrays.asList(System.getProperty("it.load.pages", "/").split(","));
+    private static final double RATE = Double.parseDouble(System.getProperty("it.load.rate", "50"));
+    private static final long DURATION_MILLIS = Long.getLong("it.load.durationMillis", 60000L);
+    private static final int CONNECTIONS = Integer.getInteger("it.load.connections", 64);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("it.load.timeoutMillis", 10000);
+    private static final long MAX_P99_MILLIS = Long.getLong("it.load.maxP99Millis", 1000L);
+    private static final double MAX_ERROR_RATE = Double.parseDouble(System.getProperty("it.load.maxErrorRate", "0.001"));
+
+    @ClassRule
+    public static final CQAuthorPublishClassRule cqBaseClassRule = new CQAuthorPublishClassRule(true);
+
+    @Rule
+    public CQRule cqBaseRule = new CQRule(cqBaseClassRule.publishRule);
+
+    private static HtmlUnitClient adminPublish;
+
+    @BeforeClass
+    public static void beforeClass() throws ClientException {
+        adminPublish = cqBaseClassRule.publishRule.getAdminClient(CQClient.class).adaptTo(HtmlUnitClient.class);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        closeQuietly(adminPublish);
+    }
+
+    @Test
+    public void publishMeetsLatencyObjectives() throws IOException, InterruptedException {
+        Assume.assumeTrue("Load test is disabled, enable it with -Dit.load=true", LOAD);
+
+        LoadRunner.Report report;
+        try (LoadRunner runner = new LoadRunner(adminPublish, CONNECTIONS, TIMEOUT_MILLIS)) {
+            report = runner.run(PAGES, RATE, DURATION_MILLIS);
+        }
+        LOG.info("Load of {}/s against {}: {}", RATE, PAGES, report);
+        List<String> violations = report.getViolations(MAX_P99_MILLIS, MAX_ERROR_RATE);
+        assertTrue("Service level objectives breached: " + violations, violations.isEmpty());
+    }
+}
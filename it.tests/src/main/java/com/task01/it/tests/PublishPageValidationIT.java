@@ -25,9 +25,9 @@ import com.adobe.cq.testing.junit.rules.Page;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.sling.testing.clients.ClientException;
-import org.apache.sling.testing.clients.SlingHttpResponse;
 import org.eclipse.jetty.client.HttpResponse;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Rule;
@@ -43,6 +43,9 @@ import static org.apache.commons.io.IOUtils.closeQuietly;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -60,6 +63,20 @@ public class PublishPageValidationIT {
     // list files which do return a zerobyte response body
     private static final List<String> ZEROBYTEFILES = Arrays.asList();
 
+    // number of linked resources validated in parallel
+    private static final int CONCURRENCY = Integer.getInteger("it.validation.concurrency", 8);
+
+    // validate with HEAD requests instead of streaming GETs
+    private static final boolean USE_HEAD = Boolean.getBoolean("it.validation.head");
+
+    // site crawl, enabled with -Dit.crawl=true
+    private static final boolean CRAWL = Boolean.getBoolean("it.crawl");
+    private static final String CRAWL_SEED = System.getProperty("it.crawl.seed", HOMEPAGE);
+    private static final int CRAWL_DEPTH = Integer.getInteger("it.crawl.depth", 3);
+    private static final int CRAWL_CONCURRENCY = Integer.getInteger("it.crawl.concurrency", 4);
+    private static final int CRAWL_MAX_PAGES = Integer.getInteger("it.crawl.maxPages", 10000);
+    private static final String CRAWL_REPORT = System.getProperty("it.crawl.report", "target/crawl-report.tsv");
+
 
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(PublishPageValidationIT.class);
@@ -95,6 +112,37 @@ public class PublishPageValidationIT {
     }
 
 
+    @Test
+    @Ignore
+    public void streamingResourceRefsMatchDom() throws IOException, URISyntaxException {
+        String path = HOMEPAGE;
+        List<URI> dom = adminPublish.getResourceRefs(path, false);
+        List<URI> streaming = adminPublish.getResourceRefs(path, true);
+        assertEquals("Streaming scan of " + path + " differs from the DOM", dom, streaming);
+    }
+
+    @Test
+    public void crawlSite() throws IOException, InterruptedException {
+        Assume.assumeTrue("Site crawl is disabled, enable it with -Dit.crawl=true", CRAWL);
+
+        List<SiteCrawler.PageReport> reports;
+        try (SiteCrawler crawler = new SiteCrawler(adminPublish, CRAWL_CONCURRENCY, CRAWL_DEPTH, CRAWL_MAX_PAGES, USE_HEAD)) {
+            reports = crawler.crawl(CRAWL_SEED);
+        }
+        Path report = Paths.get(CRAWL_REPORT);
+        SiteCrawler.writeReport(reports, report);
+        LOG.info("Crawled {} pages, report written to {}", reports.size(), report.toAbsolutePath());
+
+        List<String> broken = new ArrayList<>();
+        for (SiteCrawler.PageReport page : reports) {
+            if (page.isBroken()) {
+                broken.add(page.getUri() + " (status " + page.getStatus() + ", linked from " + page.getReferrer()
+                        + ", broken links " + page.getBrokenLinks() + ")");
+            }
+        }
+        assertTrue("Broken pages found:\n" + String.join("\n", broken), broken.isEmpty());
+    }
+
     private static void verifyPage (HtmlUnitClient client, String path) throws ClientProtocolException, IOException {
         URI baseURI = client.getUrl();
         LOG.info("Using {} as baseURL", baseURI.toString());
@@ -108,23 +156,33 @@ public class PublishPageValidationIT {
 
         List<URI> references = client.getResourceRefs(path);
         assertTrue(path + " does not contain any references!", references.size() > 0);
+        List<URI> sameOrigin = new ArrayList<>();
         for (URI ref : references ) {
             if (isSameOrigin(client.getUrl(), ref)) {
-                LOG.info("verifying linked resource {}", ref.toString());
-                SlingHttpResponse response = client.doGet(ref.getRawPath());
-                int statusCode = response.getStatusLine().getStatusCode();
-                int responseSize = response.getContent().length();
-                assertEquals("Unexpected status returned from [" + ref + "]", 200, statusCode);
-                if (! ZEROBYTEFILES.stream().anyMatch(s -> ref.getPath().startsWith(s))) {
-                    if (responseSize == 0) {
-                        LOG.warn("Empty response body from [" + ref.getPath() + "], please validate if this is correct");
-                    }
-                }
-
+                sameOrigin.add(ref);
             } else {
                 LOG.info("skipping linked resource from another domain {}", ref.toString());
             }
         }
+
+        List<LinkedResourceValidator.Result> results;
+        try (LinkedResourceValidator validator = new LinkedResourceValidator(client, CONCURRENCY, USE_HEAD)) {
+            results = validator.validate(sameOrigin);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating linked resources of " + path, e);
+        }
+        for (LinkedResourceValidator.Result result : results) {
+            URI ref = result.getUri();
+            LOG.info("verified linked resource {}", result);
+            assertEquals("Unexpected status returned from [" + ref + "]" + (result.getError() != null ? ": " + result.getError() : ""),
+                    200, result.getStatus());
+            if (! ZEROBYTEFILES.stream().anyMatch(s -> ref.getPath().startsWith(s))) {
+                if (result.getContentLength() == 0) {
+                    LOG.warn("Empty response body from [" + ref.getPath() + "], please validate if this is correct");
+                }
+            }
+        }
     }
 
     /** Checks if two URIs have the same origin.
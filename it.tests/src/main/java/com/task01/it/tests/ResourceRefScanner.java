@@ -0,0 +1,424 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Extracts the same resource references as {@link HtmlUnitClient#getResourceRefs(String)}
+ * in a single pass over the raw response bytes, without building a DOM.
+ * <p>
+ * The scanner only looks at start tags. Comments, doctype and processing
+ * instructions are skipped, as is the content of <code>script</code>,
+ * <code>style</code>, <code>textarea</code> and <code>title</code>.
+ * Attribute values are decoded as UTF-8 and character references are
+ * resolved, and only values of the attributes of interest are ever turned
+ * into strings. A <code>base</code> element changes the base URI the
+ * references are resolved against, like it does for the DOM.
+ */
+public final class ResourceRefScanner {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    // reusable accumulators for tag and attribute names and values
+    private final StringBuilder name = new StringBuilder(16);
+    private final StringBuilder attributeName = new StringBuilder(16);
+    private byte[] value = new byte[256];
+    private int valueLength;
+
+    private final List<String> scripts = new ArrayList<>();
+    private final List<String> images = new ArrayList<>();
+    private final List<String> metas = new ArrayList<>();
+    private final List<String> links = new ArrayList<>();
+    private final List<String[]> coreImages = new ArrayList<>();
+    private String base;
+
+    private ResourceRefScanner(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Scans the page and resolves all references.
+     * @param in raw response body, not closed by this method
+     * @param pageUri URI the page was loaded from
+     * @return references in the order {@link HtmlUnitClient#getResourceRefs(String)} returns them
+     * @throws IOException if reading fails
+     * @throws URISyntaxException if the base URI is malformed
+     */
+    public static List<URI> scan(InputStream in, URI pageUri) throws IOException, URISyntaxException {
+        ResourceRefScanner scanner = new ResourceRefScanner(in);
+        scanner.run();
+        return scanner.resolve(pageUri);
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private List<URI> resolve(URI pageUri) throws URISyntaxException {
+        URI baseUri = base != null ? pageUri.resolve(new URI(base)) : pageUri;
+        List<URI> result = new ArrayList<>(scripts.size() + images.size() + metas.size() + links.size());
+        resolveAll(result, baseUri, pageUri, scripts, "src");
+        resolveAll(result, baseUri, pageUri, images, "src");
+        resolveAll(result, baseUri, pageUri, metas, "href");
+        resolveAll(result, baseUri, pageUri, links, "href");
+        for (String[] image : coreImages) {
+            String src = image[0];
+            String widths = image[1];
+            if (widths != null) {
+                for (String w : widths.split(",")) {
+                    result.add(baseUri.resolve(src.replace("{.width}", "." + w)));
+                }
+            } else {
+                // happens with SVG and GIFs
+                result.add(baseUri.resolve(src.replace("{.width}", "")));
+            }
+        }
+        return result;
+    }
+
+    private static void resolveAll(List<URI> result, URI baseUri, URI pageUri, List<String> refs, String refAttr) {
+        for (String ref : refs) {
+            try {
+                result.add(baseUri.resolve(new URI(ref)));
+            } catch (URISyntaxException e) {
+                fail("Invalid URI value in [" + refAttr + "] attribute.\n" +
+                        "   Page URL:  [" + pageUri + "]\n" +
+                        "   Caused by: [" + e.getMessage() + "]");
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') {
+                continue;
+            }
+            c = read();
+            if (c == '!') {
+                skipMarkupDeclaration();
+            } else if (c == '?' || c == '/') {
+                skipPast('>');
+            } else if (isLetter(c)) {
+                readName(c, name);
+                startTag();
+            }
+        }
+    }
+
+    private void startTag() throws IOException {
+        String tag = name.toString();
+        String src = null;
+        String href = null;
+        String cssClass = null;
+        String cmpSrc = null;
+        String cmpWidths = null;
+        boolean interesting = isInteresting(tag);
+
+        int c = read();
+        while (true) {
+            while (isWhitespace(c) || c == '/') {
+                c = read();
+            }
+            if (c == '>' || c == -1) {
+                break;
+            }
+            // attribute name
+            attributeName.setLength(0);
+            while (c != -1 && c != '=' && c != '>' && !isWhitespace(c) && c != '/') {
+                attributeName.append(Character.toLowerCase((char) c));
+                c = read();
+            }
+            while (isWhitespace(c)) {
+                c = read();
+            }
+            if (c != '=') {
+                // attribute without value
+                continue;
+            }
+            c = read();
+            while (isWhitespace(c)) {
+                c = read();
+            }
+            valueLength = 0;
+            if (c == '"' || c == '\'') {
+                int quote = c;
+                while ((c = read()) != -1 && c != quote) {
+                    append(c);
+                }
+                c = read();
+            } else {
+                while (c != -1 && c != '>' && !isWhitespace(c)) {
+                    append(c);
+                    c = read();
+                }
+            }
+            if (interesting) {
+                String attribute = attributeName.toString();
+                switch (attribute) {
+                    case "src":
+                        src = src != null ? src : valueAsString();
+                        break;
+                    case "href":
+                        href = href != null ? href : valueAsString();
+                        break;
+                    case "class":
+                        cssClass = cssClass != null ? cssClass : valueAsString();
+                        break;
+                    case "data-cmp-src":
+                        cmpSrc = cmpSrc != null ? cmpSrc : valueAsString();
+                        break;
+                    case "data-cmp-widths":
+                        cmpWidths = cmpWidths != null ? cmpWidths : valueAsString();
+                        break;
+                    default:
+                }
+            }
+        }
+
+        switch (tag) {
+            case "script":
+                add(scripts, src);
+                skipRawText(tag);
+                break;
+            case "img":
+                add(images, src);
+                break;
+            case "meta":
+                add(metas, href);
+                break;
+            case "link":
+                add(links, href);
+                break;
+            case "base":
+                if (base == null && href != null) {
+                    base = href;
+                }
+                break;
+            case "div":
+                if (cssClass != null && cssClass.contains("cmp-image") && cmpSrc != null) {
+                    coreImages.add(new String[] { cmpSrc, cmpWidths });
+                }
+                break;
+            case "style":
+            case "textarea":
+            case "title":
+                skipRawText(tag);
+                break;
+            default:
+        }
+    }
+
+    private static boolean isInteresting(String tag) {
+        switch (tag) {
+            case "script":
+            case "img":
+            case "meta":
+            case "link":
+            case "base":
+            case "div":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void add(List<String> refs, String ref) {
+        if (ref != null) {
+            refs.add(ref);
+        }
+    }
+
+    private void skipMarkupDeclaration() throws IOException {
+        int c = read();
+        if (c == '-') {
+            c = read();
+            if (c == '-') {
+                // comment, ends with -->
+                int dashes = 0;
+                while ((c = read()) != -1) {
+                    if (c == '>' && dashes >= 2) {
+                        return;
+                    }
+                    dashes = c == '-' ? dashes + 1 : 0;
+                }
+                return;
+            }
+        }
+        if (c != '>') {
+            skipPast('>');
+        }
+    }
+
+    /**
+     * Skips the content of a raw text element up to and including its end tag.
+     */
+    private void skipRawText(String tag) throws IOException {
+        int c = read();
+        while (c != -1) {
+            if (c != '<') {
+                c = read();
+                continue;
+            }
+            c = read();
+            if (c != '/') {
+                continue;
+            }
+            int matched = 0;
+            c = read();
+            while (c != -1 && matched < tag.length() && Character.toLowerCase((char) c) == tag.charAt(matched)) {
+                matched++;
+                c = read();
+            }
+            if (matched == tag.length() && (c == '>' || isWhitespace(c) || c == '/')) {
+                if (c != '>') {
+                    skipPast('>');
+                }
+                return;
+            }
+        }
+    }
+
+    private void skipPast(int end) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != end) {
+            // skip
+        }
+    }
+
+    private void readName(int first, StringBuilder target) throws IOException {
+        target.setLength(0);
+        target.append(Character.toLowerCase((char) first));
+        int c;
+        while ((c = peek()) != -1 && !isWhitespace(c) && c != '>' && c != '/') {
+            target.append(Character.toLowerCase((char) c));
+            position++;
+        }
+    }
+
+    private void append(int c) {
+        if (valueLength == value.length) {
+            byte[] grown = new byte[value.length * 2];
+            System.arraycopy(value, 0, grown, 0, valueLength);
+            value = grown;
+        }
+        value[valueLength++] = (byte) c;
+    }
+
+    private String valueAsString() {
+        String raw = new String(value, 0, valueLength, StandardCharsets.UTF_8);
+        return raw.indexOf('&') < 0 ? raw : decodeEntities(raw);
+    }
+
+    static String decodeEntities(String raw) {
+        StringBuilder result = new StringBuilder(raw.length());
+        int i = 0;
+        while (i < raw.length()) {
+            char c = raw.charAt(i);
+            int semicolon;
+            if (c != '&' || (semicolon = raw.indexOf(';', i)) < 0 || semicolon - i > 10) {
+                result.append(c);
+                i++;
+                continue;
+            }
+            String entity = raw.substring(i + 1, semicolon);
+            String decoded = decodeEntity(entity);
+            if (decoded != null) {
+                result.append(decoded);
+                i = semicolon + 1;
+            } else {
+                result.append(c);
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    private static String decodeEntity(String entity) {
+        switch (entity) {
+            case "amp":
+                return "&";
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            case "nbsp":
+                return "\u00a0";
+            default:
+        }
+        if (entity.length() > 1 && entity.charAt(0) == '#') {
+            try {
+                int codePoint = entity.charAt(1) == 'x' || entity.charAt(1) == 'X'
+                        ? Integer.parseInt(entity.substring(2), 16)
+                        : Integer.parseInt(entity.substring(1));
+                return new String(Character.toChars(codePoint));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import org.apache.sling.testing.clients.ClientException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the DOM and the streaming reference extraction over fixed pages
+ * served by a local stand-in server and checks that they agree.
+ */
+public class ResourceRefScannerIT {
+
+    private static StubPublishServer server;
+
+    private static HtmlUnitClient client;
+
+    @BeforeClass
+    public static void startServer() throws IOException, ClientException {
+        server = new StubPublishServer(256, 0, 4);
+        server.addPage("/fixtures/base.html", "<!DOCTYPE html><html><head>"
+                + "<base href=\"/content/site/\">"
+                + "<script src=\"js/app.js\"></script>"
+                + "<link rel=\"stylesheet\" href=\"../clientlibs/site.css\">"
+                + "</head><body><img src=\"images/a.png\"><img src=\"/images/b.png\"></body></html>");
+        server.addPage("/fixtures/entities.html", "<!DOCTYPE html><html><head>"
+                + "<script src='/js/lib.js?v=&#49;&amp;min=true'></script>"
+                + "</head><body><img src=\"/images/a.png?w=1&amp;h=2\" alt=\"&lt;a&gt;\">"
+                + "<img src=\"/images/caf&#xe9;.png\"></body></html>");
+        server.addPage("/fixtures/core-image.html", "<!DOCTYPE html><html><body>"
+                + "<div class=\"cmp-image\" data-cmp-src=\"/content/dam/a.coreimg{.width}.jpeg\""
+                + " data-cmp-widths=\"320,640,1280\"><img src=\"/content/dam/a.coreimg.jpeg\"></div>"
+                + "<div class=\"image cmp-image--small\" data-cmp-src=\"/content/dam/logo.svg\"></div>"
+                + "</body></html>");
+        server.addPage("/fixtures/unquoted.html", "<!DOCTYPE html><html><head>"
+                + "<link href=/css/site.css rel=stylesheet><meta name=x href=/meta.json>"
+                + "</head><body><img src=/images/c.png srcset=\"/images/c-2x.png 2x, /images/c-3x.png 3x\">"
+                + "<IMG SRC=/images/D.png></body></html>");
+        server.addPage("/fixtures/skipped.html", "<!DOCTYPE html><html><head><title><img src=\"/title.png\"></title>"
+                + "<script>var html = '<img src=\"/inline.png\">';</script></head><body>"
+                + "<!-- <img src=\"/commented.png\"> --><textarea><img src=\"/textarea.png\"></textarea>"
+                + "<img src=\"/images/e.png\"></body></html>");
+        client = new HtmlUnitClient(server.getUrl(), "admin", "admin");
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void resolvesAgainstBaseElement() throws IOException, URISyntaxException {
+        URI root = server.getUrl();
+        assertEquals(Arrays.asList(root.resolve("/content/site/js/app.js"), root.resolve("/content/site/images/a.png"),
+                root.resolve("/images/b.png"), root.resolve("/content/clientlibs/site.css")),
+                assertSameRefs("/fixtures/base.html"));
+    }
+
+    @Test
+    public void decodesCharacterReferences() throws IOException, URISyntaxException {
+        assertSameRefs("/fixtures/entities.html");
+    }
+
+    @Test
+    public void expandsCoreImageRenditions() throws IOException, URISyntaxException {
+        assertEquals(5, assertSameRefs("/fixtures/core-image.html").size());
+    }
+
+    @Test
+    public void readsUnquotedAttributesAndIgnoresSrcset() throws IOException, URISyntaxException {
+        assertSameRefs("/fixtures/unquoted.html");
+    }
+
+    @Test
+    public void skipsCommentsAndRawText() throws IOException, URISyntaxException {
+        assertEquals(1, assertSameRefs("/fixtures/skipped.html").size());
+    }
+
+    private static List<URI> assertSameRefs(String path) throws IOException, URISyntaxException {
+        List<URI> dom = client.getResourceRefs(path, false);
+        List<URI> streaming = client.getResourceRefs(path, true);
+        assertFalse("No references found in " + path, dom.isEmpty());
+        assertEquals("Streaming scan of " + path + " differs from the DOM", dom, streaming);
+        return dom;
+    }
+}
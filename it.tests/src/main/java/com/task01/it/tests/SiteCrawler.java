@@ -0,0 +1,375 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import org.apache.sling.testing.clients.ClientException;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crawls a site breadth first, starting at a seed page and following same
+ * origin links up to a maximum depth. Every level is fetched by a fixed
+ * number of workers, each with its own client and connection, so the load
+ * on the instance is bounded by the concurrency. Linked resources are
+ * checked once per crawl, no matter how many pages reference them.
+ */
+public class SiteCrawler implements Closeable {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SiteCrawler.class);
+
+    /**
+     * Crawl outcome of a single page.
+     */
+    public static final class PageReport {
+
+        private final URI uri;
+        private final int depth;
+        private final URI referrer;
+        private final int status;
+        private final long loadMillis;
+        private final long bytes;
+        private final List<URI> brokenLinks;
+        private final String error;
+
+        PageReport(URI uri, int depth, URI referrer, int status, long loadMillis, long bytes,
+                   List<URI> brokenLinks, String error) {
+            this.uri = uri;
+            this.depth = depth;
+            this.referrer = referrer;
+            this.status = status;
+            this.loadMillis = loadMillis;
+            this.bytes = bytes;
+            this.brokenLinks = Collections.unmodifiableList(brokenLinks);
+            this.error = error;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return page the crawler found the link to this page on, <code>null</code> for the seed
+         */
+        public URI getReferrer() {
+            return referrer;
+        }
+
+        /**
+         * @return HTTP status, or -1 if the request failed
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public long getLoadMillis() {
+            return loadMillis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return same origin resources referenced by this page that did not return 200
+         */
+        public List<URI> getBrokenLinks() {
+            return brokenLinks;
+        }
+
+        /**
+         * @return error message if the page could not be loaded, <code>null</code> otherwise
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isBroken() {
+            return status != 200 || !brokenLinks.isEmpty();
+        }
+    }
+
+    private static final class Entry {
+
+        private final URI uri;
+        private final URI referrer;
+
+        Entry(URI uri, URI referrer) {
+            this.uri = uri;
+            this.referrer = referrer;
+        }
+    }
+
+    private final HtmlUnitClient client;
+
+    private final int concurrency;
+
+    private final int maxDepth;
+
+    private final int maxPages;
+
+    private final BloomFilter visited;
+
+    // one pending check per resource, later pages referencing it wait for the first check
+    private final Map<URI, CompletableFuture<Integer>> resourceStatus = new ConcurrentHashMap<>();
+
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    private final LinkedResourceValidator validator;
+
+    private final ExecutorService executor;
+
+    private final List<HtmlUnitClient> workerClients = Collections.synchronizedList(new ArrayList<>());
+
+    private final ThreadLocal<HtmlUnitClient> workerClient = new ThreadLocal<>();
+
+    /**
+     * @param client client used as template for the worker clients
+     * @param concurrency number of pages fetched in parallel
+     * @param maxDepth number of link hops followed from the seed page
+     * @param maxPages upper bound of pages crawled
+     * @param useHead whether linked resources are checked with HEAD requests
+     */
+    public SiteCrawler(HtmlUnitClient client, int concurrency, int maxDepth, int maxPages, boolean useHead) {
+        this.client = client;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxDepth = Math.max(0, maxDepth);
+        this.maxPages = Math.max(1, maxPages);
+        this.visited = new BloomFilter(this.maxPages * 2L, 0.001);
+        this.validator = new LinkedResourceValidator(client, this.concurrency, useHead);
+        this.executor = Executors.newFixedThreadPool(this.concurrency);
+    }
+
+    /**
+     * Crawls the site starting at the given path.
+     * @param seedPath path of the first page, relative to the client URL
+     * @return one report per crawled page, ordered by depth
+     * @throws InterruptedException if interrupted while crawling
+     */
+    public List<PageReport> crawl(String seedPath) throws InterruptedException {
+        URI origin = client.getUrl();
+        URI seed = client.getUrl(seedPath);
+        List<PageReport> reports = Collections.synchronizedList(new ArrayList<>());
+
+        Queue<Entry> level = new ConcurrentLinkedQueue<>();
+        visited.add(key(seed));
+        admitted.incrementAndGet();
+        level.add(new Entry(seed, null));
+
+        for (int depth = 0; depth <= maxDepth && !level.isEmpty(); depth++) {
+            Queue<Entry> next = new ConcurrentLinkedQueue<>();
+            boolean follow = depth < maxDepth;
+            int currentDepth = depth;
+            int size = level.size();
+            CountDownLatch done = new CountDownLatch(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                executor.execute(() -> {
+                    try {
+                        Entry entry;
+                        while ((entry = level.poll()) != null) {
+                            reports.add(visit(origin, entry, currentDepth, follow ? next : null));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            LOG.info("Crawled {} pages at depth {}, {} queued for the next level", size, depth, next.size());
+            level.clear();
+            level.addAll(next);
+        }
+        if (!level.isEmpty() && admitted.get() >= maxPages) {
+            LOG.warn("Stopped crawling after {} pages", maxPages);
+        }
+        return new ArrayList<>(reports);
+    }
+
+    /**
+     * Writes the reports as tab separated values.
+     * @param reports reports to write
+     * @param file target file, parent directories are created
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeReport(List<PageReport> reports, Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("url\tdepth\tstatus\tload_ms\tbytes\treferrer\tbroken_links\terror\n");
+            for (PageReport report : reports) {
+                out.write(report.getUri() + "\t" + report.getDepth() + "\t" + report.getStatus() + "\t"
+                        + report.getLoadMillis() + "\t" + report.getBytes() + "\t"
+                        + (report.getReferrer() != null ? report.getReferrer() : "") + "\t"
+                        + join(report.getBrokenLinks()) + "\t"
+                        + (report.getError() != null ? report.getError().replace('\t', ' ').replace('\n', ' ') : "")
+                        + "\n");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            validator.close();
+        } finally {
+            synchronized (workerClients) {
+                for (HtmlUnitClient worker : workerClients) {
+                    try {
+                        worker.close();
+                    } catch (IOException e) {
+                        LOG.debug("Failed to close crawler client", e);
+                    }
+                }
+                workerClients.clear();
+            }
+        }
+    }
+
+    //*********************************************
+    // Internals
+    //*********************************************
+
+    private PageReport visit(URI origin, Entry entry, int depth, Queue<Entry> next) {
+        PageScan scan;
+        try {
+            scan = getWorkerClient().scanPage(entry.uri);
+        } catch (IOException | URISyntaxException | ClientException | RuntimeException e) {
+            LOG.debug("Crawling {} failed", entry.uri, e);
+            return new PageReport(entry.uri, depth, entry.referrer, -1, -1, -1, Collections.emptyList(), e.toString());
+        }
+
+        List<URI> broken = new ArrayList<>();
+        for (URI ref : scan.getResourceRefs()) {
+            if (isSameOrigin(origin, ref)) {
+                if (checkResource(ref) != 200) {
+                    broken.add(ref);
+                }
+            }
+        }
+
+        if (next != null && scan.getStatus() == 200) {
+            for (URI link : scan.getPageLinks()) {
+                if (admitted.get() >= maxPages) {
+                    break;
+                }
+                URI target = normalize(link);
+                if (target != null && isSameOrigin(origin, target) && isPage(target)
+                        && visited.add(key(target))) {
+                    if (admitted.incrementAndGet() > maxPages) {
+                        break;
+                    }
+                    next.add(new Entry(target, entry.uri));
+                }
+            }
+        }
+        return new PageReport(entry.uri, depth, entry.referrer, scan.getStatus(), scan.getLoadMillis(),
+                scan.getBytes(), broken, null);
+    }
+
+    private int checkResource(URI ref) {
+        CompletableFuture<Integer> check = new CompletableFuture<>();
+        CompletableFuture<Integer> existing = resourceStatus.putIfAbsent(ref, check);
+        if (existing != null) {
+            return existing.join();
+        }
+        int status = -1;
+        try {
+            status = validator.check(ref).getStatus();
+        } finally {
+            check.complete(status);
+        }
+        return status;
+    }
+
+    private HtmlUnitClient getWorkerClient() throws ClientException {
+        HtmlUnitClient worker = workerClient.get();
+        if (worker == null) {
+            worker = new HtmlUnitClient(client.getUrl(), client.getUser(), client.getPassword());
+            workerClient.set(worker);
+            workerClients.add(worker);
+        }
+        return worker;
+    }
+
+    /**
+     * Drops fragment and query, the crawler follows distinct pages only.
+     */
+    private static URI normalize(URI uri) {
+        if (uri.getScheme() == null || !uri.getScheme().startsWith("http") || uri.getPath() == null) {
+            return null;
+        }
+        try {
+            return new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, null);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static boolean isPage(URI uri) {
+        String path = uri.getPath();
+        return path.isEmpty() || path.endsWith("/") || path.endsWith(".html");
+    }
+
+    private static String key(URI uri) {
+        return uri.getScheme() + "://" + uri.getAuthority() + uri.getPath();
+    }
+
+    private static boolean isSameOrigin(URI uri1, URI uri2) {
+        return uri1.getScheme().equals(uri2.getScheme()) && uri1.getAuthority().equals(uri2.getAuthority());
+    }
+
+    private static String join(List<URI> uris) {
+        StringBuilder builder = new StringBuilder();
+        for (URI uri : uris) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(uri);
+        }
+        return builder.toString();
+    }
+}
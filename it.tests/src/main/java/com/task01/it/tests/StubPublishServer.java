@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Adobe Systems Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.task01.it.tests;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal stand-in for a publish instance, for running the load harness in
+ * CI without AEM. Serves a fixed page for every path after a configurable
+ * delay; paths starting with <code>/error</code> return 500. Pages added
+ * with {@link #addPage(String, String)} are served instead for their path.
+ */
+public class StubPublishServer implements Closeable {
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final byte[] body;
+
+    private final Map<String, byte[]> pages = new ConcurrentHashMap<>();
+
+    private final long delayMillis;
+
+    /**
+     * @param pageBytes size of the page served
+     * @param delayMillis processing time simulated per request
+     * @param threads number of request threads
+     * @throws IOException if the server cannot be started
+     */
+    public StubPublishServer(int pageBytes, long delayMillis, int threads) throws IOException {
+        StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>stub</title></head><body>");
+        while (page.length() < pageBytes - 14) {
+            page.append("<p>lorem</p>");
+        }
+        page.append("</body></html>");
+        this.body = page.toString().getBytes(StandardCharsets.UTF_8);
+        this.delayMillis = delayMillis;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return base URL of the server
+     */
+    public URI getUrl() {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Serves the given markup for one path instead of the generated page.
+     * @param path request path, e.g. <code>/fixtures/base.html</code>
+     * @param html page markup
+     */
+    public void addPage(String path, String html) {
+        pages.put(path, html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return size of the page served
+     */
+    public int getPageBytes() {
+        return body.length;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            String path = exchange.getRequestURI().getPath();
+            boolean error = path.startsWith("/error");
+            byte[] page = pages.getOrDefault(path, body);
+            exchange.getResponseHeaders().set("Content-Type", "text/html;charset=utf-8");
+            exchange.sendResponseHeaders(error ? 500 : 200, page.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(page);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}